@@ -0,0 +1,131 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.ow2.easybeans.persistence.EZBPersistenceUnitManager;
+import org.ow2.util.ee.metadata.common.api.struct.IJavaxPersistenceContext;
+import org.ow2.util.ee.metadata.common.api.struct.IJavaxPersistenceContextType;
+import org.ow2.util.ee.metadata.common.api.view.IJavaxPersistenceView;
+import org.ow2.util.scan.api.metadata.IClassMetadata;
+import org.ow2.util.scan.api.metadata.IFieldMetadata;
+import org.ow2.util.scan.api.metadata.IMethodMetadata;
+import org.ow2.util.scan.api.metadata.IMetadata;
+
+import com.peergreen.deployment.Artifact;
+import com.peergreen.metadata.adapter.Binding;
+import com.peergreen.metadata.adapter.InjectionContext;
+import com.peergreen.persistence.easybeans.injection.PersistenceContextInjectionProcessor;
+import com.peergreen.persistence.easybeans.metrics.DefaultPersistenceMetrics;
+import com.peergreen.persistence.easybeans.stub.Stub;
+
+/**
+ * Cost of the resolution of a {@code @PersistenceContext} injection point (class, method and field injection).
+ * @author Florent Benoit
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PersistenceContextInjectionBenchmark {
+
+    private static final String UNIT_NAME = "benchmark-unit";
+
+    @Param({"TRANSACTION", "EXTENDED"})
+    private IJavaxPersistenceContextType type;
+
+    private PersistenceContextInjectionProcessor processor;
+
+    private InjectionContext classInjectionContext;
+
+    private InjectionContext methodInjectionContext;
+
+    private InjectionContext fieldInjectionContext;
+
+    @Setup
+    public void setup() {
+        processor = new PersistenceContextInjectionProcessor(new DefaultPersistenceMetrics());
+
+        final EntityManager transactionEntityManager = new Stub().as(EntityManager.class);
+        EZBPersistenceUnitManager persistenceUnitManager = new Stub()
+                .returns("getTransactionEntityManager", transactionEntityManager)
+                .answers("getExtendedEntityManager", new Stub.Answer() {
+                    @Override
+                    public Object answer(Object[] args) {
+                        return new Stub().as(EntityManager.class);
+                    }
+                }).as(EZBPersistenceUnitManager.class);
+        Artifact artifact = new Stub().facet(EZBPersistenceUnitManager.class, persistenceUnitManager).as(Artifact.class);
+
+        IJavaxPersistenceContext persistenceContext = new Stub()
+                .returns("getType", type)
+                .returns("getUnitName", UNIT_NAME)
+                .returns("getName", "persistence/" + UNIT_NAME)
+                .as(IJavaxPersistenceContext.class);
+        IJavaxPersistenceView persistenceView = new Stub().returns("getJavaxPersistenceContext", persistenceContext).as(IJavaxPersistenceView.class);
+
+        classInjectionContext = injectionContext(artifact, new Stub().facet(IJavaxPersistenceView.class, persistenceView).as(IClassMetadata.class));
+        methodInjectionContext = injectionContext(artifact, new Stub().facet(IJavaxPersistenceView.class, persistenceView).as(IMethodMetadata.class));
+        fieldInjectionContext = injectionContext(artifact, new Stub().facet(IJavaxPersistenceView.class, persistenceView).as(IFieldMetadata.class));
+    }
+
+    private static InjectionContext injectionContext(Artifact artifact, IMetadata metadata) {
+        final Binding<?> binding = new Stub().as(Binding.class);
+        return new Stub()
+                .returns("getArtifact", artifact)
+                .returns("getMetadata", metadata)
+                .returns("createBinding", binding)
+                .as(InjectionContext.class);
+    }
+
+    @TearDown
+    public void tearDown() {
+        processor.stop();
+    }
+
+    @Benchmark
+    public Binding<EntityManager> classInjection() {
+        return processor.handle(classInjectionContext);
+    }
+
+    @Benchmark
+    public Binding<EntityManager> methodInjection() {
+        return processor.handle(methodInjectionContext);
+    }
+
+    @Benchmark
+    public Binding<EntityManager> fieldInjection() {
+        return processor.handle(fieldInjectionContext);
+    }
+
+}
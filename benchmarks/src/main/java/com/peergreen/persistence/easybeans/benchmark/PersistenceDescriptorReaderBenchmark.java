@@ -0,0 +1,93 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.peergreen.persistence.easybeans.extension.webapplication.PersistenceDescriptorReader;
+import com.peergreen.persistence.easybeans.extension.webapplication.StreamingPersistenceDescriptorReader;
+
+/**
+ * Cost of the reading of an orm.xml file with N mappings by the DOM and the streaming readers.
+ * Run it with the GC profiler ({@code -prof gc}) to get the bytes allocated for each read (gc.alloc.rate.norm): the DOM
+ * reader holds the whole tree at once so this is also its peak heap usage, while the streaming reader only keeps the
+ * class names.
+ * @author Florent Benoit
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PersistenceDescriptorReaderBenchmark {
+
+    @Param({"100", "5000", "20000"})
+    private int mappings;
+
+    @Param({PersistenceDescriptorReader.DOM, PersistenceDescriptorReader.STAX})
+    private String reader;
+
+    private byte[] ormXML;
+
+    private PersistenceDescriptorReader persistenceDescriptorReader;
+
+    @Setup
+    public void setup() throws IOException {
+        StringBuilder content = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<entity-mappings xmlns=\"http://java.sun.com/xml/ns/persistence/orm\" version=\"2.0\">\n"
+                + "  <package>com.example</package>\n");
+        for (int i = 0; i < mappings; i++) {
+            content.append("  <entity class=\"Entity").append(i).append("\">\n")
+                   .append("    <table name=\"ENTITY_").append(i).append("\"/>\n")
+                   .append("    <attributes>\n")
+                   .append("      <id name=\"id\"><generated-value strategy=\"AUTO\"/></id>\n")
+                   .append("      <basic name=\"label\"><column name=\"LABEL\" length=\"64\"/></basic>\n")
+                   .append("      <many-to-one name=\"parent\" target-entity=\"Entity").append(i / 2).append("\"/>\n")
+                   .append("    </attributes>\n")
+                   .append("  </entity>\n");
+        }
+        content.append("</entity-mappings>\n");
+        ormXML = content.toString().getBytes("UTF-8");
+
+        if (PersistenceDescriptorReader.STAX.equals(reader)) {
+            persistenceDescriptorReader = new StreamingPersistenceDescriptorReader();
+        } else {
+            persistenceDescriptorReader = new PersistenceDescriptorReader();
+        }
+    }
+
+    @Benchmark
+    public Set<String> readOrmXML() throws IOException {
+        return persistenceDescriptorReader.readOrmXML(new ByteArrayInputStream(ormXML));
+    }
+
+}
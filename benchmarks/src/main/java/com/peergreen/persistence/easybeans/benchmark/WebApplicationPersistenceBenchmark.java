@@ -0,0 +1,230 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.ow2.easybeans.persistence.EZBPersistenceUnitManager;
+import org.ow2.easybeans.persistence.EZBPersistenceXmlAnalyzer;
+
+import com.peergreen.deployment.Artifact;
+import com.peergreen.deployment.ProcessorContext;
+import com.peergreen.deployment.facet.archive.Archive;
+import com.peergreen.persistence.easybeans.extension.webapplication.PersistenceDescriptorScanner;
+import com.peergreen.persistence.easybeans.extension.webapplication.WebApplicationPersistenceProcessor;
+import com.peergreen.persistence.easybeans.metrics.DefaultPersistenceMetrics;
+import com.peergreen.persistence.easybeans.registry.DefaultPersistenceUnitRegistry;
+import com.peergreen.persistence.easybeans.stub.Stub;
+import com.peergreen.webcontainer.WebApplication;
+
+/**
+ * Cost of the analysis of the persistence data of a synthetic web application with N libraries and M persistence units.
+ * A cold run is using a new processor for each deployment. A warm run is handling the same web application again with
+ * the same processor and classloader: the analyzed units are reused. A redeploy run is using the same processor with a
+ * new classloader, as a real redeploy does: only the reading of the unchanged descriptors is skipped, the units are
+ * analyzed again.
+ * @author Florent Benoit
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WebApplicationPersistenceBenchmark {
+
+    @Param({"10", "50", "150"})
+    private int libraries;
+
+    @Param({"1", "10"})
+    private int units;
+
+    @Param({"1", "4"})
+    private int scanThreads;
+
+    @Param({"cold", "warm", "redeploy"})
+    private String state;
+
+    private File directory;
+
+    private WebApplication webApplication;
+
+    private ProcessorContext processorContext;
+
+    private EZBPersistenceXmlAnalyzer persistenceXmlAnalyzer;
+
+    private WebApplicationPersistenceProcessor processor;
+
+    private ClassLoader parentClassLoader;
+
+    /**
+     * Classloader of the web application, replaced for each redeploy.
+     */
+    private volatile ClassLoader classLoader;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = File.createTempFile("war", "");
+        directory.delete();
+        File libDirectory = new File(directory, "WEB-INF/lib");
+        libDirectory.mkdirs();
+
+        final List<Archive> archives = new ArrayList<Archive>();
+        for (int i = 0; i < libraries; i++) {
+            File jar = new File(libDirectory, "library-" + i + ".jar");
+            writeLibrary(jar, i < units ? "unit-" + i : null);
+            archives.add(library(jar));
+        }
+
+        final URI rootURI = directory.toURI();
+        Archive war = new Stub()
+                .returns("getURI", rootURI)
+                .answers("getResource", new Stub.Answer() {
+                    @Override
+                    public Object answer(Object[] args) {
+                        File file = new File(directory, (String) args[0]);
+                        return file.exists() ? file.toURI() : null;
+                    }
+                }).as(Archive.class);
+
+        parentClassLoader = getClass().getClassLoader();
+        classLoader = parentClassLoader;
+        webApplication = new Stub()
+                .answers("getClassLoader", new Stub.Answer() {
+                    @Override
+                    public Object answer(Object[] args) {
+                        return classLoader;
+                    }
+                })
+                .returns("getLibraries", archives)
+                .as(WebApplication.class);
+        Artifact artifact = new Stub().facet(Archive.class, war).as(Artifact.class);
+        processorContext = new Stub().returns("getArtifact", artifact).as(ProcessorContext.class);
+
+        // Analyzer is parsing the persistence.xml file to get a realistic cost
+        persistenceXmlAnalyzer = new Stub().answers("analyzePersistenceXmlFile", new Stub.Answer() {
+            @Override
+            public Object answer(Object[] args) throws Exception {
+                DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(((URI) args[1]).toString());
+                return new Stub().as(EZBPersistenceUnitManager.class);
+            }
+        }).as(EZBPersistenceXmlAnalyzer.class);
+
+        System.setProperty(PersistenceDescriptorScanner.SCAN_THREADS_PROPERTY, String.valueOf(scanThreads));
+        processor = new WebApplicationPersistenceProcessor(persistenceXmlAnalyzer, new DefaultPersistenceMetrics(), new DefaultPersistenceUnitRegistry());
+    }
+
+    @TearDown
+    public void tearDown() {
+        processor.stop();
+        System.clearProperty(PersistenceDescriptorScanner.SCAN_THREADS_PROPERTY);
+        delete(directory);
+    }
+
+    @Benchmark
+    public void deploy() throws Exception {
+        if ("redeploy".equals(state)) {
+            classLoader = new URLClassLoader(new URL[0], parentClassLoader);
+        }
+        if (!"cold".equals(state)) {
+            processor.handle(webApplication, processorContext);
+            return;
+        }
+        WebApplicationPersistenceProcessor coldProcessor = new WebApplicationPersistenceProcessor(persistenceXmlAnalyzer, new DefaultPersistenceMetrics(), new DefaultPersistenceUnitRegistry());
+        try {
+            coldProcessor.handle(webApplication, processorContext);
+        } finally {
+            coldProcessor.stop();
+        }
+    }
+
+    private static Archive library(final File jar) {
+        final URI uri = jar.toURI();
+        return new Stub()
+                .returns("getURI", uri)
+                .answers("getResource", new Stub.Answer() {
+                    @Override
+                    public Object answer(Object[] args) throws IOException {
+                        String path = (String) args[0];
+                        try (ZipFile zipFile = new ZipFile(jar)) {
+                            if (zipFile.getEntry(path) == null) {
+                                return null;
+                            }
+                        }
+                        return URI.create("jar:" + uri + "!/" + path);
+                    }
+                }).as(Archive.class);
+    }
+
+    private static void writeLibrary(File jar, String unitName) throws IOException {
+        try (JarOutputStream jarOutputStream = new JarOutputStream(new FileOutputStream(jar))) {
+            jarOutputStream.putNextEntry(new ZipEntry("com/example/Empty.class"));
+            jarOutputStream.write(new byte[512]);
+            jarOutputStream.closeEntry();
+            if (unitName != null) {
+                jarOutputStream.putNextEntry(new ZipEntry("META-INF/persistence.xml"));
+                write(jarOutputStream, "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                        + "<persistence xmlns=\"http://java.sun.com/xml/ns/persistence\" version=\"2.0\">\n"
+                        + "  <persistence-unit name=\"" + unitName + "\">\n"
+                        + "    <jta-data-source>jdbc_1</jta-data-source>\n"
+                        + "    <class>com.example.Entity" + unitName.hashCode() + "</class>\n"
+                        + "  </persistence-unit>\n"
+                        + "</persistence>\n");
+                jarOutputStream.closeEntry();
+            }
+        }
+    }
+
+    private static void write(OutputStream outputStream, String content) throws IOException {
+        outputStream.write(content.getBytes("UTF-8"));
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -15,17 +15,158 @@
  */
 package com.peergreen.persistence.easybeans;
 
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.apache.felix.ipojo.annotations.Component;
 import org.apache.felix.ipojo.annotations.Instantiate;
+import org.apache.felix.ipojo.annotations.Invalidate;
+import org.apache.felix.ipojo.annotations.Provides;
+import org.apache.felix.ipojo.annotations.Validate;
+import org.ow2.easybeans.persistence.EZBPersistenceUnitManager;
+
+import com.peergreen.persistence.easybeans.metrics.DefaultPersistenceMetrics;
+import com.peergreen.persistence.easybeans.metrics.PersistenceMetrics;
+import com.peergreen.persistence.easybeans.metrics.PersistencePhase;
+import com.peergreen.persistence.easybeans.registry.DefaultPersistenceUnitRegistry;
+import com.peergreen.persistence.easybeans.registry.PersistenceUnitRegistry;
 
 @Component
 @Instantiate
+@Provides(specifications = {PersistenceMetrics.class, PersistenceUnitRegistry.class})
 /**
  * Component that is providing Persistence Service
- * For now it do nothing as all the stuff is done in the processors
+ * The processing is done in the processors, this component is collecting their metrics and exposes them through JMX.
+ * It also holds the persistence units shared by the deployments.
  * @author Florent Benoit
  */
-public class EasyBeansPersistenceService {
+public class EasyBeansPersistenceService implements PersistenceMetrics, PersistenceUnitRegistry {
+
+    /**
+     * Name of the metrics MBean.
+     */
+    public static final String METRICS_OBJECT_NAME = "com.peergreen.persistence.easybeans:type=PersistenceMetrics";
+
+    private static final Logger LOGGER = Logger.getLogger(EasyBeansPersistenceService.class.getName());
+
+    private final DefaultPersistenceMetrics metrics;
+
+    private final DefaultPersistenceUnitRegistry registry;
+
+    private ObjectName metricsObjectName;
+
+    public EasyBeansPersistenceService() {
+        this.metrics = new DefaultPersistenceMetrics();
+        this.registry = new DefaultPersistenceUnitRegistry();
+    }
+
+    @Validate
+    public void start() {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = new ObjectName(METRICS_OBJECT_NAME);
+            mBeanServer.registerMBean(metrics, objectName);
+            this.metricsObjectName = objectName;
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Unable to register the persistence metrics MBean", e);
+        }
+    }
+
+    @Invalidate
+    public void stop() {
+        if (metricsObjectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsObjectName);
+        } catch (JMException e) {
+            LOGGER.log(Level.FINE, "Unable to unregister the persistence metrics MBean", e);
+        }
+        metricsObjectName = null;
+    }
+
+    /**
+     * @return the collected metrics
+     */
+    public DefaultPersistenceMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void addLibrariesProbed(long count) {
+        metrics.addLibrariesProbed(count);
+    }
+
+    @Override
+    public void addDescriptorsParsed(long count) {
+        metrics.addDescriptorsParsed(count);
+    }
+
+    @Override
+    public void addManagersMerged(long count) {
+        metrics.addManagersMerged(count);
+    }
+
+    @Override
+    public void addInjectionPointsResolved(long count) {
+        metrics.addInjectionPointsResolved(count);
+    }
+
+    @Override
+    public void addExtendedContexts(long delta) {
+        metrics.addExtendedContexts(delta);
+    }
+
+    @Override
+    public void addExtendedContextEntities(long delta) {
+        metrics.addExtendedContextEntities(delta);
+    }
+
+    @Override
+    public void addExtendedContextsOverLimit(long count) {
+        metrics.addExtendedContextsOverLimit(count);
+    }
+
+    @Override
+    public void addIdleExtendedContextsCleared(long count) {
+        metrics.addIdleExtendedContextsCleared(count);
+    }
+
+    @Override
+    public void addTime(PersistencePhase phase, long nanos) {
+        metrics.addTime(phase, nanos);
+    }
+
+    @Override
+    public EZBPersistenceUnitManager acquire(ClassLoader definingClassLoader, String fingerprint, Collection<String> unitNames, Object owner, Callable<EZBPersistenceUnitManager> factory) throws Exception {
+        return registry.acquire(definingClassLoader, fingerprint, unitNames, owner, factory);
+    }
+
+    @Override
+    public void release(ClassLoader definingClassLoader, String fingerprint, Object owner) {
+        registry.release(definingClassLoader, fingerprint, owner);
+    }
+
+    @Override
+    public boolean isShared(EZBPersistenceUnitManager persistenceUnitManager) {
+        return registry.isShared(persistenceUnitManager);
+    }
+
+    @Override
+    public int getReferenceCount(ClassLoader definingClassLoader, String fingerprint) {
+        return registry.getReferenceCount(definingClassLoader, fingerprint);
+    }
 
+    @Override
+    public int size() {
+        return registry.size();
+    }
 
 }
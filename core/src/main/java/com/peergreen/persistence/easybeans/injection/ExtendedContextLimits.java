@@ -0,0 +1,149 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.injection;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits of the extended persistence contexts of a persistence unit.
+ * The limits are read from the properties {@value #PROPERTY_PREFIX}&lt;name&gt;.&lt;unit&gt; and then
+ * {@value #PROPERTY_PREFIX}&lt;name&gt; with the following names:
+ * <ul>
+ * <li>{@value #MAX_ENTITIES}: number of managed entities above which the context is cleared</li>
+ * <li>{@value #IDLE_TIMEOUT}: number of seconds without any call after which the context is cleared</li>
+ * <li>{@value #MONITORED}: true to count the contexts and their entities even if there is no limit</li>
+ * </ul>
+ * A value of 0 means no limit. The number of entities is read from the statistics of the provider, see
+ * {@link ProviderStatistics}: the maximum is not enforced for the providers without statistics.
+ * @author Florent Benoit
+ */
+public final class ExtendedContextLimits {
+
+    public static final String PROPERTY_PREFIX = "com.peergreen.persistence.easybeans.extended.";
+
+    public static final String MAX_ENTITIES = "maxEntities";
+
+    public static final String IDLE_TIMEOUT = "idleTimeout";
+
+    public static final String MONITORED = "monitored";
+
+    /**
+     * No limit and no monitoring.
+     */
+    public static final ExtendedContextLimits NONE = new ExtendedContextLimits(0, 0, false);
+
+    private final long maxEntities;
+
+    private final long idleTimeoutNanos;
+
+    private final boolean monitored;
+
+    /**
+     * @param maxEntities the maximum number of managed entities (0 for no limit)
+     * @param idleTimeoutNanos the idle timeout in nanoseconds (0 for no timeout)
+     * @param monitored true to monitor the contexts even if there is no limit
+     */
+    public ExtendedContextLimits(long maxEntities, long idleTimeoutNanos, boolean monitored) {
+        this.maxEntities = Math.max(0, maxEntities);
+        this.idleTimeoutNanos = Math.max(0, idleTimeoutNanos);
+        this.monitored = monitored;
+    }
+
+    /**
+     * Keeps the properties of the limits, to read the limits of the units without reading the system properties again.
+     * @param properties the properties, usually the system properties
+     * @return the properties of the limits
+     */
+    public static Map<String, String> select(Properties properties) {
+        Map<String, String> selected = new HashMap<String, String>();
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(PROPERTY_PREFIX)) {
+                selected.put(name, properties.getProperty(name));
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Gets the limits of the given unit.
+     * @param unitName the name of the persistence unit (may be null for the default unit)
+     * @param properties the properties of the limits, see {@link #select(Properties)}
+     * @return the limits
+     */
+    public static ExtendedContextLimits forUnit(String unitName, Map<String, String> properties) {
+        long maxEntities = parse(getProperty(properties, MAX_ENTITIES, unitName));
+        long idleTimeout = parse(getProperty(properties, IDLE_TIMEOUT, unitName));
+        boolean monitored = Boolean.parseBoolean(getProperty(properties, MONITORED, unitName));
+        if (maxEntities == 0 && idleTimeout == 0 && !monitored) {
+            return NONE;
+        }
+        return new ExtendedContextLimits(maxEntities, TimeUnit.SECONDS.toNanos(idleTimeout), monitored);
+    }
+
+    private static String getProperty(Map<String, String> properties, String name, String unitName) {
+        String value = null;
+        if (unitName != null && !unitName.isEmpty()) {
+            value = properties.get(PROPERTY_PREFIX + name + "." + unitName);
+        }
+        if (value == null) {
+            value = properties.get(PROPERTY_PREFIX + name);
+        }
+        return value;
+    }
+
+    private static long parse(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the maximum number of managed entities (0 for no limit)
+     */
+    public long getMaxEntities() {
+        return maxEntities;
+    }
+
+    /**
+     * @return the idle timeout in nanoseconds (0 for no timeout)
+     */
+    public long getIdleTimeoutNanos() {
+        return idleTimeoutNanos;
+    }
+
+    /**
+     * @return true if the contexts and their entities are counted even if there is no limit
+     */
+    public boolean isMonitored() {
+        return monitored;
+    }
+
+    /**
+     * @return true if the contexts have to be wrapped, either to enforce a limit or to be counted
+     */
+    public boolean isEnabled() {
+        return maxEntities > 0 || idleTimeoutNanos > 0 || monitored;
+    }
+
+}
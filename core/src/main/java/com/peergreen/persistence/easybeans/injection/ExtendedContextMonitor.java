@@ -0,0 +1,238 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.injection;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.persistence.EntityManager;
+
+import com.peergreen.persistence.easybeans.metrics.PersistenceMetrics;
+
+/**
+ * Keeps track of the extended persistence contexts that have limits or are monitored.
+ * The entity managers of these contexts are wrapped so that their last use is known. A sweeper clears the contexts idle
+ * for longer than their timeout or managing more entities than their maximum, and forgets the ones that have been closed
+ * or garbage collected. The sweeper is started with the first wrapped context.
+ * The limits of the units are read from the system properties by {@link #start()}.
+ * Contexts of units without limit are not wrapped at all.
+ * @author Florent Benoit
+ */
+public class ExtendedContextMonitor {
+
+    /**
+     * Default interval between two sweeps, in seconds.
+     */
+    public static final long DEFAULT_SWEEP_INTERVAL = 10;
+
+    private final PersistenceMetrics persistenceMetrics;
+
+    private final long sweepIntervalSeconds;
+
+    private final Set<TrackedExtendedContext> contexts;
+
+    private final ProviderStatistics providerStatistics;
+
+    /**
+     * Properties of the limits, read by {@link #start()}.
+     */
+    private volatile Map<String, String> properties;
+
+    /**
+     * Limits of the units already resolved.
+     */
+    private final ConcurrentMap<String, ExtendedContextLimits> unitLimits;
+
+    /**
+     * Guards the sweeper (a lock rather than a monitor so that virtual threads are not pinned).
+     */
+    private final ReentrantLock sweeperLock;
+
+    private volatile ScheduledExecutorService sweeper;
+
+    public ExtendedContextMonitor(PersistenceMetrics persistenceMetrics) {
+        this(persistenceMetrics, DEFAULT_SWEEP_INTERVAL);
+    }
+
+    /**
+     * @param persistenceMetrics the metrics receiving the counters of the contexts
+     * @param sweepIntervalSeconds interval between two sweeps, in seconds (0 to sweep only on demand)
+     */
+    public ExtendedContextMonitor(PersistenceMetrics persistenceMetrics, long sweepIntervalSeconds) {
+        this(persistenceMetrics, sweepIntervalSeconds, new ProviderStatistics());
+    }
+
+    ExtendedContextMonitor(PersistenceMetrics persistenceMetrics, long sweepIntervalSeconds, ProviderStatistics providerStatistics) {
+        this.persistenceMetrics = persistenceMetrics;
+        this.sweepIntervalSeconds = sweepIntervalSeconds;
+        this.providerStatistics = providerStatistics;
+        this.contexts = Collections.newSetFromMap(new ConcurrentHashMap<TrackedExtendedContext, Boolean>());
+        this.sweeperLock = new ReentrantLock();
+        this.properties = Collections.emptyMap();
+        this.unitLimits = new ConcurrentHashMap<String, ExtendedContextLimits>();
+    }
+
+    /**
+     * Reads the limits of the units from the system properties. Until then, no unit has limits.
+     */
+    public void start() {
+        properties = ExtendedContextLimits.select(System.getProperties());
+        unitLimits.clear();
+    }
+
+    /**
+     * Wraps the extended entity manager of the given unit according to the limits defined for this unit.
+     * @param unitName the name of the persistence unit
+     * @param entityManager the extended entity manager
+     * @return the entity manager to inject
+     */
+    public EntityManager wrap(String unitName, EntityManager entityManager) {
+        String key = unitName == null ? "" : unitName;
+        ExtendedContextLimits limits = unitLimits.get(key);
+        if (limits == null) {
+            limits = ExtendedContextLimits.forUnit(unitName, properties);
+            unitLimits.putIfAbsent(key, limits);
+        }
+        return wrap(entityManager, limits);
+    }
+
+    /**
+     * Wraps the extended entity manager if the limits require it.
+     * @param entityManager the extended entity manager
+     * @param limits the limits of the context
+     * @return the entity manager to inject
+     */
+    public EntityManager wrap(EntityManager entityManager, ExtendedContextLimits limits) {
+        if (entityManager == null || !limits.isEnabled()) {
+            return entityManager;
+        }
+        TrackedExtendedContext context = new TrackedExtendedContext(entityManager, limits, persistenceMetrics);
+        EntityManager proxy = context.createProxy();
+        contexts.add(context);
+        persistenceMetrics.addExtendedContexts(1);
+        startSweeper();
+        return proxy;
+    }
+
+    /**
+     * Clears the contexts that are idle or above their maximum number of entities and forgets the contexts that are no
+     * longer used.
+     * @return the number of contexts that have been cleared
+     */
+    public int sweep() {
+        return sweep(System.nanoTime());
+    }
+
+    /**
+     * @param now the current time, from {@link System#nanoTime()}
+     * @return the number of contexts that have been cleared
+     */
+    protected int sweep(long now) {
+        int cleared = 0;
+        Iterator<TrackedExtendedContext> iterator = contexts.iterator();
+        while (iterator.hasNext()) {
+            TrackedExtendedContext context = iterator.next();
+            if (context.isObsolete()) {
+                context.release();
+                iterator.remove();
+                continue;
+            }
+            if (context.sweep(now, providerStatistics)) {
+                cleared++;
+            }
+        }
+        return cleared;
+    }
+
+    /**
+     * @return the number of contexts that are tracked
+     */
+    public int size() {
+        return contexts.size();
+    }
+
+    /**
+     * @return the number of entities managed by the tracked contexts, as read by the last sweep
+     */
+    public long getEntities() {
+        long entities = 0;
+        for (TrackedExtendedContext context : contexts) {
+            entities += context.getEntities();
+        }
+        return entities;
+    }
+
+    private void startSweeper() {
+        if (sweeper != null || sweepIntervalSeconds <= 0) {
+            return;
+        }
+        sweeperLock.lock();
+        try {
+            if (sweeper == null) {
+                sweeper = newSweeper();
+            }
+        } finally {
+            sweeperLock.unlock();
+        }
+    }
+
+    private ScheduledExecutorService newSweeper() {
+        ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Peergreen persistence extended contexts sweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executorService.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sweep();
+            }
+        }, sweepIntervalSeconds, sweepIntervalSeconds, TimeUnit.SECONDS);
+        return executorService;
+    }
+
+    /**
+     * Stops the sweeper and forgets all the contexts.
+     */
+    public void stop() {
+        sweeperLock.lock();
+        try {
+            if (sweeper != null) {
+                sweeper.shutdownNow();
+                sweeper = null;
+            }
+        } finally {
+            sweeperLock.unlock();
+        }
+        for (TrackedExtendedContext context : contexts) {
+            context.release();
+        }
+        contexts.clear();
+    }
+
+}
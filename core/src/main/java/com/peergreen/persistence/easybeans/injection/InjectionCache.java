@@ -0,0 +1,32 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.injection;
+
+import com.peergreen.deployment.Artifact;
+
+/**
+ * Cache of the injections resolved for the artifacts, that has to forget an artifact when it is undeployed.
+ * @author Florent Benoit
+ */
+public interface InjectionCache {
+
+    /**
+     * Removes what was resolved for the given artifact.
+     * @param artifact the artifact that is undeployed
+     */
+    void invalidate(Artifact artifact);
+
+}
@@ -16,24 +16,54 @@
 package com.peergreen.persistence.easybeans.injection;
 
 import javax.persistence.PersistenceContext;
+import javax.transaction.TransactionSynchronizationRegistry;
 
 import org.apache.felix.ipojo.annotations.Component;
 import org.apache.felix.ipojo.annotations.Instantiate;
+import org.apache.felix.ipojo.annotations.Invalidate;
 import org.apache.felix.ipojo.annotations.Provides;
+import org.apache.felix.ipojo.annotations.Requires;
+import org.apache.felix.ipojo.annotations.Validate;
 
+import com.peergreen.deployment.Artifact;
 import com.peergreen.metadata.adapter.Binding;
 import com.peergreen.metadata.adapter.HandlerInjectionProcessor;
 import com.peergreen.metadata.adapter.InjectionContext;
+import com.peergreen.persistence.easybeans.metrics.PersistenceMetrics;
 
 @Component
 @Instantiate
 @Provides
-public class PersistenceContextHandlerInjectionProcessor implements HandlerInjectionProcessor {
+public class PersistenceContextHandlerInjectionProcessor implements HandlerInjectionProcessor, InjectionCache {
 
     private final PersistenceContextInjectionProcessor wrapped;
 
-    public PersistenceContextHandlerInjectionProcessor() {
-        this.wrapped = new PersistenceContextInjectionProcessor();
+    @Requires(optional = true, nullable = false)
+    private TransactionSynchronizationRegistry transactionSynchronizationRegistry;
+
+    public PersistenceContextHandlerInjectionProcessor(@Requires PersistenceMetrics persistenceMetrics) {
+        this.wrapped = new PersistenceContextInjectionProcessor(persistenceMetrics) {
+            @Override
+            protected TransactionSynchronizationRegistry getTransactionSynchronizationRegistry() {
+                // the registry is injected in this component
+                return transactionSynchronizationRegistry;
+            }
+        };
+    }
+
+    @Validate
+    public void start() {
+        wrapped.start();
+    }
+
+    @Invalidate
+    public void stop() {
+        wrapped.stop();
+    }
+
+    @Override
+    public void invalidate(Artifact artifact) {
+        wrapped.invalidate(artifact);
     }
 
     @Override
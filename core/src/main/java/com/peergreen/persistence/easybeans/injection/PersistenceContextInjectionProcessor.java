@@ -16,7 +16,11 @@
 package com.peergreen.persistence.easybeans.injection;
 
 import javax.persistence.EntityManager;
+import javax.transaction.TransactionSynchronizationRegistry;
 
+import org.apache.felix.ipojo.annotations.Invalidate;
+import org.apache.felix.ipojo.annotations.Requires;
+import org.apache.felix.ipojo.annotations.Validate;
 import org.ow2.easybeans.persistence.EZBPersistenceUnitManager;
 import org.ow2.util.ee.metadata.common.api.struct.IJavaxPersistenceContext;
 import org.ow2.util.ee.metadata.common.api.struct.IJavaxPersistenceContextType;
@@ -27,21 +31,85 @@ import com.peergreen.deployment.Artifact;
 import com.peergreen.metadata.adapter.Binding;
 import com.peergreen.metadata.adapter.InjectionContext;
 import com.peergreen.metadata.adapter.InjectionProcessor;
+import com.peergreen.persistence.easybeans.metrics.PersistenceMetrics;
+import com.peergreen.persistence.easybeans.metrics.PersistencePhase;
+import com.peergreen.persistence.easybeans.registry.SharedPersistenceUnitManagers;
 
 @InjectionProcessor("javax.persistence.PersistenceContext")
 public class PersistenceContextInjectionProcessor {
 
+    /**
+     * Transaction-scoped entity managers already resolved.
+     */
+    private final TransactionEntityManagerCache transactionEntityManagerCache;
+
+    /**
+     * Metrics of the injection.
+     */
+    @Requires
+    private PersistenceMetrics persistenceMetrics;
+
+    /**
+     * Extended persistence contexts that have limits or are monitored (created once the metrics are injected).
+     */
+    private ExtendedContextMonitor extendedContextMonitor;
+
+    /**
+     * Registry of the JTA transactions, binding the entity managers of the {@link TransactionContextMode#TRANSACTION} mode.
+     */
+    @Requires(optional = true, nullable = false)
+    private TransactionSynchronizationRegistry transactionSynchronizationRegistry;
+
+    /**
+     * Instantiated by the framework, the metrics are injected in the field.
+     */
+    public PersistenceContextInjectionProcessor() {
+        this.transactionEntityManagerCache = new TransactionEntityManagerCache(TransactionContextMode.getDefault());
+    }
+
+    /**
+     * @param persistenceMetrics the metrics of the injection, shared with the other processors
+     */
+    public PersistenceContextInjectionProcessor(PersistenceMetrics persistenceMetrics) {
+        this(persistenceMetrics, new ExtendedContextMonitor(persistenceMetrics));
+    }
+
+    public PersistenceContextInjectionProcessor(PersistenceMetrics persistenceMetrics, ExtendedContextMonitor extendedContextMonitor) {
+        this(persistenceMetrics, extendedContextMonitor, TransactionContextMode.getDefault());
+    }
+
+    /**
+     * @param persistenceMetrics the metrics of the injection
+     * @param extendedContextMonitor the monitor of the extended persistence contexts
+     * @param transactionContextMode how the transaction-scoped entity managers find the entity manager of the current transaction
+     */
+    public PersistenceContextInjectionProcessor(PersistenceMetrics persistenceMetrics, ExtendedContextMonitor extendedContextMonitor, TransactionContextMode transactionContextMode) {
+        this.transactionEntityManagerCache = new TransactionEntityManagerCache(transactionContextMode);
+        this.persistenceMetrics = persistenceMetrics;
+        this.extendedContextMonitor = extendedContextMonitor;
+    }
 
     public Binding<EntityManager> handle(InjectionContext injectionContext) {
+        long start = System.nanoTime();
+        try {
+            return resolve(injectionContext);
+        } finally {
+            persistenceMetrics.addTime(PersistencePhase.INJECTION, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Resolves the entity manager of the given injection point.
+     * @param injectionContext the injection point
+     * @return the binding or null if there is no persistence unit manager
+     */
+    protected Binding<EntityManager> resolve(InjectionContext injectionContext) {
 
         // Get artifact
         Artifact artifact = injectionContext.getArtifact();
 
-        // Get persistence unit manager
-        EZBPersistenceUnitManager persistenceUnitManager = artifact.as(EZBPersistenceUnitManager.class);
-
         // Do not continue if there is no persistence unit manager
-        if (persistenceUnitManager == null) {
+        if (!SharedPersistenceUnitManagers.hasPersistenceUnits(artifact)) {
             return null;
         }
 
@@ -49,18 +117,69 @@ public class PersistenceContextInjectionProcessor {
         IMetadata metadata = injectionContext.getMetadata();
         // get Persistence Context data
         IJavaxPersistenceView persistenceView = metadata.as(IJavaxPersistenceView.class);
-
         IJavaxPersistenceContext persistenceContext = persistenceView.getJavaxPersistenceContext();
+        String unitName = persistenceContext.getUnitName();
+
+        // Get persistence unit manager (the one of the artifact or a shared one)
+        EZBPersistenceUnitManager persistenceUnitManager = SharedPersistenceUnitManagers.getPersistenceUnitManager(artifact, unitName);
+
+        // Do not continue if the default unit is ambiguous
+        if (persistenceUnitManager == null) {
+            return null;
+        }
+
         EntityManager entityManager;
         if (persistenceContext.getType() == IJavaxPersistenceContextType.TRANSACTION) {
-            entityManager = persistenceUnitManager.getTransactionEntityManager(persistenceContext.getUnitName());
+            entityManager = transactionEntityManagerCache.getTransactionEntityManager(artifact, persistenceUnitManager, unitName, getTransactionSynchronizationRegistry());
         } else {
-            entityManager = persistenceUnitManager.getExtendedEntityManager(persistenceContext.getUnitName());
+            entityManager = getExtendedContextMonitor().wrap(unitName, persistenceUnitManager.getExtendedEntityManager(unitName));
         }
         Binding<EntityManager> binding = injectionContext.createBinding(persistenceContext.getName(), entityManager);
+        persistenceMetrics.addInjectionPointsResolved(1);
 
         return binding;
 
     }
 
+    /**
+     * @return the registry of the JTA transactions or null if there is none
+     */
+    protected TransactionSynchronizationRegistry getTransactionSynchronizationRegistry() {
+        return transactionSynchronizationRegistry;
+    }
+
+    /**
+     * Removes the entity managers resolved for the given artifact.
+     * @param artifact the artifact that is undeployed
+     */
+    public void invalidate(Artifact artifact) {
+        transactionEntityManagerCache.invalidate(artifact);
+    }
+
+    /**
+     * @return the monitor of the extended persistence contexts
+     */
+    protected synchronized ExtendedContextMonitor getExtendedContextMonitor() {
+        if (extendedContextMonitor == null) {
+            extendedContextMonitor = new ExtendedContextMonitor(persistenceMetrics);
+        }
+        return extendedContextMonitor;
+    }
+
+    /**
+     * Reads the limits of the extended persistence contexts.
+     */
+    @Validate
+    public void start() {
+        getExtendedContextMonitor().start();
+    }
+
+    /**
+     * Stops the monitoring of the extended persistence contexts.
+     */
+    @Invalidate
+    public void stop() {
+        getExtendedContextMonitor().stop();
+    }
+
 }
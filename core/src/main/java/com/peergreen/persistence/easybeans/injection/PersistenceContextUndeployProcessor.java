@@ -0,0 +1,44 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.injection;
+
+import org.apache.felix.ipojo.annotations.Requires;
+import org.ow2.easybeans.persistence.EZBPersistenceUnitManager;
+
+import com.peergreen.deployment.ProcessorContext;
+import com.peergreen.deployment.ProcessorException;
+import com.peergreen.deployment.processor.Phase;
+import com.peergreen.deployment.processor.Processor;
+
+/**
+ * Removes the entity managers resolved for an artifact with persistence units when it is undeployed.
+ * @author Florent Benoit
+ */
+@Processor
+@Phase("UNDEPLOY")
+public class PersistenceContextUndeployProcessor {
+
+    private final InjectionCache injectionCache;
+
+    public PersistenceContextUndeployProcessor(@Requires InjectionCache injectionCache) {
+        this.injectionCache = injectionCache;
+    }
+
+    public void handle(EZBPersistenceUnitManager persistenceUnitManager, ProcessorContext processorContext) throws ProcessorException {
+        injectionCache.invalidate(processorContext.getArtifact());
+    }
+
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.injection;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.apache.felix.ipojo.annotations.Requires;
+import org.ow2.easybeans.persistence.EZBPersistenceUnitManager;
+import org.ow2.util.ee.metadata.common.api.struct.IJavaxPersistenceUnit;
+import org.ow2.util.ee.metadata.common.api.view.IJavaxPersistenceView;
+import org.ow2.util.scan.api.metadata.IMetadata;
+
+import com.peergreen.deployment.Artifact;
+import com.peergreen.metadata.adapter.Binding;
+import com.peergreen.metadata.adapter.InjectionContext;
+import com.peergreen.metadata.adapter.InjectionProcessor;
+import com.peergreen.persistence.easybeans.metrics.PersistenceMetrics;
+import com.peergreen.persistence.easybeans.metrics.PersistencePhase;
+import com.peergreen.persistence.easybeans.registry.SharedPersistenceUnitManagers;
+
+/**
+ * Injects the entity manager factory of a persistence unit.
+ * @author Florent Benoit
+ */
+@InjectionProcessor("javax.persistence.PersistenceUnit")
+public class PersistenceUnitInjectionProcessor {
+
+    /**
+     * Metrics of the injection.
+     */
+    @Requires
+    private PersistenceMetrics persistenceMetrics;
+
+    /**
+     * Instantiated by the framework, the metrics are injected in the field.
+     */
+    public PersistenceUnitInjectionProcessor() {
+    }
+
+    /**
+     * @param persistenceMetrics the metrics of the injection, shared with the other processors
+     */
+    public PersistenceUnitInjectionProcessor(PersistenceMetrics persistenceMetrics) {
+        this.persistenceMetrics = persistenceMetrics;
+    }
+
+    public Binding<EntityManagerFactory> handle(InjectionContext injectionContext) {
+        long start = System.nanoTime();
+        try {
+            return resolve(injectionContext);
+        } finally {
+            persistenceMetrics.addTime(PersistencePhase.INJECTION, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Resolves the entity manager factory of the given injection point.
+     * @param injectionContext the injection point
+     * @return the binding or null if there is no persistence unit manager
+     */
+    protected Binding<EntityManagerFactory> resolve(InjectionContext injectionContext) {
+
+        // Get artifact
+        Artifact artifact = injectionContext.getArtifact();
+
+        // Do not continue if there is no persistence unit manager
+        if (!SharedPersistenceUnitManagers.hasPersistenceUnits(artifact)) {
+            return null;
+        }
+
+        // Get metadata
+        IMetadata metadata = injectionContext.getMetadata();
+        // get Persistence Unit data
+        IJavaxPersistenceView persistenceView = metadata.as(IJavaxPersistenceView.class);
+        IJavaxPersistenceUnit persistenceUnit = persistenceView.getJavaxPersistenceUnit();
+
+        // Get persistence unit manager (the one of the artifact or a shared one)
+        EZBPersistenceUnitManager persistenceUnitManager = SharedPersistenceUnitManagers.getPersistenceUnitManager(artifact, persistenceUnit.getUnitName());
+
+        // Do not continue if the default unit is ambiguous
+        if (persistenceUnitManager == null) {
+            return null;
+        }
+
+        EntityManagerFactory entityManagerFactory = persistenceUnitManager.getEntityManagerFactory(persistenceUnit.getUnitName());
+        Binding<EntityManagerFactory> binding = injectionContext.createBinding(persistenceUnit.getName(), entityManagerFactory);
+        persistenceMetrics.addInjectionPointsResolved(1);
+
+        return binding;
+
+    }
+
+}
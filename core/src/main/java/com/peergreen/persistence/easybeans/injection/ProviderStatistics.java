@@ -0,0 +1,115 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.injection;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+
+/**
+ * Reads the number of entities managed by an entity manager from the statistics of its provider, reached through
+ * {@link EntityManager#unwrap(Class)}:
+ * <ul>
+ * <li>Hibernate: Session.getStatistics().getEntityCount()</li>
+ * <li>OpenJPA: OpenJPAEntityManager.getManagedObjects().size()</li>
+ * </ul>
+ * Other providers don't give this number through their API, their contexts are not counted.
+ * @author Florent Benoit
+ */
+class ProviderStatistics {
+
+    private static final Logger LOGGER = Logger.getLogger(ProviderStatistics.class.getName());
+
+    /**
+     * Value returned when the provider gives no statistics.
+     */
+    public static final long UNKNOWN = -1;
+
+    /**
+     * Interface of the provider, method of this interface and, if needed, interface of the result and its method.
+     */
+    private static final String[][] PROVIDERS = {
+        {"org.hibernate.Session", "getStatistics", "org.hibernate.stat.SessionStatistics", "getEntityCount"},
+        {"org.apache.openjpa.persistence.OpenJPAEntityManager", "getManagedObjects"}
+    };
+
+    /**
+     * @param entityManager the entity manager
+     * @return the number of managed entities or {@link #UNKNOWN}
+     */
+    public long getManagedEntities(EntityManager entityManager) {
+        Object delegate;
+        try {
+            delegate = entityManager.getDelegate();
+        } catch (RuntimeException e) {
+            return UNKNOWN;
+        }
+        if (delegate == null) {
+            return UNKNOWN;
+        }
+        ClassLoader classLoader = delegate.getClass().getClassLoader();
+        for (String[] provider : PROVIDERS) {
+            Class<?> type = load(classLoader, provider[0]);
+            if (type == null || !type.isInstance(delegate)) {
+                continue;
+            }
+            try {
+                Object result = invoke(type, provider[1], entityManager.unwrap(type));
+                if (provider.length > 2) {
+                    result = invoke(load(classLoader, provider[2]), provider[3], result);
+                }
+                if (result instanceof Number) {
+                    return ((Number) result).longValue();
+                }
+                if (result instanceof Collection) {
+                    return ((Collection<?>) result).size();
+                }
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                LOGGER.log(Level.FINE, "Unable to read the statistics of " + provider[0], e);
+            }
+            return UNKNOWN;
+        }
+        return UNKNOWN;
+    }
+
+    private static Class<?> load(ClassLoader classLoader, String name) {
+        try {
+            return Class.forName(name, false, classLoader);
+        } catch (ClassNotFoundException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private static Object invoke(Class<?> type, String name, Object target) throws ReflectiveOperationException {
+        if (type == null || target == null) {
+            return null;
+        }
+        Method method = type.getMethod(name);
+        try {
+            return method.invoke(target);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+}
@@ -0,0 +1,260 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.injection;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+
+import com.peergreen.persistence.easybeans.metrics.PersistenceMetrics;
+
+/**
+ * Extended persistence context tracked by the {@link ExtendedContextMonitor}. Its entity manager is wrapped in a proxy
+ * that records the last call. The sweeper of the monitor clears the context when it has been idle for longer than its
+ * timeout or when the statistics of the provider show more managed entities than its maximum.
+ * The context is never cleared during a call nor while its entity manager is joined to a transaction (when the
+ * provider implements JPA 2.1), so that the changes of a running transaction are not lost. Changes made outside of a
+ * transaction and not yet flushed are dropped, as with a call of {@link EntityManager#clear()} by the application.
+ * Calls only update atomic fields: the proxy adds no lock to the calls of the application.
+ * @author Florent Benoit
+ */
+final class TrackedExtendedContext implements InvocationHandler {
+
+    private static final Logger LOGGER = Logger.getLogger(TrackedExtendedContext.class.getName());
+
+    /**
+     * Value of {@link #calls} while the sweeper clears the context.
+     */
+    private static final int CLEARING = -1;
+
+    private final EntityManager delegate;
+
+    private final ExtendedContextLimits limits;
+
+    private final PersistenceMetrics persistenceMetrics;
+
+    /**
+     * Proxy given to the injection points. The context is released once it has been garbage collected.
+     */
+    private WeakReference<EntityManager> proxy;
+
+    /**
+     * Number of calls in progress or {@link #CLEARING}.
+     */
+    private final AtomicInteger calls;
+
+    private volatile long lastAccess;
+
+    /**
+     * Last access before the context was cleared as idle, so that it is cleared once per idle period.
+     */
+    private volatile long clearedAccess;
+
+    /**
+     * Number of entities read by the last sweep (or {@link ProviderStatistics#UNKNOWN}).
+     */
+    private volatile long entities;
+
+    private final AtomicBoolean released;
+
+    TrackedExtendedContext(EntityManager delegate, ExtendedContextLimits limits, PersistenceMetrics persistenceMetrics) {
+        this.delegate = delegate;
+        this.limits = limits;
+        this.persistenceMetrics = persistenceMetrics;
+        this.calls = new AtomicInteger();
+        this.released = new AtomicBoolean();
+        this.lastAccess = System.nanoTime();
+        this.clearedAccess = -1;
+        this.entities = ProviderStatistics.UNKNOWN;
+    }
+
+    /**
+     * Creates the entity manager to inject. It implements all the interfaces of the delegate so that it can still be cast
+     * to the interfaces of the provider. The context only keeps a weak reference on it.
+     * @return the entity manager to inject
+     */
+    EntityManager createProxy() {
+        Set<Class<?>> interfaces = new LinkedHashSet<Class<?>>();
+        interfaces.add(EntityManager.class);
+        for (Class<?> type = delegate.getClass(); type != null; type = type.getSuperclass()) {
+            for (Class<?> candidate : type.getInterfaces()) {
+                // non public interfaces can't be implemented by a proxy of another package
+                if (Modifier.isPublic(candidate.getModifiers())) {
+                    interfaces.add(candidate);
+                }
+            }
+        }
+        ClassLoader classLoader = delegate.getClass().getClassLoader();
+        if (classLoader == null) {
+            classLoader = EntityManager.class.getClassLoader();
+        }
+        EntityManager entityManager = (EntityManager) Proxy.newProxyInstance(classLoader, interfaces.toArray(new Class<?>[interfaces.size()]), this);
+        this.proxy = new WeakReference<EntityManager>(entityManager);
+        return entityManager;
+    }
+
+    /**
+     * @return the number of managed entities read by the last sweep, 0 if the provider gives no statistics
+     */
+    long getEntities() {
+        return Math.max(0, entities);
+    }
+
+    @Override
+    public Object invoke(Object proxyInstance, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            switch (method.getName()) {
+                case "equals":
+                    return proxyInstance == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxyInstance);
+                default:
+                    return delegate.toString();
+            }
+        }
+
+        enter();
+        try {
+            lastAccess = System.nanoTime();
+            Object result = method.invoke(delegate, args);
+            if ("close".equals(method.getName())) {
+                release();
+            }
+            return result;
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        } finally {
+            calls.decrementAndGet();
+        }
+    }
+
+    /**
+     * Waits for the sweeper if it is clearing the context, which only takes the time of a clear.
+     */
+    private void enter() {
+        for (;;) {
+            int current = calls.get();
+            if (current != CLEARING && calls.compareAndSet(current, current + 1)) {
+                return;
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Clears the context if it has been idle for longer than its timeout or if it manages more entities than its maximum.
+     * Called by the sweeper.
+     * @param now the current time, from {@link System#nanoTime()}
+     * @param providerStatistics the statistics of the providers
+     * @return true if the context has been cleared
+     */
+    boolean sweep(long now, ProviderStatistics providerStatistics) {
+        if (released.get()) {
+            return false;
+        }
+        long access = lastAccess;
+        boolean idle = limits.getIdleTimeoutNanos() > 0 && access != clearedAccess && now - access >= limits.getIdleTimeoutNanos();
+        long count = entities;
+        if (limits.getMaxEntities() > 0 || limits.isMonitored()) {
+            count = providerStatistics.getManagedEntities(delegate);
+            setEntities(count);
+        }
+        boolean overLimit = limits.getMaxEntities() > 0 && count > limits.getMaxEntities();
+        if (!idle && !overLimit) {
+            return false;
+        }
+        // a context in use or in a transaction is left as is
+        if (!calls.compareAndSet(0, CLEARING)) {
+            return false;
+        }
+        try {
+            if (isJoinedToTransaction()) {
+                return false;
+            }
+            delegate.clear();
+        } finally {
+            calls.set(0);
+        }
+        clearedAccess = access;
+        setEntities(count == ProviderStatistics.UNKNOWN ? count : 0);
+        if (overLimit) {
+            persistenceMetrics.addExtendedContextsOverLimit(1);
+            LOGGER.log(Level.WARNING, "Extended persistence context {0} was managing {1} entities, above its limit of {2}, it has been cleared",
+                    new Object[] {delegate, count, limits.getMaxEntities()});
+        } else {
+            persistenceMetrics.addIdleExtendedContextsCleared(1);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the entity manager is joined to a transaction, false if it is not or if the provider can't tell
+     */
+    private boolean isJoinedToTransaction() {
+        try {
+            Method method = EntityManager.class.getMethod("isJoinedToTransaction");
+            return Boolean.TRUE.equals(method.invoke(delegate));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // JPA 2.0 API
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the context is no longer used: closed, garbage collected or closed by the container
+     */
+    boolean isObsolete() {
+        if (released.get() || proxy.get() == null) {
+            return true;
+        }
+        try {
+            return !delegate.isOpen();
+        } catch (RuntimeException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Removes the context from the counters. Can be called several times.
+     */
+    void release() {
+        if (!released.compareAndSet(false, true)) {
+            return;
+        }
+        persistenceMetrics.addExtendedContextEntities(-getEntities());
+        persistenceMetrics.addExtendedContexts(-1);
+    }
+
+    private void setEntities(long count) {
+        if (released.get()) {
+            return;
+        }
+        persistenceMetrics.addExtendedContextEntities(Math.max(0, count) - getEntities());
+        entities = count;
+    }
+
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.injection;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.persistence.EntityManager;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.ow2.easybeans.persistence.EZBPersistenceUnitManager;
+
+/**
+ * Transaction-scoped entity manager of the {@link TransactionContextMode#TRANSACTION} mode: the entity manager of a unit
+ * is a resource of the current JTA transaction, registered in the {@link TransactionSynchronizationRegistry}. It is
+ * created on first use in the transaction and closed when the transaction completes, so each transaction has its own
+ * persistence context whatever the thread running it. Outside of a transaction, calls are sent to the entity manager of
+ * the persistence unit manager.
+ * @author Florent Benoit
+ */
+final class TransactionBoundEntityManager implements InvocationHandler {
+
+    private final TransactionSynchronizationRegistry transactionSynchronizationRegistry;
+
+    private final EZBPersistenceUnitManager persistenceUnitManager;
+
+    private final String unitName;
+
+    /**
+     * Key of the entity manager in the resources of a transaction.
+     */
+    private final ResourceKey resourceKey;
+
+    /**
+     * Entity manager used outside of a transaction.
+     */
+    private final EntityManager defaultEntityManager;
+
+    private TransactionBoundEntityManager(TransactionSynchronizationRegistry transactionSynchronizationRegistry, EZBPersistenceUnitManager persistenceUnitManager, String unitName, EntityManager defaultEntityManager) {
+        this.transactionSynchronizationRegistry = transactionSynchronizationRegistry;
+        this.persistenceUnitManager = persistenceUnitManager;
+        this.unitName = unitName;
+        this.resourceKey = new ResourceKey(persistenceUnitManager, unitName);
+        this.defaultEntityManager = defaultEntityManager;
+    }
+
+    /**
+     * @param transactionSynchronizationRegistry the registry of the JTA transactions
+     * @param persistenceUnitManager the persistence unit manager
+     * @param unitName the name of the unit
+     * @param defaultEntityManager the entity manager used outside of a transaction
+     * @return the entity manager to inject
+     */
+    static EntityManager create(TransactionSynchronizationRegistry transactionSynchronizationRegistry, EZBPersistenceUnitManager persistenceUnitManager, String unitName, EntityManager defaultEntityManager) {
+        return (EntityManager) Proxy.newProxyInstance(EntityManager.class.getClassLoader(), new Class<?>[] {EntityManager.class},
+                new TransactionBoundEntityManager(transactionSynchronizationRegistry, persistenceUnitManager, unitName, defaultEntityManager));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return "TransactionBoundEntityManager[" + unitName + "]";
+            }
+        }
+        EntityManager entityManager;
+        if (transactionSynchronizationRegistry.getTransactionKey() != null) {
+            if ("close".equals(method.getName())) {
+                // like a container-managed entity manager, it is closed with its transaction
+                throw new IllegalStateException("A transaction-scoped entity manager can't be closed");
+            }
+            entityManager = getEntityManager();
+        } else {
+            entityManager = defaultEntityManager;
+        }
+        try {
+            return method.invoke(entityManager, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Gets the entity manager of the unit in the current transaction, creating it on first use. The transaction is only
+     * used by one thread at a time, so the resource needs no lock.
+     * @return the entity manager of the current transaction
+     */
+    private EntityManager getEntityManager() {
+        EntityManager entityManager = (EntityManager) transactionSynchronizationRegistry.getResource(resourceKey);
+        if (entityManager == null) {
+            final EntityManager created = persistenceUnitManager.getEntityManagerFactory(unitName).createEntityManager();
+            transactionSynchronizationRegistry.registerInterposedSynchronization(new Synchronization() {
+                @Override
+                public void beforeCompletion() {
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    // the resources of the transaction are dropped by the registry
+                    created.close();
+                }
+            });
+            created.joinTransaction();
+            transactionSynchronizationRegistry.putResource(resourceKey, created);
+            entityManager = created;
+        }
+        return entityManager;
+    }
+
+    /**
+     * Key of the entity manager of a unit: the units of a persistence unit manager share their entity manager in a
+     * transaction, whatever the artifact they are injected in.
+     */
+    private static final class ResourceKey {
+
+        private final EZBPersistenceUnitManager persistenceUnitManager;
+
+        private final String unitName;
+
+        public ResourceKey(EZBPersistenceUnitManager persistenceUnitManager, String unitName) {
+            this.persistenceUnitManager = persistenceUnitManager;
+            this.unitName = unitName == null ? "" : unitName;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof ResourceKey)) {
+                return false;
+            }
+            ResourceKey other = (ResourceKey) object;
+            return persistenceUnitManager == other.persistenceUnitManager && unitName.equals(other.unitName);
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(persistenceUnitManager) * 31 + unitName.hashCode();
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.injection;
+
+/**
+ * How the transaction-scoped entity managers find the entity manager of the current transaction.
+ * @author Florent Benoit
+ */
+public enum TransactionContextMode {
+
+    /**
+     * The entity manager of the persistence unit manager is injected, it relies on the state associated with the thread.
+     */
+    THREAD,
+
+    /**
+     * The injected entity manager uses an entity manager bound to the current JTA transaction through the
+     * TransactionSynchronizationRegistry and closed when the transaction completes. It falls back to the entity manager
+     * of the persistence unit manager outside of a transaction or when there is no registry.
+     */
+    TRANSACTION;
+
+    /**
+     * System property selecting the mode ({@link #THREAD} by default).
+     */
+    public static final String SYSTEM_PROPERTY = "com.peergreen.persistence.easybeans.transaction.context";
+
+    /**
+     * @return the mode selected by the {@link #SYSTEM_PROPERTY} system property
+     */
+    public static TransactionContextMode getDefault() {
+        String value = System.getProperty(SYSTEM_PROPERTY);
+        if (value != null) {
+            for (TransactionContextMode mode : values()) {
+                if (mode.name().equalsIgnoreCase(value.trim())) {
+                    return mode;
+                }
+            }
+        }
+        return THREAD;
+    }
+
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.injection;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.persistence.EntityManager;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.ow2.easybeans.persistence.EZBPersistenceUnitManager;
+
+import com.peergreen.deployment.Artifact;
+
+/**
+ * Cache of the transaction-scoped entity managers resolved for the artifacts.
+ * Transaction-scoped entity managers are proxies that are shared by all the injection points of a unit, so they are
+ * resolved once per artifact and per unit name.
+ * Artifacts are weakly referenced and the entry of a unit is replaced if the unit is given by another persistence unit
+ * manager (the artifact has been redeployed). An artifact may use several managers as shared units are given by their own
+ * manager.
+ * The map of the artifacts is guarded by a lock rather than a monitor so that virtual threads are not pinned.
+ * @author Florent Benoit
+ */
+public class TransactionEntityManagerCache {
+
+    /**
+     * Name used for the default unit as concurrent maps are not accepting null keys.
+     */
+    private static final String DEFAULT_UNIT_NAME = "";
+
+    private final Map<Artifact, ConcurrentMap<String, UnitEntityManager>> artifactEntityManagers;
+
+    private final ReentrantLock lock;
+
+    private final TransactionContextMode mode;
+
+    public TransactionEntityManagerCache() {
+        this(TransactionContextMode.THREAD);
+    }
+
+    /**
+     * @param mode how the cached entity managers find the entity manager of the current transaction
+     */
+    public TransactionEntityManagerCache(TransactionContextMode mode) {
+        this.artifactEntityManagers = new WeakHashMap<Artifact, ConcurrentMap<String, UnitEntityManager>>();
+        this.lock = new ReentrantLock();
+        this.mode = mode;
+    }
+
+    /**
+     * Gets the transaction-scoped entity manager of the given unit.
+     * @param artifact the artifact on which the entity manager is injected
+     * @param persistenceUnitManager the persistence unit manager giving the unit to the artifact
+     * @param unitName the name of the persistence unit
+     * @return the transaction-scoped entity manager
+     */
+    public EntityManager getTransactionEntityManager(Artifact artifact, EZBPersistenceUnitManager persistenceUnitManager, String unitName) {
+        return getTransactionEntityManager(artifact, persistenceUnitManager, unitName, null);
+    }
+
+    /**
+     * Gets the transaction-scoped entity manager of the given unit.
+     * @param artifact the artifact on which the entity manager is injected
+     * @param persistenceUnitManager the persistence unit manager giving the unit to the artifact
+     * @param unitName the name of the persistence unit
+     * @param transactionSynchronizationRegistry the registry of the JTA transactions, used in the
+     *        {@link TransactionContextMode#TRANSACTION} mode (may be null)
+     * @return the transaction-scoped entity manager
+     */
+    public EntityManager getTransactionEntityManager(Artifact artifact, EZBPersistenceUnitManager persistenceUnitManager, String unitName, TransactionSynchronizationRegistry transactionSynchronizationRegistry) {
+        ConcurrentMap<String, UnitEntityManager> entityManagers;
+        lock.lock();
+        try {
+            entityManagers = artifactEntityManagers.get(artifact);
+            if (entityManagers == null) {
+                entityManagers = new ConcurrentHashMap<String, UnitEntityManager>();
+                artifactEntityManagers.put(artifact, entityManagers);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        String key = unitName == null ? DEFAULT_UNIT_NAME : unitName;
+        UnitEntityManager cached = entityManagers.get(key);
+        if (cached != null && cached.persistenceUnitManager == persistenceUnitManager) {
+            return cached.entityManager;
+        }
+        EntityManager entityManager = persistenceUnitManager.getTransactionEntityManager(unitName);
+        if (entityManager == null) {
+            return null;
+        }
+        if (mode == TransactionContextMode.TRANSACTION && transactionSynchronizationRegistry != null) {
+            entityManager = TransactionBoundEntityManager.create(transactionSynchronizationRegistry, persistenceUnitManager, unitName, entityManager);
+        }
+        UnitEntityManager created = new UnitEntityManager(persistenceUnitManager, entityManager);
+        if (cached == null) {
+            cached = entityManagers.putIfAbsent(key, created);
+            if (cached == null) {
+                return entityManager;
+            }
+            if (cached.persistenceUnitManager == persistenceUnitManager) {
+                return cached.entityManager;
+            }
+        }
+        // the artifact has been redeployed: the unit is given by another manager
+        entityManagers.put(key, created);
+        return entityManager;
+    }
+
+    /**
+     * Removes the entity managers of the given artifact (when it is undeployed).
+     * @param artifact the artifact
+     */
+    public void invalidate(Artifact artifact) {
+        lock.lock();
+        try {
+            artifactEntityManagers.remove(artifact);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of artifacts that are in the cache
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return artifactEntityManagers.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Entity manager resolved for a unit and the manager it was resolved from.
+     */
+    private static final class UnitEntityManager {
+
+        private final EZBPersistenceUnitManager persistenceUnitManager;
+
+        private final EntityManager entityManager;
+
+        public UnitEntityManager(EZBPersistenceUnitManager persistenceUnitManager, EntityManager entityManager) {
+            this.persistenceUnitManager = persistenceUnitManager;
+            this.entityManager = entityManager;
+        }
+    }
+
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe persistence metrics based on atomic counters.
+ * @author Florent Benoit
+ */
+public class DefaultPersistenceMetrics implements PersistenceMetrics, PersistenceMetricsMXBean {
+
+    private final AtomicLong librariesProbed = new AtomicLong();
+
+    private final AtomicLong descriptorsParsed = new AtomicLong();
+
+    private final AtomicLong managersMerged = new AtomicLong();
+
+    private final AtomicLong injectionPointsResolved = new AtomicLong();
+
+    private final AtomicLong extendedContexts = new AtomicLong();
+
+    private final AtomicLong extendedContextEntities = new AtomicLong();
+
+    private final AtomicLong extendedContextsOverLimit = new AtomicLong();
+
+    private final AtomicLong idleExtendedContextsCleared = new AtomicLong();
+
+    /**
+     * Time of each phase, indexed by the ordinal of the phase.
+     */
+    private final AtomicLongArray times = new AtomicLongArray(PersistencePhase.values().length);
+
+    @Override
+    public void addLibrariesProbed(long count) {
+        librariesProbed.addAndGet(count);
+    }
+
+    @Override
+    public void addDescriptorsParsed(long count) {
+        descriptorsParsed.addAndGet(count);
+    }
+
+    @Override
+    public void addManagersMerged(long count) {
+        managersMerged.addAndGet(count);
+    }
+
+    @Override
+    public void addInjectionPointsResolved(long count) {
+        injectionPointsResolved.addAndGet(count);
+    }
+
+    @Override
+    public void addExtendedContexts(long delta) {
+        extendedContexts.addAndGet(delta);
+    }
+
+    @Override
+    public void addExtendedContextEntities(long delta) {
+        extendedContextEntities.addAndGet(delta);
+    }
+
+    @Override
+    public void addExtendedContextsOverLimit(long count) {
+        extendedContextsOverLimit.addAndGet(count);
+    }
+
+    @Override
+    public void addIdleExtendedContextsCleared(long count) {
+        idleExtendedContextsCleared.addAndGet(count);
+    }
+
+    @Override
+    public void addTime(PersistencePhase phase, long nanos) {
+        times.addAndGet(phase.ordinal(), nanos);
+    }
+
+    @Override
+    public long getLibrariesProbed() {
+        return librariesProbed.get();
+    }
+
+    @Override
+    public long getDescriptorsParsed() {
+        return descriptorsParsed.get();
+    }
+
+    @Override
+    public long getManagersMerged() {
+        return managersMerged.get();
+    }
+
+    @Override
+    public long getInjectionPointsResolved() {
+        return injectionPointsResolved.get();
+    }
+
+    @Override
+    public long getExtendedContexts() {
+        return extendedContexts.get();
+    }
+
+    @Override
+    public long getExtendedContextEntities() {
+        return extendedContextEntities.get();
+    }
+
+    @Override
+    public long getExtendedContextsOverLimit() {
+        return extendedContextsOverLimit.get();
+    }
+
+    @Override
+    public long getIdleExtendedContextsCleared() {
+        return idleExtendedContextsCleared.get();
+    }
+
+    @Override
+    public long getLibraryScanTime() {
+        return getTime(PersistencePhase.LIBRARY_SCAN);
+    }
+
+    @Override
+    public long getDescriptorParsingTime() {
+        return getTime(PersistencePhase.DESCRIPTOR_PARSING);
+    }
+
+    @Override
+    public long getMergeTime() {
+        return getTime(PersistencePhase.MERGE);
+    }
+
+    @Override
+    public long getClassLoaderTime() {
+        return getTime(PersistencePhase.CLASSLOADER);
+    }
+
+    @Override
+    public long getInjectionTime() {
+        return getTime(PersistencePhase.INJECTION);
+    }
+
+    /**
+     * @param phase the phase
+     * @return the time spent in the given phase, in nanoseconds
+     */
+    public long getTime(PersistencePhase phase) {
+        return times.get(phase.ordinal());
+    }
+
+    @Override
+    public void reset() {
+        librariesProbed.set(0);
+        descriptorsParsed.set(0);
+        managersMerged.set(0);
+        injectionPointsResolved.set(0);
+        extendedContextsOverLimit.set(0);
+        idleExtendedContextsCleared.set(0);
+        for (int i = 0; i < times.length(); i++) {
+            times.set(i, 0);
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.metrics;
+
+/**
+ * Counters and timers of the persistence processing, updated by the processors.
+ * @author Florent Benoit
+ */
+public interface PersistenceMetrics {
+
+    /**
+     * @param count number of libraries whose entries have been checked
+     */
+    void addLibrariesProbed(long count);
+
+    /**
+     * @param count number of persistence.xml files analyzed
+     */
+    void addDescriptorsParsed(long count);
+
+    /**
+     * @param count number of persistence unit managers merged into another one
+     */
+    void addManagersMerged(long count);
+
+    /**
+     * @param count number of injection points resolved
+     */
+    void addInjectionPointsResolved(long count);
+
+    /**
+     * @param delta number of extended persistence contexts opened (positive) or released (negative)
+     */
+    void addExtendedContexts(long delta);
+
+    /**
+     * @param delta change of the number of entities managed by the extended persistence contexts, as read from the
+     *        statistics of the provider
+     */
+    void addExtendedContextEntities(long delta);
+
+    /**
+     * @param count number of extended persistence contexts cleared because they were above their maximum number of entities
+     */
+    void addExtendedContextsOverLimit(long count);
+
+    /**
+     * @param count number of extended persistence contexts cleared because they were not used since their idle timeout
+     */
+    void addIdleExtendedContextsCleared(long count);
+
+    /**
+     * @param phase the phase
+     * @param nanos the time spent in this phase, in nanoseconds
+     */
+    void addTime(PersistencePhase phase, long nanos);
+
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.metrics;
+
+/**
+ * JMX view of the persistence metrics. Times are in nanoseconds.
+ * @author Florent Benoit
+ */
+public interface PersistenceMetricsMXBean {
+
+    long getLibrariesProbed();
+
+    long getDescriptorsParsed();
+
+    long getManagersMerged();
+
+    long getInjectionPointsResolved();
+
+    /**
+     * @return the number of monitored extended persistence contexts that are open
+     */
+    long getExtendedContexts();
+
+    /**
+     * @return the number of entities managed by the monitored extended persistence contexts, as read by the last sweep
+     */
+    long getExtendedContextEntities();
+
+    /**
+     * @return the number of extended persistence contexts cleared because they were above their maximum number of entities
+     */
+    long getExtendedContextsOverLimit();
+
+    /**
+     * @return the number of extended persistence contexts cleared because they were not used since their idle timeout
+     */
+    long getIdleExtendedContextsCleared();
+
+    long getLibraryScanTime();
+
+    long getDescriptorParsingTime();
+
+    long getMergeTime();
+
+    long getClassLoaderTime();
+
+    long getInjectionTime();
+
+    /**
+     * Resets all the counters but the number of open extended persistence contexts and of their entities.
+     */
+    void reset();
+
+}
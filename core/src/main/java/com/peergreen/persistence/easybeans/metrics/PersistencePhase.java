@@ -0,0 +1,49 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.metrics;
+
+/**
+ * Phases of the persistence processing that are timed.
+ * @author Florent Benoit
+ */
+public enum PersistencePhase {
+
+    /**
+     * Lookup of the persistence descriptors in the web application and its libraries.
+     */
+    LIBRARY_SCAN,
+
+    /**
+     * Analysis of the persistence.xml and orm.xml files.
+     */
+    DESCRIPTOR_PARSING,
+
+    /**
+     * Merge of the persistence unit managers.
+     */
+    MERGE,
+
+    /**
+     * Replacement of the classloader of the web application.
+     */
+    CLASSLOADER,
+
+    /**
+     * Resolution of the injection points.
+     */
+    INJECTION
+
+}
@@ -0,0 +1,248 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.registry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.ow2.easybeans.persistence.EZBPersistenceUnitManager;
+
+/**
+ * Default implementation of the registry.
+ * A manager is created once for concurrent deployments of the same units: the first deployment creates it outside of the
+ * lock of the registry and the other ones wait for it, so that deployments of different units are never serialized.
+ * The factories of a manager that is no longer used are closed outside of the lock too.
+ * @author Florent Benoit
+ */
+public class DefaultPersistenceUnitRegistry implements PersistenceUnitRegistry {
+
+    private static final Logger LOGGER = Logger.getLogger(DefaultPersistenceUnitRegistry.class.getName());
+
+    private final Map<Key, Entry> entries;
+
+    public DefaultPersistenceUnitRegistry() {
+        this.entries = new HashMap<Key, Entry>();
+    }
+
+    @Override
+    public EZBPersistenceUnitManager acquire(ClassLoader definingClassLoader, String fingerprint, Collection<String> unitNames, Object owner, Callable<EZBPersistenceUnitManager> factory) throws Exception {
+        Key key = new Key(definingClassLoader, fingerprint);
+        Entry entry;
+        boolean creator = false;
+        List<Entry> unused;
+        synchronized (this) {
+            unused = expunge();
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(factory, unitNames);
+                entries.put(key, entry);
+                creator = true;
+            }
+            entry.owners.put(owner, Boolean.TRUE);
+        }
+        close(unused);
+
+        if (creator) {
+            entry.creation.run();
+        }
+        try {
+            EZBPersistenceUnitManager persistenceUnitManager = entry.creation.get();
+            if (persistenceUnitManager == null) {
+                remove(key, entry);
+            }
+            return persistenceUnitManager;
+        } catch (ExecutionException e) {
+            // the next deployment will try again
+            remove(key, entry);
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    /**
+     * Removes the entry of a manager that couldn't be created.
+     */
+    private synchronized void remove(Key key, Entry entry) {
+        if (entries.get(key) == entry) {
+            entries.remove(key);
+        }
+    }
+
+    @Override
+    public void release(ClassLoader definingClassLoader, String fingerprint, Object owner) {
+        Key key = new Key(definingClassLoader, fingerprint);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null) {
+                return;
+            }
+            entry.owners.remove(owner);
+            if (!entry.owners.isEmpty()) {
+                return;
+            }
+            entries.remove(key);
+        }
+        close(Collections.singletonList(entry));
+    }
+
+    @Override
+    public synchronized boolean isShared(EZBPersistenceUnitManager persistenceUnitManager) {
+        for (Entry entry : entries.values()) {
+            if (entry.getPersistenceUnitManager() == persistenceUnitManager) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized int getReferenceCount(ClassLoader definingClassLoader, String fingerprint) {
+        Entry entry = entries.get(new Key(definingClassLoader, fingerprint));
+        if (entry == null) {
+            return 0;
+        }
+        return entry.owners.size();
+    }
+
+    @Override
+    public int size() {
+        List<Entry> unused;
+        int size;
+        synchronized (this) {
+            unused = expunge();
+            size = entries.size();
+        }
+        close(unused);
+        return size;
+    }
+
+    /**
+     * Removes the managers whose owners have all been garbage collected. Must be called with the lock held.
+     * @return the removed entries, to be closed outside of the lock
+     */
+    private List<Entry> expunge() {
+        List<Entry> unused = new ArrayList<Entry>();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.owners.isEmpty()) {
+                iterator.remove();
+                unused.add(entry);
+            }
+        }
+        return unused;
+    }
+
+    /**
+     * Closes the factories of the units of the managers that are no longer used.
+     * @param unused the entries of these managers
+     */
+    private static void close(List<Entry> unused) {
+        for (Entry entry : unused) {
+            EZBPersistenceUnitManager persistenceUnitManager = entry.getPersistenceUnitManager();
+            if (persistenceUnitManager == null) {
+                continue;
+            }
+            for (String unitName : entry.unitNames) {
+                try {
+                    EntityManagerFactory entityManagerFactory = persistenceUnitManager.getEntityManagerFactory(unitName);
+                    if (entityManagerFactory != null && entityManagerFactory.isOpen()) {
+                        entityManagerFactory.close();
+                    }
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Unable to close the factory of the shared persistence unit " + unitName, e);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Key of a shared manager.
+     */
+    private static final class Key {
+
+        private final ClassLoader definingClassLoader;
+        private final String fingerprint;
+
+        public Key(ClassLoader definingClassLoader, String fingerprint) {
+            this.definingClassLoader = definingClassLoader;
+            this.fingerprint = fingerprint;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) object;
+            return definingClassLoader == other.definingClassLoader && fingerprint.equals(other.fingerprint);
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(definingClassLoader) * 31 + fingerprint.hashCode();
+        }
+    }
+
+    /**
+     * Shared manager, possibly being created, the names of its units and its owners.
+     */
+    private static final class Entry {
+
+        private final FutureTask<EZBPersistenceUnitManager> creation;
+        private final Collection<String> unitNames;
+        private final Map<Object, Boolean> owners;
+
+        public Entry(Callable<EZBPersistenceUnitManager> factory, Collection<String> unitNames) {
+            this.creation = new FutureTask<EZBPersistenceUnitManager>(factory);
+            this.unitNames = new ArrayList<String>(unitNames);
+            this.owners = new WeakHashMap<Object, Boolean>();
+        }
+
+        /**
+         * @return the manager or null if it is not yet created
+         */
+        public EZBPersistenceUnitManager getPersistenceUnitManager() {
+            if (!creation.isDone()) {
+                return null;
+            }
+            try {
+                return creation.get();
+            } catch (InterruptedException | ExecutionException e) {
+                return null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.registry;
+
+import java.util.Collection;
+import java.util.concurrent.Callable;
+
+import org.ow2.easybeans.persistence.EZBPersistenceUnitManager;
+
+/**
+ * Registry of the persistence unit managers shared by several deployments.
+ * A manager is registered by the classloader defining its managed classes and by the fingerprint of its descriptors.
+ * It is kept as long as a deployment (an owner) is using it. Deployments release their reference when they are undeployed
+ * and owners are weakly referenced: a deployment that is garbage collected no longer holds a reference either. Once a
+ * manager is no longer used, the factories of its units are closed.
+ * Shared managers should never receive the units of another manager, nor be merged into the manager of a deployment
+ * (see {@link SharedPersistenceUnitManagers}).
+ * @author Florent Benoit
+ */
+public interface PersistenceUnitRegistry {
+
+    /**
+     * Gets the manager registered for the given key, creating it if there is none, and adds the owner to its users.
+     * @param definingClassLoader the classloader defining the managed classes of the units
+     * @param fingerprint the fingerprint of the descriptors of the units
+     * @param unitNames the names of the units, whose factories are closed when the manager is no longer used
+     * @param owner the deployment using the manager
+     * @param factory creates the manager if it's not yet registered
+     * @return the shared manager or null if the factory returned null
+     * @throws Exception if the factory fails
+     */
+    EZBPersistenceUnitManager acquire(ClassLoader definingClassLoader, String fingerprint, Collection<String> unitNames, Object owner, Callable<EZBPersistenceUnitManager> factory) throws Exception;
+
+    /**
+     * Removes the owner from the users of the manager. The manager is unregistered and the factories of its units are
+     * closed when it's no longer used.
+     * @param definingClassLoader the classloader defining the managed classes of the units
+     * @param fingerprint the fingerprint of the descriptors of the units
+     * @param owner the deployment using the manager
+     */
+    void release(ClassLoader definingClassLoader, String fingerprint, Object owner);
+
+    /**
+     * @param persistenceUnitManager a manager
+     * @return true if the given manager is shared through this registry
+     */
+    boolean isShared(EZBPersistenceUnitManager persistenceUnitManager);
+
+    /**
+     * @param definingClassLoader the classloader defining the managed classes of the units
+     * @param fingerprint the fingerprint of the descriptors of the units
+     * @return the number of deployments using the manager
+     */
+    int getReferenceCount(ClassLoader definingClassLoader, String fingerprint);
+
+    /**
+     * @return the number of registered managers
+     */
+    int size();
+
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.registry;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.ow2.easybeans.persistence.EZBPersistenceUnitManager;
+
+import com.peergreen.deployment.Artifact;
+
+/**
+ * Shared persistence unit managers used by an artifact, by unit name.
+ * They are never merged into the EZBPersistenceUnitManager facet of the artifact as the units of this manager are closed
+ * when the artifact is undeployed, whereas the shared units are closed by the {@link PersistenceUnitRegistry} once no
+ * deployment is using them.
+ * @author Florent Benoit
+ */
+public class SharedPersistenceUnitManagers {
+
+    private final Map<String, EZBPersistenceUnitManager> persistenceUnitManagers;
+
+    /**
+     * @param persistenceUnitManagers the shared manager of each unit
+     */
+    public SharedPersistenceUnitManagers(Map<String, EZBPersistenceUnitManager> persistenceUnitManagers) {
+        this.persistenceUnitManagers = Collections.unmodifiableMap(new LinkedHashMap<String, EZBPersistenceUnitManager>(persistenceUnitManagers));
+    }
+
+    /**
+     * @return the shared manager of each unit
+     */
+    public Map<String, EZBPersistenceUnitManager> getPersistenceUnitManagers() {
+        return persistenceUnitManagers;
+    }
+
+    /**
+     * @param artifact the artifact
+     * @return true if the artifact has a manager or uses shared managers
+     */
+    public static boolean hasPersistenceUnits(Artifact artifact) {
+        return artifact.as(EZBPersistenceUnitManager.class) != null || artifact.as(SharedPersistenceUnitManagers.class) != null;
+    }
+
+    /**
+     * Gets the manager giving a unit to the given artifact: the shared manager of the unit if any, else the manager of
+     * the artifact. The default unit is the one of the manager of the artifact, or the only shared unit if the artifact
+     * has no manager.
+     * @param artifact the artifact
+     * @param unitName the name of the unit (may be null or empty for the default unit)
+     * @return the manager or null if the artifact has no persistence unit or if the default unit is ambiguous
+     */
+    public static EZBPersistenceUnitManager getPersistenceUnitManager(Artifact artifact, String unitName) {
+        EZBPersistenceUnitManager persistenceUnitManager = artifact.as(EZBPersistenceUnitManager.class);
+        SharedPersistenceUnitManagers sharedPersistenceUnitManagers = artifact.as(SharedPersistenceUnitManagers.class);
+        if (sharedPersistenceUnitManagers == null) {
+            return persistenceUnitManager;
+        }
+        Map<String, EZBPersistenceUnitManager> sharedManagers = sharedPersistenceUnitManagers.persistenceUnitManagers;
+        if (unitName == null || unitName.isEmpty()) {
+            if (persistenceUnitManager == null && sharedManagers.size() == 1) {
+                return sharedManagers.values().iterator().next();
+            }
+            return persistenceUnitManager;
+        }
+        EZBPersistenceUnitManager sharedManager = sharedManagers.get(unitName);
+        if (sharedManager != null) {
+            return sharedManager;
+        }
+        return persistenceUnitManager;
+    }
+
+    @Override
+    public String toString() {
+        return "SharedPersistenceUnitManagers" + persistenceUnitManagers.keySet();
+    }
+
+}
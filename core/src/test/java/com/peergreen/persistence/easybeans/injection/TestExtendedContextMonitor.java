@@ -0,0 +1,252 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.injection;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.peergreen.persistence.easybeans.metrics.DefaultPersistenceMetrics;
+
+/**
+ * Test the limits of the extended persistence contexts.
+ * @author Florent Benoit
+ */
+public class TestExtendedContextMonitor {
+
+    private static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toNanos(60);
+
+    private EntityManager entityManager;
+
+    private DefaultPersistenceMetrics metrics;
+
+    /**
+     * Number of entities given by the statistics of the provider.
+     */
+    private AtomicLong entities;
+
+    private ExtendedContextMonitor monitor;
+
+    @BeforeMethod
+    public void init() {
+        entityManager = mock(EntityManager.class);
+        doReturn(Boolean.TRUE).when(entityManager).isOpen();
+        metrics = new DefaultPersistenceMetrics();
+        entities = new AtomicLong();
+        // no sweeper thread, sweeps are done by the tests
+        monitor = new ExtendedContextMonitor(metrics, 0, new ProviderStatistics() {
+            @Override
+            public long getManagedEntities(EntityManager entityManager) {
+                return entities.get();
+            }
+        });
+    }
+
+    @Test
+    public void testContextWithoutLimitIsNotWrapped() {
+        assertSame(monitor.wrap(entityManager, ExtendedContextLimits.NONE), entityManager);
+        assertEquals(monitor.size(), 0);
+        assertEquals(metrics.getExtendedContexts(), 0L);
+    }
+
+    @Test
+    public void testEntitiesAreReadFromProvider() {
+        EntityManager wrapped = monitor.wrap(entityManager, new ExtendedContextLimits(0, 0, true));
+        assertNotSame(wrapped, entityManager);
+        assertEquals(metrics.getExtendedContexts(), 1L);
+
+        entities.set(3);
+        assertEquals(monitor.sweep(), 0);
+        assertEquals(monitor.getEntities(), 3L);
+        assertEquals(metrics.getExtendedContextEntities(), 3L);
+
+        entities.set(1);
+        monitor.sweep();
+        assertEquals(metrics.getExtendedContextEntities(), 1L);
+        verify(entityManager, never()).clear();
+    }
+
+    @Test
+    public void testContextAboveMaxEntitiesIsCleared() {
+        EntityManager wrapped = monitor.wrap(entityManager, new ExtendedContextLimits(2, 0, false));
+        wrapped.persist(new Object());
+        entities.set(2);
+        assertEquals(monitor.sweep(), 0);
+        assertEquals(metrics.getExtendedContextsOverLimit(), 0L);
+
+        entities.set(3);
+        assertEquals(monitor.sweep(), 1);
+        verify(entityManager).clear();
+        assertEquals(metrics.getExtendedContextsOverLimit(), 1L);
+        assertEquals(metrics.getExtendedContextEntities(), 0L);
+    }
+
+    @Test
+    public void testProviderWithoutStatistics() {
+        monitor = new ExtendedContextMonitor(metrics, 0);
+        monitor.wrap(entityManager, new ExtendedContextLimits(2, 0, false));
+        assertEquals(monitor.sweep(), 0);
+        verify(entityManager, never()).clear();
+        assertEquals(metrics.getExtendedContextEntities(), 0L);
+    }
+
+    @Test
+    public void testIdleContextIsCleared() {
+        EntityManager wrapped = monitor.wrap(entityManager, new ExtendedContextLimits(0, IDLE_TIMEOUT, false));
+        wrapped.persist(new Object());
+
+        assertEquals(monitor.sweep(), 0);
+        assertEquals(monitor.sweep(System.nanoTime() + IDLE_TIMEOUT + 1), 1);
+        verify(entityManager).clear();
+        assertEquals(metrics.getIdleExtendedContextsCleared(), 1L);
+        // cleared once for an idle period
+        assertEquals(monitor.sweep(System.nanoTime() + IDLE_TIMEOUT + 1), 0);
+
+        // idle again after being used
+        wrapped.persist(new Object());
+        assertEquals(monitor.sweep(System.nanoTime() + IDLE_TIMEOUT + 1), 1);
+        verify(entityManager, times(2)).clear();
+        assertEquals(monitor.size(), 1);
+    }
+
+    @Test
+    public void testContextIsNotClearedDuringCall() {
+        final int[] cleared = new int[1];
+        monitor = new ExtendedContextMonitor(metrics, 0, new ProviderStatistics() {
+            @Override
+            public long getManagedEntities(EntityManager entityManager) {
+                return 10;
+            }
+        });
+        // a sweep is done while the application is flushing the context
+        EntityManager delegate = (EntityManager) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {EntityManager.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        switch (method.getName()) {
+                            case "isOpen":
+                                return Boolean.TRUE;
+                            case "flush":
+                                cleared[0] += monitor.sweep();
+                                return null;
+                            case "clear":
+                                cleared[0]--;
+                                return null;
+                            default:
+                                return null;
+                        }
+                    }
+                });
+        EntityManager wrapped = monitor.wrap(delegate, new ExtendedContextLimits(2, 0, false));
+        wrapped.flush();
+        assertEquals(cleared[0], 0);
+        // cleared once the call is over
+        assertEquals(monitor.sweep(), 1);
+    }
+
+    @Test
+    public void testIdleContextIsForgottenOnceClosed() {
+        EntityManager wrapped = monitor.wrap(entityManager, new ExtendedContextLimits(0, IDLE_TIMEOUT, false));
+        wrapped.close();
+        verify(entityManager).close();
+        assertEquals(monitor.sweep(System.nanoTime() + IDLE_TIMEOUT + 1), 0);
+        assertEquals(monitor.size(), 0);
+        verify(entityManager, never()).clear();
+    }
+
+    @Test
+    public void testProxyImplementsInterfacesOfProvider() {
+        ProviderEntityManager providerEntityManager = mock(ProviderEntityManager.class);
+        doReturn("session").when(providerEntityManager).getSession();
+
+        EntityManager wrapped = monitor.wrap(providerEntityManager, new ExtendedContextLimits(0, 0, true));
+        assertTrue(wrapped instanceof ProviderEntityManager);
+        assertEquals(((ProviderEntityManager) wrapped).getSession(), "session");
+    }
+
+    @Test
+    public void testClosedContextIsReleased() {
+        EntityManager wrapped = monitor.wrap(entityManager, new ExtendedContextLimits(10, 0, false));
+        entities.set(4);
+        monitor.sweep();
+        wrapped.close();
+        verify(entityManager).close();
+        assertEquals(metrics.getExtendedContexts(), 0L);
+        assertEquals(metrics.getExtendedContextEntities(), 0L);
+
+        monitor.sweep();
+        assertEquals(monitor.size(), 0);
+    }
+
+    @Test
+    public void testContextClosedByContainerIsReleased() {
+        monitor.wrap(entityManager, new ExtendedContextLimits(10, 0, false));
+        doReturn(Boolean.FALSE).when(entityManager).isOpen();
+        monitor.sweep();
+        assertEquals(monitor.size(), 0);
+        assertEquals(metrics.getExtendedContexts(), 0L);
+    }
+
+    @Test
+    public void testLimitsOfUnit() {
+        String property = ExtendedContextLimits.PROPERTY_PREFIX + ExtendedContextLimits.MAX_ENTITIES + ".myUnit";
+        assertEquals(ExtendedContextLimits.forUnit("myUnit", Collections.singletonMap(property, "500")).getMaxEntities(), 500L);
+        assertSame(ExtendedContextLimits.forUnit("otherUnit", Collections.singletonMap(property, "500")), ExtendedContextLimits.NONE);
+        assertSame(ExtendedContextLimits.forUnit(null, Collections.singletonMap(property, "500")), ExtendedContextLimits.NONE);
+    }
+
+    @Test
+    public void testLimitsAreReadOnStart() {
+        String property = ExtendedContextLimits.PROPERTY_PREFIX + ExtendedContextLimits.MAX_ENTITIES + ".myUnit";
+        System.setProperty(property, "500");
+        try {
+            // not started
+            assertSame(monitor.wrap("myUnit", entityManager), entityManager);
+            monitor.start();
+            assertNotSame(monitor.wrap("myUnit", entityManager), entityManager);
+        } finally {
+            System.clearProperty(property);
+        }
+        // the system properties are not read again
+        assertNotSame(monitor.wrap("myUnit", entityManager), entityManager);
+    }
+
+    /**
+     * Entity manager of a provider with its own interface.
+     */
+    public interface ProviderEntityManager extends EntityManager {
+        Object getSession();
+    }
+
+}
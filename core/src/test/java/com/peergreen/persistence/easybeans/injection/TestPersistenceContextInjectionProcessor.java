@@ -18,6 +18,8 @@ package com.peergreen.persistence.easybeans.injection;
 import static org.mockito.Matchers.anyObject;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertNull;
@@ -40,6 +42,7 @@ import org.testng.annotations.Test;
 import com.peergreen.deployment.Artifact;
 import com.peergreen.metadata.adapter.Binding;
 import com.peergreen.metadata.adapter.InjectionContext;
+import com.peergreen.persistence.easybeans.metrics.DefaultPersistenceMetrics;
 
 /**
  * Test injection of persistence context
@@ -93,7 +96,7 @@ public class TestPersistenceContextInjectionProcessor {
      @BeforeMethod
      public void init() throws ScanException {
          MockitoAnnotations.initMocks(this);
-         this.persistenceContextInjectionProcessor = new PersistenceContextInjectionProcessor();
+         this.persistenceContextInjectionProcessor = new PersistenceContextInjectionProcessor(new DefaultPersistenceMetrics());
 
          doReturn(artifact).when(injectionContextOnClass).getArtifact();
          doReturn(artifact).when(injectionContextOnMethod).getArtifact();
@@ -124,6 +127,12 @@ public class TestPersistenceContextInjectionProcessor {
 
      }
 
+     @Test
+     public void testInstantiatedWithoutArguments() throws Exception {
+         // the framework instantiates the processor with its no-arg constructor, the metrics are injected in the field
+         assertNotNull(PersistenceContextInjectionProcessor.class.getConstructor().newInstance());
+     }
+
      @Test
      public void testNoPersistenceUnitManager() {
          doReturn(null).when(artifact).as(EZBPersistenceUnitManager.class);
@@ -186,4 +195,45 @@ public class TestPersistenceContextInjectionProcessor {
          verify(persistenceUnitManager).getExtendedEntityManager(UNIT_NAME);
      }
 
+     @Test
+     public void testTransactionEntityManagerIsCached() {
+         doReturn(javaxPersistenceContextTransaction).when(javaxPersistenceView).getJavaxPersistenceContext();
+         doReturn(mock(EntityManager.class)).when(persistenceUnitManager).getTransactionEntityManager(UNIT_NAME);
+         persistenceContextInjectionProcessor.handle(injectionContextOnClass);
+         persistenceContextInjectionProcessor.handle(injectionContextOnMethod);
+         persistenceContextInjectionProcessor.handle(injectionContextOnField);
+         verify(persistenceUnitManager, times(1)).getTransactionEntityManager(UNIT_NAME);
+     }
+
+     @Test
+     public void testExtendedEntityManagerIsNotCached() {
+         doReturn(javaxPersistenceContextExtended).when(javaxPersistenceView).getJavaxPersistenceContext();
+         persistenceContextInjectionProcessor.handle(injectionContextOnClass);
+         persistenceContextInjectionProcessor.handle(injectionContextOnField);
+         verify(persistenceUnitManager, times(2)).getExtendedEntityManager(UNIT_NAME);
+     }
+
+     @Test
+     public void testCacheInvalidation() {
+         doReturn(javaxPersistenceContextTransaction).when(javaxPersistenceView).getJavaxPersistenceContext();
+         doReturn(mock(EntityManager.class)).when(persistenceUnitManager).getTransactionEntityManager(UNIT_NAME);
+         persistenceContextInjectionProcessor.handle(injectionContextOnField);
+         persistenceContextInjectionProcessor.invalidate(artifact);
+         persistenceContextInjectionProcessor.handle(injectionContextOnField);
+         verify(persistenceUnitManager, times(2)).getTransactionEntityManager(UNIT_NAME);
+     }
+
+     @Test
+     public void testRedeployedArtifact() {
+         doReturn(javaxPersistenceContextTransaction).when(javaxPersistenceView).getJavaxPersistenceContext();
+         doReturn(mock(EntityManager.class)).when(persistenceUnitManager).getTransactionEntityManager(UNIT_NAME);
+         persistenceContextInjectionProcessor.handle(injectionContextOnField);
+
+         // new persistence unit manager for the same artifact
+         EZBPersistenceUnitManager redeployedPersistenceUnitManager = mock(EZBPersistenceUnitManager.class);
+         doReturn(redeployedPersistenceUnitManager).when(artifact).as(EZBPersistenceUnitManager.class);
+         persistenceContextInjectionProcessor.handle(injectionContextOnField);
+         verify(redeployedPersistenceUnitManager).getTransactionEntityManager(UNIT_NAME);
+     }
+
 }
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.injection;
+
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import javax.persistence.EntityManager;
+
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.ow2.easybeans.persistence.EZBPersistenceUnitManager;
+import org.ow2.util.ee.metadata.common.api.struct.IJavaxPersistenceContext;
+import org.ow2.util.ee.metadata.common.api.struct.IJavaxPersistenceContextType;
+import org.ow2.util.ee.metadata.common.api.view.IJavaxPersistenceView;
+import org.ow2.util.scan.api.metadata.IFieldMetadata;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.peergreen.deployment.Artifact;
+import com.peergreen.deployment.ProcessorContext;
+import com.peergreen.metadata.adapter.Binding;
+import com.peergreen.metadata.adapter.InjectionContext;
+import com.peergreen.persistence.easybeans.metrics.DefaultPersistenceMetrics;
+
+/**
+ * Test that the entity managers resolved for an artifact are removed when it is undeployed.
+ * @author Florent Benoit
+ */
+public class TestPersistenceContextUndeployProcessor {
+
+    private static final String UNIT_NAME = "unit";
+
+    @Mock
+    private Artifact artifact;
+
+    @Mock
+    private ProcessorContext processorContext;
+
+    @Mock
+    private InjectionContext injectionContext;
+
+    @Mock
+    private IFieldMetadata fieldMetadata;
+
+    @Mock
+    private IJavaxPersistenceView javaxPersistenceView;
+
+    @Mock
+    private IJavaxPersistenceContext javaxPersistenceContext;
+
+    @Mock
+    private EZBPersistenceUnitManager persistenceUnitManager;
+
+    @Mock
+    private Binding<EntityManager> binding;
+
+    private PersistenceContextHandlerInjectionProcessor handlerInjectionProcessor;
+
+    @BeforeMethod
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+        doReturn(artifact).when(processorContext).getArtifact();
+        doReturn(artifact).when(injectionContext).getArtifact();
+        doReturn(persistenceUnitManager).when(artifact).as(EZBPersistenceUnitManager.class);
+        doReturn(fieldMetadata).when(injectionContext).getMetadata();
+        doReturn(javaxPersistenceView).when(fieldMetadata).as(IJavaxPersistenceView.class);
+        doReturn(javaxPersistenceContext).when(javaxPersistenceView).getJavaxPersistenceContext();
+        doReturn(IJavaxPersistenceContextType.TRANSACTION).when(javaxPersistenceContext).getType();
+        doReturn(UNIT_NAME).when(javaxPersistenceContext).getUnitName();
+        doReturn(binding).when(injectionContext).createBinding(anyString(), anyObject());
+        doReturn(mock(EntityManager.class)).when(persistenceUnitManager).getTransactionEntityManager(UNIT_NAME);
+
+        handlerInjectionProcessor = new PersistenceContextHandlerInjectionProcessor(new DefaultPersistenceMetrics());
+    }
+
+    @AfterMethod
+    public void stop() {
+        handlerInjectionProcessor.stop();
+    }
+
+    @Test
+    public void testUndeployedArtifactIsInvalidated() throws Exception {
+        handlerInjectionProcessor.handle(injectionContext);
+        handlerInjectionProcessor.handle(injectionContext);
+        verify(persistenceUnitManager, times(1)).getTransactionEntityManager(UNIT_NAME);
+
+        new PersistenceContextUndeployProcessor(handlerInjectionProcessor).handle(persistenceUnitManager, processorContext);
+
+        // resolved again for the next deployment
+        handlerInjectionProcessor.handle(injectionContext);
+        verify(persistenceUnitManager, times(2)).getTransactionEntityManager(UNIT_NAME);
+    }
+
+    @Test
+    public void testUndeployInvalidatesArtifact() throws Exception {
+        InjectionCache injectionCache = mock(InjectionCache.class);
+
+        new PersistenceContextUndeployProcessor(injectionCache).handle(persistenceUnitManager, processorContext);
+
+        verify(injectionCache).invalidate(artifact);
+    }
+
+}
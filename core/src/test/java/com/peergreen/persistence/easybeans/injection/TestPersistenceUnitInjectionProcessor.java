@@ -0,0 +1,183 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.injection;
+
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.ow2.easybeans.persistence.EZBPersistenceUnitManager;
+import org.ow2.util.ee.metadata.common.api.struct.IJavaxPersistenceUnit;
+import org.ow2.util.ee.metadata.common.api.view.IJavaxPersistenceView;
+import org.ow2.util.scan.api.ScanException;
+import org.ow2.util.scan.api.metadata.IClassMetadata;
+import org.ow2.util.scan.api.metadata.IFieldMetadata;
+import org.ow2.util.scan.api.metadata.IMethodMetadata;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.peergreen.deployment.Artifact;
+import com.peergreen.metadata.adapter.Binding;
+import com.peergreen.metadata.adapter.InjectionContext;
+import com.peergreen.persistence.easybeans.metrics.DefaultPersistenceMetrics;
+
+/**
+ * Test injection of persistence unit
+ * @author Florent Benoit
+ */
+public class TestPersistenceUnitInjectionProcessor {
+
+
+    @Mock
+    private IClassMetadata classMetadata;
+
+    @Mock
+    private IFieldMetadata fieldMetadata;
+
+    @Mock
+    private IMethodMetadata methodMetadata;
+
+    @Mock
+    private Artifact artifact;
+
+    @Mock
+    private InjectionContext injectionContextOnClass;
+
+    @Mock
+    private InjectionContext injectionContextOnMethod;
+
+    @Mock
+    private InjectionContext injectionContextOnField;
+
+
+    @Mock
+    private EZBPersistenceUnitManager persistenceUnitManager;
+
+    @Mock
+    private IJavaxPersistenceView javaxPersistenceView;
+
+    @Mock
+    private IJavaxPersistenceUnit javaxPersistenceUnit;
+
+    @Mock
+    private EntityManagerFactory entityManagerFactory;
+
+    private PersistenceUnitInjectionProcessor persistenceUnitInjectionProcessor;
+
+    private DefaultPersistenceMetrics persistenceMetrics;
+
+    @Mock
+    private Binding<EntityManagerFactory> binding;
+
+
+    private static final String UNIT_NAME = "unit-name-00";
+
+    private static final String NAME = "java:comp/env/factory";
+
+     @BeforeMethod
+     public void init() throws ScanException {
+         MockitoAnnotations.initMocks(this);
+         this.persistenceMetrics = new DefaultPersistenceMetrics();
+         this.persistenceUnitInjectionProcessor = new PersistenceUnitInjectionProcessor(persistenceMetrics);
+
+         doReturn(artifact).when(injectionContextOnClass).getArtifact();
+         doReturn(artifact).when(injectionContextOnMethod).getArtifact();
+         doReturn(artifact).when(injectionContextOnField).getArtifact();
+
+         doReturn(persistenceUnitManager).when(artifact).as(EZBPersistenceUnitManager.class);
+         doReturn(entityManagerFactory).when(persistenceUnitManager).getEntityManagerFactory(UNIT_NAME);
+
+         doReturn(UNIT_NAME).when(javaxPersistenceUnit).getUnitName();
+         doReturn(NAME).when(javaxPersistenceUnit).getName();
+         doReturn(javaxPersistenceUnit).when(javaxPersistenceView).getJavaxPersistenceUnit();
+
+         doReturn(binding).when(injectionContextOnClass).createBinding(anyString(), anyObject());
+         doReturn(binding).when(injectionContextOnMethod).createBinding(anyString(), anyObject());
+         doReturn(binding).when(injectionContextOnField).createBinding(anyString(), anyObject());
+
+         doReturn(classMetadata).when(injectionContextOnClass).getMetadata();
+         doReturn(methodMetadata).when(injectionContextOnMethod).getMetadata();
+         doReturn(fieldMetadata).when(injectionContextOnField).getMetadata();
+
+         doReturn(javaxPersistenceView).when(classMetadata).as(IJavaxPersistenceView.class);
+         doReturn(javaxPersistenceView).when(methodMetadata).as(IJavaxPersistenceView.class);
+         doReturn(javaxPersistenceView).when(fieldMetadata).as(IJavaxPersistenceView.class);
+
+     }
+
+     @Test
+     public void testInstantiatedWithoutArguments() throws Exception {
+         // the framework instantiates the processor with its no-arg constructor, the metrics are injected in the field
+         assertNotNull(PersistenceUnitInjectionProcessor.class.getConstructor().newInstance());
+     }
+
+     @Test
+     public void testNoPersistenceUnitManager() {
+         doReturn(null).when(artifact).as(EZBPersistenceUnitManager.class);
+         Binding<?> binding = persistenceUnitInjectionProcessor.handle(injectionContextOnClass);
+         assertNull(binding);
+         binding = persistenceUnitInjectionProcessor.handle(injectionContextOnMethod);
+         assertNull(binding);
+         binding = persistenceUnitInjectionProcessor.handle(injectionContextOnField);
+         assertNull(binding);
+         assertEquals(persistenceMetrics.getInjectionPointsResolved(), 0L);
+     }
+
+     @Test
+     public void testClass() {
+         Binding<EntityManagerFactory> binding = persistenceUnitInjectionProcessor.handle(injectionContextOnClass);
+         assertNotNull(binding);
+         verify(persistenceUnitManager).getEntityManagerFactory(UNIT_NAME);
+         verify(injectionContextOnClass).createBinding(NAME, entityManagerFactory);
+     }
+
+     @Test
+     public void testMethod() {
+         Binding<EntityManagerFactory> binding = persistenceUnitInjectionProcessor.handle(injectionContextOnMethod);
+         assertNotNull(binding);
+         verify(persistenceUnitManager).getEntityManagerFactory(UNIT_NAME);
+         verify(injectionContextOnMethod).createBinding(NAME, entityManagerFactory);
+     }
+
+     @Test
+     public void testField() {
+         Binding<EntityManagerFactory> binding = persistenceUnitInjectionProcessor.handle(injectionContextOnField);
+         assertNotNull(binding);
+         verify(persistenceUnitManager).getEntityManagerFactory(UNIT_NAME);
+         verify(injectionContextOnField).createBinding(NAME, entityManagerFactory);
+         assertEquals(persistenceMetrics.getInjectionPointsResolved(), 1L);
+     }
+
+     @Test
+     public void testDefaultUnit() {
+         doReturn(null).when(javaxPersistenceUnit).getUnitName();
+         EntityManagerFactory defaultEntityManagerFactory = mock(EntityManagerFactory.class);
+         doReturn(defaultEntityManagerFactory).when(persistenceUnitManager).getEntityManagerFactory(null);
+         persistenceUnitInjectionProcessor.handle(injectionContextOnField);
+         verify(injectionContextOnField).createBinding(eq(NAME), eq(defaultEntityManagerFactory));
+     }
+
+}
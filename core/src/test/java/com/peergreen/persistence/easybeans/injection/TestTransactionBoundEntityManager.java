@@ -0,0 +1,349 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.injection;
+
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.ow2.easybeans.persistence.EZBPersistenceUnitManager;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.peergreen.deployment.Artifact;
+
+/**
+ * Test the transaction-scoped entity managers bound to the JTA transactions.
+ * @author Florent Benoit
+ */
+public class TestTransactionBoundEntityManager {
+
+    private static final String UNIT_NAME = "unit";
+
+    private static final int TASKS = 10000;
+
+    /**
+     * Entity managers created by the factory.
+     */
+    private ConcurrentLinkedQueue<FakeEntityManager> created;
+
+    private FakeEntityManager defaultEntityManager;
+
+    private FakeTransactionSynchronizationRegistry transactionSynchronizationRegistry;
+
+    private EZBPersistenceUnitManager persistenceUnitManager;
+
+    private Artifact artifact;
+
+    @BeforeMethod
+    public void init() {
+        created = new ConcurrentLinkedQueue<FakeEntityManager>();
+        defaultEntityManager = new FakeEntityManager();
+        transactionSynchronizationRegistry = new FakeTransactionSynchronizationRegistry();
+        final EntityManagerFactory entityManagerFactory = proxy(EntityManagerFactory.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                FakeEntityManager entityManager = new FakeEntityManager();
+                created.add(entityManager);
+                return entityManager.proxy;
+            }
+        });
+        persistenceUnitManager = proxy(EZBPersistenceUnitManager.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("getTransactionEntityManager".equals(method.getName())) {
+                    return defaultEntityManager.proxy;
+                }
+                if ("getEntityManagerFactory".equals(method.getName())) {
+                    return entityManagerFactory;
+                }
+                return null;
+            }
+        });
+        artifact = mock(Artifact.class);
+    }
+
+    @Test
+    public void testThreadModeInjectsEntityManagerOfPersistenceUnitManager() {
+        TransactionEntityManagerCache cache = new TransactionEntityManagerCache(TransactionContextMode.THREAD);
+        assertSame(cache.getTransactionEntityManager(artifact, persistenceUnitManager, UNIT_NAME, transactionSynchronizationRegistry), defaultEntityManager.proxy);
+    }
+
+    @Test
+    public void testWithoutRegistry() {
+        TransactionEntityManagerCache cache = new TransactionEntityManagerCache(TransactionContextMode.TRANSACTION);
+        assertSame(cache.getTransactionEntityManager(artifact, persistenceUnitManager, UNIT_NAME), defaultEntityManager.proxy);
+    }
+
+    @Test
+    public void testOutsideOfTransaction() {
+        EntityManager entityManager = transactionBoundEntityManager();
+        assertNotSame(entityManager, defaultEntityManager.proxy);
+        assertSame(entityManager.find(Object.class, 1L), defaultEntityManager);
+        assertTrue(created.isEmpty());
+    }
+
+    @Test
+    public void testEachTransactionHasItsOwnEntityManager() throws Exception {
+        final EntityManager entityManager = transactionBoundEntityManager();
+        Callable<Object> find = new Callable<Object>() {
+            @Override
+            public Object call() {
+                Object first = entityManager.find(Object.class, 1L);
+                assertSame(entityManager.find(Object.class, 2L), first);
+                return first;
+            }
+        };
+        Object first = transactionSynchronizationRegistry.inTransaction(find);
+        Object second = transactionSynchronizationRegistry.inTransaction(find);
+
+        // nothing managed in the first transaction is seen by the second one
+        assertNotSame(second, first);
+        assertEquals(created.size(), 2);
+        for (FakeEntityManager fakeEntityManager : created) {
+            assertTrue(fakeEntityManager.closed);
+            assertEquals(fakeEntityManager.joins.get(), 1);
+        }
+        assertEquals(defaultEntityManager.calls.get(), 0);
+    }
+
+    @Test
+    public void testUnitsShareEntityManagerInTransaction() throws Exception {
+        final EntityManager entityManager = transactionBoundEntityManager();
+        final EntityManager otherArtifactEntityManager = new TransactionEntityManagerCache(TransactionContextMode.TRANSACTION).getTransactionEntityManager(mock(Artifact.class), persistenceUnitManager, UNIT_NAME, transactionSynchronizationRegistry);
+        transactionSynchronizationRegistry.inTransaction(new Callable<Void>() {
+            @Override
+            public Void call() {
+                assertSame(otherArtifactEntityManager.find(Object.class, 1L), entityManager.find(Object.class, 1L));
+                return null;
+            }
+        });
+        assertEquals(created.size(), 1);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testTransactionBoundEntityManagerCantBeClosed() throws Exception {
+        final EntityManager entityManager = transactionBoundEntityManager();
+        transactionSynchronizationRegistry.inTransaction(new Callable<Void>() {
+            @Override
+            public Void call() {
+                entityManager.close();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Each task runs its own transaction, on a virtual thread when the JVM provides them.
+     */
+    @Test
+    public void testConcurrentTransactions() throws Exception {
+        final EntityManager entityManager = transactionBoundEntityManager();
+        ExecutorService executorService = newVirtualThreadExecutor();
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        try {
+            for (int i = 0; i < TASKS; i++) {
+                futures.add(executorService.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        return transactionSynchronizationRegistry.inTransaction(new Callable<Object>() {
+                            @Override
+                            public Object call() throws Exception {
+                                Object first = entityManager.find(Object.class, 1L);
+                                // let other tasks run between the two calls
+                                Thread.sleep(1);
+                                Object second = entityManager.find(Object.class, 2L);
+                                assertSame(second, first);
+                                return first;
+                            }
+                        });
+                    }
+                }));
+            }
+            Set<Object> entityManagers = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+            for (Future<Object> future : futures) {
+                entityManagers.add(future.get(60, TimeUnit.SECONDS));
+            }
+            // one entity manager per transaction, all of them closed
+            assertEquals(entityManagers.size(), TASKS);
+            assertEquals(created.size(), TASKS);
+            for (FakeEntityManager fakeEntityManager : created) {
+                assertTrue(fakeEntityManager.closed);
+                assertEquals(fakeEntityManager.calls.get(), 2);
+            }
+            assertEquals(defaultEntityManager.calls.get(), 0);
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    private EntityManager transactionBoundEntityManager() {
+        TransactionEntityManagerCache cache = new TransactionEntityManagerCache(TransactionContextMode.TRANSACTION);
+        return cache.getTransactionEntityManager(artifact, persistenceUnitManager, UNIT_NAME, transactionSynchronizationRegistry);
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // virtual threads are not available on this JVM
+            return Executors.newFixedThreadPool(200);
+        }
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(TestTransactionBoundEntityManager.class.getClassLoader(), new Class<?>[] {type}, handler));
+    }
+
+    /**
+     * Registry of a transaction manager associating a transaction with the thread that runs it.
+     */
+    private static final class FakeTransactionSynchronizationRegistry implements TransactionSynchronizationRegistry {
+
+        private final ThreadLocal<FakeTransaction> current = new ThreadLocal<FakeTransaction>();
+
+        /**
+         * Runs the given task in a new transaction and completes it.
+         */
+        public <T> T inTransaction(Callable<T> task) throws Exception {
+            FakeTransaction transaction = new FakeTransaction();
+            current.set(transaction);
+            try {
+                return task.call();
+            } finally {
+                current.remove();
+                for (Synchronization synchronization : transaction.synchronizations) {
+                    synchronization.afterCompletion(Status.STATUS_COMMITTED);
+                }
+            }
+        }
+
+        private FakeTransaction getTransaction() {
+            FakeTransaction transaction = current.get();
+            if (transaction == null) {
+                throw new IllegalStateException("No transaction");
+            }
+            return transaction;
+        }
+
+        @Override
+        public Object getTransactionKey() {
+            return current.get();
+        }
+
+        @Override
+        public void putResource(Object key, Object value) {
+            getTransaction().resources.put(key, value);
+        }
+
+        @Override
+        public Object getResource(Object key) {
+            return getTransaction().resources.get(key);
+        }
+
+        @Override
+        public void registerInterposedSynchronization(Synchronization synchronization) {
+            getTransaction().synchronizations.add(synchronization);
+        }
+
+        @Override
+        public int getTransactionStatus() {
+            return current.get() == null ? Status.STATUS_NO_TRANSACTION : Status.STATUS_ACTIVE;
+        }
+
+        @Override
+        public void setRollbackOnly() {
+        }
+
+        @Override
+        public boolean getRollbackOnly() {
+            return false;
+        }
+    }
+
+    private static final class FakeTransaction {
+
+        private final Map<Object, Object> resources = new HashMap<Object, Object>();
+
+        private final List<Synchronization> synchronizations = new ArrayList<Synchronization>();
+    }
+
+    /**
+     * Entity manager counting the calls of find, which returns the fake itself, and the transactions joined.
+     */
+    private static final class FakeEntityManager implements InvocationHandler {
+
+        private final EntityManager proxy;
+
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private final AtomicInteger joins = new AtomicInteger();
+
+        private volatile boolean closed;
+
+        public FakeEntityManager() {
+            this.proxy = proxy(EntityManager.class, this);
+        }
+
+        @Override
+        public Object invoke(Object proxyInstance, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "find":
+                    calls.incrementAndGet();
+                    return this;
+                case "joinTransaction":
+                    joins.incrementAndGet();
+                    return null;
+                case "close":
+                    closed = true;
+                    return null;
+                case "hashCode":
+                    return System.identityHashCode(proxyInstance);
+                case "equals":
+                    return proxyInstance == args[0];
+                default:
+                    return null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,255 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.registry;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.ow2.easybeans.persistence.EZBPersistenceUnitManager;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test the registry of the shared persistence unit managers.
+ * @author Florent Benoit
+ */
+public class TestDefaultPersistenceUnitRegistry {
+
+    private static final List<String> UNITS = Arrays.asList("first", "second");
+
+    private DefaultPersistenceUnitRegistry registry;
+
+    private ClassLoader definingClassLoader;
+
+    private AtomicInteger created;
+
+    private Callable<EZBPersistenceUnitManager> factory;
+
+    @BeforeMethod
+    public void init() {
+        this.registry = new DefaultPersistenceUnitRegistry();
+        this.definingClassLoader = new ClassLoader() { };
+        this.created = new AtomicInteger();
+        this.factory = new Callable<EZBPersistenceUnitManager>() {
+            @Override
+            public EZBPersistenceUnitManager call() {
+                created.incrementAndGet();
+                return mock(EZBPersistenceUnitManager.class);
+            }
+        };
+    }
+
+    @Test
+    public void testSameUnitsAreShared() throws Exception {
+        Object firstOwner = new Object();
+        Object secondOwner = new Object();
+
+        EZBPersistenceUnitManager first = registry.acquire(definingClassLoader, "fingerprint", UNITS, firstOwner, factory);
+        EZBPersistenceUnitManager second = registry.acquire(definingClassLoader, "fingerprint", UNITS, secondOwner, factory);
+
+        assertSame(second, first);
+        assertEquals(created.get(), 1);
+        assertEquals(registry.getReferenceCount(definingClassLoader, "fingerprint"), 2);
+        assertTrue(registry.isShared(first));
+    }
+
+    @Test
+    public void testDifferentKeysAreNotShared() throws Exception {
+        Object owner = new Object();
+        EZBPersistenceUnitManager first = registry.acquire(definingClassLoader, "fingerprint", UNITS, owner, factory);
+        EZBPersistenceUnitManager otherFingerprint = registry.acquire(definingClassLoader, "other", UNITS, owner, factory);
+        EZBPersistenceUnitManager otherClassLoader = registry.acquire(new ClassLoader() { }, "fingerprint", UNITS, owner, factory);
+
+        assertFalse(first == otherFingerprint);
+        assertFalse(first == otherClassLoader);
+        assertEquals(registry.size(), 3);
+    }
+
+    @Test
+    public void testRelease() throws Exception {
+        Object firstOwner = new Object();
+        Object secondOwner = new Object();
+        EZBPersistenceUnitManager manager = registry.acquire(definingClassLoader, "fingerprint", UNITS, firstOwner, factory);
+        registry.acquire(definingClassLoader, "fingerprint", UNITS, secondOwner, factory);
+
+        registry.release(definingClassLoader, "fingerprint", firstOwner);
+        assertEquals(registry.getReferenceCount(definingClassLoader, "fingerprint"), 1);
+        assertTrue(registry.isShared(manager));
+
+        registry.release(definingClassLoader, "fingerprint", secondOwner);
+        assertEquals(registry.size(), 0);
+        assertFalse(registry.isShared(manager));
+
+        // a new manager is created for the next deployment
+        registry.acquire(definingClassLoader, "fingerprint", UNITS, firstOwner, factory);
+        assertEquals(created.get(), 2);
+    }
+
+    @Test
+    public void testLastReleaseClosesFactories() throws Exception {
+        final EZBPersistenceUnitManager manager = mock(EZBPersistenceUnitManager.class);
+        EntityManagerFactory first = mock(EntityManagerFactory.class);
+        EntityManagerFactory second = mock(EntityManagerFactory.class);
+        doReturn(first).when(manager).getEntityManagerFactory("first");
+        doReturn(second).when(manager).getEntityManagerFactory("second");
+        doReturn(Boolean.TRUE).when(first).isOpen();
+        doReturn(Boolean.TRUE).when(second).isOpen();
+        Callable<EZBPersistenceUnitManager> managerFactory = new Callable<EZBPersistenceUnitManager>() {
+            @Override
+            public EZBPersistenceUnitManager call() {
+                return manager;
+            }
+        };
+        Object firstOwner = new Object();
+        Object secondOwner = new Object();
+        registry.acquire(definingClassLoader, "fingerprint", UNITS, firstOwner, managerFactory);
+        registry.acquire(definingClassLoader, "fingerprint", UNITS, secondOwner, managerFactory);
+
+        registry.release(definingClassLoader, "fingerprint", firstOwner);
+        verify(first, never()).close();
+
+        registry.release(definingClassLoader, "fingerprint", secondOwner);
+        verify(first).close();
+        verify(second).close();
+    }
+
+    @Test
+    public void testNullManagerIsNotRegistered() throws Exception {
+        Callable<EZBPersistenceUnitManager> nullFactory = new Callable<EZBPersistenceUnitManager>() {
+            @Override
+            public EZBPersistenceUnitManager call() {
+                return null;
+            }
+        };
+        assertNull(registry.acquire(definingClassLoader, "fingerprint", UNITS, new Object(), nullFactory));
+        assertEquals(registry.size(), 0);
+    }
+
+    @Test
+    public void testFailedCreationIsRetried() throws Exception {
+        Callable<EZBPersistenceUnitManager> failingFactory = new Callable<EZBPersistenceUnitManager>() {
+            @Override
+            public EZBPersistenceUnitManager call() throws Exception {
+                throw new IllegalArgumentException("invalid persistence.xml");
+            }
+        };
+        try {
+            registry.acquire(definingClassLoader, "fingerprint", UNITS, new Object(), failingFactory);
+            fail("The failure of the factory should be thrown");
+        } catch (IllegalArgumentException e) {
+            assertEquals(e.getMessage(), "invalid persistence.xml");
+        }
+        assertEquals(registry.size(), 0);
+
+        registry.acquire(definingClassLoader, "fingerprint", UNITS, new Object(), factory);
+        assertEquals(created.get(), 1);
+    }
+
+    @Test
+    public void testConcurrentDeploymentsCreateOneManager() throws Exception {
+        final int threads = 16;
+        final CountDownLatch start = new CountDownLatch(1);
+        final Callable<EZBPersistenceUnitManager> slowFactory = new Callable<EZBPersistenceUnitManager>() {
+            @Override
+            public EZBPersistenceUnitManager call() throws Exception {
+                Thread.sleep(50);
+                return factory.call();
+            }
+        };
+        List<Object> owners = new ArrayList<Object>();
+        List<Future<EZBPersistenceUnitManager>> futures = new ArrayList<Future<EZBPersistenceUnitManager>>();
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        try {
+            for (int i = 0; i < threads; i++) {
+                final Object owner = new Object();
+                owners.add(owner);
+                futures.add(executorService.submit(new Callable<EZBPersistenceUnitManager>() {
+                    @Override
+                    public EZBPersistenceUnitManager call() throws Exception {
+                        start.await();
+                        return registry.acquire(definingClassLoader, "fingerprint", UNITS, owner, slowFactory);
+                    }
+                }));
+            }
+            start.countDown();
+            EZBPersistenceUnitManager manager = futures.get(0).get(10, TimeUnit.SECONDS);
+            for (Future<EZBPersistenceUnitManager> future : futures) {
+                assertSame(future.get(10, TimeUnit.SECONDS), manager);
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+        assertEquals(created.get(), 1);
+        assertEquals(registry.getReferenceCount(definingClassLoader, "fingerprint"), owners.size());
+    }
+
+    @Test
+    public void testCreationDoesNotBlockOtherUnits() throws Exception {
+        final CountDownLatch analyzing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<EZBPersistenceUnitManager> blockedFactory = new Callable<EZBPersistenceUnitManager>() {
+            @Override
+            public EZBPersistenceUnitManager call() throws Exception {
+                analyzing.countDown();
+                release.await();
+                return factory.call();
+            }
+        };
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            Future<EZBPersistenceUnitManager> blocked = executorService.submit(new Callable<EZBPersistenceUnitManager>() {
+                @Override
+                public EZBPersistenceUnitManager call() throws Exception {
+                    return registry.acquire(definingClassLoader, "blocked", UNITS, new Object(), blockedFactory);
+                }
+            });
+            assertTrue(analyzing.await(10, TimeUnit.SECONDS));
+
+            // the analysis of other units is not waiting for the blocked one
+            registry.acquire(definingClassLoader, "fingerprint", UNITS, new Object(), factory);
+            assertEquals(created.get(), 1);
+
+            release.countDown();
+            blocked.get(10, TimeUnit.SECONDS);
+            assertEquals(created.get(), 2);
+        } finally {
+            release.countDown();
+            executorService.shutdownNow();
+        }
+    }
+
+}
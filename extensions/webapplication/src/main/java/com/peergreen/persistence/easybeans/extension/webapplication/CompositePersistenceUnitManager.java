@@ -0,0 +1,215 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.ow2.easybeans.persistence.EZBPersistenceUnitManager;
+
+/**
+ * Persistence unit manager giving the units of the managers of a web application and of its libraries.
+ * The units are found by their name in an index instead of being merged into one of the managers: it costs one entry per
+ * unit and the managers are never modified, so they can be cached.
+ * The managers whose units are not known (descriptors that can't be read, manager added on the artifact by another
+ * processor) are asked in order for the units that are not in the index.
+ * @author Florent Benoit
+ */
+public class CompositePersistenceUnitManager implements EZBPersistenceUnitManager {
+
+    /**
+     * Manager of each unit.
+     */
+    private final ConcurrentMap<String, EZBPersistenceUnitManager> unitManagers;
+
+    /**
+     * Descriptor defining each unit.
+     */
+    private final ConcurrentMap<String, URI> unitSources;
+
+    /**
+     * Managers whose units are not known.
+     */
+    private final List<EZBPersistenceUnitManager> unindexedManagers;
+
+    /**
+     * All the managers, in the order they were added.
+     */
+    private final List<EZBPersistenceUnitManager> persistenceUnitManagers;
+
+    public CompositePersistenceUnitManager() {
+        this.unitManagers = new ConcurrentHashMap<String, EZBPersistenceUnitManager>();
+        this.unitSources = new ConcurrentHashMap<String, URI>();
+        this.unindexedManagers = new CopyOnWriteArrayList<EZBPersistenceUnitManager>();
+        this.persistenceUnitManagers = new CopyOnWriteArrayList<EZBPersistenceUnitManager>();
+    }
+
+    /**
+     * Adds the units of a manager.
+     * @param source the persistence.xml file defining the units
+     * @param unitNames the names of the units
+     * @param persistenceUnitManager the manager of the units
+     */
+    public void add(URI source, Collection<String> unitNames, EZBPersistenceUnitManager persistenceUnitManager) {
+        for (String unitName : unitNames) {
+            unitManagers.put(unitName, persistenceUnitManager);
+            unitSources.put(unitName, source);
+        }
+        addManager(persistenceUnitManager);
+    }
+
+    /**
+     * Adds a manager whose units are not known.
+     * @param persistenceUnitManager the manager
+     */
+    public void addUnindexed(EZBPersistenceUnitManager persistenceUnitManager) {
+        if (!unindexedManagers.contains(persistenceUnitManager)) {
+            unindexedManagers.add(persistenceUnitManager);
+        }
+        addManager(persistenceUnitManager);
+    }
+
+    private void addManager(EZBPersistenceUnitManager persistenceUnitManager) {
+        if (!persistenceUnitManagers.contains(persistenceUnitManager)) {
+            persistenceUnitManagers.add(persistenceUnitManager);
+        }
+    }
+
+    /**
+     * @return the persistence.xml file defining each unit of the index
+     */
+    public Map<String, URI> getUnitSources() {
+        return Collections.unmodifiableMap(unitSources);
+    }
+
+    /**
+     * @param unitName the name of a unit of the index
+     * @return the manager of the unit or null if it's not in the index
+     */
+    public EZBPersistenceUnitManager getIndexedPersistenceUnitManager(String unitName) {
+        return unitManagers.get(unitName);
+    }
+
+    /**
+     * @return the managers whose units are not known
+     */
+    public List<EZBPersistenceUnitManager> getUnindexedPersistenceUnitManagers() {
+        return Collections.unmodifiableList(unindexedManagers);
+    }
+
+    /**
+     * @return all the managers, in the order they were added
+     */
+    public List<EZBPersistenceUnitManager> getPersistenceUnitManagers() {
+        return Collections.unmodifiableList(persistenceUnitManagers);
+    }
+
+    /**
+     * Gets the manager of a unit. The default unit is the only unit of the index, else it is given by the first manager.
+     * A unit that is not found is also asked to the first manager, which reports it.
+     * @param unitName the name of the unit (may be null or empty for the default unit)
+     * @return the manager of the unit
+     */
+    public EZBPersistenceUnitManager getPersistenceUnitManager(String unitName) {
+        if (unitName == null || unitName.isEmpty()) {
+            if (unitManagers.size() == 1 && unindexedManagers.isEmpty()) {
+                return unitManagers.values().iterator().next();
+            }
+            return persistenceUnitManagers.get(0);
+        }
+        EZBPersistenceUnitManager persistenceUnitManager = unitManagers.get(unitName);
+        if (persistenceUnitManager != null) {
+            return persistenceUnitManager;
+        }
+        if (unindexedManagers.size() == 1) {
+            return unindexedManagers.get(0);
+        }
+        for (EZBPersistenceUnitManager unindexedManager : unindexedManagers) {
+            if (definesUnit(unindexedManager, unitName)) {
+                return unindexedManager;
+            }
+        }
+        return persistenceUnitManagers.get(0);
+    }
+
+    /**
+     * @param persistenceUnitManager a manager whose units are not known
+     * @param unitName the name of a unit
+     * @return true if the manager gives a factory for the unit
+     */
+    static boolean definesUnit(EZBPersistenceUnitManager persistenceUnitManager, String unitName) {
+        try {
+            return persistenceUnitManager.getEntityManagerFactory(unitName) != null;
+        } catch (RuntimeException e) {
+            // unknown unit
+            return false;
+        }
+    }
+
+    @Override
+    public EntityManager getTransactionEntityManager(String unitName) {
+        return getPersistenceUnitManager(unitName).getTransactionEntityManager(unitName);
+    }
+
+    @Override
+    public EntityManager getExtendedEntityManager(String unitName) {
+        return getPersistenceUnitManager(unitName).getExtendedEntityManager(unitName);
+    }
+
+    @Override
+    public EntityManagerFactory getEntityManagerFactory(String unitName) {
+        return getPersistenceUnitManager(unitName).getEntityManagerFactory(unitName);
+    }
+
+    /**
+     * Adds the units of another manager. The units of a composite manager are added to the index, the other managers are
+     * added as managers whose units are not known.
+     * @param otherPersistenceUnitManager the other manager
+     */
+    @Override
+    public void merge(EZBPersistenceUnitManager otherPersistenceUnitManager) {
+        if (otherPersistenceUnitManager == null || otherPersistenceUnitManager == this) {
+            return;
+        }
+        if (otherPersistenceUnitManager instanceof CompositePersistenceUnitManager) {
+            CompositePersistenceUnitManager other = (CompositePersistenceUnitManager) otherPersistenceUnitManager;
+            for (Map.Entry<String, URI> unitSource : other.unitSources.entrySet()) {
+                EZBPersistenceUnitManager persistenceUnitManager = other.unitManagers.get(unitSource.getKey());
+                add(unitSource.getValue(), Collections.singletonList(unitSource.getKey()), persistenceUnitManager);
+            }
+            for (EZBPersistenceUnitManager unindexedManager : other.unindexedManagers) {
+                addUnindexed(unindexedManager);
+            }
+        } else {
+            addUnindexed(otherPersistenceUnitManager);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CompositePersistenceUnitManager[units=" + unitSources.keySet() + ", unindexed=" + unindexedManagers.size() + "]";
+    }
+
+}
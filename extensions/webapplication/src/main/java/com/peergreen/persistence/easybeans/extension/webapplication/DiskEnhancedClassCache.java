@@ -0,0 +1,214 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache of the enhanced bytecode that is also stored in a directory so that classes are not enhanced again when the
+ * server is restarted.
+ * The directory is the private storage area of the bundle, only readable and writable by the server. Each class is
+ * stored in a file named by the digest of its key, after the digest of the key and of the bytecode: a file that doesn't
+ * match its digest (truncated, corrupted or copied from another key) is removed instead of being defined.
+ * As the key contains the version of the transformer and the digest of the original bytecode and of the mapping, a
+ * file never needs to be invalidated: files that have not been used for a while are removed when the cache is created.
+ * @author Florent Benoit
+ */
+public class DiskEnhancedClassCache extends EnhancedClassCache {
+
+    /**
+     * Name of the directory of the cache in the storage area of the bundle.
+     */
+    public static final String DIRECTORY_NAME = "enhanced-classes";
+
+    /**
+     * Files that have not been used since this number of days are removed.
+     */
+    private static final long EXPIRATION_DAYS = 30;
+
+    private static final String EXTENSION = ".class";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Length of the hexadecimal digest at the beginning of each file.
+     */
+    private static final int DIGEST_LENGTH = 40;
+
+    private static final Logger LOGGER = Logger.getLogger(DiskEnhancedClassCache.class.getName());
+
+    private final File directory;
+
+    public DiskEnhancedClassCache(File directory) {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            LOGGER.log(Level.WARNING, "Unable to create the enhanced class cache directory {0}", directory);
+        }
+        // only the owner of the server reads and writes the enhanced bytecode
+        directory.setReadable(false, false);
+        directory.setReadable(true, true);
+        directory.setWritable(false, false);
+        directory.setWritable(true, true);
+        directory.setExecutable(false, false);
+        directory.setExecutable(true, true);
+        removeExpiredFiles();
+    }
+
+    /**
+     * Creates the cache of the given storage area.
+     * @param storageDirectory the private storage area of the bundle (null if there is none)
+     * @return a disk cache in the storage area if there is one, else an in-memory cache
+     */
+    public static EnhancedClassCache create(File storageDirectory) {
+        if (storageDirectory == null) {
+            return new EnhancedClassCache();
+        }
+        return new DiskEnhancedClassCache(new File(storageDirectory, DIRECTORY_NAME));
+    }
+
+    /**
+     * @return the directory of the cache
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        // the disk is used even if the in-memory part is disabled
+        return true;
+    }
+
+    @Override
+    public byte[] get(String key) {
+        byte[] transformed = super.get(key);
+        if (transformed != null) {
+            return transformed;
+        }
+
+        File file = getFile(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            transformed = read(file);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Unable to read the enhanced class " + file, e);
+            return null;
+        }
+        if (transformed.length < DIGEST_LENGTH || !Arrays.equals(Arrays.copyOf(transformed, DIGEST_LENGTH), checksum(key, transformed, DIGEST_LENGTH))) {
+            LOGGER.log(Level.WARNING, "Removing the enhanced class {0} that doesn''t match its digest", file);
+            file.delete();
+            return null;
+        }
+        transformed = Arrays.copyOfRange(transformed, DIGEST_LENGTH, transformed.length);
+        // keep the file as it is still used
+        file.setLastModified(System.currentTimeMillis());
+        super.put(key, transformed.length == 0 ? null : transformed);
+        return transformed;
+    }
+
+    @Override
+    public void put(String key, byte[] transformed) {
+        super.put(key, transformed);
+
+        File file = getFile(key);
+        File temporaryFile = new File(directory, file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            byte[] bytecode = transformed == null ? new byte[0] : transformed;
+            try (OutputStream outputStream = new FileOutputStream(temporaryFile)) {
+                outputStream.write(checksum(key, bytecode, 0));
+                outputStream.write(bytecode);
+            }
+            // readers only see complete files
+            if (!temporaryFile.renameTo(file)) {
+                temporaryFile.delete();
+            }
+        } catch (IOException e) {
+            temporaryFile.delete();
+            LOGGER.log(Level.FINE, "Unable to write the enhanced class " + file, e);
+        }
+    }
+
+    /**
+     * @param key the key of a class
+     * @return the file of the class
+     */
+    protected File getFile(String key) {
+        try {
+            return new File(directory, PersistenceDescriptorDigest.digest(key.getBytes("UTF-8")) + EXTENSION);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported", e);
+        }
+    }
+
+    /**
+     * Computes the digest stored at the beginning of the file of a class.
+     * @param key the key of the class
+     * @param bytes the bytecode of the class
+     * @param offset the offset of the bytecode in the given bytes
+     * @return the hexadecimal digest of the key and of the bytecode
+     */
+    private static byte[] checksum(String key, byte[] bytes, int offset) {
+        MessageDigest messageDigest = PersistenceDescriptorDigest.newMessageDigest();
+        messageDigest.update(key.getBytes(UTF_8));
+        messageDigest.update((byte) 0);
+        messageDigest.update(bytes, offset, bytes.length - offset);
+        return PersistenceDescriptorDigest.toHex(messageDigest.digest()).getBytes(UTF_8);
+    }
+
+    /**
+     * Removes the files that have not been used for {@link #EXPIRATION_DAYS} days.
+     */
+    private void removeExpiredFiles() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long expiration = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(EXPIRATION_DAYS);
+        for (File file : files) {
+            if (file.getName().endsWith(EXTENSION) && file.lastModified() < expiration) {
+                file.delete();
+            }
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream((int) file.length());
+        try (InputStream inputStream = new FileInputStream(file)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+        }
+        return outputStream.toByteArray();
+    }
+
+}
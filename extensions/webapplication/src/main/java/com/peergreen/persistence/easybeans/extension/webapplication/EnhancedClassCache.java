@@ -0,0 +1,171 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cache of the bytecode produced by the class transformers of the persistence providers.
+ * Entries are keyed by the transformer, the name of the class and the digest of the original bytecode, so a class is
+ * only enhanced once while it is unchanged, even if the web application is redeployed with a new classloader.
+ * The cache is bounded by the total size of the cached bytecode and the least recently used entries are evicted first.
+ * A cached class is defined without calling the transformer of the provider, so the cache is only used for the
+ * transformers listed in {@link #TRANSFORMERS_PROPERTY}: providers keeping a state for each class they transform
+ * (weaving or bytecode enhancement registries) would miss the cached classes.
+ * @author Florent Benoit
+ */
+public class EnhancedClassCache {
+
+    /**
+     * System property giving the maximum size of the cached bytecode, in bytes (0 disables the cache).
+     */
+    public static final String MAX_BYTES_PROPERTY = "com.peergreen.persistence.easybeans.enhancement.cache.bytes";
+
+    /**
+     * System property giving the class names of the provider transformers that don't need to see every class, separated
+     * by commas. Default is none: the provider transformer is always called.
+     */
+    public static final String TRANSFORMERS_PROPERTY = "com.peergreen.persistence.easybeans.enhancement.cache.transformers";
+
+    private static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+    /**
+     * Bytecode returned for a class that the transformer has not modified.
+     */
+    private static final byte[] UNMODIFIED = new byte[0];
+
+    private final LinkedHashMap<String, byte[]> entries;
+
+    private final long maxBytes;
+
+    /**
+     * Class names of the transformers whose classes can be cached.
+     */
+    private final Set<String> transformers;
+
+    private long bytes = 0;
+
+    public EnhancedClassCache() {
+        this(Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES).longValue());
+    }
+
+    public EnhancedClassCache(long maxBytes) {
+        this(maxBytes, parseTransformers(System.getProperty(TRANSFORMERS_PROPERTY)));
+    }
+
+    /**
+     * @param maxBytes the maximum size of the cached bytecode
+     * @param transformers the class names of the transformers whose classes can be cached
+     */
+    public EnhancedClassCache(long maxBytes, Collection<String> transformers) {
+        this.maxBytes = maxBytes;
+        this.transformers = Collections.unmodifiableSet(new HashSet<String>(transformers));
+        this.entries = new LinkedHashMap<String, byte[]>(64, 0.75f, true);
+    }
+
+    /**
+     * @param value the value of {@link #TRANSFORMERS_PROPERTY} (may be null)
+     * @return the class names of the transformers
+     */
+    static Set<String> parseTransformers(String value) {
+        Set<String> transformers = new HashSet<String>();
+        if (value == null) {
+            return transformers;
+        }
+        for (String transformer : value.split(",")) {
+            if (!transformer.trim().isEmpty()) {
+                transformers.add(transformer.trim());
+            }
+        }
+        return transformers;
+    }
+
+    /**
+     * Builds the key of a class.
+     * @param transformerId the identifier of the transformer (see {@link ManagedClassTransformer#getTransformerId})
+     * @param className the name of the class
+     * @param digest the digest of the original bytecode
+     * @return the key
+     */
+    public static String key(String transformerId, String className, String digest) {
+        return transformerId + '/' + className + '/' + digest;
+    }
+
+    /**
+     * @return true if the cache is enabled
+     */
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * @param transformerClassName the class name of the transformer of a provider
+     * @return true if the classes transformed by this transformer can be cached
+     */
+    public boolean accepts(String transformerClassName) {
+        return isEnabled() && transformers.contains(transformerClassName);
+    }
+
+    /**
+     * Gets the transformed bytecode.
+     * @param key the key of the class
+     * @return the transformed bytecode, an empty array if the class was not modified by the transformer or null if the
+     * class is not in the cache
+     */
+    public synchronized byte[] get(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Adds transformed bytecode.
+     * @param key the key of the class
+     * @param transformed the transformed bytecode, null if the transformer has not modified the class
+     */
+    public void put(String key, byte[] transformed) {
+        if (!isEnabled()) {
+            return;
+        }
+        byte[] value = transformed == null ? UNMODIFIED : transformed;
+        synchronized (this) {
+            byte[] previous = entries.put(key, value);
+            if (previous != null) {
+                bytes -= previous.length;
+            }
+            bytes += value.length;
+
+            // evict the least recently used entries
+            Iterator<Map.Entry<String, byte[]>> iterator = entries.entrySet().iterator();
+            while (bytes > maxBytes && iterator.hasNext()) {
+                bytes -= iterator.next().getValue().length;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the number of cached classes
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import java.io.File;
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers which libraries are providing persistence descriptors so that unchanged libraries are not probed again.
+ * Only libraries that are plain files are indexed: an entry is valid as long as the size and the last modified time
+ * of the file are the same. The least recently used libraries are evicted once the maximum size is reached.
+ * @author Florent Benoit
+ */
+public class LibraryDescriptorIndex {
+
+    /**
+     * System property giving the maximum number of indexed libraries (0 disables the index).
+     */
+    public static final String SIZE_PROPERTY = "com.peergreen.persistence.easybeans.webapplication.library.index.size";
+
+    private static final int DEFAULT_SIZE = 4096;
+
+    private final Map<URI, Entry> entries;
+
+    private final int maxSize;
+
+    public LibraryDescriptorIndex() {
+        this(Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE).intValue());
+    }
+
+    public LibraryDescriptorIndex(final int maxSize) {
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<URI, Entry>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<URI, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Gets the descriptors previously found in the given library.
+     * @param libraryURI the URI of the library
+     * @return the descriptors or null if the library is unknown or has changed
+     */
+    public synchronized PersistenceDescriptors get(URI libraryURI) {
+        Entry entry = entries.get(libraryURI);
+        if (entry == null) {
+            return null;
+        }
+        File file = toFile(libraryURI);
+        if (file == null || file.length() != entry.size || file.lastModified() != entry.lastModified) {
+            entries.remove(libraryURI);
+            return null;
+        }
+        return entry.descriptors;
+    }
+
+    /**
+     * Records the descriptors found in the given library.
+     * @param libraryURI the URI of the library
+     * @param descriptors the descriptors of the library
+     */
+    public synchronized void put(URI libraryURI, PersistenceDescriptors descriptors) {
+        File file = toFile(libraryURI);
+        if (file == null || maxSize <= 0) {
+            return;
+        }
+        entries.put(libraryURI, new Entry(file.length(), file.lastModified(), descriptors));
+    }
+
+    /**
+     * @return the number of indexed libraries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @param libraryURI the URI of the library
+     * @return the file of the library or null if the library is not a regular file
+     */
+    protected static File toFile(URI libraryURI) {
+        if (libraryURI == null || !"file".equals(libraryURI.getScheme())) {
+            return null;
+        }
+        File file;
+        try {
+            file = new File(libraryURI);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        // META-INF changes of a directory are not reflected by its size or its modified time
+        if (!file.isFile()) {
+            return null;
+        }
+        return file;
+    }
+
+
+    /**
+     * Indexed data of a library.
+     */
+    private static final class Entry {
+
+        private final long size;
+        private final long lastModified;
+        private final PersistenceDescriptors descriptors;
+
+        public Entry(long size, long lastModified, PersistenceDescriptors descriptors) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.descriptors = descriptors;
+        }
+    }
+
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tells if a class is managed by a persistence unit and has to go through the class transformers.
+ * A class is managed if it is listed in a persistence.xml or orm.xml file or if it is annotated with one of the
+ * persistence annotations (Entity, Embeddable, MappedSuperclass).
+ * @author Florent Benoit
+ */
+public class ManagedClassFilter {
+
+    /**
+     * Descriptors of the persistence annotations as they appear in the constant pool of an annotated class.
+     */
+    private static final byte[][] ANNOTATION_DESCRIPTORS = {
+        ascii("Ljavax/persistence/Entity;"),
+        ascii("Ljavax/persistence/Embeddable;"),
+        ascii("Ljavax/persistence/MappedSuperclass;")
+    };
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Names of the classes listed in the persistence descriptors.
+     */
+    private final Set<String> declaredClassNames;
+
+    /**
+     * If true, all classes are transformed.
+     */
+    private volatile boolean unrestricted = false;
+
+    /**
+     * Digest of the persistence descriptors, the enhancement of a class depends on its mapping.
+     */
+    private volatile String descriptorsDigest = null;
+
+    /**
+     * Digest of the bytecode of the declared classes, computed on first use.
+     */
+    private volatile String declaredClassesDigest = null;
+
+    public ManagedClassFilter() {
+        this.declaredClassNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+
+    /**
+     * Adds classes listed in persistence descriptors.
+     * @param classNames the names of the classes
+     */
+    public void addDeclaredClasses(Collection<String> classNames) {
+        declaredClassNames.addAll(classNames);
+        declaredClassesDigest = null;
+    }
+
+    /**
+     * Disables the filtering: all classes will be transformed (used if the descriptors can't be read).
+     */
+    public void setUnrestricted() {
+        this.unrestricted = true;
+    }
+
+    /**
+     * @param descriptorsDigest the digest of all the persistence descriptors of the web application
+     */
+    public void setDescriptorsDigest(String descriptorsDigest) {
+        this.descriptorsDigest = descriptorsDigest;
+    }
+
+    /**
+     * @return the digest of all the persistence descriptors or null if unknown
+     */
+    public String getDescriptorsDigest() {
+        return descriptorsDigest;
+    }
+
+    /**
+     * Gets the digest of the bytecode of the classes listed in the persistence descriptors: the enhancement of an entity
+     * depends on the embeddables and mapped superclasses it is using.
+     * @param classLoader the classloader of the classes
+     * @return the digest of the declared classes
+     * @throws IOException if a class can't be read
+     */
+    public String getDeclaredClassesDigest(ClassLoader classLoader) throws IOException {
+        String digest = declaredClassesDigest;
+        if (digest != null) {
+            return digest;
+        }
+        MessageDigest messageDigest = PersistenceDescriptorDigest.newMessageDigest();
+        for (String className : new TreeSet<String>(declaredClassNames)) {
+            messageDigest.update(className.getBytes(UTF_8));
+            messageDigest.update((byte) 0);
+            byte[] classBytes = ManagedClassTransformer.readClass(classLoader, className.replace('.', '/'));
+            if (classBytes != null) {
+                messageDigest.update(classBytes);
+            }
+            messageDigest.update((byte) 0);
+        }
+        digest = PersistenceDescriptorDigest.toHex(messageDigest.digest());
+        declaredClassesDigest = digest;
+        return digest;
+    }
+
+    /**
+     * @param className the name of the class (internal or binary name)
+     * @return true if the class is listed in the persistence descriptors
+     */
+    public boolean isDeclared(String className) {
+        return className != null && declaredClassNames.contains(className.replace('/', '.'));
+    }
+
+    /**
+     * @return true if all classes are transformed
+     */
+    public boolean isUnrestricted() {
+        return unrestricted;
+    }
+
+    /**
+     * Checks if the given class is managed by a persistence unit.
+     * @param className the name of the class (internal or binary name)
+     * @param classBytes the bytecode of the class
+     * @return true if the class has to be transformed
+     */
+    public boolean isManaged(String className, byte[] classBytes) {
+        if (unrestricted || className == null) {
+            return true;
+        }
+        if (isDeclared(className)) {
+            return true;
+        }
+        if (classBytes == null) {
+            return true;
+        }
+        for (byte[] descriptor : ANNOTATION_DESCRIPTORS) {
+            if (contains(classBytes, descriptor)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param bytes the bytes to search in
+     * @param pattern the bytes to search
+     * @return true if the pattern is found in the given bytes
+     */
+    static boolean contains(byte[] bytes, byte[] pattern) {
+        int last = bytes.length - pattern.length;
+        byte first = pattern[0];
+        for (int i = 0; i <= last; i++) {
+            if (bytes[i] != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < pattern.length && bytes[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] ascii(String value) {
+        byte[] bytes = new byte[value.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) value.charAt(i);
+        }
+        return bytes;
+    }
+
+}
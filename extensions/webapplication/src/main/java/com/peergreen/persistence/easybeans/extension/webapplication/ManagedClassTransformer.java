@@ -0,0 +1,277 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.IllegalClassFormatException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.ProtectionDomain;
+
+import javax.persistence.spi.ClassTransformer;
+
+/**
+ * Class transformer that only calls the provider transformer for the classes managed by a persistence unit.
+ * Other classes are defined without any transformation.
+ * The result of the transformation is kept in a cache shared by the classloaders of the web applications. The key of a
+ * class covers everything its enhancement depends on: the provider (class, version and archive), the descriptors, the
+ * bytecode of the class, of its super classes and of the classes listed in the descriptors (embeddables, mapped
+ * superclasses). Classes only found by their annotations are not cached as the classes they depend on are not known.
+ * On a cache hit the provider transformer is not called: the cache is only used for the transformers listed in
+ * {@link EnhancedClassCache#TRANSFORMERS_PROPERTY}, the other ones see every managed class.
+ * @author Florent Benoit
+ */
+public class ManagedClassTransformer implements ClassTransformer {
+
+    private static final int MAGIC = 0xCAFEBABE;
+
+    private static final String OBJECT = "java/lang/Object";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ClassTransformer wrapped;
+
+    private final ManagedClassFilter managedClassFilter;
+
+    private final EnhancedClassCache enhancedClassCache;
+
+    private final String transformerId;
+
+    /**
+     * True if the provider transformer tolerates that cached classes are not given to it.
+     */
+    private final boolean cacheable;
+
+    public ManagedClassTransformer(ClassTransformer wrapped, ManagedClassFilter managedClassFilter, EnhancedClassCache enhancedClassCache) {
+        this.wrapped = wrapped;
+        this.managedClassFilter = managedClassFilter;
+        this.enhancedClassCache = enhancedClassCache;
+        this.transformerId = getTransformerId(wrapped);
+        this.cacheable = enhancedClassCache.accepts(wrapped.getClass().getName());
+    }
+
+    /**
+     * Builds an identifier of the given transformer that changes when the persistence provider is upgraded.
+     * @param transformer the transformer
+     * @return the class of the transformer, its version and the location, size and date of its archive
+     */
+    public static String getTransformerId(ClassTransformer transformer) {
+        Class<?> transformerClass = transformer.getClass();
+        StringBuilder id = new StringBuilder(transformerClass.getName());
+        Package transformerPackage = transformerClass.getPackage();
+        id.append('@');
+        if (transformerPackage != null) {
+            id.append(transformerPackage.getImplementationVersion());
+        }
+        // the version is not always updated (snapshots, patched providers)
+        CodeSource codeSource = transformerClass.getProtectionDomain().getCodeSource();
+        if (codeSource != null && codeSource.getLocation() != null) {
+            URL location = codeSource.getLocation();
+            id.append('@').append(location);
+            if ("file".equals(location.getProtocol())) {
+                try {
+                    File archive = new File(location.toURI());
+                    id.append('@').append(archive.length()).append('@').append(archive.lastModified());
+                } catch (URISyntaxException | IllegalArgumentException e) {
+                    // the location is enough
+                }
+            }
+        }
+        return id.toString();
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
+        if (!managedClassFilter.isManaged(className, classfileBuffer)) {
+            // no transformation
+            return null;
+        }
+        String key = getKey(loader, className, classfileBuffer);
+        if (key == null) {
+            return wrapped.transform(loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+        }
+
+        byte[] transformed = enhancedClassCache.get(key);
+        if (transformed != null) {
+            return transformed.length == 0 ? null : transformed;
+        }
+        transformed = wrapped.transform(loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+        enhancedClassCache.put(key, transformed);
+        return transformed;
+    }
+
+    /**
+     * Builds the key of a class in the cache.
+     * @param loader the classloader defining the class
+     * @param className the internal name of the class
+     * @param classfileBuffer the original bytecode
+     * @return the key or null if the class can't be cached
+     */
+    protected String getKey(ClassLoader loader, String className, byte[] classfileBuffer) {
+        // the mapping of the class is part of the key as it changes the enhancement
+        String descriptorsDigest = managedClassFilter.getDescriptorsDigest();
+        if (!cacheable || classfileBuffer == null || descriptorsDigest == null || loader == null || !managedClassFilter.isDeclared(className)) {
+            return null;
+        }
+        String declaredClassesDigest;
+        String hierarchyDigest;
+        try {
+            declaredClassesDigest = managedClassFilter.getDeclaredClassesDigest(loader);
+            hierarchyDigest = getHierarchyDigest(loader, classfileBuffer);
+        } catch (IOException e) {
+            return null;
+        }
+        if (hierarchyDigest == null) {
+            return null;
+        }
+        return EnhancedClassCache.key(transformerId + '/' + descriptorsDigest + '/' + declaredClassesDigest + '/' + hierarchyDigest, className, PersistenceDescriptorDigest.digest(classfileBuffer));
+    }
+
+    /**
+     * Gets the digest of the bytecode of the super classes of a class (up to java.lang.Object).
+     * @param loader the classloader defining the class
+     * @param classfileBuffer the bytecode of the class
+     * @return the digest or null if the bytecode of a super class can't be found
+     * @throws IOException if a super class can't be read
+     */
+    static String getHierarchyDigest(ClassLoader loader, byte[] classfileBuffer) throws IOException {
+        MessageDigest messageDigest = PersistenceDescriptorDigest.newMessageDigest();
+        String superclassName = getSuperclassName(classfileBuffer);
+        while (superclassName != null && !OBJECT.equals(superclassName)) {
+            byte[] superclassBytes = readClass(loader, superclassName);
+            if (superclassBytes == null) {
+                return null;
+            }
+            messageDigest.update(superclassName.getBytes(UTF_8));
+            messageDigest.update((byte) 0);
+            messageDigest.update(superclassBytes);
+            superclassName = getSuperclassName(superclassBytes);
+        }
+        if (superclassName == null) {
+            // invalid bytecode
+            return null;
+        }
+        return PersistenceDescriptorDigest.toHex(messageDigest.digest());
+    }
+
+    /**
+     * Reads the name of the super class in the constant pool of a class.
+     * @param classBytes the bytecode of the class
+     * @return the internal name of the super class or null if the bytecode is invalid or has no super class
+     */
+    static String getSuperclassName(byte[] classBytes) {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(classBytes));
+        try {
+            if (input.readInt() != MAGIC) {
+                return null;
+            }
+            // minor and major versions
+            input.skipBytes(4);
+            int count = input.readUnsignedShort();
+            String[] utf8 = new String[count];
+            int[] classNames = new int[count];
+            for (int i = 1; i < count; i++) {
+                int tag = input.readUnsignedByte();
+                switch (tag) {
+                    case 1:
+                        utf8[i] = input.readUTF();
+                        break;
+                    case 7:
+                        classNames[i] = input.readUnsignedShort();
+                        break;
+                    case 8:
+                    case 16:
+                    case 19:
+                    case 20:
+                        input.skipBytes(2);
+                        break;
+                    case 15:
+                        input.skipBytes(3);
+                        break;
+                    case 3:
+                    case 4:
+                    case 9:
+                    case 10:
+                    case 11:
+                    case 12:
+                    case 17:
+                    case 18:
+                        input.skipBytes(4);
+                        break;
+                    case 5:
+                    case 6:
+                        // long and double use two entries
+                        input.skipBytes(8);
+                        i++;
+                        break;
+                    default:
+                        return null;
+                }
+            }
+            // access flags and this class
+            input.skipBytes(4);
+            int superclassIndex = input.readUnsignedShort();
+            if (superclassIndex <= 0 || superclassIndex >= count) {
+                return null;
+            }
+            return utf8[classNames[superclassIndex]];
+        } catch (IOException | ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param loader the classloader
+     * @param className the internal name of the class
+     * @return the bytecode of the class or null if it is not found
+     * @throws IOException if the class can't be read
+     */
+    static byte[] readClass(ClassLoader loader, String className) throws IOException {
+        InputStream inputStream = loader.getResourceAsStream(className + ".class");
+        if (inputStream == null) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+            return outputStream.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * @return the transformer of the persistence provider
+     */
+    public ClassTransformer getWrapped() {
+        return wrapped;
+    }
+
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.peergreen.deployment.ProcessorException;
+
+/**
+ * Runs tasks on a bounded pool of threads and returns their results in the order of the tasks.
+ * The pool is shared by all the deployments handled by the component owning it, so the number of threads doesn't grow
+ * with the number of concurrent deployments. It has to be shut down by its owner.
+ * @author Florent Benoit
+ */
+public class ParallelTasks {
+
+    /**
+     * Below this number of tasks, tasks are always run in the calling thread.
+     */
+    private static final int PARALLEL_THRESHOLD = 4;
+
+    /**
+     * Idle time after which the threads of the pool are stopped, in seconds.
+     */
+    private static final long KEEP_ALIVE = 60L;
+
+    private final int threads;
+
+    /**
+     * Pool of threads or null if the tasks are run in the calling thread.
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param threads the maximum number of threads (1 = tasks are run in the calling thread)
+     * @param threadName the prefix of the name of the threads
+     */
+    public ParallelTasks(int threads, String threadName) {
+        this.threads = Math.max(1, threads);
+        if (this.threads > 1) {
+            this.executor = new ThreadPoolExecutor(this.threads, this.threads, KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory(threadName));
+            executor.allowCoreThreadTimeOut(true);
+        } else {
+            this.executor = null;
+        }
+    }
+
+    /**
+     * @return the maximum number of threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Runs the given tasks. They are run in the calling thread if there are only a few of them or if the pool has been
+     * shut down.
+     * @param tasks the tasks to run
+     * @return the result of each task, in the order of the tasks
+     * @throws ProcessorException if one of the tasks has failed
+     */
+    public <T> List<T> invokeInOrder(List<? extends Callable<T>> tasks) throws ProcessorException {
+        if (executor == null || executor.isShutdown() || tasks.size() < PARALLEL_THRESHOLD) {
+            return invokeSerially(tasks);
+        }
+
+        List<T> results = new ArrayList<T>(tasks.size());
+        List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+        try {
+            for (Callable<T> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            // Wait for the results in the order of the tasks so that callers stay deterministic
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (RejectedExecutionException e) {
+            throw new ProcessorException("Unable to run the tasks, the pool has been shut down", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessorException("Interrupted while waiting for the tasks", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ProcessorException) {
+                throw (ProcessorException) e.getCause();
+            }
+            throw new ProcessorException("Unable to run the tasks", e.getCause());
+        } finally {
+            // tasks left after a failure
+            if (results.size() < futures.size() || futures.size() < tasks.size()) {
+                for (Future<T> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Stops the threads of the pool. The tasks given afterwards are run in the calling thread.
+     */
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private static <T> List<T> invokeSerially(List<? extends Callable<T>> tasks) throws ProcessorException {
+        List<T> results = new ArrayList<T>(tasks.size());
+        for (Callable<T> task : tasks) {
+            try {
+                results.add(task.call());
+            } catch (ProcessorException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new ProcessorException("Unable to run task " + task, e);
+            }
+        }
+        return results;
+    }
+
+
+    /**
+     * Creates named daemon threads.
+     */
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        private final String name;
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes a digest of the persistence descriptors (persistence.xml and orm.xml) of an archive.
+ * The digest covers both the location and the content of the descriptors.
+ * @author Florent Benoit
+ */
+public final class PersistenceDescriptorDigest {
+
+    private static final String ALGORITHM = "SHA-1";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private PersistenceDescriptorDigest() {
+
+    }
+
+    /**
+     * Computes the digest of the given descriptors.
+     * @param rootURI URI of the archive
+     * @param persistenceXMLPath the path of the persistence.xml file
+     * @param ormXMLPath the path of the orm.xml file (may be null)
+     * @return the hexadecimal digest
+     * @throws IOException if the descriptors can't be read
+     */
+    public static String digest(URI rootURI, URI persistenceXMLPath, URI ormXMLPath) throws IOException {
+        MessageDigest messageDigest = newMessageDigest();
+        messageDigest.update(String.valueOf(rootURI).getBytes("UTF-8"));
+        update(messageDigest, persistenceXMLPath);
+        update(messageDigest, ormXMLPath);
+        return toHex(messageDigest.digest());
+    }
+
+    /**
+     * Computes the digest of the content of the given descriptors, whatever their location.
+     * @param persistenceXMLPath the path of the persistence.xml file
+     * @param ormXMLPath the path of the orm.xml file (may be null)
+     * @return the hexadecimal digest
+     * @throws IOException if the descriptors can't be read
+     */
+    public static String contentDigest(URI persistenceXMLPath, URI ormXMLPath) throws IOException {
+        MessageDigest messageDigest = newMessageDigest();
+        updateContent(messageDigest, persistenceXMLPath);
+        updateContent(messageDigest, ormXMLPath);
+        return toHex(messageDigest.digest());
+    }
+
+    /**
+     * Computes the digest of the given bytes (bytecode, keys).
+     * @param bytes the bytes
+     * @return the hexadecimal digest
+     */
+    static String digest(byte[] bytes) {
+        return toHex(newMessageDigest().digest(bytes));
+    }
+
+    /**
+     * @return a new message digest of the algorithm used for all the digests of the web applications
+     */
+    static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform provides SHA-1
+            throw new IllegalStateException("Unable to get the digest algorithm " + ALGORITHM, e);
+        }
+    }
+
+    /**
+     * Adds the content of the given descriptor to the digest.
+     * @param messageDigest the digest to update
+     * @param descriptor the descriptor to read (may be null)
+     * @throws IOException if the descriptor can't be read
+     */
+    private static void update(MessageDigest messageDigest, URI descriptor) throws IOException {
+        // separator between the descriptors so that a missing orm.xml is not the same as an empty one
+        messageDigest.update((byte) 0);
+        if (descriptor == null) {
+            return;
+        }
+        messageDigest.update((byte) 1);
+        // location is part of the digest as two libraries may ship the same descriptor
+        messageDigest.update(descriptor.toString().getBytes("UTF-8"));
+        updateBytes(messageDigest, descriptor);
+    }
+
+    /**
+     * Adds the content of the given descriptor to the digest, without its location.
+     * @param messageDigest the digest to update
+     * @param descriptor the descriptor to read (may be null)
+     * @throws IOException if the descriptor can't be read
+     */
+    private static void updateContent(MessageDigest messageDigest, URI descriptor) throws IOException {
+        messageDigest.update((byte) 0);
+        if (descriptor == null) {
+            return;
+        }
+        messageDigest.update((byte) 1);
+        updateBytes(messageDigest, descriptor);
+    }
+
+    private static void updateBytes(MessageDigest messageDigest, URI descriptor) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream inputStream = descriptor.toURL().openStream()) {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                messageDigest.update(buffer, 0, read);
+            }
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0x0F];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0x0F];
+        }
+        return new String(chars);
+    }
+
+}
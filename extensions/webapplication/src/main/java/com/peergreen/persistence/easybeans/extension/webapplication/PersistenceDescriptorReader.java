@@ -0,0 +1,247 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * Reads the persistence units of persistence.xml files and the classes listed in orm.xml files.
+ * This reader builds a DOM tree of each file, {@link #newInstance()} gives the reader selected by the
+ * {@link #READER_PROPERTY} system property. Both readers reject a DOCTYPE declaration and never resolve external
+ * entities.
+ * @author Florent Benoit
+ */
+public class PersistenceDescriptorReader {
+
+    /**
+     * System property selecting the reader: {@value #DOM} (default) or {@value #STAX} for large mapping files.
+     */
+    public static final String READER_PROPERTY = "com.peergreen.persistence.easybeans.webapplication.reader";
+
+    public static final String DOM = "dom";
+
+    public static final String STAX = "stax";
+
+    private static final String ANY_NAMESPACE = "*";
+
+    /**
+     * Elements of the orm.xml file with a class attribute.
+     */
+    static final String[] ORM_CLASS_ELEMENTS = {"entity", "mapped-superclass", "embeddable"};
+
+    private static final String DISALLOW_DOCTYPE_FEATURE = "http://apache.org/xml/features/disallow-doctype-decl";
+
+    private static final String EXTERNAL_GENERAL_ENTITIES_FEATURE = "http://xml.org/sax/features/external-general-entities";
+
+    private static final String EXTERNAL_PARAMETER_ENTITIES_FEATURE = "http://xml.org/sax/features/external-parameter-entities";
+
+    private final DocumentBuilderFactory documentBuilderFactory;
+
+    public PersistenceDescriptorReader() {
+        this.documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+        documentBuilderFactory.setValidating(false);
+        documentBuilderFactory.setXIncludeAware(false);
+        documentBuilderFactory.setExpandEntityReferences(false);
+        try {
+            documentBuilderFactory.setFeature(DISALLOW_DOCTYPE_FEATURE, true);
+            documentBuilderFactory.setFeature(EXTERNAL_GENERAL_ENTITIES_FEATURE, false);
+            documentBuilderFactory.setFeature(EXTERNAL_PARAMETER_ENTITIES_FEATURE, false);
+            documentBuilderFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException("Unable to disable the DTDs of the XML parser", e);
+        }
+    }
+
+    /**
+     * @return the reader selected by the {@link #READER_PROPERTY} system property
+     */
+    public static PersistenceDescriptorReader newInstance() {
+        if (STAX.equalsIgnoreCase(System.getProperty(READER_PROPERTY, DOM).trim())) {
+            return new StreamingPersistenceDescriptorReader();
+        }
+        return new PersistenceDescriptorReader();
+    }
+
+    /**
+     * Reads the persistence units of a persistence.xml file.
+     * @param persistenceXMLPath the path of the persistence.xml file
+     * @return the units, in the order of the file
+     * @throws IOException if the file can't be read
+     */
+    public List<PersistenceUnitDescriptor> readPersistenceUnits(URI persistenceXMLPath) throws IOException {
+        return readPersistenceUnits(persistenceXMLPath.toURL().openStream());
+    }
+
+    /**
+     * Reads the persistence units of a persistence.xml file.
+     * @param inputStream the content of the persistence.xml file, closed by this method
+     * @return the units, in the order of the file
+     * @throws IOException if the file can't be read
+     */
+    public List<PersistenceUnitDescriptor> readPersistenceUnits(InputStream inputStream) throws IOException {
+        List<PersistenceUnitDescriptor> units = new ArrayList<PersistenceUnitDescriptor>();
+        Document document = parse(inputStream);
+        NodeList unitElements = document.getElementsByTagNameNS(ANY_NAMESPACE, "persistence-unit");
+        for (int i = 0; i < unitElements.getLength(); i++) {
+            Element unitElement = (Element) unitElements.item(i);
+
+            List<String> classNames = new ArrayList<String>();
+            addTexts(unitElement.getElementsByTagNameNS(ANY_NAMESPACE, "class"), classNames);
+
+            List<String> mappingFiles = new ArrayList<String>();
+            addTexts(unitElement.getElementsByTagNameNS(ANY_NAMESPACE, "mapping-file"), mappingFiles);
+
+            Map<String, String> properties = new LinkedHashMap<String, String>();
+            NodeList propertyElements = unitElement.getElementsByTagNameNS(ANY_NAMESPACE, "property");
+            for (int j = 0; j < propertyElements.getLength(); j++) {
+                Element propertyElement = (Element) propertyElements.item(j);
+                properties.put(propertyElement.getAttribute("name"), propertyElement.getAttribute("value"));
+            }
+
+            units.add(new PersistenceUnitDescriptor(unitElement.getAttribute("name"), classNames, mappingFiles, properties));
+        }
+        return units;
+    }
+
+    /**
+     * Gets the classes of the given units: the listed classes and the classes of the mapping files they reference.
+     * @param units the persistence units
+     * @param classLoader the classloader used to find the mapping files
+     * @return the names of the classes
+     * @throws IOException if a mapping file can't be read
+     */
+    public Set<String> getManagedClasses(List<PersistenceUnitDescriptor> units, ClassLoader classLoader) throws IOException {
+        Set<String> classNames = new LinkedHashSet<String>();
+        Set<String> mappingFiles = new LinkedHashSet<String>();
+        for (PersistenceUnitDescriptor unit : units) {
+            classNames.addAll(unit.getClassNames());
+            mappingFiles.addAll(unit.getMappingFiles());
+        }
+        for (String mappingFile : mappingFiles) {
+            InputStream inputStream = classLoader.getResourceAsStream(mappingFile);
+            if (inputStream != null) {
+                classNames.addAll(readOrmXML(inputStream));
+            }
+        }
+        return classNames;
+    }
+
+    /**
+     * Reads the class elements of a persistence.xml file and the mapping files it references.
+     * @param persistenceXMLPath the path of the persistence.xml file
+     * @param classLoader the classloader used to find the mapping files
+     * @return the names of the classes
+     * @throws IOException if the files can't be read
+     */
+    public Set<String> readPersistenceXML(URI persistenceXMLPath, ClassLoader classLoader) throws IOException {
+        return getManagedClasses(readPersistenceUnits(persistenceXMLPath), classLoader);
+    }
+
+    /**
+     * Reads the classes of an orm.xml file.
+     * @param ormXMLPath the path of the orm.xml file
+     * @return the names of the classes
+     * @throws IOException if the file can't be read
+     */
+    public Set<String> readOrmXML(URI ormXMLPath) throws IOException {
+        return readOrmXML(ormXMLPath.toURL().openStream());
+    }
+
+    /**
+     * Reads the classes of an orm.xml file.
+     * @param inputStream the content of the orm.xml file, closed by this method
+     * @return the names of the classes
+     * @throws IOException if the file can't be read
+     */
+    public Set<String> readOrmXML(InputStream inputStream) throws IOException {
+        Set<String> classNames = new LinkedHashSet<String>();
+        Document document = parse(inputStream);
+
+        // unqualified names are relative to the package element
+        String packageName = null;
+        NodeList packages = document.getElementsByTagNameNS(ANY_NAMESPACE, "package");
+        if (packages.getLength() > 0) {
+            packageName = packages.item(0).getTextContent().trim();
+        }
+
+        for (String elementName : ORM_CLASS_ELEMENTS) {
+            NodeList elements = document.getElementsByTagNameNS(ANY_NAMESPACE, elementName);
+            for (int i = 0; i < elements.getLength(); i++) {
+                String className = ((Element) elements.item(i)).getAttribute("class").trim();
+                if (!className.isEmpty()) {
+                    classNames.add(qualify(packageName, className));
+                }
+            }
+        }
+        return classNames;
+    }
+
+    /**
+     * @param packageName the package of the mapping file (may be null)
+     * @param className the name of the class
+     * @return the fully qualified name of the class
+     */
+    static String qualify(String packageName, String className) {
+        if (packageName == null || packageName.isEmpty() || className.indexOf('.') != -1) {
+            return className;
+        }
+        return packageName + "." + className;
+    }
+
+    private Document parse(InputStream inputStream) throws IOException {
+        try {
+            DocumentBuilder documentBuilder;
+            synchronized (documentBuilderFactory) {
+                documentBuilder = documentBuilderFactory.newDocumentBuilder();
+            }
+            return documentBuilder.parse(inputStream);
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("Unable to parse persistence descriptor", e);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static void addTexts(NodeList nodes, Collection<String> values) {
+        for (int i = 0; i < nodes.getLength(); i++) {
+            String value = nodes.item(i).getTextContent().trim();
+            if (!value.isEmpty()) {
+                values.add(value);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,304 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.peergreen.deployment.ProcessorException;
+import com.peergreen.deployment.facet.archive.Archive;
+import com.peergreen.deployment.facet.archive.ArchiveException;
+import com.peergreen.persistence.easybeans.index.PersistenceIndex;
+import com.peergreen.persistence.easybeans.metrics.PersistenceMetrics;
+import com.peergreen.persistence.easybeans.metrics.PersistencePhase;
+
+/**
+ * Finds the persistence.xml and orm.xml files of a web application and of its libraries.
+ * @author Florent Benoit
+ */
+public class PersistenceDescriptorScanner {
+
+    private static final Logger LOGGER = Logger.getLogger(PersistenceDescriptorScanner.class.getName());
+
+    public static final String ORM_IN_WAR_PATH = "WEB-INF/classes/META-INF/orm.xml" ;
+    public static final String PERSISTENCE_IN_WAR_PATH = "WEB-INF/classes/META-INF/persistence.xml" ;
+
+    public static final String ORM_IN_LIBRARY_PATH = "META-INF/orm.xml" ;
+    public static final String PERSISTENCE_IN_LIBRARY_PATH = "META-INF/persistence.xml" ;
+
+    /**
+     * System property giving the number of threads used to scan and analyze the libraries of the web applications
+     * (1 = serial, default as the EasyBeans analyzer is not known to be thread-safe).
+     */
+    public static final String SCAN_THREADS_PROPERTY = "com.peergreen.persistence.easybeans.webapplication.scan.threads";
+
+    /**
+     * Metrics of the processing.
+     */
+    private final PersistenceMetrics persistenceMetrics;
+
+    /**
+     * Pool of the component running the lookups of the libraries.
+     */
+    private final ParallelTasks parallelTasks;
+
+    /**
+     * Descriptors found in the libraries that were already scanned.
+     */
+    private final LibraryDescriptorIndex libraryDescriptorIndex;
+
+    public PersistenceDescriptorScanner(PersistenceMetrics persistenceMetrics, ParallelTasks parallelTasks) {
+        this.persistenceMetrics = persistenceMetrics;
+        this.parallelTasks = parallelTasks;
+        this.libraryDescriptorIndex = new LibraryDescriptorIndex();
+    }
+
+    /**
+     * @return the number of threads given by the system property (1 if it is not set)
+     */
+    public static int getDefaultScanThreads() {
+        return Integer.getInteger(SCAN_THREADS_PROPERTY, 1).intValue();
+    }
+
+    /**
+     * Finds the descriptors of the web application and of its libraries.
+     * @param archive the archive of the web application
+     * @param libraries the libraries of the web application (may be null)
+     * @return the descriptors
+     * @throws ProcessorException if entries can't be checked
+     */
+    public WebApplicationPersistenceDescriptors scan(Archive archive, Iterable<Archive> libraries) throws ProcessorException {
+        URI rootURI;
+        try {
+            rootURI = archive.getURI();
+        } catch (ArchiveException e) {
+            throw new ProcessorException("Unable to get the root URI", e);
+        }
+
+        URI persistenceXMLPath = null;
+        try {
+            persistenceXMLPath = archive.getResource(PERSISTENCE_IN_WAR_PATH);
+        } catch (ArchiveException e) {
+            throw new ProcessorException(String.format("Unable to check if entry %s is available",  PERSISTENCE_IN_WAR_PATH), e);
+        }
+
+
+        URI ormXMLPath = null;
+        try {
+            ormXMLPath = archive.getResource(ORM_IN_WAR_PATH);
+        } catch (ArchiveException e) {
+            throw new ProcessorException(String.format("Unable to check if entry %s is available",  ORM_IN_WAR_PATH), e);
+        }
+
+        List<PersistenceDescriptors> libraryDescriptors = Collections.emptyList();
+        if (libraries != null) {
+            // Use the index computed at packaging time for the libraries that didn't change since
+            libraryDescriptors = locateIndexedLibraryDescriptors(archive, libraries);
+        }
+        if (libraries != null && libraryDescriptors == null) {
+            List<LibraryLookup> lookups = new ArrayList<LibraryLookup>();
+            for (Archive library : libraries) {
+                lookups.add(new LibraryLookup(library));
+            }
+            libraryDescriptors = parallelTasks.invokeInOrder(lookups);
+        } else if (libraries != null) {
+            // probe the libraries that the index can't give
+            List<Integer> positions = new ArrayList<Integer>();
+            List<LibraryLookup> lookups = new ArrayList<LibraryLookup>();
+            int position = 0;
+            for (Archive library : libraries) {
+                if (libraryDescriptors.get(position) == null) {
+                    positions.add(Integer.valueOf(position));
+                    lookups.add(new LibraryLookup(library));
+                }
+                position++;
+            }
+            List<PersistenceDescriptors> probedDescriptors = parallelTasks.invokeInOrder(lookups);
+            for (int i = 0; i < positions.size(); i++) {
+                libraryDescriptors.set(positions.get(i).intValue(), probedDescriptors.get(i));
+            }
+        }
+
+        return new WebApplicationPersistenceDescriptors(rootURI, new PersistenceDescriptors(persistenceXMLPath, ormXMLPath), libraryDescriptors);
+    }
+
+
+    /**
+     * Gets the persistence descriptors of the libraries from the index of the web application. Only the libraries that
+     * the index gives as having descriptors are checked. A library that is not indexed or that changed since the
+     * packaging (size or last modified time) has no descriptors in the returned list: it has to be probed.
+     * @param archive the archive of the web application
+     * @param libraries the libraries of the web application
+     * @return the descriptors of the libraries (null for the libraries to probe) or null if there is no index
+     * @throws ProcessorException if entries can't be checked
+     */
+    protected List<PersistenceDescriptors> locateIndexedLibraryDescriptors(Archive archive, Iterable<Archive> libraries) throws ProcessorException {
+        URI indexPath;
+        try {
+            indexPath = archive.getResource(PersistenceIndex.PATH_IN_WAR);
+        } catch (ArchiveException e) {
+            throw new ProcessorException(String.format("Unable to check if entry %s is available",  PersistenceIndex.PATH_IN_WAR), e);
+        }
+        if (indexPath == null) {
+            return null;
+        }
+
+        long start = System.nanoTime();
+        PersistenceIndex index;
+        try (InputStream inputStream = indexPath.toURL().openStream()) {
+            index = PersistenceIndex.read(inputStream);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Unable to read the persistence index " + indexPath + ", scanning the libraries", e);
+            return null;
+        }
+
+        List<PersistenceDescriptors> libraryDescriptors = new ArrayList<PersistenceDescriptors>();
+        int probed = 0;
+        for (Archive library : libraries) {
+            URI libraryURI;
+            try {
+                libraryURI = library.getURI();
+            } catch (ArchiveException e) {
+                throw new ProcessorException("Unable to get the library URI", e);
+            }
+
+            // already checked by a previous deployment
+            PersistenceDescriptors descriptors = libraryDescriptorIndex.get(libraryURI);
+            if (descriptors != null) {
+                libraryDescriptors.add(descriptors);
+                continue;
+            }
+
+            File file = LibraryDescriptorIndex.toFile(libraryURI);
+            PersistenceIndex.Entry entry = null;
+            if (file != null) {
+                entry = index.findLibrary(file.getName());
+            }
+            // library added or changed since the packaging
+            if (entry == null || !entry.isUpToDate(file.length(), file.lastModified())) {
+                LOGGER.log(Level.FINE, "Persistence index {0} is stale for library {1}", new Object[] {indexPath, libraryURI});
+                libraryDescriptors.add(null);
+                continue;
+            }
+
+            if (!entry.hasPersistenceXML() && !entry.hasOrmXML()) {
+                libraryDescriptors.add(PersistenceDescriptors.NONE);
+                libraryDescriptorIndex.put(libraryURI, PersistenceDescriptors.NONE);
+                continue;
+            }
+            URI uriPersistenceInLibrary = null;
+            URI uriORMInLibrary = null;
+            try {
+                if (entry.hasPersistenceXML()) {
+                    uriPersistenceInLibrary = library.getResource(PERSISTENCE_IN_LIBRARY_PATH);
+                }
+                if (entry.hasOrmXML()) {
+                    uriORMInLibrary = library.getResource(ORM_IN_LIBRARY_PATH);
+                }
+            } catch (ArchiveException e) {
+                throw new ProcessorException(String.format("Unable to get the descriptors of the library %s", libraryURI), e);
+            }
+            probed++;
+            if ((entry.hasPersistenceXML() && uriPersistenceInLibrary == null) || (entry.hasOrmXML() && uriORMInLibrary == null)) {
+                libraryDescriptors.add(null);
+                continue;
+            }
+            descriptors = new PersistenceDescriptors(uriPersistenceInLibrary, uriORMInLibrary);
+            libraryDescriptors.add(descriptors);
+            libraryDescriptorIndex.put(libraryURI, descriptors);
+        }
+        persistenceMetrics.addLibrariesProbed(probed);
+        persistenceMetrics.addTime(PersistencePhase.LIBRARY_SCAN, System.nanoTime() - start);
+        return libraryDescriptors;
+    }
+
+    /**
+     * Gets the persistence descriptors of the given library, using the index if the library has not changed.
+     * @param library the library to check
+     * @return the descriptors of the library
+     * @throws ProcessorException if entries can't be checked
+     */
+    public PersistenceDescriptors locateLibraryDescriptors(Archive library) throws ProcessorException {
+        URI libraryURI;
+        try {
+            libraryURI = library.getURI();
+        } catch (ArchiveException e) {
+            throw new ProcessorException("Unable to get the library URI", e);
+        }
+
+        PersistenceDescriptors descriptors = libraryDescriptorIndex.get(libraryURI);
+        if (descriptors != null) {
+            return descriptors;
+        }
+
+        long start = System.nanoTime();
+        URI uriPersistenceInLibrary;
+        try {
+            uriPersistenceInLibrary = library.getResource(PERSISTENCE_IN_LIBRARY_PATH);
+        } catch (ArchiveException e) {
+            throw new ProcessorException(String.format("Unable to check if entry %s is available",  PERSISTENCE_IN_LIBRARY_PATH), e);
+        }
+
+        URI uriORMInLibrary;
+        try {
+            uriORMInLibrary = library.getResource(ORM_IN_LIBRARY_PATH);
+        } catch (ArchiveException e) {
+            throw new ProcessorException(String.format("Unable to check if entry %s is available",  ORM_IN_LIBRARY_PATH), e);
+        }
+
+        if (uriPersistenceInLibrary == null && uriORMInLibrary == null) {
+            descriptors = PersistenceDescriptors.NONE;
+        } else {
+            descriptors = new PersistenceDescriptors(uriPersistenceInLibrary, uriORMInLibrary);
+        }
+        libraryDescriptorIndex.put(libraryURI, descriptors);
+        persistenceMetrics.addLibrariesProbed(1);
+        persistenceMetrics.addTime(PersistencePhase.LIBRARY_SCAN, System.nanoTime() - start);
+        return descriptors;
+    }
+
+
+    /**
+     * Lookup of a library done by the scan threads.
+     */
+    private class LibraryLookup implements Callable<PersistenceDescriptors> {
+
+        private final Archive library;
+
+        public LibraryLookup(Archive library) {
+            this.library = library;
+        }
+
+        @Override
+        public PersistenceDescriptors call() throws ProcessorException {
+            return locateLibraryDescriptors(library);
+        }
+
+        @Override
+        public String toString() {
+            return "LibraryLookup[" + library + "]";
+        }
+    }
+
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Content of the persistence descriptors (persistence.xml and orm.xml) of an archive read at a given time.
+ * @author Florent Benoit
+ */
+public class PersistenceDescriptorSnapshot {
+
+    /**
+     * Size and last modified time of the files holding the descriptors or null if they can't be checked.
+     */
+    private final List<Long> stamps;
+
+    private final String digest;
+
+    private final List<PersistenceUnitDescriptor> units;
+
+    private final Set<String> ormClasses;
+
+    public PersistenceDescriptorSnapshot(List<Long> stamps, String digest, List<PersistenceUnitDescriptor> units, Set<String> ormClasses) {
+        this.stamps = stamps;
+        this.digest = digest;
+        this.units = Collections.unmodifiableList(units);
+        this.ormClasses = Collections.unmodifiableSet(ormClasses);
+    }
+
+    /**
+     * @return the stamps of the files or null if the files can't be checked
+     */
+    public List<Long> getStamps() {
+        return stamps;
+    }
+
+    /**
+     * @return the digest of the descriptors
+     * @see PersistenceDescriptorDigest
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    /**
+     * @return the units of the persistence.xml file
+     */
+    public List<PersistenceUnitDescriptor> getUnits() {
+        return units;
+    }
+
+    /**
+     * @return the classes of the orm.xml file
+     */
+    public Set<String> getOrmClasses() {
+        return ormClasses;
+    }
+
+    @Override
+    public String toString() {
+        return "PersistenceDescriptorSnapshot[digest=" + digest + ", units=" + units + "]";
+    }
+}
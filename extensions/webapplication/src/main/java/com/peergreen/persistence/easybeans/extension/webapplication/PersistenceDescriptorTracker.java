@@ -0,0 +1,182 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks the persistence descriptors of the deployed archives so that only the descriptors that changed since the
+ * last deployment are read again.
+ * A snapshot is reused as long as the size and the last modified time of the files holding the descriptors (the
+ * descriptors themselves or the jar containing them) are the same. The least recently used descriptors are forgotten
+ * once the maximum size is reached.
+ * @author Florent Benoit
+ */
+public class PersistenceDescriptorTracker {
+
+    private static final Logger LOGGER = Logger.getLogger(PersistenceDescriptorTracker.class.getName());
+
+    /**
+     * System property giving the maximum number of tracked descriptors (0 disables the tracking).
+     */
+    public static final String SIZE_PROPERTY = "com.peergreen.persistence.easybeans.webapplication.tracker.size";
+
+    private static final int DEFAULT_SIZE = 256;
+
+    private static final String JAR_SEPARATOR = "!/";
+
+    private final PersistenceDescriptorReader persistenceDescriptorReader;
+
+    /**
+     * Last snapshot of each descriptor (root URI, persistence.xml and orm.xml locations).
+     */
+    private final Map<String, PersistenceDescriptorSnapshot> snapshots;
+
+    public PersistenceDescriptorTracker() {
+        this(PersistenceDescriptorReader.newInstance());
+    }
+
+    /**
+     * @param persistenceDescriptorReader the reader of the descriptors that have changed
+     */
+    public PersistenceDescriptorTracker(PersistenceDescriptorReader persistenceDescriptorReader) {
+        this(persistenceDescriptorReader, Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE).intValue());
+    }
+
+    /**
+     * @param persistenceDescriptorReader the reader of the descriptors that have changed
+     * @param maxSize the maximum number of tracked descriptors
+     */
+    public PersistenceDescriptorTracker(PersistenceDescriptorReader persistenceDescriptorReader, final int maxSize) {
+        this.persistenceDescriptorReader = persistenceDescriptorReader;
+        this.snapshots = new LinkedHashMap<String, PersistenceDescriptorSnapshot>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PersistenceDescriptorSnapshot> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Gets the snapshot of the given descriptors, reading them only if they have changed since the last call.
+     * @param rootURI URI of the archive
+     * @param persistenceXMLPath the path of the persistence.xml file
+     * @param ormXMLPath the path of the orm.xml file (may be null)
+     * @return the snapshot of the descriptors
+     * @throws IOException if the descriptors can't be read
+     */
+    public PersistenceDescriptorSnapshot track(URI rootURI, URI persistenceXMLPath, URI ormXMLPath) throws IOException {
+        String key = rootURI + "|" + persistenceXMLPath + "|" + ormXMLPath;
+        List<Long> stamps = stamps(persistenceXMLPath, ormXMLPath);
+
+        PersistenceDescriptorSnapshot previous;
+        synchronized (snapshots) {
+            previous = snapshots.get(key);
+        }
+        if (previous != null && stamps != null && stamps.equals(previous.getStamps())) {
+            return previous;
+        }
+
+        String digest = PersistenceDescriptorDigest.digest(rootURI, persistenceXMLPath, ormXMLPath);
+        PersistenceDescriptorSnapshot snapshot;
+        if (previous != null && previous.getDigest().equals(digest)) {
+            // touched but not modified
+            snapshot = new PersistenceDescriptorSnapshot(stamps, digest, previous.getUnits(), previous.getOrmClasses());
+        } else {
+            if (previous != null) {
+                LOGGER.log(Level.FINE, "Persistence descriptor {0} has changed", persistenceXMLPath);
+            }
+            Set<String> ormClasses = Collections.emptySet();
+            if (ormXMLPath != null) {
+                ormClasses = persistenceDescriptorReader.readOrmXML(ormXMLPath);
+            }
+            snapshot = new PersistenceDescriptorSnapshot(stamps, digest, persistenceDescriptorReader.readPersistenceUnits(persistenceXMLPath), ormClasses);
+        }
+        synchronized (snapshots) {
+            snapshots.put(key, snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return the number of tracked descriptors
+     */
+    public int size() {
+        synchronized (snapshots) {
+            return snapshots.size();
+        }
+    }
+
+    /**
+     * Gets the size and the last modified time of the files holding the given descriptors.
+     * @param persistenceXMLPath the path of the persistence.xml file
+     * @param ormXMLPath the path of the orm.xml file (may be null)
+     * @return the stamps or null if a descriptor is not in a regular file
+     */
+    protected static List<Long> stamps(URI persistenceXMLPath, URI ormXMLPath) {
+        List<Long> stamps = new ArrayList<Long>(4);
+        for (URI descriptor : new URI[] {persistenceXMLPath, ormXMLPath}) {
+            if (descriptor == null) {
+                stamps.add(-1L);
+                stamps.add(-1L);
+                continue;
+            }
+            File file = toFile(descriptor);
+            if (file == null) {
+                return null;
+            }
+            stamps.add(file.length());
+            stamps.add(file.lastModified());
+        }
+        return stamps;
+    }
+
+    /**
+     * @param descriptor the URI of a descriptor
+     * @return the file of the descriptor, or of the jar containing it, or null if it is not a regular file
+     */
+    private static File toFile(URI descriptor) {
+        URI fileURI = descriptor;
+        if ("jar".equals(descriptor.getScheme())) {
+            String path = descriptor.getRawSchemeSpecificPart();
+            int separator = path.indexOf(JAR_SEPARATOR);
+            if (separator == -1) {
+                return null;
+            }
+            try {
+                fileURI = new URI(path.substring(0, separator));
+            } catch (URISyntaxException e) {
+                return null;
+            }
+        }
+        return LibraryDescriptorIndex.toFile(fileURI);
+    }
+
+}
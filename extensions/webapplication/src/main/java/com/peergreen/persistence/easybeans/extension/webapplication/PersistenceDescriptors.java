@@ -0,0 +1,65 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import java.net.URI;
+
+/**
+ * Location of the persistence descriptors found in an archive.
+ * @author Florent Benoit
+ */
+public class PersistenceDescriptors {
+
+    /**
+     * Archive without any descriptor.
+     */
+    public static final PersistenceDescriptors NONE = new PersistenceDescriptors(null, null);
+
+    private final URI persistenceXMLPath;
+
+    private final URI ormXMLPath;
+
+    public PersistenceDescriptors(URI persistenceXMLPath, URI ormXMLPath) {
+        this.persistenceXMLPath = persistenceXMLPath;
+        this.ormXMLPath = ormXMLPath;
+    }
+
+    /**
+     * @return the path of the persistence.xml file or null if there is none
+     */
+    public URI getPersistenceXMLPath() {
+        return persistenceXMLPath;
+    }
+
+    /**
+     * @return the path of the orm.xml file or null if there is none
+     */
+    public URI getOrmXMLPath() {
+        return ormXMLPath;
+    }
+
+    /**
+     * @return true if there is a persistence.xml file
+     */
+    public boolean hasPersistenceXML() {
+        return persistenceXMLPath != null;
+    }
+
+    @Override
+    public String toString() {
+        return "PersistenceDescriptors[persistence=" + persistenceXMLPath + ", orm=" + ormXMLPath + "]";
+    }
+}
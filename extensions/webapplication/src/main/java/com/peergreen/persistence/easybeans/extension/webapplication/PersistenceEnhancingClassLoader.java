@@ -0,0 +1,66 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import java.net.URL;
+
+import javax.persistence.spi.ClassTransformer;
+
+import org.ow2.easybeans.loader.EasyBeansClassLoader;
+
+/**
+ * EasyBeans classloader that only enhances the classes managed by the persistence units.
+ * All the classes are still defined by this classloader so that entities and the classes using them share the same
+ * definitions, but the transformers of the persistence providers are skipped for the other classes.
+ * This classloader is registered as parallel capable: classes are loaded with a lock per class name only if
+ * EasyBeansClassLoader and its super classes are registered too. Otherwise the JDK keeps the lock of the classloader,
+ * as the state of EasyBeansClassLoader is not guarded against concurrent loads.
+ * @author Florent Benoit
+ */
+public class PersistenceEnhancingClassLoader extends EasyBeansClassLoader {
+
+    static {
+        // ignored by the JDK if the super classes are not parallel capable
+        registerAsParallelCapable();
+    }
+
+    private final ManagedClassFilter managedClassFilter;
+
+    private final EnhancedClassCache enhancedClassCache;
+
+    public PersistenceEnhancingClassLoader(URL[] urls, ClassLoader parent) {
+        this(urls, parent, new EnhancedClassCache());
+    }
+
+    public PersistenceEnhancingClassLoader(URL[] urls, ClassLoader parent, EnhancedClassCache enhancedClassCache) {
+        super(urls, parent);
+        this.managedClassFilter = new ManagedClassFilter();
+        this.enhancedClassCache = enhancedClassCache;
+    }
+
+    /**
+     * @return the filter used to select the classes to transform
+     */
+    public ManagedClassFilter getManagedClassFilter() {
+        return managedClassFilter;
+    }
+
+    @Override
+    public void addTransformer(ClassTransformer transformer) {
+        super.addTransformer(new ManagedClassTransformer(transformer, managedClassFilter, enhancedClassCache));
+    }
+
+}
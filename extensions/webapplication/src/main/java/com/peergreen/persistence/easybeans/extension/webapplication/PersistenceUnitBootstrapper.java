@@ -0,0 +1,156 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.ow2.easybeans.persistence.EZBPersistenceUnitManager;
+
+import com.peergreen.deployment.ProcessorException;
+
+/**
+ * Bootstraps the entity manager factories of the persistence units of a web application according to their
+ * {@link PersistenceUnitStartupPolicy}.
+ * The policy of a unit is given by its {@link PersistenceUnitStartupPolicy#UNIT_PROPERTY} property, else by the system
+ * property of the web application, else by the global system property. Default is
+ * {@link PersistenceUnitStartupPolicy#EAGER_SERIAL}: the units are bootstrapped one after the other during the deployment.
+ * @author Florent Benoit
+ */
+public class PersistenceUnitBootstrapper {
+
+    /**
+     * Pool of the component running the parallel bootstraps.
+     */
+    private final ParallelTasks parallelTasks;
+
+    public PersistenceUnitBootstrapper(ParallelTasks parallelTasks) {
+        this.parallelTasks = parallelTasks;
+    }
+
+    /**
+     * Gets the policy of the units of a web application that don't define their own policy.
+     * @param rootURI the URI of the web application
+     * @return the default policy of the application
+     */
+    public static PersistenceUnitStartupPolicy getApplicationPolicy(URI rootURI) {
+        PersistenceUnitStartupPolicy globalPolicy = PersistenceUnitStartupPolicy.parse(System.getProperty(PersistenceUnitStartupPolicy.SYSTEM_PROPERTY), PersistenceUnitStartupPolicy.EAGER_SERIAL);
+        String applicationName = getApplicationName(rootURI);
+        if (applicationName == null) {
+            return globalPolicy;
+        }
+        return PersistenceUnitStartupPolicy.parse(System.getProperty(PersistenceUnitStartupPolicy.SYSTEM_PROPERTY + "." + applicationName), globalPolicy);
+    }
+
+    /**
+     * @param rootURI the URI of the web application
+     * @return the file name of the archive without its extension
+     */
+    static String getApplicationName(URI rootURI) {
+        if (rootURI == null || rootURI.getPath() == null) {
+            return null;
+        }
+        String path = rootURI.getPath();
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        return name.isEmpty() ? null : name;
+    }
+
+    /**
+     * Bootstraps the units whose policy is eager.
+     * @param persistenceUnitManager the manager of the units
+     * @param units the units of the web application
+     * @param applicationPolicy the policy of the units that don't define one
+     * @throws ProcessorException if a factory can't be bootstrapped
+     */
+    public void bootstrap(EZBPersistenceUnitManager persistenceUnitManager, List<PersistenceUnitDescriptor> units, PersistenceUnitStartupPolicy applicationPolicy) throws ProcessorException {
+        List<UnitBootstrap> parallelBootstraps = new ArrayList<UnitBootstrap>();
+        for (PersistenceUnitDescriptor unit : units) {
+            PersistenceUnitStartupPolicy policy = PersistenceUnitStartupPolicy.parse(unit.getProperties().get(PersistenceUnitStartupPolicy.UNIT_PROPERTY), applicationPolicy);
+            switch (policy) {
+                case EAGER_SERIAL:
+                    bootstrap(persistenceUnitManager, unit.getName());
+                    break;
+                case EAGER_PARALLEL:
+                    parallelBootstraps.add(new UnitBootstrap(persistenceUnitManager, unit.getName()));
+                    break;
+                case LAZY:
+                default:
+                    // started by the first getEntityManagerFactory call
+                    break;
+            }
+        }
+        parallelTasks.invokeInOrder(parallelBootstraps);
+    }
+
+    /**
+     * Bootstraps the factory of a unit. An entity manager is created as some providers only deploy the unit at this time.
+     * @param persistenceUnitManager the manager of the unit
+     * @param unitName the name of the unit
+     * @throws ProcessorException if the factory can't be bootstrapped
+     */
+    protected void bootstrap(EZBPersistenceUnitManager persistenceUnitManager, String unitName) throws ProcessorException {
+        EntityManagerFactory entityManagerFactory;
+        try {
+            entityManagerFactory = persistenceUnitManager.getEntityManagerFactory(unitName);
+            if (entityManagerFactory == null) {
+                return;
+            }
+            EntityManager entityManager = entityManagerFactory.createEntityManager();
+            entityManager.close();
+        } catch (RuntimeException e) {
+            throw new ProcessorException(String.format("Unable to bootstrap the persistence unit '%s'", unitName), e);
+        }
+    }
+
+
+    /**
+     * Bootstrap of a unit done by the bootstrap threads.
+     */
+    private class UnitBootstrap implements Callable<Void> {
+
+        private final EZBPersistenceUnitManager persistenceUnitManager;
+        private final String unitName;
+
+        public UnitBootstrap(EZBPersistenceUnitManager persistenceUnitManager, String unitName) {
+            this.persistenceUnitManager = persistenceUnitManager;
+            this.unitName = unitName;
+        }
+
+        @Override
+        public Void call() throws ProcessorException {
+            bootstrap(persistenceUnitManager, unitName);
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return "UnitBootstrap[" + unitName + "]";
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Data of a persistence unit read from a persistence.xml file.
+ * @author Florent Benoit
+ */
+public class PersistenceUnitDescriptor {
+
+    private final String name;
+
+    private final List<String> classNames;
+
+    private final List<String> mappingFiles;
+
+    private final Map<String, String> properties;
+
+    public PersistenceUnitDescriptor(String name, List<String> classNames, List<String> mappingFiles, Map<String, String> properties) {
+        this.name = name;
+        this.classNames = Collections.unmodifiableList(classNames);
+        this.mappingFiles = Collections.unmodifiableList(mappingFiles);
+        this.properties = Collections.unmodifiableMap(properties);
+    }
+
+    /**
+     * @return the name of the unit
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the classes listed by the unit
+     */
+    public List<String> getClassNames() {
+        return classNames;
+    }
+
+    /**
+     * @return the mapping files referenced by the unit
+     */
+    public List<String> getMappingFiles() {
+        return mappingFiles;
+    }
+
+    /**
+     * @return the properties of the unit
+     */
+    public Map<String, String> getProperties() {
+        return properties;
+    }
+
+    @Override
+    public String toString() {
+        return "PersistenceUnitDescriptor[name=" + name + "]";
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ow2.easybeans.persistence.EZBPersistenceUnitManager;
+
+/**
+ * Collects the persistence unit managers found in a web application and its libraries and builds, once all of them are
+ * known, a {@link CompositePersistenceUnitManager} giving their units: the managers are never merged into each other.
+ * The units of the descriptors are declared before their managers are analyzed so that a unit defined twice is reported
+ * instead of being replaced. The units already given by the manager of the artifact are checked too.
+ * Managers shared with other deployments are never added: their units would be closed with the units of the built manager.
+ * @author Florent Benoit
+ */
+public class PersistenceUnitManagerBuilder {
+
+    /**
+     * Manager already attached to the artifact (may be null).
+     */
+    private final EZBPersistenceUnitManager existingPersistenceUnitManager;
+
+    /**
+     * Managers to combine, in the order they were added.
+     */
+    private final List<EZBPersistenceUnitManager> persistenceUnitManagers;
+
+    /**
+     * Descriptor of each added manager.
+     */
+    private final List<URI> sources;
+
+    /**
+     * Index of the added managers so that a manager is never added twice.
+     */
+    private final Set<EZBPersistenceUnitManager> added;
+
+    /**
+     * Units declared by each descriptor.
+     */
+    private final Map<URI, List<String>> declaredUnits;
+
+    /**
+     * Descriptor defining each unit, including the units of the existing manager.
+     */
+    private final Map<String, URI> unitSources;
+
+    public PersistenceUnitManagerBuilder(EZBPersistenceUnitManager existingPersistenceUnitManager) {
+        this.existingPersistenceUnitManager = existingPersistenceUnitManager;
+        this.persistenceUnitManagers = new ArrayList<EZBPersistenceUnitManager>();
+        this.sources = new ArrayList<URI>();
+        this.added = Collections.newSetFromMap(new IdentityHashMap<EZBPersistenceUnitManager, Boolean>());
+        this.declaredUnits = new HashMap<URI, List<String>>();
+        this.unitSources = new HashMap<String, URI>();
+        if (existingPersistenceUnitManager instanceof CompositePersistenceUnitManager) {
+            unitSources.putAll(((CompositePersistenceUnitManager) existingPersistenceUnitManager).getUnitSources());
+        }
+        if (existingPersistenceUnitManager != null) {
+            added.add(existingPersistenceUnitManager);
+        }
+    }
+
+    /**
+     * Declares the units of a persistence.xml file whose manager will be added.
+     * A unit may be declared again by the file defining it in the existing manager (new deployment of the same web
+     * application).
+     * @param source the persistence.xml file
+     * @param unitNames the names of its units
+     * @return this builder
+     * @throws IllegalStateException if a unit is already defined by another file or by the existing manager
+     */
+    public PersistenceUnitManagerBuilder declareUnits(URI source, Collection<String> unitNames) {
+        List<String> names = new ArrayList<String>(new LinkedHashSet<String>(unitNames));
+        for (String unitName : names) {
+            URI previous = unitSources.get(unitName);
+            if (previous != null && !previous.equals(source)) {
+                throw new IllegalStateException(String.format("Persistence unit '%s' is defined by both %s and %s", unitName, previous, source));
+            }
+            if (previous == null && isDefinedByExistingManager(unitName)) {
+                throw new IllegalStateException(String.format("Persistence unit '%s' of %s is already defined by the persistence unit manager of the artifact", unitName, source));
+            }
+            unitSources.put(unitName, source);
+        }
+        declaredUnits.put(source, names);
+        return this;
+    }
+
+    /**
+     * @param unitName the name of a unit that is not in the index
+     * @return true if a manager of the artifact whose units are not known gives this unit
+     */
+    private boolean isDefinedByExistingManager(String unitName) {
+        List<EZBPersistenceUnitManager> unindexedManagers;
+        if (existingPersistenceUnitManager instanceof CompositePersistenceUnitManager) {
+            unindexedManagers = ((CompositePersistenceUnitManager) existingPersistenceUnitManager).getUnindexedPersistenceUnitManagers();
+        } else if (existingPersistenceUnitManager != null) {
+            unindexedManagers = Collections.singletonList(existingPersistenceUnitManager);
+        } else {
+            return false;
+        }
+        for (EZBPersistenceUnitManager unindexedManager : unindexedManagers) {
+            if (CompositePersistenceUnitManager.definesUnit(unindexedManager, unitName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds a persistence unit manager.
+     * @param source the persistence.xml file analyzed by the manager
+     * @param persistenceUnitManager the manager to add (ignored if null or already added)
+     * @return this builder
+     */
+    public PersistenceUnitManagerBuilder add(URI source, EZBPersistenceUnitManager persistenceUnitManager) {
+        if (persistenceUnitManager != null && added.add(persistenceUnitManager)) {
+            persistenceUnitManagers.add(persistenceUnitManager);
+            sources.add(source);
+        }
+        return this;
+    }
+
+    /**
+     * @return the number of managers that have been added (without the existing one)
+     */
+    public int size() {
+        return persistenceUnitManagers.size();
+    }
+
+    /**
+     * @return the number of managers whose units have been combined with the units of the first manager
+     */
+    public int getMergeCount() {
+        if (persistenceUnitManagers.isEmpty()) {
+            return 0;
+        }
+        return existingPersistenceUnitManager == null ? persistenceUnitManagers.size() - 1 : persistenceUnitManagers.size();
+    }
+
+    /**
+     * Builds the manager giving the units of the existing manager and of the added ones. The units of the existing
+     * manager whose file has been declared again are replaced. This method is expected to be called once.
+     * @return the manager with all the units, the existing one if nothing has been added or null if there is none
+     */
+    public EZBPersistenceUnitManager build() {
+        if (persistenceUnitManagers.isEmpty()) {
+            return existingPersistenceUnitManager;
+        }
+        CompositePersistenceUnitManager persistenceUnitManager = new CompositePersistenceUnitManager();
+        if (existingPersistenceUnitManager instanceof CompositePersistenceUnitManager) {
+            CompositePersistenceUnitManager existing = (CompositePersistenceUnitManager) existingPersistenceUnitManager;
+            for (Map.Entry<String, URI> unitSource : existing.getUnitSources().entrySet()) {
+                if (!declaredUnits.containsKey(unitSource.getValue())) {
+                    persistenceUnitManager.add(unitSource.getValue(), Collections.singletonList(unitSource.getKey()), existing.getIndexedPersistenceUnitManager(unitSource.getKey()));
+                }
+            }
+            for (EZBPersistenceUnitManager unindexedManager : existing.getUnindexedPersistenceUnitManagers()) {
+                persistenceUnitManager.addUnindexed(unindexedManager);
+            }
+        } else if (existingPersistenceUnitManager != null) {
+            persistenceUnitManager.addUnindexed(existingPersistenceUnitManager);
+        }
+        for (int i = 0; i < persistenceUnitManagers.size(); i++) {
+            List<String> unitNames = declaredUnits.get(sources.get(i));
+            if (unitNames == null) {
+                persistenceUnitManager.addUnindexed(persistenceUnitManagers.get(i));
+            } else {
+                persistenceUnitManager.add(sources.get(i), unitNames, persistenceUnitManagers.get(i));
+            }
+        }
+        return persistenceUnitManager;
+    }
+
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import java.lang.ref.WeakReference;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.ow2.easybeans.persistence.EZBPersistenceUnitManager;
+
+/**
+ * LRU cache of the analyzed persistence unit managers.
+ * Entries are keyed by the digest of the descriptors, the URI of the archive and the classloader used to load the entities
+ * as an analyzed persistence unit manager is bound to its classloader.
+ * Both the classloader and the persistence unit manager are weakly referenced so that the cache never keeps an undeployed
+ * application in memory.
+ * @author Florent Benoit
+ */
+public class PersistenceUnitManagerCache {
+
+    /**
+     * System property giving the maximum number of entries of the cache (0 disables the cache).
+     */
+    public static final String SIZE_PROPERTY = "com.peergreen.persistence.easybeans.webapplication.cache.size";
+
+    private static final int DEFAULT_SIZE = 256;
+
+    private final Map<Key, WeakReference<EZBPersistenceUnitManager>> entries;
+
+    private final int maxSize;
+
+    public PersistenceUnitManagerCache() {
+        this(Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE).intValue());
+    }
+
+    public PersistenceUnitManagerCache(final int maxSize) {
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<Key, WeakReference<EZBPersistenceUnitManager>>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, WeakReference<EZBPersistenceUnitManager>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return true if the cache is enabled
+     */
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * Gets the persistence unit manager previously analyzed for the given descriptors.
+     * @param classLoader the classloader used to load Entities
+     * @param rootURI URI of the archive
+     * @param digest the digest of the descriptors
+     * @return the cached persistence unit manager or null if there is none
+     */
+    public synchronized EZBPersistenceUnitManager get(ClassLoader classLoader, URI rootURI, String digest) {
+        Key key = new Key(classLoader, rootURI, digest);
+        WeakReference<EZBPersistenceUnitManager> reference = entries.get(key);
+        if (reference == null) {
+            return null;
+        }
+        EZBPersistenceUnitManager persistenceUnitManager = reference.get();
+        if (persistenceUnitManager == null || key.classLoader.get() == null) {
+            entries.remove(key);
+            return null;
+        }
+        return persistenceUnitManager;
+    }
+
+    /**
+     * Adds the persistence unit manager analyzed for the given descriptors.
+     * @param classLoader the classloader used to load Entities
+     * @param rootURI URI of the archive
+     * @param digest the digest of the descriptors
+     * @param persistenceUnitManager the analyzed persistence unit manager
+     */
+    public synchronized void put(ClassLoader classLoader, URI rootURI, String digest, EZBPersistenceUnitManager persistenceUnitManager) {
+        if (!isEnabled()) {
+            return;
+        }
+        entries.put(new Key(classLoader, rootURI, digest), new WeakReference<EZBPersistenceUnitManager>(persistenceUnitManager));
+    }
+
+    /**
+     * Removes the given persistence unit manager from the cache.
+     * @param persistenceUnitManager the persistence unit manager that has been modified
+     */
+    public synchronized void remove(EZBPersistenceUnitManager persistenceUnitManager) {
+        Iterator<WeakReference<EZBPersistenceUnitManager>> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            EZBPersistenceUnitManager cachedPersistenceUnitManager = iterator.next().get();
+            if (cachedPersistenceUnitManager == null || cachedPersistenceUnitManager == persistenceUnitManager) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the number of entries in the cache
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+
+    /**
+     * Key of an entry: classloader (by identity), archive URI and digest.
+     */
+    private static final class Key {
+
+        private final WeakReference<ClassLoader> classLoader;
+        private final int classLoaderHash;
+        private final URI rootURI;
+        private final String digest;
+
+        public Key(ClassLoader classLoader, URI rootURI, String digest) {
+            this.classLoader = new WeakReference<ClassLoader>(classLoader);
+            this.classLoaderHash = System.identityHashCode(classLoader);
+            this.rootURI = rootURI;
+            this.digest = digest;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = classLoaderHash;
+            result = 31 * result + (rootURI == null ? 0 : rootURI.hashCode());
+            result = 31 * result + digest.hashCode();
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (this == object) {
+                return true;
+            }
+            if (!(object instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) object;
+            ClassLoader thisClassLoader = classLoader.get();
+            return thisClassLoader != null
+                    && thisClassLoader == other.classLoader.get()
+                    && digest.equals(other.digest)
+                    && (rootURI == null ? other.rootURI == null : rootURI.equals(other.rootURI));
+        }
+    }
+
+}
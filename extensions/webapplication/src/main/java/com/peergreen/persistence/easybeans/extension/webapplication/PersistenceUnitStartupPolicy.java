@@ -0,0 +1,70 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import java.util.Locale;
+
+/**
+ * Defines when the entity manager factory of a persistence unit is bootstrapped.
+ * @author Florent Benoit
+ */
+public enum PersistenceUnitStartupPolicy {
+
+    /**
+     * The deployment doesn't bootstrap the factory: it is started on the first call to getEntityManagerFactory (fast
+     * deployment).
+     */
+    LAZY,
+
+    /**
+     * The factories are created during the deployment, one after the other (default).
+     */
+    EAGER_SERIAL,
+
+    /**
+     * The factories are created during the deployment, on a pool of threads.
+     */
+    EAGER_PARALLEL;
+
+    /**
+     * Name of the persistence unit property (persistence.xml) giving the policy of a unit.
+     */
+    public static final String UNIT_PROPERTY = "com.peergreen.persistence.startup";
+
+    /**
+     * System property giving the default policy. It can be suffixed by the name of a web application (file name of the
+     * archive without extension) to give the policy of all the units of this application.
+     */
+    public static final String SYSTEM_PROPERTY = "com.peergreen.persistence.easybeans.startup";
+
+    /**
+     * Parses a policy.
+     * @param value the value (lazy, eager-serial or eager-parallel, case insensitive)
+     * @param defaultPolicy the policy used if the value is null or unknown
+     * @return the policy
+     */
+    public static PersistenceUnitStartupPolicy parse(String value, PersistenceUnitStartupPolicy defaultPolicy) {
+        if (value == null) {
+            return defaultPolicy;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase(Locale.ENGLISH).replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            return defaultPolicy;
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ow2.easybeans.persistence.EZBPersistenceUnitManager;
+
+import com.peergreen.persistence.easybeans.registry.PersistenceUnitRegistry;
+import com.peergreen.persistence.easybeans.registry.SharedPersistenceUnitManagers;
+
+/**
+ * Shared persistence units used by a web application, added on the artifact so that they are released when the web
+ * application is undeployed.
+ * The web application is the owner of a reference to each shared manager in the {@link PersistenceUnitRegistry}: it is
+ * released when the web application is undeployed or when a new deployment of the web application (with a new
+ * classloader) no longer uses it.
+ * @author Florent Benoit
+ */
+public class SharedPersistenceUnitReferences {
+
+    private final ClassLoader owner;
+
+    private final Map<SharedPersistenceUnits, EZBPersistenceUnitManager> persistenceUnitManagers;
+
+    /**
+     * @param owner the classloader of the web application, owner of the references
+     * @param persistenceUnitManagers the manager of each shared units, acquired by the owner
+     */
+    public SharedPersistenceUnitReferences(ClassLoader owner, Map<SharedPersistenceUnits, EZBPersistenceUnitManager> persistenceUnitManagers) {
+        this.owner = owner;
+        this.persistenceUnitManagers = Collections.unmodifiableMap(new LinkedHashMap<SharedPersistenceUnits, EZBPersistenceUnitManager>(persistenceUnitManagers));
+    }
+
+    /**
+     * @return the classloader of the web application, owner of the references
+     */
+    public ClassLoader getOwner() {
+        return owner;
+    }
+
+    /**
+     * @return the shared units
+     */
+    public List<SharedPersistenceUnits> getSharedUnits() {
+        return new ArrayList<SharedPersistenceUnits>(persistenceUnitManagers.keySet());
+    }
+
+    /**
+     * @return the shared manager of each unit, used to inject the shared units
+     */
+    public SharedPersistenceUnitManagers getSharedPersistenceUnitManagers() {
+        Map<String, EZBPersistenceUnitManager> unitManagers = new LinkedHashMap<String, EZBPersistenceUnitManager>();
+        for (Map.Entry<SharedPersistenceUnits, EZBPersistenceUnitManager> entry : persistenceUnitManagers.entrySet()) {
+            for (String unitName : entry.getKey().getUnitNames()) {
+                unitManagers.put(unitName, entry.getValue());
+            }
+        }
+        return new SharedPersistenceUnitManagers(unitManagers);
+    }
+
+    /**
+     * @param owner the owner of a reference
+     * @param sharedUnits shared units
+     * @return true if these references include the reference of the given owner to the given units
+     */
+    private boolean holds(ClassLoader owner, SharedPersistenceUnits sharedUnits) {
+        return this.owner == owner && persistenceUnitManagers.containsKey(sharedUnits);
+    }
+
+    /**
+     * Releases the references that are not held by the references of the next deployment of the web application. Units
+     * used by both deployments are acquired by the next deployment before being released by the previous one, so they
+     * are never closed in between.
+     * @param persistenceUnitRegistry the registry of the shared units
+     * @param next the references of the next deployment
+     */
+    public void releaseReplaced(PersistenceUnitRegistry persistenceUnitRegistry, SharedPersistenceUnitReferences next) {
+        for (SharedPersistenceUnits sharedUnits : persistenceUnitManagers.keySet()) {
+            if (!next.holds(owner, sharedUnits)) {
+                persistenceUnitRegistry.release(sharedUnits.getDefiningClassLoader(), sharedUnits.getFingerprint(), owner);
+            }
+        }
+    }
+
+    /**
+     * Releases all the references, when the web application is undeployed.
+     * @param persistenceUnitRegistry the registry of the shared units
+     */
+    public void release(PersistenceUnitRegistry persistenceUnitRegistry) {
+        for (SharedPersistenceUnits sharedUnits : persistenceUnitManagers.keySet()) {
+            persistenceUnitRegistry.release(sharedUnits.getDefiningClassLoader(), sharedUnits.getFingerprint(), owner);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SharedPersistenceUnitReferences[owner=" + owner + ", units=" + persistenceUnitManagers.keySet() + "]";
+    }
+}
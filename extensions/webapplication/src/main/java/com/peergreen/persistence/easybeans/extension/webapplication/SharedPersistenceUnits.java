@@ -0,0 +1,227 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Persistence units of a persistence.xml file that can be shared with other deployments: all their managed classes
+ * are defined by the same classloader, which is not the classloader of the web application (for example a library
+ * installed in a parent classloader).
+ * Sharing is enabled for all the units with the {@link #SYSTEM_PROPERTY} system property or for a unit with the
+ * {@link #UNIT_PROPERTY} property.
+ * @author Florent Benoit
+ */
+public class SharedPersistenceUnits {
+
+    /**
+     * Name of the persistence unit property (persistence.xml) enabling or disabling the sharing of a unit.
+     */
+    public static final String UNIT_PROPERTY = "com.peergreen.persistence.shared";
+
+    /**
+     * System property enabling the sharing of the units that don't define the {@link #UNIT_PROPERTY} property.
+     */
+    public static final String SYSTEM_PROPERTY = "com.peergreen.persistence.easybeans.shared";
+
+    private static final String JAR_PREFIX = "jar:";
+
+    private static final String JAR_SEPARATOR = "!/";
+
+    private static final String PERSISTENCE_XML = "META-INF/persistence.xml";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ClassLoader definingClassLoader;
+
+    private final String fingerprint;
+
+    private final List<String> unitNames;
+
+    public SharedPersistenceUnits(ClassLoader definingClassLoader, String fingerprint) {
+        this(definingClassLoader, fingerprint, Collections.<String>emptyList());
+    }
+
+    public SharedPersistenceUnits(ClassLoader definingClassLoader, String fingerprint, List<String> unitNames) {
+        this.definingClassLoader = definingClassLoader;
+        this.fingerprint = fingerprint;
+        this.unitNames = unitNames;
+    }
+
+    /**
+     * @return the classloader defining the managed classes of the units
+     */
+    public ClassLoader getDefiningClassLoader() {
+        return definingClassLoader;
+    }
+
+    /**
+     * @return the fingerprint of the descriptors (content and location of the descriptors, managed classes and their
+     *         location)
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return the names of the units
+     */
+    public List<String> getUnitNames() {
+        return unitNames;
+    }
+
+    /**
+     * Checks if the units of the given descriptors can be shared.
+     * @param descriptors the descriptors
+     * @param snapshot the content of the descriptors
+     * @param managedClasses the classes of the units (listed classes and classes of the mapping files)
+     * @param classLoader the classloader of the web application
+     * @return the shared units or null if they can't be shared
+     */
+    public static SharedPersistenceUnits locate(PersistenceDescriptors descriptors, PersistenceDescriptorSnapshot snapshot, Set<String> managedClasses, ClassLoader classLoader) {
+        if (!isEnabled(snapshot.getUnits())) {
+            return null;
+        }
+
+        Set<String> classNames = new TreeSet<String>(managedClasses);
+        // classes found by scanning the archive can't be checked
+        if (classNames.isEmpty()) {
+            return null;
+        }
+
+        MessageDigest messageDigest = PersistenceDescriptorDigest.newMessageDigest();
+        try {
+            messageDigest.update(PersistenceDescriptorDigest.contentDigest(descriptors.getPersistenceXMLPath(), descriptors.getOrmXMLPath()).getBytes(UTF_8));
+            // the units are analyzed against the library holding the descriptors
+            messageDigest.update(descriptors.getPersistenceXMLPath().toString().getBytes(UTF_8));
+            messageDigest.update((byte) 0);
+            if (descriptors.getOrmXMLPath() != null) {
+                messageDigest.update(descriptors.getOrmXMLPath().toString().getBytes(UTF_8));
+            }
+            messageDigest.update((byte) 0);
+        } catch (IOException e) {
+            return null;
+        }
+
+        ClassLoader definingClassLoader = null;
+        for (String className : classNames) {
+            String resourceName = className.replace('.', '/').concat(".class");
+            URL url = classLoader.getResource(resourceName);
+            if (url == null) {
+                return null;
+            }
+            ClassLoader owner = getOwner(classLoader, resourceName, url);
+            if (owner == null || (definingClassLoader != null && definingClassLoader != owner)) {
+                return null;
+            }
+            definingClassLoader = owner;
+            messageDigest.update(className.getBytes(UTF_8));
+            messageDigest.update((byte) 0);
+            messageDigest.update(url.toString().getBytes(UTF_8));
+            messageDigest.update((byte) 0);
+        }
+        List<String> unitNames = new ArrayList<String>();
+        for (PersistenceUnitDescriptor unit : snapshot.getUnits()) {
+            unitNames.add(unit.getName());
+        }
+        return new SharedPersistenceUnits(definingClassLoader, PersistenceDescriptorDigest.toHex(messageDigest.digest()), unitNames);
+    }
+
+    /**
+     * Gets the root of the library holding the given persistence.xml file: the archive of a jar: URI or the directory
+     * containing META-INF.
+     * @param persistenceXMLPath the persistence.xml file of the library
+     * @return the root of the library
+     */
+    public static URI getLibraryRootURI(URI persistenceXMLPath) {
+        String path = persistenceXMLPath.toString();
+        if (path.startsWith(JAR_PREFIX)) {
+            int separator = path.indexOf(JAR_SEPARATOR);
+            if (separator != -1) {
+                return URI.create(path.substring(JAR_PREFIX.length(), separator));
+            }
+        }
+        if (path.endsWith(PERSISTENCE_XML)) {
+            return URI.create(path.substring(0, path.length() - PERSISTENCE_XML.length()));
+        }
+        return persistenceXMLPath.resolve(".");
+    }
+
+    /**
+     * @param units the units of a persistence.xml file
+     * @return true if all the units can be shared
+     */
+    protected static boolean isEnabled(List<PersistenceUnitDescriptor> units) {
+        boolean enabledByDefault = Boolean.getBoolean(SYSTEM_PROPERTY);
+        for (PersistenceUnitDescriptor unit : units) {
+            String value = unit.getProperties().get(UNIT_PROPERTY);
+            boolean enabled = value == null ? enabledByDefault : Boolean.parseBoolean(value.trim());
+            if (!enabled) {
+                return false;
+            }
+        }
+        return !units.isEmpty();
+    }
+
+    /**
+     * Gets the ancestor of the classloader that provides the given resource: the farthest parent giving the same
+     * resource. With a parent-first delegation, it is the classloader defining the class.
+     * @param classLoader the classloader of the web application
+     * @param resourceName the name of the class file
+     * @param url the resource found by the classloader of the web application
+     * @return the ancestor or null if the resource is provided by the web application itself
+     */
+    protected static ClassLoader getOwner(ClassLoader classLoader, String resourceName, URL url) {
+        ClassLoader owner = null;
+        for (ClassLoader parent = classLoader.getParent(); parent != null; parent = parent.getParent()) {
+            URL parentURL = parent.getResource(resourceName);
+            if (parentURL == null || !url.toString().equals(parentURL.toString())) {
+                break;
+            }
+            owner = parent;
+        }
+        return owner;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (!(object instanceof SharedPersistenceUnits)) {
+            return false;
+        }
+        SharedPersistenceUnits other = (SharedPersistenceUnits) object;
+        return definingClassLoader == other.definingClassLoader && fingerprint.equals(other.fingerprint);
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(definingClassLoader) * 31 + fingerprint.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "SharedPersistenceUnits[fingerprint=" + fingerprint + ", classLoader=" + definingClassLoader + "]";
+    }
+
+}
@@ -0,0 +1,235 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads the persistence descriptors with a StAX parser instead of building a DOM tree.
+ * Only the names of the units and classes are kept while the file is read, so the memory used for a mapping file with
+ * thousands of mappings doesn't depend on the size of the file. The result is the same as the DOM reader.
+ * <p>
+ * This reader is only used for the reads done by this extension (tracking of the descriptors, managed classes and
+ * shared units). EasyBeans still builds its own DOM tree of the persistence.xml and mapping files when it analyzes the
+ * units, so the peak memory of a deployment is reduced, not the parsing done by the analyzer.
+ * @author Florent Benoit
+ */
+public class StreamingPersistenceDescriptorReader extends PersistenceDescriptorReader {
+
+    private final XMLInputFactory xmlInputFactory;
+
+    public StreamingPersistenceDescriptorReader() {
+        this.xmlInputFactory = XMLInputFactory.newInstance();
+        xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_VALIDATING, Boolean.FALSE);
+        xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    @Override
+    public List<PersistenceUnitDescriptor> readPersistenceUnits(InputStream inputStream) throws IOException {
+        List<PersistenceUnitDescriptor> units = new ArrayList<PersistenceUnitDescriptor>();
+        StringBuilder text = new StringBuilder();
+
+        String unitName = null;
+        List<String> classNames = null;
+        List<String> mappingFiles = null;
+        Map<String, String> properties = null;
+
+        XMLStreamReader reader = open(inputStream);
+        try {
+            int depth = 0;
+            // depth of the element whose text is collected (0 if none) and the list receiving it
+            int textDepth = 0;
+            List<String> textValues = null;
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        depth++;
+                        String name = reader.getLocalName();
+                        if ("persistence-unit".equals(name)) {
+                            unitName = attribute(reader, "name");
+                            classNames = new ArrayList<String>();
+                            mappingFiles = new ArrayList<String>();
+                            properties = new LinkedHashMap<String, String>();
+                        } else if (classNames != null && textDepth == 0) {
+                            if ("class".equals(name)) {
+                                textDepth = depth;
+                                textValues = classNames;
+                            } else if ("mapping-file".equals(name)) {
+                                textDepth = depth;
+                                textValues = mappingFiles;
+                            } else if ("property".equals(name)) {
+                                properties.put(attribute(reader, "name"), attribute(reader, "value"));
+                            }
+                        }
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        if (textDepth != 0) {
+                            text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (depth == textDepth) {
+                            addText(text, textValues);
+                            textDepth = 0;
+                        } else if (classNames != null && "persistence-unit".equals(reader.getLocalName())) {
+                            units.add(new PersistenceUnitDescriptor(unitName, classNames, mappingFiles, properties));
+                            classNames = null;
+                        }
+                        depth--;
+                        break;
+                    case XMLStreamConstants.DTD:
+                        throw new XMLStreamException("DOCTYPE is not allowed in a persistence descriptor", reader.getLocation());
+                    default:
+                        break;
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Unable to parse persistence descriptor", e);
+        } finally {
+            close(reader, inputStream);
+        }
+        return units;
+    }
+
+    @Override
+    public Set<String> readOrmXML(InputStream inputStream) throws IOException {
+        // the DOM reader gives the entities, then the mapped superclasses and then the embeddables
+        List<List<String>> classNamesByElement = new ArrayList<List<String>>(ORM_CLASS_ELEMENTS.length);
+        for (int i = 0; i < ORM_CLASS_ELEMENTS.length; i++) {
+            classNamesByElement.add(new ArrayList<String>());
+        }
+        StringBuilder text = new StringBuilder();
+        String packageName = null;
+
+        XMLStreamReader reader = open(inputStream);
+        try {
+            int depth = 0;
+            // depth of the package element while its text is collected
+            int textDepth = 0;
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        depth++;
+                        String name = reader.getLocalName();
+                        if ("package".equals(name)) {
+                            if (packageName == null && textDepth == 0) {
+                                textDepth = depth;
+                            }
+                            break;
+                        }
+                        for (int i = 0; i < ORM_CLASS_ELEMENTS.length; i++) {
+                            if (ORM_CLASS_ELEMENTS[i].equals(name)) {
+                                String className = attribute(reader, "class").trim();
+                                if (!className.isEmpty()) {
+                                    classNamesByElement.get(i).add(className);
+                                }
+                                break;
+                            }
+                        }
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        if (textDepth != 0) {
+                            text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (depth == textDepth) {
+                            packageName = text.toString().trim();
+                            textDepth = 0;
+                        }
+                        depth--;
+                        break;
+                    case XMLStreamConstants.DTD:
+                        throw new XMLStreamException("DOCTYPE is not allowed in a persistence descriptor", reader.getLocation());
+                    default:
+                        break;
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Unable to parse persistence descriptor", e);
+        } finally {
+            close(reader, inputStream);
+        }
+
+        // unqualified names are relative to the package element, wherever it is
+        Set<String> classNames = new LinkedHashSet<String>();
+        for (List<String> names : classNamesByElement) {
+            for (String className : names) {
+                classNames.add(qualify(packageName, className));
+            }
+        }
+        return classNames;
+    }
+
+    private XMLStreamReader open(InputStream inputStream) throws IOException {
+        try {
+            synchronized (xmlInputFactory) {
+                return xmlInputFactory.createXMLStreamReader(inputStream);
+            }
+        } catch (XMLStreamException e) {
+            inputStream.close();
+            throw new IOException("Unable to parse persistence descriptor", e);
+        }
+    }
+
+    private static void close(XMLStreamReader reader, InputStream inputStream) throws IOException {
+        try {
+            reader.close();
+        } catch (XMLStreamException e) {
+            // input stream is closed below
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * @return the value of the attribute or an empty string if it is not defined, like {@link org.w3c.dom.Element#getAttribute(String)}
+     */
+    private static String attribute(XMLStreamReader reader, String name) {
+        String value = reader.getAttributeValue(null, name);
+        if (value == null) {
+            return "";
+        }
+        return value;
+    }
+
+    private static void addText(StringBuilder text, List<String> values) {
+        String value = text.toString().trim();
+        text.setLength(0);
+        if (!value.isEmpty()) {
+            values.add(value);
+        }
+    }
+
+}
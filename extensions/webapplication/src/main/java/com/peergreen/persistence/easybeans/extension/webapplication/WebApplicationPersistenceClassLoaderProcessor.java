@@ -15,26 +15,108 @@
  */
 package com.peergreen.persistence.easybeans.extension.webapplication;
 
+import java.io.File;
 import java.net.URL;
 import java.net.URLClassLoader;
 
-import org.ow2.easybeans.loader.EasyBeansClassLoader;
+import org.apache.felix.ipojo.annotations.Invalidate;
+import org.apache.felix.ipojo.annotations.Requires;
+import org.osgi.framework.BundleContext;
+import org.ow2.easybeans.persistence.EZBPersistenceUnitManager;
 
+import com.peergreen.deployment.Artifact;
 import com.peergreen.deployment.ProcessorContext;
 import com.peergreen.deployment.ProcessorException;
+import com.peergreen.deployment.facet.archive.Archive;
 import com.peergreen.deployment.processor.Phase;
 import com.peergreen.deployment.processor.Processor;
+import com.peergreen.persistence.easybeans.metrics.PersistenceMetrics;
+import com.peergreen.persistence.easybeans.metrics.PersistencePhase;
 import com.peergreen.webcontainer.WebApplication;
 
 /**
- * Adds an enhancement classloader once the classloader for webapplication has been defined
+ * Adds an enhancement classloader once the classloader for webapplication has been defined.
+ * The classloader is kept if there is no persistence.xml file in the web application or in its libraries.
+ * Only the classes managed by the persistence units are enhanced by the new classloader.
  * @author Florent Benoit
  */
 @Processor
 @Phase("POST_CLASSLOADER")
 public class WebApplicationPersistenceClassLoaderProcessor {
 
+    /**
+     * Metrics of the processing.
+     */
+    private final PersistenceMetrics persistenceMetrics;
+
+    /**
+     * Threads scanning the libraries of the web applications.
+     */
+    private final ParallelTasks parallelTasks;
+
+    /**
+     * Finds the persistence descriptors of the web application.
+     */
+    private final PersistenceDescriptorScanner persistenceDescriptorScanner;
+
+    /**
+     * Enhanced bytecode shared by the classloaders of all the web applications.
+     */
+    private final EnhancedClassCache enhancedClassCache;
+
+    /**
+     * @param bundleContext the context of the bundle, giving the private storage area of the enhanced bytecode
+     * @param persistenceMetrics the metrics of the processing
+     */
+    public WebApplicationPersistenceClassLoaderProcessor(BundleContext bundleContext, @Requires PersistenceMetrics persistenceMetrics) {
+        this(persistenceMetrics, bundleContext.getDataFile(""));
+    }
+
+    /**
+     * Processor keeping the enhanced bytecode in memory only.
+     * @param persistenceMetrics the metrics of the processing
+     */
+    public WebApplicationPersistenceClassLoaderProcessor(PersistenceMetrics persistenceMetrics) {
+        this(persistenceMetrics, null);
+    }
+
+    /**
+     * @param persistenceMetrics the metrics of the processing
+     * @param storageDirectory the private storage area of the enhanced bytecode (null to keep it in memory only)
+     */
+    protected WebApplicationPersistenceClassLoaderProcessor(PersistenceMetrics persistenceMetrics, File storageDirectory) {
+        this.persistenceMetrics = persistenceMetrics;
+        this.parallelTasks = new ParallelTasks(PersistenceDescriptorScanner.getDefaultScanThreads(), "persistence-library-scan");
+        this.persistenceDescriptorScanner = new PersistenceDescriptorScanner(persistenceMetrics, parallelTasks);
+        this.enhancedClassCache = DiskEnhancedClassCache.create(storageDirectory);
+    }
+
+    /**
+     * Stops the threads scanning the libraries.
+     */
+    @Invalidate
+    public void stop() {
+        parallelTasks.shutdown();
+    }
+
     public void handle(WebApplication webApplication, ProcessorContext processorContext) throws ProcessorException {
+        long start = System.nanoTime();
+
+        // Units may have been provided by another processor, else look for persistence.xml files
+        Artifact artifact = processorContext.getArtifact();
+        Archive archive = artifact.as(Archive.class);
+        if (archive != null && artifact.as(EZBPersistenceUnitManager.class) == null) {
+            WebApplicationPersistenceDescriptors descriptors = persistenceDescriptorScanner.scan(archive, webApplication.getLibraries());
+
+            // keep the result for the analysis of the persistence units
+            processorContext.addFacet(WebApplicationPersistenceDescriptors.class, descriptors);
+
+            if (!descriptors.hasPersistenceXML()) {
+                // No JPA, no need to enhance classes
+                persistenceMetrics.addTime(PersistencePhase.CLASSLOADER, System.nanoTime() - start);
+                return;
+            }
+        }
 
         // Gets the classloader
         ClassLoader classLoader = webApplication.getClassLoader();
@@ -42,13 +124,14 @@ public class WebApplicationPersistenceClassLoaderProcessor {
         ClassLoader newClassLoader = null;
         if (classLoader instanceof URLClassLoader) {
             URL[] urls =  ((URLClassLoader) classLoader).getURLs();
-            newClassLoader = new EasyBeansClassLoader(urls, classLoader.getParent());
+            newClassLoader = new PersistenceEnhancingClassLoader(urls, classLoader.getParent(), enhancedClassCache);
         } else {
-            newClassLoader = new EasyBeansClassLoader(new URL[0], classLoader);
+            newClassLoader = new PersistenceEnhancingClassLoader(new URL[0], classLoader, enhancedClassCache);
         }
 
         // Adds the enhanced classloader
         webApplication.setClassLoader(newClassLoader);
+        persistenceMetrics.addTime(PersistencePhase.CLASSLOADER, System.nanoTime() - start);
     }
 
 }
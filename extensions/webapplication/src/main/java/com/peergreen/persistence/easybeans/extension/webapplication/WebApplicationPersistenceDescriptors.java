@@ -0,0 +1,78 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Persistence descriptors found in a web application and in its libraries.
+ * This facet is computed before the classloader of the web application is replaced and is reused by the analysis
+ * of the persistence units so that archives are not probed twice.
+ * @author Florent Benoit
+ */
+public class WebApplicationPersistenceDescriptors {
+
+    private final URI rootURI;
+
+    private final PersistenceDescriptors webApplicationDescriptors;
+
+    private final List<PersistenceDescriptors> libraryDescriptors;
+
+    public WebApplicationPersistenceDescriptors(URI rootURI, PersistenceDescriptors webApplicationDescriptors, List<PersistenceDescriptors> libraryDescriptors) {
+        this.rootURI = rootURI;
+        this.webApplicationDescriptors = webApplicationDescriptors;
+        this.libraryDescriptors = Collections.unmodifiableList(libraryDescriptors);
+    }
+
+    /**
+     * @return URI of the web application
+     */
+    public URI getRootURI() {
+        return rootURI;
+    }
+
+    /**
+     * @return the descriptors of the web application (WEB-INF/classes)
+     */
+    public PersistenceDescriptors getWebApplicationDescriptors() {
+        return webApplicationDescriptors;
+    }
+
+    /**
+     * @return the descriptors of each library, in the order of the libraries
+     */
+    public List<PersistenceDescriptors> getLibraryDescriptors() {
+        return libraryDescriptors;
+    }
+
+    /**
+     * @return true if the web application or one of its libraries has a persistence.xml file
+     */
+    public boolean hasPersistenceXML() {
+        if (webApplicationDescriptors.hasPersistenceXML()) {
+            return true;
+        }
+        for (PersistenceDescriptors descriptors : libraryDescriptors) {
+            if (descriptors.hasPersistenceXML()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
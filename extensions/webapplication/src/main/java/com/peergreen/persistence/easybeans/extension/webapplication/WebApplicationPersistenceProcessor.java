@@ -15,8 +15,18 @@
  */
 package com.peergreen.persistence.easybeans.extension.webapplication;
 
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
-
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.apache.felix.ipojo.annotations.Invalidate;
 import org.apache.felix.ipojo.annotations.Requires;
 import org.ow2.easybeans.persistence.EZBPersistenceUnitManager;
 import org.ow2.easybeans.persistence.EZBPersistenceXmlAnalyzer;
@@ -26,9 +36,13 @@ import com.peergreen.deployment.Artifact;
 import com.peergreen.deployment.ProcessorContext;
 import com.peergreen.deployment.ProcessorException;
 import com.peergreen.deployment.facet.archive.Archive;
-import com.peergreen.deployment.facet.archive.ArchiveException;
 import com.peergreen.deployment.processor.Phase;
 import com.peergreen.deployment.processor.Processor;
+import com.peergreen.persistence.easybeans.metrics.PersistenceMetrics;
+import com.peergreen.persistence.easybeans.metrics.PersistencePhase;
+import com.peergreen.persistence.easybeans.registry.DefaultPersistenceUnitRegistry;
+import com.peergreen.persistence.easybeans.registry.PersistenceUnitRegistry;
+import com.peergreen.persistence.easybeans.registry.SharedPersistenceUnitManagers;
 import com.peergreen.webcontainer.WebApplication;
 
 /**
@@ -39,19 +53,76 @@ import com.peergreen.webcontainer.WebApplication;
 @Phase("PRE_METADATA")
 public class WebApplicationPersistenceProcessor {
 
-    private static final String ORM_IN_WAR_PATH = "WEB-INF/classes/META-INF/orm.xml" ;
-    private static final String PERSISTENCE_IN_WAR_PATH = "WEB-INF/classes/META-INF/persistence.xml" ;
+   private final EZBPersistenceXmlAnalyzer persistenceXmlAnalyzer;
 
+   /**
+    * Metrics of the processing.
+    */
+   private final PersistenceMetrics persistenceMetrics;
 
-    private static final String ORM_IN_LIBRARY_PATH = "META-INF/orm.xml" ;
-    private static final String PERSISTENCE_IN_LIBRARY_PATH = "META-INF/persistence.xml" ;
+   /**
+    * Persistence units shared with other deployments.
+    */
+   private final PersistenceUnitRegistry persistenceUnitRegistry;
 
+   /**
+    * Threads scanning, analyzing and bootstrapping the libraries of all the deployments.
+    */
+   private final ParallelTasks parallelTasks;
 
-   private final EZBPersistenceXmlAnalyzer persistenceXmlAnalyzer;
+   /**
+    * Finds the descriptors if they were not found before the classloader was replaced.
+    */
+   private final PersistenceDescriptorScanner persistenceDescriptorScanner;
+
+   /**
+    * Persistence unit managers already analyzed.
+    */
+   private final PersistenceUnitManagerCache persistenceUnitManagerCache;
+
+   /**
+    * Reader of the persistence.xml and orm.xml files (DOM or streaming).
+    */
+   private final PersistenceDescriptorReader persistenceDescriptorReader;
+
+   /**
+    * Descriptors read by the previous deployments.
+    */
+   private final PersistenceDescriptorTracker persistenceDescriptorTracker;
+
+   /**
+    * Bootstraps the units according to their startup policy.
+    */
+   private final PersistenceUnitBootstrapper persistenceUnitBootstrapper;
 
 
-   public WebApplicationPersistenceProcessor(@Requires EZBPersistenceXmlAnalyzer persistenceXmlAnalyzer) {
+   public WebApplicationPersistenceProcessor(@Requires EZBPersistenceXmlAnalyzer persistenceXmlAnalyzer, @Requires PersistenceMetrics persistenceMetrics, @Requires PersistenceUnitRegistry persistenceUnitRegistry) {
+       this(persistenceXmlAnalyzer, persistenceMetrics, persistenceUnitRegistry, PersistenceDescriptorScanner.getDefaultScanThreads());
+   }
+
+   protected WebApplicationPersistenceProcessor(EZBPersistenceXmlAnalyzer persistenceXmlAnalyzer, PersistenceMetrics persistenceMetrics, int scanThreads) {
+       this(persistenceXmlAnalyzer, persistenceMetrics, new DefaultPersistenceUnitRegistry(), scanThreads);
+   }
+
+   protected WebApplicationPersistenceProcessor(EZBPersistenceXmlAnalyzer persistenceXmlAnalyzer, PersistenceMetrics persistenceMetrics, PersistenceUnitRegistry persistenceUnitRegistry, int scanThreads) {
        this.persistenceXmlAnalyzer = persistenceXmlAnalyzer;
+       this.persistenceMetrics = persistenceMetrics;
+       this.persistenceUnitRegistry = persistenceUnitRegistry;
+       this.parallelTasks = new ParallelTasks(scanThreads, "persistence-deployment");
+       this.persistenceDescriptorScanner = new PersistenceDescriptorScanner(persistenceMetrics, parallelTasks);
+       this.persistenceUnitManagerCache = new PersistenceUnitManagerCache();
+       this.persistenceDescriptorReader = PersistenceDescriptorReader.newInstance();
+       this.persistenceDescriptorTracker = new PersistenceDescriptorTracker(persistenceDescriptorReader);
+       this.persistenceUnitBootstrapper = new PersistenceUnitBootstrapper(parallelTasks);
+   }
+
+
+   /**
+    * Stops the threads of the deployments.
+    */
+   @Invalidate
+   public void stop() {
+       parallelTasks.shutdown();
    }
 
 
@@ -65,97 +136,401 @@ public class WebApplicationPersistenceProcessor {
 
         Artifact artifact = processorContext.getArtifact();
 
-        Archive archive = artifact.as(Archive.class);
         EZBPersistenceUnitManager existingPersistenceUnitManager = artifact.as(EZBPersistenceUnitManager.class);
 
-        URI rootURI;
-        try {
-            rootURI = archive.getURI();
-        } catch (ArchiveException e) {
-            throw new ProcessorException("Unable to get the root URI", e);
+        // Reuse the descriptors found before the classloader was replaced
+        WebApplicationPersistenceDescriptors descriptors = artifact.as(WebApplicationPersistenceDescriptors.class);
+        if (descriptors == null) {
+            descriptors = persistenceDescriptorScanner.scan(artifact.as(Archive.class), webApplication.getLibraries());
         }
 
+        URI rootURI = descriptors.getRootURI();
         ClassLoader classLoader = webApplication.getClassLoader();
 
+        // Descriptors of each persistence.xml file, only the changed ones are read again (null if a file can't be read, the analyzer will report it)
+        Map<PersistenceDescriptors, PersistenceDescriptorSnapshot> snapshots = trackDescriptors(descriptors);
+        // Classes of each persistence.xml file, the mapping files are read once for the enhancement and the shared units
+        Map<PersistenceDescriptors, Set<String>> managedClasses = readManagedClasses(snapshots, classLoader);
+
+        // Tells the classloader which classes have to be enhanced, before the persistence providers are loading them
+        if (classLoader instanceof PersistenceEnhancingClassLoader) {
+            registerManagedClasses(snapshots, managedClasses, (PersistenceEnhancingClassLoader) classLoader);
+        }
+
+        // Shared units are kept out of the manager of the web application, whose units are closed when it is undeployed
+        Map<PersistenceDescriptors, SharedPersistenceUnits> sharedUnits = locateSharedUnits(descriptors, snapshots, managedClasses, classLoader);
+
+        // Collects the units of the web application and of its libraries
+        PersistenceUnitManagerBuilder persistenceUnitManagerBuilder = new PersistenceUnitManagerBuilder(existingPersistenceUnitManager);
+        declareUnits(persistenceUnitManagerBuilder, snapshots);
+        // The analyzed managers are never modified: the built manager gives each unit from the manager defining it
+        PersistenceDescriptors webApplicationDescriptors = descriptors.getWebApplicationDescriptors();
+        persistenceUnitManagerBuilder.add(webApplicationDescriptors.getPersistenceXMLPath(), analyzePersistenceManager(rootURI, webApplicationDescriptors.getPersistenceXMLPath(), webApplicationDescriptors.getOrmXMLPath(), classLoader, getDigest(snapshots, webApplicationDescriptors)));
+
+        // analyze (possibly in parallel) the libraries with a persistence.xml file and then add in the order of the libraries
+        List<DescriptorAnalysis> analyses = new ArrayList<DescriptorAnalysis>();
+        for (PersistenceDescriptors libraryDescriptors : descriptors.getLibraryDescriptors()) {
+            if (libraryDescriptors.hasPersistenceXML()) {
+                analyses.add(new DescriptorAnalysis(rootURI, libraryDescriptors, getDigest(snapshots, libraryDescriptors), classLoader, sharedUnits.get(libraryDescriptors)));
+            }
+        }
+        List<EZBPersistenceUnitManager> libraryPersistenceUnitManagers = parallelTasks.invokeInOrder(analyses);
+        Map<SharedPersistenceUnits, EZBPersistenceUnitManager> sharedPersistenceUnitManagers = new LinkedHashMap<SharedPersistenceUnits, EZBPersistenceUnitManager>();
+        for (int i = 0; i < analyses.size(); i++) {
+            DescriptorAnalysis analysis = analyses.get(i);
+            if (!analysis.isShared()) {
+                persistenceUnitManagerBuilder.add(analysis.getPersistenceXMLPath(), libraryPersistenceUnitManagers.get(i));
+            } else if (libraryPersistenceUnitManagers.get(i) != null) {
+                sharedPersistenceUnitManagers.put(analysis.getSharedUnits(), libraryPersistenceUnitManagers.get(i));
+            }
+        }
+        updateReferences(processorContext, classLoader, sharedPersistenceUnitManagers);
+
+        long mergeStart = System.nanoTime();
+        EZBPersistenceUnitManager newPersistenceUnitManager = persistenceUnitManagerBuilder.build();
+        persistenceMetrics.addTime(PersistencePhase.MERGE, System.nanoTime() - mergeStart);
+        persistenceMetrics.addManagersMerged(persistenceUnitManagerBuilder.getMergeCount());
+        if (newPersistenceUnitManager != null) {
+            processorContext.addFacet(EZBPersistenceUnitManager.class, newPersistenceUnitManager);
+        }
+
+        // Creates the factories of the eager units now instead of on the first request
+        if (snapshots != null) {
+            bootstrapUnits(rootURI, snapshots, sharedUnits, newPersistenceUnitManager, sharedPersistenceUnitManagers);
+        }
+
+    }
+
+
+    /**
+     * Bootstraps the eager units, each one with the manager giving it to the web application.
+     * @param rootURI the URI of the web application
+     * @param snapshots the snapshot of each persistence.xml file
+     * @param sharedUnits the shared units of the library descriptors
+     * @param persistenceUnitManager the manager of the web application (may be null)
+     * @param sharedPersistenceUnitManagers the manager of each shared units
+     * @throws ProcessorException if a factory can't be bootstrapped
+     */
+    protected void bootstrapUnits(URI rootURI, Map<PersistenceDescriptors, PersistenceDescriptorSnapshot> snapshots, Map<PersistenceDescriptors, SharedPersistenceUnits> sharedUnits, EZBPersistenceUnitManager persistenceUnitManager, Map<SharedPersistenceUnits, EZBPersistenceUnitManager> sharedPersistenceUnitManagers) throws ProcessorException {
+        PersistenceUnitStartupPolicy applicationPolicy = PersistenceUnitBootstrapper.getApplicationPolicy(rootURI);
+        List<PersistenceUnitDescriptor> units = new ArrayList<PersistenceUnitDescriptor>();
+        for (Map.Entry<PersistenceDescriptors, PersistenceDescriptorSnapshot> snapshot : snapshots.entrySet()) {
+            SharedPersistenceUnits shared = sharedUnits.get(snapshot.getKey());
+            if (shared == null) {
+                units.addAll(snapshot.getValue().getUnits());
+            } else if (sharedPersistenceUnitManagers.containsKey(shared)) {
+                persistenceUnitBootstrapper.bootstrap(sharedPersistenceUnitManagers.get(shared), snapshot.getValue().getUnits(), applicationPolicy);
+            }
+        }
+        if (persistenceUnitManager != null) {
+            persistenceUnitBootstrapper.bootstrap(persistenceUnitManager, units, applicationPolicy);
+        }
+    }
+
+
+    /**
+     * Declares the units of each persistence.xml file so that a unit name defined twice in the web application, by two
+     * files or by a file and the existing manager of the artifact, is reported before the managers are analyzed.
+     * @param persistenceUnitManagerBuilder the builder combining the managers
+     * @param snapshots the snapshot of each persistence.xml file or null if they can't be read
+     * @throws ProcessorException if a unit is defined twice
+     */
+    protected void declareUnits(PersistenceUnitManagerBuilder persistenceUnitManagerBuilder, Map<PersistenceDescriptors, PersistenceDescriptorSnapshot> snapshots) throws ProcessorException {
+        if (snapshots == null) {
+            return;
+        }
+        for (Map.Entry<PersistenceDescriptors, PersistenceDescriptorSnapshot> snapshot : snapshots.entrySet()) {
+            List<String> unitNames = new ArrayList<String>();
+            for (PersistenceUnitDescriptor unit : snapshot.getValue().getUnits()) {
+                unitNames.add(unit.getName());
+            }
+            try {
+                persistenceUnitManagerBuilder.declareUnits(snapshot.getKey().getPersistenceXMLPath(), unitNames);
+            } catch (IllegalStateException e) {
+                throw new ProcessorException(e.getMessage(), e);
+            }
+        }
+    }
+
+
+    /**
+     * Gets the descriptors of the persistence.xml files of the web application and of its libraries.
+     * @param descriptors the descriptors of the web application
+     * @return the snapshot of each persistence.xml file, in the order of the libraries, or null if a file can't be read
+     */
+    protected Map<PersistenceDescriptors, PersistenceDescriptorSnapshot> trackDescriptors(WebApplicationPersistenceDescriptors descriptors) {
+        List<PersistenceDescriptors> allDescriptors = new ArrayList<PersistenceDescriptors>();
+        allDescriptors.add(descriptors.getWebApplicationDescriptors());
+        allDescriptors.addAll(descriptors.getLibraryDescriptors());
+
+        Map<PersistenceDescriptors, PersistenceDescriptorSnapshot> snapshots = new LinkedHashMap<PersistenceDescriptors, PersistenceDescriptorSnapshot>();
+        try {
+            for (PersistenceDescriptors persistenceDescriptors : allDescriptors) {
+                if (persistenceDescriptors.hasPersistenceXML()) {
+                    snapshots.put(persistenceDescriptors, persistenceDescriptorTracker.track(descriptors.getRootURI(), persistenceDescriptors.getPersistenceXMLPath(), persistenceDescriptors.getOrmXMLPath()));
+                }
+            }
+        } catch (IOException e) {
+            // Invalid descriptors are reported by the analyzer
+            return null;
+        }
+        return snapshots;
+    }
+
 
-        URI persistenceXMLPath = null;
+    /**
+     * Gets the classes of each persistence.xml file: the classes listed by its units, the classes of the mapping files
+     * referenced by its units and the classes of the orm.xml file next to it.
+     * @param snapshots the snapshot of each persistence.xml file or null if they can't be read
+     * @param classLoader the classloader used to find the mapping files
+     * @return the classes of each persistence.xml file or null if a mapping file can't be read
+     */
+    protected Map<PersistenceDescriptors, Set<String>> readManagedClasses(Map<PersistenceDescriptors, PersistenceDescriptorSnapshot> snapshots, ClassLoader classLoader) {
+        if (snapshots == null || classLoader == null) {
+            return null;
+        }
+        Map<PersistenceDescriptors, Set<String>> managedClasses = new LinkedHashMap<PersistenceDescriptors, Set<String>>();
         try {
-            persistenceXMLPath = archive.getResource(PERSISTENCE_IN_WAR_PATH);
-        } catch (ArchiveException e) {
-            throw new ProcessorException(String.format("Unable to check if entry %s is available",  PERSISTENCE_IN_WAR_PATH), e);
+            for (Map.Entry<PersistenceDescriptors, PersistenceDescriptorSnapshot> snapshot : snapshots.entrySet()) {
+                Set<String> classNames = new LinkedHashSet<String>(persistenceDescriptorReader.getManagedClasses(snapshot.getValue().getUnits(), classLoader));
+                classNames.addAll(snapshot.getValue().getOrmClasses());
+                managedClasses.put(snapshot.getKey(), classNames);
+            }
+        } catch (IOException e) {
+            // Invalid descriptors are reported by the analyzer
+            return null;
         }
+        return managedClasses;
+    }
 
 
-        URI ormXMLPath = null;
+    /**
+     * Adds the classes listed in the persistence descriptors to the classes enhanced by the given classloader and gives
+     * the digest of the descriptors used to cache the enhanced classes.
+     * If a descriptor can't be read, all the classes will be enhanced.
+     * @param snapshots the snapshot of each persistence.xml file or null if they can't be read
+     * @param managedClasses the classes of each persistence.xml file or null if they can't be read
+     * @param classLoader the enhancing classloader
+     */
+    protected void registerManagedClasses(Map<PersistenceDescriptors, PersistenceDescriptorSnapshot> snapshots, Map<PersistenceDescriptors, Set<String>> managedClasses, PersistenceEnhancingClassLoader classLoader) {
+        ManagedClassFilter managedClassFilter = classLoader.getManagedClassFilter();
+        if (snapshots == null || managedClasses == null) {
+            managedClassFilter.setUnrestricted();
+            return;
+        }
+        StringBuilder digests = new StringBuilder();
+        for (PersistenceDescriptorSnapshot snapshot : snapshots.values()) {
+            digests.append(snapshot.getDigest());
+        }
+        for (Set<String> classNames : managedClasses.values()) {
+            managedClassFilter.addDeclaredClasses(classNames);
+        }
         try {
-            ormXMLPath = archive.getResource(ORM_IN_WAR_PATH);
-        } catch (ArchiveException e) {
-            throw new ProcessorException(String.format("Unable to check if entry %s is available",  ORM_IN_WAR_PATH), e);
+            managedClassFilter.setDescriptorsDigest(PersistenceDescriptorDigest.digest(digests.toString().getBytes("UTF-8")));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported", e);
         }
+    }
 
-        EZBPersistenceUnitManager newPersistenceUnitManager = addPersistenceManager(existingPersistenceUnitManager, rootURI, persistenceXMLPath, ormXMLPath, classLoader);
 
-        // check for persistence in the libraries of the web application
-        if (webApplication.getLibraries() != null) {
-            for (Archive library : webApplication.getLibraries()) {
-                URI uriPersistenceInLibrary;
-                try {
-                    uriPersistenceInLibrary = library.getResource(PERSISTENCE_IN_LIBRARY_PATH);
-                } catch (ArchiveException e) {
-                    throw new ProcessorException(String.format("Unable to check if entry %s is available",  PERSISTENCE_IN_LIBRARY_PATH), e);
-                }
+    /**
+     * Finds the library units that can be shared with other deployments.
+     * @param descriptors the descriptors of the web application
+     * @param snapshots the snapshot of each persistence.xml file or null if they can't be read
+     * @param managedClasses the classes of each persistence.xml file or null if they can't be read
+     * @param classLoader the classloader of the web application
+     * @return the shared units of the library descriptors
+     */
+    protected Map<PersistenceDescriptors, SharedPersistenceUnits> locateSharedUnits(WebApplicationPersistenceDescriptors descriptors, Map<PersistenceDescriptors, PersistenceDescriptorSnapshot> snapshots, Map<PersistenceDescriptors, Set<String>> managedClasses, ClassLoader classLoader) {
+        Map<PersistenceDescriptors, SharedPersistenceUnits> sharedUnits = new LinkedHashMap<PersistenceDescriptors, SharedPersistenceUnits>();
+        if (snapshots == null || managedClasses == null || classLoader == null) {
+            return sharedUnits;
+        }
+
+        for (PersistenceDescriptors libraryDescriptors : descriptors.getLibraryDescriptors()) {
+            PersistenceDescriptorSnapshot snapshot = snapshots.get(libraryDescriptors);
+            if (snapshot == null) {
+                continue;
+            }
+            SharedPersistenceUnits shared = SharedPersistenceUnits.locate(libraryDescriptors, snapshot, managedClasses.get(libraryDescriptors), classLoader);
+            if (shared != null) {
+                sharedUnits.put(libraryDescriptors, shared);
+            }
+        }
+        return sharedUnits;
+    }
+
+
+    /**
+     * Records the shared units used by the web application on the artifact, so that they are injected from their own
+     * manager and released when the web application is undeployed. The units of the previous deployment that are no
+     * longer used are released.
+     * @param processorContext the context used to add facets
+     * @param classLoader the classloader of the web application, owner of the references
+     * @param sharedPersistenceUnitManagers the manager of each shared units acquired by this deployment
+     */
+    protected void updateReferences(ProcessorContext processorContext, ClassLoader classLoader, Map<SharedPersistenceUnits, EZBPersistenceUnitManager> sharedPersistenceUnitManagers) {
+        SharedPersistenceUnitReferences previousReferences = processorContext.getArtifact().as(SharedPersistenceUnitReferences.class);
+        if (sharedPersistenceUnitManagers.isEmpty() && previousReferences == null) {
+            return;
+        }
+        SharedPersistenceUnitReferences references = new SharedPersistenceUnitReferences(classLoader, sharedPersistenceUnitManagers);
+        if (previousReferences != null) {
+            previousReferences.releaseReplaced(persistenceUnitRegistry, references);
+        }
+        processorContext.addFacet(SharedPersistenceUnitReferences.class, references);
+        processorContext.addFacet(SharedPersistenceUnitManagers.class, references.getSharedPersistenceUnitManagers());
+    }
 
-                URI uriORMInLibrary;
-                try {
-                    uriORMInLibrary = library.getResource(ORM_IN_LIBRARY_PATH);
-                } catch (ArchiveException e) {
-                    throw new ProcessorException(String.format("Unable to check if entry %s is available",  ORM_IN_LIBRARY_PATH), e);
+
+    /**
+     * Gets the shared manager of the given descriptors, analyzing them if they are not yet shared by another deployment.
+     * The units are analyzed against their own library, whatever the web application using them first.
+     * @param descriptors the descriptors of the library
+     * @param sharedUnits the key of the shared manager
+     * @param classLoader the classloader of the web application, owner of the reference to the shared manager
+     * @return the shared manager
+     * @throws ProcessorException if the analysis fails
+     */
+    protected EZBPersistenceUnitManager acquireSharedPersistenceManager(final PersistenceDescriptors descriptors, final SharedPersistenceUnits sharedUnits, ClassLoader classLoader) throws ProcessorException {
+        try {
+            return persistenceUnitRegistry.acquire(sharedUnits.getDefiningClassLoader(), sharedUnits.getFingerprint(), sharedUnits.getUnitNames(), classLoader, new Callable<EZBPersistenceUnitManager>() {
+                @Override
+                public EZBPersistenceUnitManager call() throws ProcessorException {
+                    // the shared units are not bound to the web application
+                    URI libraryRootURI = SharedPersistenceUnits.getLibraryRootURI(descriptors.getPersistenceXMLPath());
+                    return analyze(libraryRootURI, descriptors.getPersistenceXMLPath(), descriptors.getOrmXMLPath(), sharedUnits.getDefiningClassLoader());
                 }
+            });
+        } catch (ProcessorException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ProcessorException("Unable to get the shared persistence unit manager", e);
+        }
+    }
 
-                // merge
-                newPersistenceUnitManager = addPersistenceManager(existingPersistenceUnitManager, rootURI, uriPersistenceInLibrary, uriORMInLibrary, classLoader);
-            }
+
+    /**
+     * @param snapshots the snapshot of each persistence.xml file or null if they can't be read
+     * @param descriptors the descriptors of the web application or of a library
+     * @return the digest of the descriptors or null if there is none
+     */
+    private static String getDigest(Map<PersistenceDescriptors, PersistenceDescriptorSnapshot> snapshots, PersistenceDescriptors descriptors) {
+        if (snapshots == null) {
+            return null;
+        }
+        PersistenceDescriptorSnapshot snapshot = snapshots.get(descriptors);
+        if (snapshot == null) {
+            return null;
         }
+        return snapshot.getDigest();
+    }
 
-        if (newPersistenceUnitManager != null) {
-            processorContext.addFacet(EZBPersistenceUnitManager.class, newPersistenceUnitManager);
+
+    /**
+     * Builds the PersistenceUnitManager for the given persistence.xml file.
+     * @param rootURI URI of the archive
+     * @param persistenceXMLPath the path of the persistence.xml file
+     * @param ormXMLPath the path of the orm.xml file
+     * @param classLoader the classloader used to load Entities
+     * @param digest the digest of the descriptors given by their snapshot or null if they can't be read
+     * @return the built persistence unit manager or null if there is no persistence.xml file
+     * @throws ProcessorException if the analysis fails
+     */
+    protected EZBPersistenceUnitManager analyzePersistenceManager(URI rootURI, URI persistenceXMLPath, URI ormXMLPath, ClassLoader classLoader, String digest) throws ProcessorException {
+        if (persistenceXMLPath == null) {
+            return null;
         }
 
+        // The analyzed units are bound to the classloader of the entities: the analysis is only skipped when the
+        // artifact is handled again with the same classloader. A redeploy creates a new classloader and analyzes all
+        // the units again, only the reading of the unchanged descriptors is skipped (by the tracker).
+        boolean cacheable = digest != null && persistenceUnitManagerCache.isEnabled();
+        if (cacheable) {
+            EZBPersistenceUnitManager cachedPersistenceUnitManager = persistenceUnitManagerCache.get(classLoader, rootURI, digest);
+            if (cachedPersistenceUnitManager != null) {
+                return cachedPersistenceUnitManager;
+            }
+        }
 
+        EZBPersistenceUnitManager persistenceUnitManager = analyze(rootURI, persistenceXMLPath, ormXMLPath, classLoader);
+        if (cacheable && persistenceUnitManager != null) {
+            persistenceUnitManagerCache.put(classLoader, rootURI, digest, persistenceUnitManager);
+        }
+        return persistenceUnitManager;
     }
 
 
     /**
-     * Gets the PersistenceUnitManager by merging with existing unit manager if any.
-     * @param existingPersistenceUnitManager the previous entity manager
+     * Analyzes the given persistence.xml file.
      * @param rootURI URI of the archive
      * @param persistenceXMLPath the path of the persistence.xml file
      * @param ormXMLPath the path of the orm.xml file
      * @param classLoader the classloader used to load Entities
      * @return the built persistence unit manager
-     * @throws ProcessorException
+     * @throws ProcessorException if the analysis fails
      */
-    protected EZBPersistenceUnitManager addPersistenceManager(EZBPersistenceUnitManager existingPersistenceUnitManager, URI rootURI, URI persistenceXMLPath, URI ormXMLPath, ClassLoader classLoader) throws ProcessorException {
+    protected EZBPersistenceUnitManager analyze(URI rootURI, URI persistenceXMLPath, URI ormXMLPath, ClassLoader classLoader) throws ProcessorException {
+        EZBPersistenceUnitManager persistenceUnitManager;
+        long start = System.nanoTime();
+        try {
+            persistenceUnitManager = persistenceXmlAnalyzer.analyzePersistenceXmlFile(rootURI, persistenceXMLPath, ormXMLPath, classLoader);
+        } catch (PersistenceXmlAnalyzerException e) {
+            throw new ProcessorException("Unable to build persistence unit manager", e);
+        } finally {
+            persistenceMetrics.addTime(PersistencePhase.DESCRIPTOR_PARSING, System.nanoTime() - start);
+        }
+        persistenceMetrics.addDescriptorsParsed(1);
+        return persistenceUnitManager;
+    }
 
-        EZBPersistenceUnitManager newPersistenceUnitManager = null;
 
-        if (persistenceXMLPath != null) {
-            try {
-                newPersistenceUnitManager = persistenceXmlAnalyzer.analyzePersistenceXmlFile(rootURI, persistenceXMLPath, ormXMLPath, classLoader);
-            } catch (PersistenceXmlAnalyzerException e) {
-                throw new ProcessorException("Unable to build persistence unit manager", e);
-            }
+    /**
+     * Analysis of the descriptors of a library done by the analysis threads.
+     */
+    private class DescriptorAnalysis implements Callable<EZBPersistenceUnitManager> {
+
+        private final URI rootURI;
+        private final PersistenceDescriptors descriptors;
+        private final String digest;
+        private final ClassLoader classLoader;
+        private final SharedPersistenceUnits sharedUnits;
+
+        public DescriptorAnalysis(URI rootURI, PersistenceDescriptors descriptors, String digest, ClassLoader classLoader, SharedPersistenceUnits sharedUnits) {
+            this.rootURI = rootURI;
+            this.descriptors = descriptors;
+            this.digest = digest;
+            this.classLoader = classLoader;
+            this.sharedUnits = sharedUnits;
         }
 
-        // merge before replacing
-        if (existingPersistenceUnitManager != null) {
-            if (newPersistenceUnitManager != null) {
-                existingPersistenceUnitManager.merge(newPersistenceUnitManager);
+        /**
+         * @return true if the manager is shared with other deployments
+         */
+        public boolean isShared() {
+            return sharedUnits != null;
+        }
+
+        public SharedPersistenceUnits getSharedUnits() {
+            return sharedUnits;
+        }
+
+        public URI getPersistenceXMLPath() {
+            return descriptors.getPersistenceXMLPath();
+        }
+
+        @Override
+        public EZBPersistenceUnitManager call() throws ProcessorException {
+            if (sharedUnits != null) {
+                return acquireSharedPersistenceManager(descriptors, sharedUnits, classLoader);
             }
-            return existingPersistenceUnitManager;
+            return analyzePersistenceManager(rootURI, descriptors.getPersistenceXMLPath(), descriptors.getOrmXMLPath(), classLoader, digest);
         }
-        return newPersistenceUnitManager;
-    }
 
+        @Override
+        public String toString() {
+            return "DescriptorAnalysis[" + descriptors + "]";
+        }
+    }
 
 }
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import org.apache.felix.ipojo.annotations.Requires;
+
+import com.peergreen.deployment.ProcessorContext;
+import com.peergreen.deployment.ProcessorException;
+import com.peergreen.deployment.processor.Phase;
+import com.peergreen.deployment.processor.Processor;
+import com.peergreen.persistence.easybeans.registry.PersistenceUnitRegistry;
+import com.peergreen.webcontainer.WebApplication;
+
+/**
+ * Releases the shared persistence units used by a web application when it is undeployed, so that the factories of the
+ * units are closed once no deployment is using them.
+ * @author Florent Benoit
+ */
+@Processor
+@Phase("UNDEPLOY")
+public class WebApplicationPersistenceUndeployProcessor {
+
+    /**
+     * Persistence units shared with other deployments.
+     */
+    private final PersistenceUnitRegistry persistenceUnitRegistry;
+
+    public WebApplicationPersistenceUndeployProcessor(@Requires PersistenceUnitRegistry persistenceUnitRegistry) {
+        this.persistenceUnitRegistry = persistenceUnitRegistry;
+    }
+
+    public void handle(WebApplication webApplication, ProcessorContext processorContext) throws ProcessorException {
+        SharedPersistenceUnitReferences references = processorContext.getArtifact().as(SharedPersistenceUnitReferences.class);
+        if (references == null) {
+            return;
+        }
+        references.release(persistenceUnitRegistry);
+    }
+
+}
@@ -0,0 +1,421 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ow2.easybeans.persistence.EZBPersistenceUnitManager;
+import org.ow2.easybeans.persistence.EZBPersistenceXmlAnalyzer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.peergreen.deployment.Artifact;
+import com.peergreen.deployment.ProcessorContext;
+import com.peergreen.deployment.facet.archive.Archive;
+import com.peergreen.persistence.easybeans.metrics.DefaultPersistenceMetrics;
+import com.peergreen.persistence.easybeans.registry.SharedPersistenceUnitManagers;
+import com.peergreen.webcontainer.WebApplication;
+
+/**
+ * Stress test of the persistence processors deploying many web applications at the same time: each web application has
+ * its own units, the units of its own library and the units of a library shared by all of them.
+ * @author Florent Benoit
+ */
+public class TestConcurrentDeployment {
+
+    private static final int APPLICATIONS = 48;
+
+    private static final int THREADS = 16;
+
+    private static final String SHARED_CLASS = "com.example.SharedEntity";
+
+    private static final String SHARED_UNIT = "shared";
+
+    private URLClassLoader sharedClassLoader;
+
+    private File sharedLibrary;
+
+    private List<File> applications;
+
+    private List<File> libraries;
+
+    /**
+     * Number of analyses of each persistence.xml file.
+     */
+    private ConcurrentMap<URI, AtomicInteger> analyses;
+
+    /**
+     * Concurrent accesses detected on the persistence unit managers.
+     */
+    private ConcurrentLinkedQueue<String> races;
+
+    private DefaultPersistenceMetrics persistenceMetrics;
+
+    private WebApplicationPersistenceClassLoaderProcessor classLoaderProcessor;
+
+    private WebApplicationPersistenceProcessor persistenceProcessor;
+
+    @BeforeMethod
+    public void init() throws IOException {
+        File sharedClasses = directory("shared-classes");
+        write(new File(sharedClasses, SHARED_CLASS.replace('.', '/') + ".class"), SHARED_CLASS);
+        sharedClassLoader = new URLClassLoader(new URL[] {sharedClasses.toURI().toURL()}, null);
+
+        sharedLibrary = directory("shared-library");
+        writePersistenceXML(new File(sharedLibrary, PersistenceDescriptorScanner.PERSISTENCE_IN_LIBRARY_PATH), SHARED_UNIT, SHARED_CLASS);
+
+        applications = new ArrayList<File>();
+        libraries = new ArrayList<File>();
+        for (int i = 0; i < APPLICATIONS; i++) {
+            File application = directory("application-" + i);
+            writePersistenceXML(new File(application, PersistenceDescriptorScanner.PERSISTENCE_IN_WAR_PATH), "application-" + i, null);
+            applications.add(application);
+            File library = directory("library-" + i);
+            writePersistenceXML(new File(library, PersistenceDescriptorScanner.PERSISTENCE_IN_LIBRARY_PATH), "library-" + i, null);
+            libraries.add(library);
+        }
+
+        analyses = new ConcurrentHashMap<URI, AtomicInteger>();
+        races = new ConcurrentLinkedQueue<String>();
+        persistenceMetrics = new DefaultPersistenceMetrics();
+        classLoaderProcessor = new WebApplicationPersistenceClassLoaderProcessor(persistenceMetrics);
+        persistenceProcessor = new WebApplicationPersistenceProcessor(analyzer(), persistenceMetrics, 4);
+    }
+
+    @AfterMethod
+    public void close() throws IOException {
+        classLoaderProcessor.stop();
+        persistenceProcessor.stop();
+        sharedClassLoader.close();
+    }
+
+    @Test
+    public void testConcurrentDeployments() throws Exception {
+        List<Deployment> deployments = deployAll();
+
+        for (int i = 0; i < APPLICATIONS; i++) {
+            assertEquals(deployments.get(i).getUnits(), Arrays.asList("application-" + i, "library-" + i, SHARED_UNIT));
+        }
+        assertEquals(getAnalyses(new File(sharedLibrary, PersistenceDescriptorScanner.PERSISTENCE_IN_LIBRARY_PATH)), 1);
+        assertEquals(persistenceMetrics.getDescriptorsParsed(), 2L * APPLICATIONS + 1);
+        assertTrue(races.isEmpty(), races.toString());
+    }
+
+    @Test
+    public void testConcurrentRedeployments() throws Exception {
+        List<Deployment> deployments = deployAll();
+
+        // half of the web applications are changed
+        for (int i = 0; i < APPLICATIONS; i += 2) {
+            File persistenceXML = new File(applications.get(i), PersistenceDescriptorScanner.PERSISTENCE_IN_WAR_PATH);
+            writePersistenceXML(persistenceXML, "application-" + i + "-changed", null);
+            persistenceXML.setLastModified(persistenceXML.lastModified() + 2000);
+        }
+        List<Deployment> redeployments = deployAll();
+
+        for (int i = 0; i < APPLICATIONS; i++) {
+            String applicationUnit = i % 2 == 0 ? "application-" + i + "-changed" : "application-" + i;
+            assertEquals(redeployments.get(i).getUnits(), Arrays.asList(applicationUnit, "library-" + i, SHARED_UNIT));
+        }
+        // the first deployments are still referencing the shared units
+        assertEquals(deployments.size(), APPLICATIONS);
+        assertEquals(getAnalyses(new File(sharedLibrary, PersistenceDescriptorScanner.PERSISTENCE_IN_LIBRARY_PATH)), 1);
+        assertTrue(races.isEmpty(), races.toString());
+    }
+
+    /**
+     * Runs all the web applications through both processors, all of them starting at the same time.
+     * @return the deployments, in the order of the web applications
+     */
+    private List<Deployment> deployAll() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Deployment> deployments = new ArrayList<Deployment>();
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        ExecutorService executorService = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (int i = 0; i < APPLICATIONS; i++) {
+                final Deployment deployment = new Deployment(sharedClassLoader, applications.get(i), libraries.get(i), sharedLibrary);
+                deployments.add(deployment);
+                futures.add(executorService.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        classLoaderProcessor.handle(deployment.getWebApplication(), deployment.getProcessorContext());
+                        persistenceProcessor.handle(deployment.getWebApplication(), deployment.getProcessorContext());
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<Void> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+        return deployments;
+    }
+
+    private int getAnalyses(File persistenceXML) {
+        AtomicInteger count = analyses.get(persistenceXML.toURI());
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * @return an analyzer building a manager with the units of the persistence.xml file
+     */
+    private EZBPersistenceXmlAnalyzer analyzer() {
+        return proxy(EZBPersistenceXmlAnalyzer.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (!"analyzePersistenceXmlFile".equals(method.getName())) {
+                    return invokeObjectMethod(proxy, method, args);
+                }
+                URI persistenceXMLPath = (URI) args[1];
+                AtomicInteger count = analyses.get(persistenceXMLPath);
+                if (count == null) {
+                    AtomicInteger newCount = new AtomicInteger();
+                    count = analyses.putIfAbsent(persistenceXMLPath, newCount);
+                    if (count == null) {
+                        count = newCount;
+                    }
+                }
+                count.incrementAndGet();
+                List<String> units = new ArrayList<String>();
+                for (PersistenceUnitDescriptor unit : new PersistenceDescriptorReader().readPersistenceUnits(persistenceXMLPath)) {
+                    units.add(unit.getName());
+                }
+                return new FakePersistenceUnitManager(units).getProxy();
+            }
+        });
+    }
+
+    /**
+     * Artifact, processor context and web application of a deployment.
+     */
+    private static final class Deployment implements InvocationHandler {
+
+        private final Map<Class<?>, Object> facets;
+        private final List<Archive> libraries;
+        private final Artifact artifact;
+        private final ProcessorContext processorContext;
+        private final WebApplication webApplication;
+        private volatile ClassLoader classLoader;
+
+        public Deployment(ClassLoader parentClassLoader, File application, File... libraryDirectories) throws IOException {
+            this.facets = new ConcurrentHashMap<Class<?>, Object>();
+            this.facets.put(Archive.class, archive(application));
+            this.libraries = new ArrayList<Archive>();
+            for (File library : libraryDirectories) {
+                libraries.add(archive(library));
+            }
+            URL classes = new File(application, "WEB-INF/classes").toURI().toURL();
+            this.classLoader = new URLClassLoader(new URL[] {classes}, parentClassLoader);
+            this.artifact = proxy(Artifact.class, this);
+            this.processorContext = proxy(ProcessorContext.class, this);
+            this.webApplication = proxy(WebApplication.class, this);
+        }
+
+        public ProcessorContext getProcessorContext() {
+            return processorContext;
+        }
+
+        public WebApplication getWebApplication() {
+            return webApplication;
+        }
+
+        /**
+         * @return the units of the manager added on the artifact, followed by the shared units
+         */
+        public List<String> getUnits() {
+            List<String> units = new ArrayList<String>();
+            EZBPersistenceUnitManager persistenceUnitManager = (EZBPersistenceUnitManager) facets.get(EZBPersistenceUnitManager.class);
+            if (persistenceUnitManager != null) {
+                for (EZBPersistenceUnitManager unitManager : ((CompositePersistenceUnitManager) persistenceUnitManager).getPersistenceUnitManagers()) {
+                    units.addAll(manager(unitManager).getUnits());
+                }
+            }
+            SharedPersistenceUnitManagers sharedPersistenceUnitManagers = (SharedPersistenceUnitManagers) facets.get(SharedPersistenceUnitManagers.class);
+            if (sharedPersistenceUnitManagers != null) {
+                units.addAll(sharedPersistenceUnitManagers.getPersistenceUnitManagers().keySet());
+            }
+            return units;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "as":
+                    return facets.get(args[0]);
+                case "getArtifact":
+                    return artifact;
+                case "addFacet":
+                    facets.put((Class<?>) args[0], args[1]);
+                    return null;
+                case "getClassLoader":
+                    return classLoader;
+                case "setClassLoader":
+                    classLoader = (ClassLoader) args[0];
+                    return null;
+                case "getLibraries":
+                    return libraries;
+                default:
+                    return invokeObjectMethod(proxy, method, args);
+            }
+        }
+    }
+
+    /**
+     * Manager recording its units and the concurrent merges.
+     */
+    private final class FakePersistenceUnitManager implements InvocationHandler {
+
+        private final List<String> units;
+        private final AtomicBoolean busy;
+        private final EZBPersistenceUnitManager proxy;
+
+        public FakePersistenceUnitManager(List<String> units) {
+            this.units = new ArrayList<String>(units);
+            this.busy = new AtomicBoolean();
+            this.proxy = proxy(EZBPersistenceUnitManager.class, this);
+        }
+
+        public EZBPersistenceUnitManager getProxy() {
+            return proxy;
+        }
+
+        public List<String> getUnits() {
+            return new ArrayList<String>(units);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if ("merge".equals(method.getName())) {
+                FakePersistenceUnitManager other = manager((EZBPersistenceUnitManager) args[0]);
+                if (!busy.compareAndSet(false, true)) {
+                    races.add("Concurrent merges into " + units);
+                    return null;
+                }
+                try {
+                    if (other.busy.get()) {
+                        races.add("Merge of " + other.units + " while it is modified");
+                    }
+                    Thread.yield();
+                    units.addAll(other.units);
+                } finally {
+                    busy.set(false);
+                }
+                return null;
+            }
+            return invokeObjectMethod(proxy, method, args);
+        }
+    }
+
+    private static FakePersistenceUnitManager manager(EZBPersistenceUnitManager persistenceUnitManager) {
+        return (FakePersistenceUnitManager) Proxy.getInvocationHandler(persistenceUnitManager);
+    }
+
+    /**
+     * @return an archive giving the files of the directory
+     */
+    private static Archive archive(final File directory) {
+        return proxy(Archive.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "getURI":
+                        return directory.toURI();
+                    case "getResource":
+                        File file = new File(directory, (String) args[0]);
+                        return file.isFile() ? file.toURI() : null;
+                    default:
+                        return invokeObjectMethod(proxy, method, args);
+                }
+            }
+        });
+    }
+
+    private static Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return "proxy@" + Integer.toHexString(System.identityHashCode(proxy));
+            default:
+                return null;
+        }
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(TestConcurrentDeployment.class.getClassLoader(), new Class<?>[] {type}, handler));
+    }
+
+    private static void writePersistenceXML(File file, String unitName, String sharedClassName) throws IOException {
+        StringBuilder content = new StringBuilder("<persistence xmlns=\"http://java.sun.com/xml/ns/persistence\" version=\"2.0\">");
+        content.append("<persistence-unit name=\"").append(unitName).append("\">");
+        if (sharedClassName != null) {
+            content.append("<class>").append(sharedClassName).append("</class><properties><property name=\"");
+            content.append(SharedPersistenceUnits.UNIT_PROPERTY).append("\" value=\"true\"/></properties>");
+        }
+        content.append("</persistence-unit></persistence>");
+        write(file, content.toString());
+    }
+
+    private static File directory(String name) throws IOException {
+        File directory = File.createTempFile(name, "");
+        assertTrue(directory.delete() && directory.mkdirs());
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    private static void write(File file, String content) throws IOException {
+        file.getParentFile().mkdirs();
+        file.deleteOnExit();
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(content.getBytes("UTF-8"));
+        }
+    }
+}
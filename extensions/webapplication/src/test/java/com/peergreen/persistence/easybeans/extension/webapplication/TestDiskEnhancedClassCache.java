@@ -0,0 +1,114 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test the enhanced bytecode kept on disk between two restarts.
+ * @author Florent Benoit
+ */
+public class TestDiskEnhancedClassCache {
+
+    private File directory;
+
+    @BeforeMethod
+    public void init() throws IOException {
+        directory = File.createTempFile("enhanced", "cache");
+        directory.delete();
+    }
+
+    @AfterMethod
+    public void clean() {
+        delete(directory);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Test
+    public void testEnhancedClassAfterRestart() {
+        byte[] enhanced = new byte[] {1, 2, 3, 4};
+        new DiskEnhancedClassCache(directory).put("key", enhanced);
+
+        // new cache, as after a restart
+        DiskEnhancedClassCache cache = new DiskEnhancedClassCache(directory);
+        assertEquals(cache.get("key"), enhanced);
+        assertEquals(cache.size(), 1);
+    }
+
+    @Test
+    public void testUnmodifiedClassAfterRestart() {
+        new DiskEnhancedClassCache(directory).put("key", null);
+        assertEquals(new DiskEnhancedClassCache(directory).get("key").length, 0);
+    }
+
+    @Test
+    public void testCorruptedClassIsRemoved() throws IOException {
+        DiskEnhancedClassCache cache = new DiskEnhancedClassCache(directory);
+        cache.put("key", new byte[] {1, 2, 3, 4});
+        File file = cache.getFile("key");
+        try (OutputStream outputStream = new FileOutputStream(file, true)) {
+            outputStream.write(5);
+        }
+
+        assertNull(new DiskEnhancedClassCache(directory).get("key"));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testClassOfAnotherKeyIsRemoved() {
+        DiskEnhancedClassCache cache = new DiskEnhancedClassCache(directory);
+        cache.put("other", new byte[] {1, 2, 3, 4});
+        File file = cache.getFile("key");
+        assertTrue(cache.getFile("other").renameTo(file));
+
+        assertNull(new DiskEnhancedClassCache(directory).get("key"));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testStorageArea() {
+        DiskEnhancedClassCache cache = (DiskEnhancedClassCache) DiskEnhancedClassCache.create(directory);
+        assertEquals(cache.getDirectory(), new File(directory, DiskEnhancedClassCache.DIRECTORY_NAME));
+        assertFalse(DiskEnhancedClassCache.create(null) instanceof DiskEnhancedClassCache);
+    }
+
+    @Test
+    public void testUnknownClass() {
+        assertNull(new DiskEnhancedClassCache(directory).get("key"));
+    }
+
+}
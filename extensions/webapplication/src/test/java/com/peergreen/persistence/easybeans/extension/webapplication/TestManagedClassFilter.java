@@ -0,0 +1,113 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Set;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test the selection of the classes to enhance.
+ * @author Florent Benoit
+ */
+public class TestManagedClassFilter {
+
+    private ManagedClassFilter managedClassFilter;
+
+    @BeforeMethod
+    public void init() {
+        this.managedClassFilter = new ManagedClassFilter();
+    }
+
+    @Test
+    public void testAnnotatedClassIsManaged() throws IOException {
+        assertTrue(managedClassFilter.isManaged("com/peergreen/persistence/easybeans/extension/webapplication/SampleEntity", bytes(SampleEntity.class)));
+    }
+
+    @Test
+    public void testOtherClassIsNotManaged() throws IOException {
+        assertFalse(managedClassFilter.isManaged("com/peergreen/persistence/easybeans/extension/webapplication/TestManagedClassFilter", bytes(TestManagedClassFilter.class)));
+    }
+
+    @Test
+    public void testDeclaredClassIsManaged() throws IOException {
+        managedClassFilter.addDeclaredClasses(Arrays.asList(TestManagedClassFilter.class.getName()));
+        assertTrue(managedClassFilter.isManaged("com/peergreen/persistence/easybeans/extension/webapplication/TestManagedClassFilter", bytes(TestManagedClassFilter.class)));
+    }
+
+    @Test
+    public void testUnrestricted() throws IOException {
+        managedClassFilter.setUnrestricted();
+        assertTrue(managedClassFilter.isManaged(TestManagedClassFilter.class.getName(), bytes(TestManagedClassFilter.class)));
+    }
+
+    @Test
+    public void testReadDescriptors() throws IOException {
+        File persistenceXML = write("persistence", "<persistence xmlns=\"http://java.sun.com/xml/ns/persistence\" version=\"2.0\">"
+                + "<persistence-unit name=\"unit\"><class>com.example.Customer</class><class> com.example.Order </class></persistence-unit>"
+                + "</persistence>");
+        File ormXML = write("orm", "<entity-mappings xmlns=\"http://java.sun.com/xml/ns/persistence/orm\" version=\"2.0\">"
+                + "<package>com.example.orm</package>"
+                + "<mapped-superclass class=\"Base\"/>"
+                + "<entity class=\"Invoice\"/>"
+                + "<embeddable class=\"com.example.Address\"/>"
+                + "</entity-mappings>");
+
+        PersistenceDescriptorReader reader = new PersistenceDescriptorReader();
+        Set<String> persistenceClasses = reader.readPersistenceXML(persistenceXML.toURI(), getClass().getClassLoader());
+        assertEquals(persistenceClasses, set("com.example.Customer", "com.example.Order"));
+
+        Set<String> ormClasses = reader.readOrmXML(ormXML.toURI());
+        assertEquals(ormClasses, set("com.example.orm.Invoice", "com.example.orm.Base", "com.example.Address"));
+    }
+
+    private static Set<String> set(String... values) {
+        return new java.util.HashSet<String>(Arrays.asList(values));
+    }
+
+    private static File write(String name, String content) throws IOException {
+        File file = File.createTempFile(name, ".xml");
+        file.deleteOnExit();
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(content.getBytes("UTF-8"));
+        }
+        return file;
+    }
+
+    private static byte[] bytes(Class<?> clazz) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (InputStream inputStream = clazz.getResourceAsStream(clazz.getSimpleName() + ".class")) {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+        }
+        return outputStream.toByteArray();
+    }
+}
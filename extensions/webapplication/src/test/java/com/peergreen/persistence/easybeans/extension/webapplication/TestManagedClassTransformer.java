@@ -0,0 +1,176 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.security.ProtectionDomain;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import javax.persistence.spi.ClassTransformer;
+
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test the filtering and the cache of the class transformations.
+ * @author Florent Benoit
+ */
+public class TestManagedClassTransformer {
+
+    private static final String ENTITY = "com/example/Customer";
+
+    private static final String OTHER = "com/example/CustomerServlet";
+
+    @Mock
+    private ClassTransformer classTransformer;
+
+    private ManagedClassFilter managedClassFilter;
+
+    private EnhancedClassCache enhancedClassCache;
+
+    private static final String ENTITY_SUBCLASS = "com/peergreen/persistence/easybeans/extension/webapplication/TestManagedClassTransformer$SampleSubEntity";
+
+    private static final String SAMPLE_ENTITY = "com/peergreen/persistence/easybeans/extension/webapplication/SampleEntity";
+
+    private final ClassLoader loader = TestManagedClassTransformer.class.getClassLoader();
+
+    private byte[] original;
+
+    private final byte[] enhanced = new byte[] {4, 5, 6, 7};
+
+    @BeforeMethod
+    public void init() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        original = ManagedClassTransformer.readClass(loader, ENTITY_SUBCLASS);
+        managedClassFilter = new ManagedClassFilter();
+        managedClassFilter.addDeclaredClasses(Arrays.asList("com.example.Customer"));
+        managedClassFilter.setDescriptorsDigest("digest");
+        enhancedClassCache = new EnhancedClassCache(1024, Collections.singleton(classTransformer.getClass().getName()));
+        doReturn(enhanced).when(classTransformer).transform(any(ClassLoader.class), anyString(), any(Class.class), any(ProtectionDomain.class), any(byte[].class));
+    }
+
+    @Test
+    public void testOtherClassIsNotTransformed() throws Exception {
+        ManagedClassTransformer transformer = new ManagedClassTransformer(classTransformer, managedClassFilter, enhancedClassCache);
+        assertNull(transformer.transform(loader, OTHER, null, null, new byte[] {1, 2, 3}));
+        verify(classTransformer, never()).transform(any(ClassLoader.class), anyString(), any(Class.class), any(ProtectionDomain.class), any(byte[].class));
+    }
+
+    @Test
+    public void testEnhancedClassIsCached() throws Exception {
+        // two classloaders of the same application
+        assertSame(new ManagedClassTransformer(classTransformer, managedClassFilter, enhancedClassCache).transform(loader, ENTITY, null, null, original), enhanced);
+        assertSame(new ManagedClassTransformer(classTransformer, managedClassFilter, enhancedClassCache).transform(loader, ENTITY, null, null, original), enhanced);
+        verify(classTransformer, times(1)).transform(loader, ENTITY, null, null, original);
+        assertEquals(enhancedClassCache.size(), 1);
+    }
+
+    @Test
+    public void testTransformerNotListedSeesEveryClass() throws Exception {
+        // the provider may keep a state for each class it transforms
+        EnhancedClassCache cache = new EnhancedClassCache(1024, Collections.<String>emptySet());
+        assertSame(new ManagedClassTransformer(classTransformer, managedClassFilter, cache).transform(loader, ENTITY, null, null, original), enhanced);
+        assertSame(new ManagedClassTransformer(classTransformer, managedClassFilter, cache).transform(loader, ENTITY, null, null, original), enhanced);
+        verify(classTransformer, times(2)).transform(loader, ENTITY, null, null, original);
+        assertEquals(cache.size(), 0);
+    }
+
+    @Test
+    public void testTransformersProperty() {
+        assertEquals(EnhancedClassCache.parseTransformers(null), Collections.emptySet());
+        assertEquals(EnhancedClassCache.parseTransformers(" com.example.A ,,com.example.B"), new HashSet<String>(Arrays.asList("com.example.A", "com.example.B")));
+    }
+
+    @Test
+    public void testChangedMappingIsNotCached() throws Exception {
+        new ManagedClassTransformer(classTransformer, managedClassFilter, enhancedClassCache).transform(loader, ENTITY, null, null, original);
+        managedClassFilter.setDescriptorsDigest("other-digest");
+        new ManagedClassTransformer(classTransformer, managedClassFilter, enhancedClassCache).transform(loader, ENTITY, null, null, original);
+        verify(classTransformer, times(2)).transform(loader, ENTITY, null, null, original);
+    }
+
+    @Test
+    public void testChangedSuperclassIsNotCached() throws Exception {
+        new ManagedClassTransformer(classTransformer, managedClassFilter, enhancedClassCache).transform(loader, ENTITY, null, null, original);
+
+        // same class, the mapped superclass has been changed
+        final byte[] changedSuperclass = Arrays.copyOf(ManagedClassTransformer.readClass(loader, SAMPLE_ENTITY), ManagedClassTransformer.readClass(loader, SAMPLE_ENTITY).length + 1);
+        ClassLoader otherLoader = new ClassLoader(loader) {
+            @Override
+            public InputStream getResourceAsStream(String name) {
+                if (name.equals(SAMPLE_ENTITY + ".class")) {
+                    return new ByteArrayInputStream(changedSuperclass);
+                }
+                return super.getResourceAsStream(name);
+            }
+        };
+        new ManagedClassTransformer(classTransformer, managedClassFilter, enhancedClassCache).transform(otherLoader, ENTITY, null, null, original);
+
+        verify(classTransformer).transform(loader, ENTITY, null, null, original);
+        verify(classTransformer).transform(otherLoader, ENTITY, null, null, original);
+        assertEquals(enhancedClassCache.size(), 2);
+    }
+
+    @Test
+    public void testClassFoundByAnnotationIsNotCached() throws Exception {
+        byte[] annotated = ManagedClassTransformer.readClass(loader, SAMPLE_ENTITY);
+        new ManagedClassTransformer(classTransformer, managedClassFilter, enhancedClassCache).transform(loader, SAMPLE_ENTITY, null, null, annotated);
+        new ManagedClassTransformer(classTransformer, managedClassFilter, enhancedClassCache).transform(loader, SAMPLE_ENTITY, null, null, annotated);
+        verify(classTransformer, times(2)).transform(loader, SAMPLE_ENTITY, null, null, annotated);
+        assertEquals(enhancedClassCache.size(), 0);
+    }
+
+    @Test
+    public void testSuperclassName() throws Exception {
+        assertEquals(ManagedClassTransformer.getSuperclassName(original), SAMPLE_ENTITY);
+        assertEquals(ManagedClassTransformer.getSuperclassName(ManagedClassTransformer.readClass(loader, SAMPLE_ENTITY)), "java/lang/Object");
+        assertNull(ManagedClassTransformer.getSuperclassName(new byte[] {1, 2, 3}));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        EnhancedClassCache cache = new EnhancedClassCache(10);
+        cache.put("a", new byte[4]);
+        cache.put("b", new byte[4]);
+        cache.get("a");
+        cache.put("c", new byte[4]);
+        assertEquals(cache.size(), 2);
+        assertNull(cache.get("b"));
+    }
+
+    /**
+     * Entity whose enhancement depends on its super class.
+     */
+    public static class SampleSubEntity extends SampleEntity {
+
+    }
+
+}
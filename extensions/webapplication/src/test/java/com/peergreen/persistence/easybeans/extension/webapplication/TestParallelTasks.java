@@ -0,0 +1,148 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.peergreen.deployment.ProcessorException;
+
+/**
+ * Test the pool running the tasks of the deployments.
+ * @author Florent Benoit
+ */
+public class TestParallelTasks {
+
+    private static final int THREADS = 3;
+
+    private ParallelTasks parallelTasks;
+
+    @BeforeMethod
+    public void init() {
+        parallelTasks = new ParallelTasks(THREADS, "test-tasks");
+    }
+
+    @AfterMethod
+    public void stop() {
+        parallelTasks.shutdown();
+    }
+
+    @Test
+    public void testResultsInOrder() throws ProcessorException {
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < 20; i++) {
+            tasks.add(new Task(i, null));
+        }
+
+        List<Integer> results = parallelTasks.invokeInOrder(tasks);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(results.get(i).intValue(), i);
+        }
+    }
+
+    @Test
+    public void testThreadsAreSharedByConcurrentCallers() throws Exception {
+        final Set<String> threadNames = Collections.synchronizedSet(new HashSet<String>());
+        final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+        List<Thread> callers = new ArrayList<Thread>();
+        final CountDownLatch start = new CountDownLatch(1);
+        for (int c = 0; c < 8; c++) {
+            Thread caller = new Thread() {
+                @Override
+                public void run() {
+                    List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+                    for (int i = 0; i < 10; i++) {
+                        tasks.add(new Task(i, threadNames));
+                    }
+                    try {
+                        start.await();
+                        parallelTasks.invokeInOrder(tasks);
+                    } catch (Exception e) {
+                        failures.add(e);
+                    }
+                }
+            };
+            caller.start();
+            callers.add(caller);
+        }
+        start.countDown();
+        for (Thread caller : callers) {
+            caller.join();
+        }
+
+        assertTrue(failures.isEmpty(), failures.toString());
+        assertTrue(threadNames.size() <= THREADS, threadNames.toString());
+    }
+
+    @Test(expectedExceptions = ProcessorException.class)
+    public void testFailure() throws ProcessorException {
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < 10; i++) {
+            tasks.add(new Task(i == 5 ? -1 : i, null));
+        }
+        parallelTasks.invokeInOrder(tasks);
+    }
+
+    @Test
+    public void testSerialAfterShutdown() throws ProcessorException {
+        parallelTasks.shutdown();
+        Set<String> threadNames = new HashSet<String>();
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < 10; i++) {
+            tasks.add(new Task(i, threadNames));
+        }
+
+        assertEquals(parallelTasks.invokeInOrder(tasks).size(), 10);
+        assertEquals(threadNames, Collections.singleton(Thread.currentThread().getName()));
+    }
+
+    /**
+     * Gives its value (fails if negative) and records the thread running it.
+     */
+    private static class Task implements Callable<Integer> {
+
+        private final int value;
+        private final Set<String> threadNames;
+
+        public Task(int value, Set<String> threadNames) {
+            this.value = value;
+            this.threadNames = threadNames;
+        }
+
+        @Override
+        public Integer call() throws ProcessorException {
+            if (threadNames != null) {
+                threadNames.add(Thread.currentThread().getName());
+            }
+            if (value < 0) {
+                throw new ProcessorException("Invalid task");
+            }
+            return Integer.valueOf(value);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test that the streaming reader gives the same result as the DOM reader.
+ * @author Florent Benoit
+ */
+public class TestPersistenceDescriptorReader {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String PERSISTENCE_XML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<persistence xmlns=\"http://java.sun.com/xml/ns/persistence\" version=\"2.0\">\n"
+            + "  <persistence-unit name=\"first\" transaction-type=\"JTA\">\n"
+            + "    <jta-data-source>jdbc_1</jta-data-source>\n"
+            + "    <mapping-file>META-INF/first-orm.xml</mapping-file>\n"
+            + "    <class>com.example.Customer</class>\n"
+            + "    <class>\n      com.example.Order\n    </class>\n"
+            + "    <class><![CDATA[com.example.Invoice]]></class>\n"
+            + "    <class>   </class>\n"
+            + "    <!-- <class>com.example.Commented</class> -->\n"
+            + "    <properties>\n"
+            + "      <property name=\"com.peergreen.persistence.startup\" value=\"lazy\"/>\n"
+            + "      <property name=\"hibernate.show_sql\" value=\"true\"/>\n"
+            + "    </properties>\n"
+            + "  </persistence-unit>\n"
+            + "  <persistence-unit>\n"
+            + "    <class>com.example.Anonymous</class>\n"
+            + "  </persistence-unit>\n"
+            + "  <p:persistence-unit xmlns:p=\"urn:other\" name=\"prefixed\">\n"
+            + "    <p:class>com.example.Prefixed</p:class>\n"
+            + "  </p:persistence-unit>\n"
+            + "</persistence>\n";
+
+    private static final String ORM_XML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<entity-mappings xmlns=\"http://java.sun.com/xml/ns/persistence/orm\" version=\"2.0\">\n"
+            + "  <package>\n    com.example.orm\n  </package>\n"
+            + "  <embeddable class=\"Address\"/>\n"
+            + "  <entity class=\"Customer\" name=\"Customer\"><table name=\"CUSTOMERS\"/></entity>\n"
+            + "  <mapped-superclass class=\"com.example.base.Base\"/>\n"
+            + "  <entity class=\"other.Order\"/>\n"
+            + "  <entity class=\"  \"/>\n"
+            + "  <entity class=\"Customer\"/>\n"
+            + "</entity-mappings>\n";
+
+    private PersistenceDescriptorReader domReader;
+
+    private PersistenceDescriptorReader streamingReader;
+
+    @BeforeMethod
+    public void init() {
+        this.domReader = new PersistenceDescriptorReader();
+        this.streamingReader = new StreamingPersistenceDescriptorReader();
+    }
+
+    @Test
+    public void testPersistenceUnitsAreTheSame() throws IOException {
+        List<PersistenceUnitDescriptor> expected = domReader.readPersistenceUnits(stream(PERSISTENCE_XML));
+        List<PersistenceUnitDescriptor> units = streamingReader.readPersistenceUnits(stream(PERSISTENCE_XML));
+
+        assertEquals(units.size(), 3);
+        assertEquals(describe(units), describe(expected));
+        assertEquals(units.get(0).getClassNames().size(), 3);
+        assertEquals(units.get(0).getProperties().get("com.peergreen.persistence.startup"), "lazy");
+        assertEquals(units.get(1).getName(), "");
+    }
+
+    @Test
+    public void testOrmClassesAreTheSame() throws IOException {
+        Set<String> expected = domReader.readOrmXML(stream(ORM_XML));
+        Set<String> classNames = streamingReader.readOrmXML(stream(ORM_XML));
+
+        assertEquals(new ArrayList<String>(classNames), new ArrayList<String>(expected));
+        assertTrue(classNames.contains("com.example.orm.Address"));
+        assertTrue(classNames.contains("other.Order"));
+        assertEquals(classNames.size(), 4);
+    }
+
+    @Test
+    public void testLargeOrmXML() throws IOException {
+        String ormXML = largeOrmXML(5000);
+        Set<String> classNames = streamingReader.readOrmXML(stream(ormXML));
+        assertEquals(classNames.size(), 10000);
+        assertEquals(new ArrayList<String>(classNames), new ArrayList<String>(domReader.readOrmXML(stream(ormXML))));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testInvalidDescriptor() throws IOException {
+        streamingReader.readPersistenceUnits(stream("<persistence><persistence-unit name=\"broken\"></persistence>"));
+    }
+
+    @Test
+    public void testDoctypeIsRejected() {
+        String persistenceXML = "<?xml version=\"1.0\"?>\n"
+                + "<!DOCTYPE persistence [<!ENTITY unit SYSTEM \"file:///etc/hostname\">]>\n"
+                + "<persistence><persistence-unit name=\"&unit;\"/></persistence>";
+        for (PersistenceDescriptorReader reader : new PersistenceDescriptorReader[] {domReader, streamingReader}) {
+            try {
+                reader.readPersistenceUnits(stream(persistenceXML));
+                fail(reader.getClass().getSimpleName() + " should reject a DOCTYPE");
+            } catch (IOException e) {
+                // expected
+            }
+            try {
+                reader.readOrmXML(stream(persistenceXML.replace("persistence", "entity-mappings")));
+                fail(reader.getClass().getSimpleName() + " should reject a DOCTYPE");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testReaderSelection() {
+        assertEquals(PersistenceDescriptorReader.newInstance().getClass(), PersistenceDescriptorReader.class);
+        System.setProperty(PersistenceDescriptorReader.READER_PROPERTY, PersistenceDescriptorReader.STAX);
+        try {
+            assertEquals(PersistenceDescriptorReader.newInstance().getClass(), StreamingPersistenceDescriptorReader.class);
+        } finally {
+            System.clearProperty(PersistenceDescriptorReader.READER_PROPERTY);
+        }
+    }
+
+    /**
+     * @param entities number of entities, each of them with an embeddable
+     * @return an orm.xml file with the given number of mappings
+     */
+    static String largeOrmXML(int entities) {
+        StringBuilder ormXML = new StringBuilder("<entity-mappings xmlns=\"http://java.sun.com/xml/ns/persistence/orm\" version=\"2.0\">\n");
+        ormXML.append("  <package>com.example.large</package>\n");
+        for (int i = 0; i < entities; i++) {
+            ormXML.append("  <entity class=\"Entity").append(i).append("\">\n");
+            ormXML.append("    <table name=\"ENTITY_").append(i).append("\"/>\n");
+            ormXML.append("    <attributes><id name=\"id\"/><basic name=\"label\"><column name=\"LABEL\" length=\"64\"/></basic></attributes>\n");
+            ormXML.append("  </entity>\n");
+            ormXML.append("  <embeddable class=\"Embeddable").append(i).append("\"/>\n");
+        }
+        return ormXML.append("</entity-mappings>\n").toString();
+    }
+
+    private static InputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes(UTF_8));
+    }
+
+    private static List<String> describe(List<PersistenceUnitDescriptor> units) {
+        List<String> descriptions = new ArrayList<String>();
+        for (PersistenceUnitDescriptor unit : units) {
+            descriptions.add(unit.getName() + unit.getClassNames() + unit.getMappingFiles() + unit.getProperties());
+        }
+        return descriptions;
+    }
+
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test the tracking of the changes of the persistence descriptors.
+ * @author Florent Benoit
+ */
+public class TestPersistenceDescriptorTracker {
+
+    private static final String PERSISTENCE_XML = "<persistence xmlns=\"http://java.sun.com/xml/ns/persistence\" version=\"2.0\">"
+            + "<persistence-unit name=\"%s\"><class>com.example.Customer</class></persistence-unit>"
+            + "</persistence>";
+
+    private PersistenceDescriptorTracker tracker;
+
+    private URI rootURI;
+
+    @BeforeMethod
+    public void init() {
+        this.tracker = new PersistenceDescriptorTracker();
+        this.rootURI = URI.create("file:/nonexistent/app.war");
+    }
+
+    @Test
+    public void testUnchangedDescriptorIsNotReadAgain() throws IOException {
+        File persistenceXML = write(File.createTempFile("persistence", ".xml"), String.format(PERSISTENCE_XML, "unit"));
+
+        PersistenceDescriptorSnapshot first = tracker.track(rootURI, persistenceXML.toURI(), null);
+        assertEquals(first.getUnits().get(0).getName(), "unit");
+        assertSame(tracker.track(rootURI, persistenceXML.toURI(), null), first);
+    }
+
+    @Test
+    public void testChangedDescriptorIsReadAgain() throws IOException {
+        File persistenceXML = write(File.createTempFile("persistence", ".xml"), String.format(PERSISTENCE_XML, "unit"));
+        PersistenceDescriptorSnapshot first = tracker.track(rootURI, persistenceXML.toURI(), null);
+
+        write(persistenceXML, String.format(PERSISTENCE_XML, "renamed-unit"));
+        persistenceXML.setLastModified(persistenceXML.lastModified() + 2000);
+
+        PersistenceDescriptorSnapshot second = tracker.track(rootURI, persistenceXML.toURI(), null);
+        assertFalse(second.getDigest().equals(first.getDigest()));
+        assertEquals(second.getUnits().get(0).getName(), "renamed-unit");
+    }
+
+    @Test
+    public void testTouchedDescriptorKeepsItsUnits() throws IOException {
+        File persistenceXML = write(File.createTempFile("persistence", ".xml"), String.format(PERSISTENCE_XML, "unit"));
+        PersistenceDescriptorSnapshot first = tracker.track(rootURI, persistenceXML.toURI(), null);
+
+        persistenceXML.setLastModified(persistenceXML.lastModified() + 2000);
+
+        PersistenceDescriptorSnapshot second = tracker.track(rootURI, persistenceXML.toURI(), null);
+        assertEquals(second.getDigest(), first.getDigest());
+        assertSame(second.getUnits(), first.getUnits());
+    }
+
+    @Test
+    public void testDescriptorInJar() throws IOException {
+        File jar = File.createTempFile("library", ".jar");
+        jar.deleteOnExit();
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(new FileOutputStream(jar))) {
+            zipOutputStream.putNextEntry(new ZipEntry("META-INF/persistence.xml"));
+            zipOutputStream.write(String.format(PERSISTENCE_XML, "unit").getBytes("UTF-8"));
+            zipOutputStream.closeEntry();
+        }
+        URI persistenceXML = URI.create("jar:" + jar.toURI() + "!/META-INF/persistence.xml");
+
+        assertNotNull(PersistenceDescriptorTracker.stamps(persistenceXML, null));
+        PersistenceDescriptorSnapshot first = tracker.track(rootURI, persistenceXML, null);
+        assertSame(tracker.track(rootURI, persistenceXML, null), first);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedDescriptorIsForgotten() throws IOException {
+        PersistenceDescriptorTracker boundedTracker = new PersistenceDescriptorTracker(PersistenceDescriptorReader.newInstance(), 2);
+        File first = write(File.createTempFile("persistence", ".xml"), String.format(PERSISTENCE_XML, "first"));
+        File second = write(File.createTempFile("persistence", ".xml"), String.format(PERSISTENCE_XML, "second"));
+        File third = write(File.createTempFile("persistence", ".xml"), String.format(PERSISTENCE_XML, "third"));
+
+        PersistenceDescriptorSnapshot firstSnapshot = boundedTracker.track(rootURI, first.toURI(), null);
+        PersistenceDescriptorSnapshot secondSnapshot = boundedTracker.track(rootURI, second.toURI(), null);
+        // first is used again so second is the least recently used
+        assertSame(boundedTracker.track(rootURI, first.toURI(), null), firstSnapshot);
+        boundedTracker.track(rootURI, third.toURI(), null);
+
+        assertEquals(boundedTracker.size(), 2);
+        assertSame(boundedTracker.track(rootURI, first.toURI(), null), firstSnapshot);
+        assertFalse(boundedTracker.track(rootURI, second.toURI(), null) == secondSnapshot);
+    }
+
+    @Test
+    public void testNonFileDescriptorIsNotTracked() {
+        assertNull(PersistenceDescriptorTracker.stamps(URI.create("http://localhost/persistence.xml"), null));
+    }
+
+    private static File write(File file, String content) throws IOException {
+        file.deleteOnExit();
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(content.getBytes("UTF-8"));
+        }
+        return file;
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.ow2.easybeans.persistence.EZBPersistenceUnitManager;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.peergreen.deployment.ProcessorException;
+
+/**
+ * Test the bootstrap of the persistence units according to their startup policy.
+ * @author Florent Benoit
+ */
+public class TestPersistenceUnitBootstrapper {
+
+    @Mock
+    private EZBPersistenceUnitManager persistenceUnitManager;
+
+    @Mock
+    private EntityManagerFactory entityManagerFactory;
+
+    @Mock
+    private EntityManager entityManager;
+
+    @BeforeMethod
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+        doReturn(entityManager).when(entityManagerFactory).createEntityManager();
+        doReturn(entityManagerFactory).when(persistenceUnitManager).getEntityManagerFactory("eager");
+        doReturn(entityManagerFactory).when(persistenceUnitManager).getEntityManagerFactory("default");
+    }
+
+    @AfterMethod
+    public void clearProperties() {
+        System.clearProperty(PersistenceUnitStartupPolicy.SYSTEM_PROPERTY);
+        System.clearProperty(PersistenceUnitStartupPolicy.SYSTEM_PROPERTY + ".shop");
+    }
+
+    @Test
+    public void testParse() {
+        assertEquals(PersistenceUnitStartupPolicy.parse("eager-parallel", PersistenceUnitStartupPolicy.LAZY), PersistenceUnitStartupPolicy.EAGER_PARALLEL);
+        assertEquals(PersistenceUnitStartupPolicy.parse(" Lazy ", PersistenceUnitStartupPolicy.EAGER_SERIAL), PersistenceUnitStartupPolicy.LAZY);
+        assertEquals(PersistenceUnitStartupPolicy.parse("unknown", PersistenceUnitStartupPolicy.EAGER_SERIAL), PersistenceUnitStartupPolicy.EAGER_SERIAL);
+        assertEquals(PersistenceUnitStartupPolicy.parse(null, PersistenceUnitStartupPolicy.LAZY), PersistenceUnitStartupPolicy.LAZY);
+    }
+
+    @Test
+    public void testApplicationPolicy() {
+        URI rootURI = URI.create("file:/deploy/shop.war");
+        assertEquals(PersistenceUnitBootstrapper.getApplicationName(rootURI), "shop");
+        assertEquals(PersistenceUnitBootstrapper.getApplicationPolicy(rootURI), PersistenceUnitStartupPolicy.EAGER_SERIAL);
+
+        System.setProperty(PersistenceUnitStartupPolicy.SYSTEM_PROPERTY, "lazy");
+        assertEquals(PersistenceUnitBootstrapper.getApplicationPolicy(rootURI), PersistenceUnitStartupPolicy.LAZY);
+
+        System.setProperty(PersistenceUnitStartupPolicy.SYSTEM_PROPERTY + ".shop", "eager-parallel");
+        assertEquals(PersistenceUnitBootstrapper.getApplicationPolicy(rootURI), PersistenceUnitStartupPolicy.EAGER_PARALLEL);
+        assertEquals(PersistenceUnitBootstrapper.getApplicationPolicy(URI.create("file:/deploy/other/")), PersistenceUnitStartupPolicy.LAZY);
+        assertNull(PersistenceUnitBootstrapper.getApplicationName(null));
+    }
+
+    @Test
+    public void testUnitPolicyOverridesApplicationPolicy() throws ProcessorException {
+        List<PersistenceUnitDescriptor> units = new ArrayList<PersistenceUnitDescriptor>();
+        units.add(unit("eager", "eager-serial"));
+        units.add(unit("default", null));
+
+        new PersistenceUnitBootstrapper(new ParallelTasks(1, "bootstrap")).bootstrap(persistenceUnitManager, units, PersistenceUnitStartupPolicy.LAZY);
+
+        verify(persistenceUnitManager).getEntityManagerFactory("eager");
+        verify(persistenceUnitManager, never()).getEntityManagerFactory("default");
+        verify(entityManager).close();
+    }
+
+    @Test
+    public void testParallelBootstrap() throws ProcessorException {
+        List<PersistenceUnitDescriptor> units = new ArrayList<PersistenceUnitDescriptor>();
+        for (int i = 0; i < 8; i++) {
+            String name = "unit" + i;
+            doReturn(entityManagerFactory).when(persistenceUnitManager).getEntityManagerFactory(name);
+            units.add(unit(name, null));
+        }
+
+        ParallelTasks parallelTasks = new ParallelTasks(4, "bootstrap");
+        try {
+            new PersistenceUnitBootstrapper(parallelTasks).bootstrap(persistenceUnitManager, units, PersistenceUnitStartupPolicy.EAGER_PARALLEL);
+        } finally {
+            parallelTasks.shutdown();
+        }
+
+        for (int i = 0; i < 8; i++) {
+            verify(persistenceUnitManager).getEntityManagerFactory("unit" + i);
+        }
+    }
+
+    @Test(expectedExceptions = ProcessorException.class)
+    public void testBootstrapFailure() throws ProcessorException {
+        doThrow(new IllegalStateException("invalid unit")).when(entityManagerFactory).createEntityManager();
+        new PersistenceUnitBootstrapper(new ParallelTasks(1, "bootstrap")).bootstrap(persistenceUnitManager, Collections.singletonList(unit("eager", null)), PersistenceUnitStartupPolicy.EAGER_SERIAL);
+    }
+
+    private static PersistenceUnitDescriptor unit(String name, String policy) {
+        Map<String, String> properties = new HashMap<String, String>();
+        if (policy != null) {
+            properties.put(PersistenceUnitStartupPolicy.UNIT_PROPERTY, policy);
+        }
+        return new PersistenceUnitDescriptor(name, Collections.<String>emptyList(), Collections.<String>emptyList(), properties);
+    }
+}
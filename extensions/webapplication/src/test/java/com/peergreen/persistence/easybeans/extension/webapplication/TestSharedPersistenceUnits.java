@@ -0,0 +1,280 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.ow2.easybeans.persistence.EZBPersistenceUnitManager;
+import org.ow2.easybeans.persistence.EZBPersistenceXmlAnalyzer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.peergreen.deployment.Artifact;
+import com.peergreen.deployment.ProcessorContext;
+import com.peergreen.persistence.easybeans.metrics.DefaultPersistenceMetrics;
+import com.peergreen.persistence.easybeans.registry.DefaultPersistenceUnitRegistry;
+import com.peergreen.persistence.easybeans.registry.PersistenceUnitRegistry;
+import com.peergreen.persistence.easybeans.registry.SharedPersistenceUnitManagers;
+import com.peergreen.webcontainer.WebApplication;
+
+/**
+ * Test the detection of the persistence units that can be shared between deployments.
+ * @author Florent Benoit
+ */
+public class TestSharedPersistenceUnits {
+
+    private static final String SHARED_CLASS = "com.example.SharedEntity";
+
+    private static final String PRIVATE_CLASS = "com.example.PrivateEntity";
+
+    private URLClassLoader sharedClassLoader;
+
+    private URLClassLoader webApplicationClassLoader;
+
+    private PersistenceDescriptors descriptors;
+
+    @BeforeMethod
+    public void init() throws IOException {
+        File sharedDirectory = directory("shared");
+        touch(sharedDirectory, SHARED_CLASS);
+        File webApplicationDirectory = directory("webapp");
+        touch(webApplicationDirectory, PRIVATE_CLASS);
+        File persistenceXML = new File(webApplicationDirectory, "persistence.xml");
+        write(persistenceXML, "<persistence/>");
+
+        sharedClassLoader = new URLClassLoader(new URL[] {sharedDirectory.toURI().toURL()}, null);
+        webApplicationClassLoader = new URLClassLoader(new URL[] {webApplicationDirectory.toURI().toURL()}, sharedClassLoader);
+        descriptors = new PersistenceDescriptors(persistenceXML.toURI(), null);
+    }
+
+    @AfterMethod
+    public void close() throws IOException {
+        webApplicationClassLoader.close();
+        sharedClassLoader.close();
+    }
+
+    @Test
+    public void testClassesOfParentClassLoader() {
+        SharedPersistenceUnits sharedUnits = locate(descriptors, snapshot("true", SHARED_CLASS), webApplicationClassLoader);
+        assertNotNull(sharedUnits);
+        assertSame(sharedUnits.getDefiningClassLoader(), sharedClassLoader);
+
+        // same descriptors seen by another web application
+        SharedPersistenceUnits otherUnits = locate(descriptors, snapshot("true", SHARED_CLASS), new URLClassLoader(new URL[0], sharedClassLoader));
+        assertEquals(otherUnits.getFingerprint(), sharedUnits.getFingerprint());
+    }
+
+    @Test
+    public void testFingerprintIncludesLocation() throws IOException {
+        File otherPersistenceXML = new File(directory("other"), "persistence.xml");
+        write(otherPersistenceXML, "<persistence/>");
+        PersistenceDescriptors otherDescriptors = new PersistenceDescriptors(otherPersistenceXML.toURI(), null);
+
+        SharedPersistenceUnits sharedUnits = locate(descriptors, snapshot("true", SHARED_CLASS), webApplicationClassLoader);
+        SharedPersistenceUnits otherUnits = locate(otherDescriptors, snapshot("true", SHARED_CLASS), webApplicationClassLoader);
+        assertFalse(sharedUnits.getFingerprint().equals(otherUnits.getFingerprint()));
+        assertEquals(sharedUnits.getUnitNames(), Collections.singletonList("unit"));
+    }
+
+    @Test
+    public void testLibraryRootURI() {
+        assertEquals(SharedPersistenceUnits.getLibraryRootURI(URI.create("jar:file:/lib/library.jar!/META-INF/persistence.xml")), URI.create("file:/lib/library.jar"));
+        assertEquals(SharedPersistenceUnits.getLibraryRootURI(URI.create("file:/lib/classes/META-INF/persistence.xml")), URI.create("file:/lib/classes/"));
+    }
+
+    @Test
+    public void testClassesOfWebApplication() {
+        assertNull(locate(descriptors, snapshot("true", SHARED_CLASS, PRIVATE_CLASS), webApplicationClassLoader));
+    }
+
+    @Test
+    public void testSharingIsDisabled() {
+        assertNull(locate(descriptors, snapshot(null, SHARED_CLASS), webApplicationClassLoader));
+        assertNull(locate(descriptors, snapshot("false", SHARED_CLASS), webApplicationClassLoader));
+    }
+
+    @Test
+    public void testSharingEnabledBySystemProperty() {
+        System.setProperty(SharedPersistenceUnits.SYSTEM_PROPERTY, "true");
+        try {
+            assertNotNull(locate(descriptors, snapshot(null, SHARED_CLASS), webApplicationClassLoader));
+            assertNull(locate(descriptors, snapshot("false", SHARED_CLASS), webApplicationClassLoader));
+        } finally {
+            System.clearProperty(SharedPersistenceUnits.SYSTEM_PROPERTY);
+        }
+    }
+
+    @Test
+    public void testUndeployKeepsUnitsOfOtherWebApplications() throws Exception {
+        File libraryDirectory = directory("library");
+        File sharedPersistenceXML = new File(libraryDirectory, "shared-persistence.xml");
+        write(sharedPersistenceXML, "<persistence><persistence-unit name=\"shared\"><class>" + SHARED_CLASS + "</class>"
+                + "<properties><property name=\"" + SharedPersistenceUnits.UNIT_PROPERTY + "\" value=\"true\"/></properties>"
+                + "</persistence-unit></persistence>");
+        File privatePersistenceXML = new File(libraryDirectory, "private-persistence.xml");
+        write(privatePersistenceXML, "<persistence><persistence-unit name=\"private\"><class>" + PRIVATE_CLASS + "</class></persistence-unit></persistence>");
+        List<PersistenceDescriptors> libraryDescriptors = Arrays.asList(new PersistenceDescriptors(sharedPersistenceXML.toURI(), null), new PersistenceDescriptors(privatePersistenceXML.toURI(), null));
+
+        EZBPersistenceUnitManager sharedManager = mock(EZBPersistenceUnitManager.class);
+        EntityManagerFactory sharedEntityManagerFactory = mock(EntityManagerFactory.class);
+        doReturn(Boolean.TRUE).when(sharedEntityManagerFactory).isOpen();
+        doReturn(sharedEntityManagerFactory).when(sharedManager).getEntityManagerFactory("shared");
+        EZBPersistenceUnitManager firstPrivateManager = mock(EZBPersistenceUnitManager.class);
+        EZBPersistenceUnitManager secondPrivateManager = mock(EZBPersistenceUnitManager.class);
+        EZBPersistenceXmlAnalyzer persistenceXmlAnalyzer = mock(EZBPersistenceXmlAnalyzer.class);
+        doReturn(sharedManager).when(persistenceXmlAnalyzer).analyzePersistenceXmlFile(any(URI.class), eq(sharedPersistenceXML.toURI()), any(URI.class), any(ClassLoader.class));
+        doReturn(firstPrivateManager).doReturn(secondPrivateManager).when(persistenceXmlAnalyzer).analyzePersistenceXmlFile(any(URI.class), eq(privatePersistenceXML.toURI()), any(URI.class), any(ClassLoader.class));
+
+        PersistenceUnitRegistry persistenceUnitRegistry = new DefaultPersistenceUnitRegistry();
+        WebApplicationPersistenceProcessor processor = new WebApplicationPersistenceProcessor(persistenceXmlAnalyzer, new DefaultPersistenceMetrics(), persistenceUnitRegistry, 1);
+        WebApplicationPersistenceUndeployProcessor undeployProcessor = new WebApplicationPersistenceUndeployProcessor(persistenceUnitRegistry);
+        try (URLClassLoader secondClassLoader = new URLClassLoader(new URL[] {webApplicationClassLoader.getURLs()[0]}, sharedClassLoader)) {
+            Deployment first = new Deployment("first", libraryDescriptors, webApplicationClassLoader);
+            Deployment second = new Deployment("second", libraryDescriptors, secondClassLoader);
+            processor.handle(first.webApplication, first.processorContext);
+            processor.handle(second.webApplication, second.processorContext);
+
+            // the shared units are given by their own manager, never merged into the managers of the web applications
+            assertEquals(((CompositePersistenceUnitManager) first.facets.get(EZBPersistenceUnitManager.class)).getPersistenceUnitManagers(), Collections.singletonList(firstPrivateManager));
+            assertEquals(((CompositePersistenceUnitManager) second.facets.get(EZBPersistenceUnitManager.class)).getPersistenceUnitManagers(), Collections.singletonList(secondPrivateManager));
+            verify(firstPrivateManager, never()).merge(any(EZBPersistenceUnitManager.class));
+            verify(secondPrivateManager, never()).merge(any(EZBPersistenceUnitManager.class));
+            verify(persistenceXmlAnalyzer, times(1)).analyzePersistenceXmlFile(any(URI.class), eq(sharedPersistenceXML.toURI()), any(URI.class), any(ClassLoader.class));
+            assertSame(SharedPersistenceUnitManagers.getPersistenceUnitManager(first.artifact, "shared"), sharedManager);
+            assertSame(SharedPersistenceUnitManagers.getPersistenceUnitManager(first.artifact, "private"), first.facets.get(EZBPersistenceUnitManager.class));
+            assertSame(((CompositePersistenceUnitManager) first.facets.get(EZBPersistenceUnitManager.class)).getPersistenceUnitManager("private"), firstPrivateManager);
+
+            SharedPersistenceUnits sharedUnits = ((SharedPersistenceUnitReferences) first.facets.get(SharedPersistenceUnitReferences.class)).getSharedUnits().get(0);
+            assertEquals(persistenceUnitRegistry.getReferenceCount(sharedClassLoader, sharedUnits.getFingerprint()), 2);
+
+            // the second web application is still using the shared units
+            undeployProcessor.handle(first.webApplication, first.processorContext);
+            assertEquals(persistenceUnitRegistry.getReferenceCount(sharedClassLoader, sharedUnits.getFingerprint()), 1);
+            verify(sharedEntityManagerFactory, never()).close();
+            assertSame(SharedPersistenceUnitManagers.getPersistenceUnitManager(second.artifact, "shared"), sharedManager);
+
+            undeployProcessor.handle(second.webApplication, second.processorContext);
+            assertEquals(persistenceUnitRegistry.size(), 0);
+            verify(sharedEntityManagerFactory).close();
+        } finally {
+            processor.stop();
+        }
+    }
+
+    private static SharedPersistenceUnits locate(PersistenceDescriptors descriptors, PersistenceDescriptorSnapshot snapshot, ClassLoader classLoader) {
+        Set<String> managedClasses = new LinkedHashSet<String>();
+        for (PersistenceUnitDescriptor unit : snapshot.getUnits()) {
+            managedClasses.addAll(unit.getClassNames());
+        }
+        return SharedPersistenceUnits.locate(descriptors, snapshot, managedClasses, classLoader);
+    }
+
+    private static PersistenceDescriptorSnapshot snapshot(String shared, String... classNames) {
+        Map<String, String> properties = new HashMap<String, String>();
+        if (shared != null) {
+            properties.put(SharedPersistenceUnits.UNIT_PROPERTY, shared);
+        }
+        PersistenceUnitDescriptor unit = new PersistenceUnitDescriptor("unit", Arrays.asList(classNames), Collections.<String>emptyList(), properties);
+        return new PersistenceDescriptorSnapshot(null, "digest", Collections.singletonList(unit), Collections.<String>emptySet());
+    }
+
+    private static File directory(String name) throws IOException {
+        File directory = File.createTempFile(name, "");
+        assertTrue(directory.delete() && directory.mkdirs());
+        return directory;
+    }
+
+    private static void touch(File directory, String className) throws IOException {
+        File file = new File(directory, className.replace('.', '/') + ".class");
+        assertTrue(file.getParentFile().mkdirs());
+        write(file, className);
+    }
+
+    private static void write(File file, String content) throws IOException {
+        file.deleteOnExit();
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(content.getBytes("UTF-8"));
+        }
+    }
+
+
+    /**
+     * Deployment of a web application whose facets are kept in a map.
+     */
+    private static final class Deployment {
+
+        private final Map<Class<?>, Object> facets = new HashMap<Class<?>, Object>();
+
+        private final WebApplication webApplication = mock(WebApplication.class);
+
+        private final ProcessorContext processorContext = mock(ProcessorContext.class);
+
+        private final Artifact artifact = mock(Artifact.class);
+
+        public Deployment(String name, List<PersistenceDescriptors> libraryDescriptors, ClassLoader classLoader) {
+            doReturn(classLoader).when(webApplication).getClassLoader();
+            doReturn(artifact).when(processorContext).getArtifact();
+            facets.put(WebApplicationPersistenceDescriptors.class, new WebApplicationPersistenceDescriptors(URI.create("file:/nonexistent/" + name + ".war"), PersistenceDescriptors.NONE, libraryDescriptors));
+            doAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) {
+                    return facets.get(invocation.getArguments()[0]);
+                }
+            }).when(artifact).as(any(Class.class));
+            doAnswer(new Answer<Void>() {
+                @Override
+                public Void answer(InvocationOnMock invocation) {
+                    facets.put((Class<?>) invocation.getArguments()[0], invocation.getArguments()[1]);
+                    return null;
+                }
+            }).when(processorContext).addFacet(any(Class.class), any());
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.ow2.easybeans.loader.EasyBeansClassLoader;
+import org.ow2.easybeans.persistence.EZBPersistenceUnitManager;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.peergreen.deployment.Artifact;
+import com.peergreen.deployment.ProcessorContext;
+import com.peergreen.deployment.facet.archive.Archive;
+import com.peergreen.persistence.easybeans.metrics.DefaultPersistenceMetrics;
+import com.peergreen.webcontainer.WebApplication;
+
+/**
+ * Test the replacement of the classloader of a web application.
+ * @author Florent Benoit
+ */
+public class TestWebApplicationPersistenceClassLoaderProcessor {
+
+    @Mock
+    private WebApplication webApplication;
+
+    @Mock
+    private ProcessorContext processorContext;
+
+    @Mock
+    private Artifact artifact;
+
+    @Mock
+    private Archive archive;
+
+    @Mock
+    private Archive library;
+
+    private WebApplicationPersistenceClassLoaderProcessor processor;
+
+    @BeforeMethod
+    public void init() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        processor = new WebApplicationPersistenceClassLoaderProcessor(new DefaultPersistenceMetrics());
+
+        doReturn(artifact).when(processorContext).getArtifact();
+        doReturn(archive).when(artifact).as(Archive.class);
+        doReturn(new URI("file:/nonexistent/app.war")).when(archive).getURI();
+        doReturn(new URI("file:/nonexistent/app.war/WEB-INF/lib/library.jar")).when(library).getURI();
+
+        List<Archive> libraries = new ArrayList<Archive>();
+        libraries.add(library);
+        doReturn(libraries).when(webApplication).getLibraries();
+        doReturn(new URLClassLoader(new URL[0], getClass().getClassLoader())).when(webApplication).getClassLoader();
+    }
+
+    @Test
+    public void testNoPersistenceKeepsClassLoader() throws Exception {
+        processor.handle(webApplication, processorContext);
+        verify(webApplication, never()).setClassLoader(any(ClassLoader.class));
+        verify(processorContext).addFacet(eq(WebApplicationPersistenceDescriptors.class), any(WebApplicationPersistenceDescriptors.class));
+    }
+
+    @Test
+    public void testOrmOnlyKeepsClassLoader() throws Exception {
+        doReturn(new URI("jar:file:/nonexistent/library.jar!/META-INF/orm.xml")).when(library).getResource("META-INF/orm.xml");
+        processor.handle(webApplication, processorContext);
+        verify(webApplication, never()).setClassLoader(any(ClassLoader.class));
+    }
+
+    @Test
+    public void testPersistenceInWebApplication() throws Exception {
+        doReturn(new URI("file:/nonexistent/app.war/WEB-INF/classes/META-INF/persistence.xml")).when(archive).getResource("WEB-INF/classes/META-INF/persistence.xml");
+        processor.handle(webApplication, processorContext);
+        verify(webApplication).setClassLoader(any(EasyBeansClassLoader.class));
+    }
+
+    @Test
+    public void testPersistenceInLibrary() throws Exception {
+        doReturn(new URI("jar:file:/nonexistent/library.jar!/META-INF/persistence.xml")).when(library).getResource("META-INF/persistence.xml");
+        processor.handle(webApplication, processorContext);
+        verify(webApplication).setClassLoader(any(EasyBeansClassLoader.class));
+    }
+
+    @Test
+    public void testExistingPersistenceUnitManager() throws Exception {
+        doReturn(mock(EZBPersistenceUnitManager.class)).when(artifact).as(EZBPersistenceUnitManager.class);
+        processor.handle(webApplication, processorContext);
+        verify(webApplication).setClassLoader(any(EasyBeansClassLoader.class));
+    }
+
+}
@@ -0,0 +1,554 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.ow2.easybeans.persistence.EZBPersistenceUnitManager;
+import org.ow2.easybeans.persistence.EZBPersistenceXmlAnalyzer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.peergreen.deployment.Artifact;
+import com.peergreen.deployment.ProcessorContext;
+import com.peergreen.deployment.ProcessorException;
+import com.peergreen.deployment.facet.archive.Archive;
+import com.peergreen.persistence.easybeans.index.PersistenceIndex;
+import com.peergreen.persistence.easybeans.metrics.DefaultPersistenceMetrics;
+import com.peergreen.webcontainer.WebApplication;
+
+/**
+ * Test the analysis of the persistence data of a web application and of its libraries.
+ * @author Florent Benoit
+ */
+public class TestWebApplicationPersistenceProcessor {
+
+    private static final int LIBRARIES = 200;
+
+    /**
+     * One library on {@link #PERSISTENCE_LIBRARY_RATIO} is providing a persistence.xml file.
+     */
+    private static final int PERSISTENCE_LIBRARY_RATIO = 10;
+
+    @Mock
+    private EZBPersistenceXmlAnalyzer persistenceXmlAnalyzer;
+
+    @Mock
+    private WebApplication webApplication;
+
+    @Mock
+    private ProcessorContext processorContext;
+
+    @Mock
+    private Artifact artifact;
+
+    @Mock
+    private Archive archive;
+
+    @Mock
+    private EZBPersistenceUnitManager warPersistenceUnitManager;
+
+    @Mock
+    private EZBPersistenceUnitManager existingPersistenceUnitManager;
+
+    private URI rootURI;
+
+    private URI warPersistenceXML;
+
+    private List<Archive> libraries;
+
+    private List<EZBPersistenceUnitManager> libraryPersistenceUnitManagers;
+
+    private DefaultPersistenceMetrics persistenceMetrics;
+
+    private Map<Class<?>, Object> facets;
+
+
+    @BeforeMethod
+    public void init() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        persistenceMetrics = new DefaultPersistenceMetrics();
+        facets = new HashMap<Class<?>, Object>();
+
+        rootURI = new URI("file:/nonexistent/app.war");
+        warPersistenceXML = new URI("file:/nonexistent/app.war/WEB-INF/classes/META-INF/persistence.xml");
+
+        doReturn(artifact).when(processorContext).getArtifact();
+        doReturn(archive).when(artifact).as(Archive.class);
+        doReturn(rootURI).when(archive).getURI();
+        doReturn(getClass().getClassLoader()).when(webApplication).getClassLoader();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                facets.put((Class<?>) invocation.getArguments()[0], invocation.getArguments()[1]);
+                return null;
+            }
+        }).when(processorContext).addFacet(any(Class.class), any());
+
+        libraries = new ArrayList<Archive>();
+        libraryPersistenceUnitManagers = new ArrayList<EZBPersistenceUnitManager>();
+        for (int i = 0; i < LIBRARIES; i++) {
+            Archive library = mock(Archive.class);
+            doReturn(new URI("file:/nonexistent/app.war/WEB-INF/lib/library-" + i + ".jar")).when(library).getURI();
+            if (i % PERSISTENCE_LIBRARY_RATIO == 0) {
+                URI persistenceXML = new URI("jar:file:/nonexistent/app.war/WEB-INF/lib/library-" + i + ".jar!/META-INF/persistence.xml");
+                doReturn(persistenceXML).when(library).getResource("META-INF/persistence.xml");
+                EZBPersistenceUnitManager libraryPersistenceUnitManager = mock(EZBPersistenceUnitManager.class);
+                doReturn(libraryPersistenceUnitManager).when(persistenceXmlAnalyzer).analyzePersistenceXmlFile(eq(rootURI), eq(persistenceXML), any(URI.class), any(ClassLoader.class));
+                libraryPersistenceUnitManagers.add(libraryPersistenceUnitManager);
+            }
+            libraries.add(library);
+        }
+        doReturn(libraries).when(webApplication).getLibraries();
+    }
+
+    @Test
+    public void testNoPersistence() throws Exception {
+        doReturn(new ArrayList<Archive>()).when(webApplication).getLibraries();
+        new WebApplicationPersistenceProcessor(persistenceXmlAnalyzer, persistenceMetrics, 1).handle(webApplication, processorContext);
+        verifyZeroInteractions(persistenceXmlAnalyzer);
+        verify(processorContext, never()).addFacet(any(Class.class), any());
+    }
+
+    @Test
+    public void testWarAndLibrariesSerial() throws Exception {
+        checkWarAndLibraries(new WebApplicationPersistenceProcessor(persistenceXmlAnalyzer, persistenceMetrics, 1));
+    }
+
+    @Test
+    public void testWarAndLibrariesParallel() throws Exception {
+        checkWarAndLibraries(new WebApplicationPersistenceProcessor(persistenceXmlAnalyzer, persistenceMetrics, 8));
+    }
+
+    @Test
+    public void testLibrariesOnly() throws Exception {
+        new WebApplicationPersistenceProcessor(persistenceXmlAnalyzer, persistenceMetrics, 8).handle(webApplication, processorContext);
+
+        // the units of the libraries are given in the order of the libraries, without merging the managers
+        assertEquals(getPersistenceUnitManager().getPersistenceUnitManagers(), libraryPersistenceUnitManagers);
+        verifyNeverMerged(libraryPersistenceUnitManagers);
+        assertEquals(persistenceMetrics.getManagersMerged(), libraryPersistenceUnitManagers.size() - 1L);
+    }
+
+    @Test
+    public void testExistingPersistenceUnitManager() throws Exception {
+        doReturn(existingPersistenceUnitManager).when(artifact).as(EZBPersistenceUnitManager.class);
+        mockWarPersistence();
+
+        new WebApplicationPersistenceProcessor(persistenceXmlAnalyzer, persistenceMetrics, 8).handle(webApplication, processorContext);
+
+        // the existing manager keeps its units and is not modified
+        List<EZBPersistenceUnitManager> expected = new ArrayList<EZBPersistenceUnitManager>();
+        expected.add(existingPersistenceUnitManager);
+        expected.add(warPersistenceUnitManager);
+        expected.addAll(libraryPersistenceUnitManagers);
+        assertEquals(getPersistenceUnitManager().getPersistenceUnitManagers(), expected);
+        verifyNeverMerged(expected);
+    }
+
+    @Test
+    public void testUnitOfExistingPersistenceUnitManagerIsReported() throws Exception {
+        File persistenceXML = writePersistenceXML(File.createTempFile("library", ".xml"), "existing");
+        mockLibraries(persistenceXML);
+        // the units of the existing manager are unknown, it is asked for the declared units
+        EntityManagerFactory entityManagerFactory = mock(EntityManagerFactory.class);
+        doReturn(entityManagerFactory).when(existingPersistenceUnitManager).getEntityManagerFactory("existing");
+        doReturn(existingPersistenceUnitManager).when(artifact).as(EZBPersistenceUnitManager.class);
+
+        try {
+            new WebApplicationPersistenceProcessor(persistenceXmlAnalyzer, persistenceMetrics, 1).handle(webApplication, processorContext);
+            fail("The duplicate unit should be reported");
+        } catch (ProcessorException e) {
+            assertTrue(e.getMessage().contains("'existing'"), e.getMessage());
+            assertTrue(e.getMessage().contains(persistenceXML.toURI().toString()), e.getMessage());
+        }
+        verifyZeroInteractions(persistenceXmlAnalyzer);
+        verify(processorContext, never()).addFacet(any(Class.class), any());
+    }
+
+    @Test
+    public void testUnitOfExistingCompositeIsReported() throws Exception {
+        File persistenceXML = writePersistenceXML(File.createTempFile("library", ".xml"), "existing");
+        mockLibraries(persistenceXML);
+        URI otherPersistenceXML = new URI("file:/nonexistent/other/persistence.xml");
+        CompositePersistenceUnitManager existing = new CompositePersistenceUnitManager();
+        existing.add(otherPersistenceXML, Collections.singletonList("existing"), existingPersistenceUnitManager);
+        doReturn(existing).when(artifact).as(EZBPersistenceUnitManager.class);
+
+        try {
+            new WebApplicationPersistenceProcessor(persistenceXmlAnalyzer, persistenceMetrics, 1).handle(webApplication, processorContext);
+            fail("The duplicate unit should be reported");
+        } catch (ProcessorException e) {
+            assertTrue(e.getMessage().contains("'existing'"), e.getMessage());
+            assertTrue(e.getMessage().contains(otherPersistenceXML.toString()), e.getMessage());
+            assertTrue(e.getMessage().contains(persistenceXML.toURI().toString()), e.getMessage());
+        }
+        verifyZeroInteractions(persistenceXmlAnalyzer);
+    }
+
+    @Test
+    public void testRedeclaredUnitsReplaceUnitsOfExistingComposite() throws Exception {
+        File persistenceXML = writePersistenceXML(File.createTempFile("library", ".xml"), "redeployed");
+        mockLibraries(persistenceXML);
+        EZBPersistenceUnitManager redeployedPersistenceUnitManager = mock(EZBPersistenceUnitManager.class);
+        doReturn(redeployedPersistenceUnitManager).when(persistenceXmlAnalyzer).analyzePersistenceXmlFile(eq(rootURI), eq(persistenceXML.toURI()), any(URI.class), any(ClassLoader.class));
+        // the existing manager comes from a previous deployment of the same file
+        CompositePersistenceUnitManager existing = new CompositePersistenceUnitManager();
+        existing.add(persistenceXML.toURI(), Collections.singletonList("redeployed"), existingPersistenceUnitManager);
+        doReturn(existing).when(artifact).as(EZBPersistenceUnitManager.class);
+
+        new WebApplicationPersistenceProcessor(persistenceXmlAnalyzer, persistenceMetrics, 1).handle(webApplication, processorContext);
+
+        assertEquals(getPersistenceUnitManager().getPersistenceUnitManagers(), Collections.singletonList(redeployedPersistenceUnitManager));
+        assertSame(getPersistenceUnitManager().getPersistenceUnitManager("redeployed"), redeployedPersistenceUnitManager);
+    }
+
+    @Test
+    public void testUnitsAreGivenByTheirOwnManager() throws Exception {
+        List<File> persistenceXMLs = new ArrayList<File>();
+        for (int i = 0; i < LIBRARIES / PERSISTENCE_LIBRARY_RATIO; i++) {
+            persistenceXMLs.add(writePersistenceXML(File.createTempFile("library", ".xml"), "unit-" + i));
+        }
+        mockLibraries(persistenceXMLs.toArray(new File[persistenceXMLs.size()]));
+        List<EZBPersistenceUnitManager> persistenceUnitManagers = new ArrayList<EZBPersistenceUnitManager>();
+        for (File persistenceXML : persistenceXMLs) {
+            EZBPersistenceUnitManager persistenceUnitManager = mock(EZBPersistenceUnitManager.class);
+            doReturn(persistenceUnitManager).when(persistenceXmlAnalyzer).analyzePersistenceXmlFile(eq(rootURI), eq(persistenceXML.toURI()), any(URI.class), any(ClassLoader.class));
+            persistenceUnitManagers.add(persistenceUnitManager);
+        }
+
+        new WebApplicationPersistenceProcessor(persistenceXmlAnalyzer, persistenceMetrics, 8).handle(webApplication, processorContext);
+
+        CompositePersistenceUnitManager persistenceUnitManager = getPersistenceUnitManager();
+        for (int i = 0; i < persistenceUnitManagers.size(); i++) {
+            assertSame(persistenceUnitManager.getPersistenceUnitManager("unit-" + i), persistenceUnitManagers.get(i));
+            persistenceUnitManager.getEntityManagerFactory("unit-" + i);
+            verify(persistenceUnitManagers.get(i)).getEntityManagerFactory("unit-" + i);
+        }
+        assertEquals(persistenceUnitManager.getUnindexedPersistenceUnitManagers(), Collections.emptyList());
+        verifyNeverMerged(persistenceUnitManagers);
+    }
+
+    @Test
+    public void testUnchangedLibraryIsNotProbedTwice() throws Exception {
+        File file = File.createTempFile("library", ".jar");
+        file.deleteOnExit();
+        Archive library = mock(Archive.class);
+        doReturn(file.toURI()).when(library).getURI();
+        libraries.add(library);
+
+        WebApplicationPersistenceProcessor processor = new WebApplicationPersistenceProcessor(persistenceXmlAnalyzer, persistenceMetrics, 1);
+        processor.handle(webApplication, processorContext);
+        processor.handle(webApplication, processorContext);
+
+        verify(library, times(1)).getResource("META-INF/persistence.xml");
+        verify(library, times(1)).getResource("META-INF/orm.xml");
+        assertEquals(persistenceMetrics.getLibrariesProbed(), 2L * LIBRARIES + 1);
+    }
+
+    @Test
+    public void testDescriptorsOfClassLoaderPhaseAreReused() throws Exception {
+        List<PersistenceDescriptors> libraryDescriptors = new ArrayList<PersistenceDescriptors>();
+        for (int i = 0; i < LIBRARIES; i++) {
+            URI persistenceXML = null;
+            if (i % PERSISTENCE_LIBRARY_RATIO == 0) {
+                persistenceXML = new URI("jar:file:/nonexistent/app.war/WEB-INF/lib/library-" + i + ".jar!/META-INF/persistence.xml");
+            }
+            libraryDescriptors.add(new PersistenceDescriptors(persistenceXML, null));
+        }
+        WebApplicationPersistenceDescriptors descriptors = new WebApplicationPersistenceDescriptors(rootURI, new PersistenceDescriptors(warPersistenceXML, null), libraryDescriptors);
+        doReturn(descriptors).when(artifact).as(WebApplicationPersistenceDescriptors.class);
+        mockWarPersistence();
+
+        new WebApplicationPersistenceProcessor(persistenceXmlAnalyzer, persistenceMetrics, 8).handle(webApplication, processorContext);
+
+        verifyZeroInteractions(archive);
+        for (Archive library : libraries) {
+            verifyZeroInteractions(library);
+        }
+        List<EZBPersistenceUnitManager> expected = new ArrayList<EZBPersistenceUnitManager>();
+        expected.add(warPersistenceUnitManager);
+        expected.addAll(libraryPersistenceUnitManagers);
+        assertEquals(getPersistenceUnitManager().getPersistenceUnitManagers(), expected);
+        assertEquals(persistenceMetrics.getManagersMerged(), (long) libraryPersistenceUnitManagers.size());
+    }
+
+    @Test
+    public void testRedeployAnalyzesOnlyChangedDescriptors() throws Exception {
+        File unchangedPersistenceXML = writePersistenceXML(File.createTempFile("unchanged", ".xml"), "unchanged");
+        File changedPersistenceXML = writePersistenceXML(File.createTempFile("changed", ".xml"), "changed");
+        libraries = new ArrayList<Archive>();
+        List<EZBPersistenceUnitManager> persistenceUnitManagers = new ArrayList<EZBPersistenceUnitManager>();
+        for (File persistenceXML : new File[] {unchangedPersistenceXML, changedPersistenceXML}) {
+            Archive library = mock(Archive.class);
+            doReturn(persistenceXML.getParentFile().toURI()).when(library).getURI();
+            doReturn(persistenceXML.toURI()).when(library).getResource("META-INF/persistence.xml");
+            EZBPersistenceUnitManager persistenceUnitManager = mock(EZBPersistenceUnitManager.class);
+            doReturn(persistenceUnitManager).when(persistenceXmlAnalyzer).analyzePersistenceXmlFile(eq(rootURI), eq(persistenceXML.toURI()), any(URI.class), any(ClassLoader.class));
+            persistenceUnitManagers.add(persistenceUnitManager);
+            libraries.add(library);
+        }
+        doReturn(libraries).when(webApplication).getLibraries();
+
+        WebApplicationPersistenceProcessor processor = new WebApplicationPersistenceProcessor(persistenceXmlAnalyzer, persistenceMetrics, 1);
+        processor.handle(webApplication, processorContext);
+
+        writePersistenceXML(changedPersistenceXML, "changed-again");
+        changedPersistenceXML.setLastModified(changedPersistenceXML.lastModified() + 2000);
+        processor.handle(webApplication, processorContext);
+
+        verify(persistenceXmlAnalyzer, times(1)).analyzePersistenceXmlFile(eq(rootURI), eq(unchangedPersistenceXML.toURI()), any(URI.class), any(ClassLoader.class));
+        verify(persistenceXmlAnalyzer, times(2)).analyzePersistenceXmlFile(eq(rootURI), eq(changedPersistenceXML.toURI()), any(URI.class), any(ClassLoader.class));
+        // the cached manager gives its units again, the managers are never modified
+        assertEquals(getPersistenceUnitManager().getPersistenceUnitManagers(), persistenceUnitManagers);
+        verifyNeverMerged(persistenceUnitManagers);
+    }
+
+    @Test
+    public void testNewClassLoaderAnalyzesUnitsAgain() throws Exception {
+        File persistenceXML = writePersistenceXML(File.createTempFile("library", ".xml"), "unit");
+        mockLibraries(persistenceXML);
+
+        WebApplicationPersistenceProcessor processor = new WebApplicationPersistenceProcessor(persistenceXmlAnalyzer, persistenceMetrics, 1);
+        processor.handle(webApplication, processorContext);
+        try (URLClassLoader classLoader = new URLClassLoader(new URL[0], getClass().getClassLoader())) {
+            doReturn(classLoader).when(webApplication).getClassLoader();
+            processor.handle(webApplication, processorContext);
+        }
+
+        // the analyzed units are bound to the classloader of the previous deployment
+        verify(persistenceXmlAnalyzer, times(2)).analyzePersistenceXmlFile(eq(rootURI), eq(persistenceXML.toURI()), any(URI.class), any(ClassLoader.class));
+    }
+
+    @Test
+    public void testDuplicateUnitNameIsReported() throws Exception {
+        File firstPersistenceXML = writePersistenceXML(File.createTempFile("first", ".xml"), "duplicate");
+        File secondPersistenceXML = writePersistenceXML(File.createTempFile("second", ".xml"), "duplicate");
+        libraries = new ArrayList<Archive>();
+        for (File persistenceXML : new File[] {firstPersistenceXML, secondPersistenceXML}) {
+            Archive library = mock(Archive.class);
+            doReturn(persistenceXML.getParentFile().toURI()).when(library).getURI();
+            doReturn(persistenceXML.toURI()).when(library).getResource("META-INF/persistence.xml");
+            libraries.add(library);
+        }
+        doReturn(libraries).when(webApplication).getLibraries();
+
+        try {
+            new WebApplicationPersistenceProcessor(persistenceXmlAnalyzer, persistenceMetrics, 1).handle(webApplication, processorContext);
+            fail("The duplicate unit should be reported");
+        } catch (ProcessorException e) {
+            assertTrue(e.getMessage().contains("'duplicate'"), e.getMessage());
+            assertTrue(e.getMessage().contains(firstPersistenceXML.toURI().toString()), e.getMessage());
+            assertTrue(e.getMessage().contains(secondPersistenceXML.toURI().toString()), e.getMessage());
+        }
+        // nothing is analyzed nor merged
+        verifyZeroInteractions(persistenceXmlAnalyzer);
+        verify(processorContext, never()).addFacet(any(Class.class), any());
+    }
+
+    @Test
+    public void testCachedManagersAreNeverMerged() throws Exception {
+        File firstPersistenceXML = writePersistenceXML(File.createTempFile("first", ".xml"), "first");
+        File secondPersistenceXML = writePersistenceXML(File.createTempFile("second", ".xml"), "second");
+        mockLibraries(firstPersistenceXML, secondPersistenceXML);
+        EZBPersistenceUnitManager first = mock(EZBPersistenceUnitManager.class);
+        EZBPersistenceUnitManager second = mock(EZBPersistenceUnitManager.class);
+        doReturn(first).when(persistenceXmlAnalyzer).analyzePersistenceXmlFile(eq(rootURI), eq(firstPersistenceXML.toURI()), any(URI.class), any(ClassLoader.class));
+        doReturn(second).when(persistenceXmlAnalyzer).analyzePersistenceXmlFile(eq(rootURI), eq(secondPersistenceXML.toURI()), any(URI.class), any(ClassLoader.class));
+
+        WebApplicationPersistenceProcessor processor = new WebApplicationPersistenceProcessor(persistenceXmlAnalyzer, persistenceMetrics, 1);
+        processor.handle(webApplication, processorContext);
+        processor.handle(webApplication, processorContext);
+
+        // both managers are cached as none of them receives the units of the other one
+        verify(persistenceXmlAnalyzer, times(1)).analyzePersistenceXmlFile(eq(rootURI), eq(firstPersistenceXML.toURI()), any(URI.class), any(ClassLoader.class));
+        verify(persistenceXmlAnalyzer, times(1)).analyzePersistenceXmlFile(eq(rootURI), eq(secondPersistenceXML.toURI()), any(URI.class), any(ClassLoader.class));
+        assertEquals(getPersistenceUnitManager().getPersistenceUnitManagers(), Arrays.asList(first, second));
+        assertSame(getPersistenceUnitManager().getPersistenceUnitManager("second"), second);
+        verifyNeverMerged(Arrays.asList(first, second));
+    }
+
+    @Test
+    public void testIndexAvoidsProbingLibraries() throws Exception {
+        List<Archive> indexedLibraries = mockIndexedLibraries(0, 0);
+
+        new WebApplicationPersistenceProcessor(persistenceXmlAnalyzer, persistenceMetrics, 1).handle(webApplication, processorContext);
+
+        verify(indexedLibraries.get(0), times(1)).getResource("META-INF/persistence.xml");
+        verify(indexedLibraries.get(0), never()).getResource("META-INF/orm.xml");
+        verify(indexedLibraries.get(1), never()).getResource(any(String.class));
+        verify(persistenceXmlAnalyzer).analyzePersistenceXmlFile(eq(rootURI), eq(new URI("jar:file:/nonexistent/indexed.jar!/META-INF/persistence.xml")), any(URI.class), any(ClassLoader.class));
+        assertEquals(persistenceMetrics.getLibrariesProbed(), 1L);
+    }
+
+    @Test
+    public void testChangedLibraryIsProbed() throws Exception {
+        // second library has changed since the packaging
+        List<Archive> indexedLibraries = mockIndexedLibraries(1, 0);
+
+        new WebApplicationPersistenceProcessor(persistenceXmlAnalyzer, persistenceMetrics, 1).handle(webApplication, processorContext);
+
+        // the first library is still given by the index
+        verify(indexedLibraries.get(0), never()).getResource("META-INF/orm.xml");
+        verify(indexedLibraries.get(1), times(1)).getResource("META-INF/persistence.xml");
+        verify(indexedLibraries.get(1), times(1)).getResource("META-INF/orm.xml");
+        assertEquals(persistenceMetrics.getLibrariesProbed(), 2L);
+    }
+
+    @Test
+    public void testRebuiltLibraryWithSameSizeIsDetected() throws Exception {
+        // second library has been rebuilt with the same size since the packaging
+        List<Archive> indexedLibraries = mockIndexedLibraries(0, 60000L);
+
+        new WebApplicationPersistenceProcessor(persistenceXmlAnalyzer, persistenceMetrics, 1).handle(webApplication, processorContext);
+
+        verify(indexedLibraries.get(1), times(1)).getResource("META-INF/persistence.xml");
+        verify(indexedLibraries.get(1), times(1)).getResource("META-INF/orm.xml");
+        assertEquals(persistenceMetrics.getLibrariesProbed(), 2L);
+    }
+
+    /**
+     * Mocks two libraries and the index of the web application. Only the first library has a persistence.xml file.
+     * @param sizeDelta difference between the size of the second library and its size in the index
+     * @param timeDelta difference between the last modified time of the second library and its time in the index
+     * @return the libraries
+     */
+    private List<Archive> mockIndexedLibraries(long sizeDelta, long timeDelta) throws Exception {
+        PersistenceIndex index = new PersistenceIndex();
+        libraries = new ArrayList<Archive>();
+        for (int i = 0; i < 2; i++) {
+            File file = File.createTempFile("library", ".jar");
+            file.deleteOnExit();
+            try (ZipOutputStream zipOutputStream = new ZipOutputStream(new FileOutputStream(file))) {
+                zipOutputStream.putNextEntry(new ZipEntry("com/example/Library" + i + ".class"));
+                zipOutputStream.closeEntry();
+            }
+            String artifactId = file.getName().substring(0, file.getName().length() - ".jar".length());
+            Archive library = mock(Archive.class);
+            doReturn(file.toURI()).when(library).getURI();
+            if (i == 0) {
+                doReturn(new URI("jar:file:/nonexistent/indexed.jar!/META-INF/persistence.xml")).when(library).getResource("META-INF/persistence.xml");
+                index.add(new PersistenceIndex.Entry("com.example", artifactId, file.length(), file.lastModified(), true, false));
+            } else {
+                index.add(new PersistenceIndex.Entry("com.example", artifactId, file.length() + sizeDelta, file.lastModified() + timeDelta, false, false));
+            }
+            libraries.add(library);
+        }
+        doReturn(libraries).when(webApplication).getLibraries();
+
+        File indexFile = File.createTempFile("persistence", ".idx");
+        indexFile.deleteOnExit();
+        try (OutputStream outputStream = new FileOutputStream(indexFile)) {
+            index.write(outputStream);
+        }
+        doReturn(indexFile.toURI()).when(archive).getResource(PersistenceIndex.PATH_IN_WAR);
+        return libraries;
+    }
+
+    private void checkWarAndLibraries(WebApplicationPersistenceProcessor processor) throws Exception {
+        mockWarPersistence();
+
+        processor.handle(webApplication, processorContext);
+
+        // WAR units are given first and then the units of the libraries in their order
+        List<EZBPersistenceUnitManager> expected = new ArrayList<EZBPersistenceUnitManager>();
+        expected.add(warPersistenceUnitManager);
+        expected.addAll(libraryPersistenceUnitManagers);
+        assertEquals(getPersistenceUnitManager().getPersistenceUnitManagers(), expected);
+        verifyNeverMerged(expected);
+        assertEquals(persistenceMetrics.getDescriptorsParsed(), libraryPersistenceUnitManagers.size() + 1L);
+        assertEquals(persistenceMetrics.getManagersMerged(), (long) libraryPersistenceUnitManagers.size());
+        for (EZBPersistenceUnitManager libraryPersistenceUnitManager : libraryPersistenceUnitManagers) {
+            verify(processorContext, never()).addFacet(EZBPersistenceUnitManager.class, libraryPersistenceUnitManager);
+        }
+    }
+
+    /**
+     * Replaces the libraries of the web application by libraries providing the given persistence.xml files.
+     */
+    private void mockLibraries(File... persistenceXMLs) throws Exception {
+        libraries = new ArrayList<Archive>();
+        for (File persistenceXML : persistenceXMLs) {
+            Archive library = mock(Archive.class);
+            doReturn(persistenceXML.getParentFile().toURI()).when(library).getURI();
+            doReturn(persistenceXML.toURI()).when(library).getResource("META-INF/persistence.xml");
+            libraries.add(library);
+        }
+        doReturn(libraries).when(webApplication).getLibraries();
+    }
+
+    /**
+     * @return the manager added on the artifact by the last deployment
+     */
+    private CompositePersistenceUnitManager getPersistenceUnitManager() {
+        Object persistenceUnitManager = facets.get(EZBPersistenceUnitManager.class);
+        assertTrue(persistenceUnitManager instanceof CompositePersistenceUnitManager, String.valueOf(persistenceUnitManager));
+        return (CompositePersistenceUnitManager) persistenceUnitManager;
+    }
+
+    private static void verifyNeverMerged(List<EZBPersistenceUnitManager> persistenceUnitManagers) {
+        for (EZBPersistenceUnitManager persistenceUnitManager : persistenceUnitManagers) {
+            verify(persistenceUnitManager, never()).merge(any(EZBPersistenceUnitManager.class));
+        }
+    }
+
+    private static File writePersistenceXML(File file, String unitName) throws Exception {
+        file.deleteOnExit();
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(("<persistence xmlns=\"http://java.sun.com/xml/ns/persistence\" version=\"2.0\">"
+                    + "<persistence-unit name=\"" + unitName + "\"/></persistence>").getBytes("UTF-8"));
+        }
+        return file;
+    }
+
+    private void mockWarPersistence() throws Exception {
+        doReturn(warPersistenceXML).when(archive).getResource("WEB-INF/classes/META-INF/persistence.xml");
+        doReturn(warPersistenceUnitManager).when(persistenceXmlAnalyzer).analyzePersistenceXmlFile(eq(rootURI), eq(warPersistenceXML), any(URI.class), any(ClassLoader.class));
+    }
+}
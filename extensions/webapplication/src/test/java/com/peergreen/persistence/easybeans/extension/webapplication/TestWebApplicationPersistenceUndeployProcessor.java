@@ -0,0 +1,88 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.extension.webapplication;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.ow2.easybeans.persistence.EZBPersistenceUnitManager;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.peergreen.deployment.Artifact;
+import com.peergreen.deployment.ProcessorContext;
+import com.peergreen.persistence.easybeans.registry.PersistenceUnitRegistry;
+import com.peergreen.webcontainer.WebApplication;
+
+/**
+ * Test the release of the shared persistence units when a web application is undeployed.
+ * @author Florent Benoit
+ */
+public class TestWebApplicationPersistenceUndeployProcessor {
+
+    @Mock
+    private PersistenceUnitRegistry persistenceUnitRegistry;
+
+    @Mock
+    private WebApplication webApplication;
+
+    @Mock
+    private ProcessorContext processorContext;
+
+    @Mock
+    private Artifact artifact;
+
+    private WebApplicationPersistenceUndeployProcessor processor;
+
+    @BeforeMethod
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+        doReturn(artifact).when(processorContext).getArtifact();
+        processor = new WebApplicationPersistenceUndeployProcessor(persistenceUnitRegistry);
+    }
+
+    @Test
+    public void testSharedUnitsAreReleased() throws Exception {
+        ClassLoader owner = mock(ClassLoader.class);
+        ClassLoader definingClassLoader = mock(ClassLoader.class);
+        SharedPersistenceUnits first = new SharedPersistenceUnits(definingClassLoader, "first");
+        SharedPersistenceUnits second = new SharedPersistenceUnits(definingClassLoader, "second");
+        Map<SharedPersistenceUnits, EZBPersistenceUnitManager> persistenceUnitManagers = new LinkedHashMap<SharedPersistenceUnits, EZBPersistenceUnitManager>();
+        persistenceUnitManagers.put(first, mock(EZBPersistenceUnitManager.class));
+        persistenceUnitManagers.put(second, mock(EZBPersistenceUnitManager.class));
+        doReturn(new SharedPersistenceUnitReferences(owner, persistenceUnitManagers)).when(artifact).as(SharedPersistenceUnitReferences.class);
+
+        processor.handle(webApplication, processorContext);
+
+        verify(persistenceUnitRegistry).release(definingClassLoader, "first", owner);
+        verify(persistenceUnitRegistry).release(definingClassLoader, "second", owner);
+    }
+
+    @Test
+    public void testNoSharedUnits() throws Exception {
+        processor.handle(webApplication, processorContext);
+
+        verifyZeroInteractions(persistenceUnitRegistry);
+    }
+
+}
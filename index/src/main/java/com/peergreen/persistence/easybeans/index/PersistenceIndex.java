@@ -0,0 +1,280 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.index;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Index of the persistence descriptors of a web application, computed when the web application is packaged.
+ * It gives the archives (the web application itself and its libraries) providing a persistence.xml or an orm.xml file
+ * so that the libraries don't have to be probed one by one at deployment.
+ * <p>
+ * The index is a UTF-8 text file with one tab-separated record per line:
+ * <pre>
+ * peergreen-persistence-index  3
+ * archive  &lt;groupId&gt;  &lt;artifactId&gt;  &lt;size&gt;  &lt;last modified&gt;  &lt;P or -&gt;&lt;O or -&gt;
+ * </pre>
+ * The web application is the archive with an empty groupId and artifactId. The libraries are identified by their
+ * Maven coordinates as the file names in WEB-INF/lib are only chosen when the web application is packaged (unique
+ * snapshot versions, file name mapping). The size and the last modified time detect a library changed since the
+ * packaging. The unit names and the managed classes are not indexed: they are read from the descriptors at deployment.
+ * @author Florent Benoit
+ */
+public class PersistenceIndex {
+
+    /**
+     * Location of the index in the web application.
+     */
+    public static final String PATH_IN_WAR = "WEB-INF/classes/META-INF/peergreen-persistence.idx";
+
+    /**
+     * Location of the index in the classes directory of the web application.
+     */
+    public static final String PATH_IN_CLASSES = "META-INF/peergreen-persistence.idx";
+
+    /**
+     * Location of the persistence.xml file in a library or in the classes directory.
+     */
+    public static final String PERSISTENCE_XML_PATH = "META-INF/persistence.xml";
+
+    /**
+     * Location of the orm.xml file in a library or in the classes directory.
+     */
+    public static final String ORM_XML_PATH = "META-INF/orm.xml";
+
+    private static final String HEADER = "peergreen-persistence-index";
+
+    private static final int VERSION = 3;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String SEPARATOR = "\t";
+
+    private static final String NONE = "-";
+
+    /**
+     * Precision of the modified time of a zip entry (the time of a library extracted from the web application).
+     */
+    private static final long ZIP_TIME_PRECISION = 2000L;
+
+    private final Map<String, Entry> entries;
+
+    public PersistenceIndex() {
+        this.entries = new LinkedHashMap<String, Entry>();
+    }
+
+    /**
+     * Adds an archive to the index.
+     * @param entry the data of the archive
+     */
+    public void add(Entry entry) {
+        entries.put(entry.getGroupId() + ":" + entry.getArtifactId(), entry);
+    }
+
+    /**
+     * @param groupId the groupId of the library
+     * @param artifactId the artifactId of the library
+     * @return the data of the library or null if the library is not indexed
+     */
+    public Entry get(String groupId, String artifactId) {
+        return entries.get(groupId + ":" + artifactId);
+    }
+
+    /**
+     * @return the data of the web application or null if it is not indexed
+     */
+    public Entry getWebApplication() {
+        return get("", "");
+    }
+
+    /**
+     * Finds the library packaged with the given file name. The default file names of the WAR plugin
+     * (&lt;artifactId&gt;-&lt;version&gt;.jar, prefixed by the groupId for duplicated artifactIds) and the file names
+     * without version are matched.
+     * @param fileName the file name of the library in WEB-INF/lib
+     * @return the data of the library or null if no library or several libraries are matching
+     */
+    public Entry findLibrary(String fileName) {
+        Entry found = null;
+        int foundLength = 0;
+        boolean ambiguous = false;
+        for (Entry entry : entries.values()) {
+            if (entry.getArtifactId().isEmpty()) {
+                continue;
+            }
+            int length = matchLength(entry, fileName);
+            if (length > foundLength) {
+                found = entry;
+                foundLength = length;
+                ambiguous = false;
+            } else if (length > 0 && length == foundLength) {
+                ambiguous = true;
+            }
+        }
+        return ambiguous ? null : found;
+    }
+
+    /**
+     * @param entry a library
+     * @param fileName the file name of a library in WEB-INF/lib
+     * @return the length of the matched prefix of the file name or 0 if the file name is not the one of the library
+     */
+    private static int matchLength(Entry entry, String fileName) {
+        String qualifiedName = entry.getGroupId() + "-" + entry.getArtifactId();
+        if (fileName.startsWith(qualifiedName + "-")) {
+            return qualifiedName.length() + 1;
+        }
+        if (fileName.startsWith(entry.getArtifactId() + "-") || fileName.startsWith(entry.getArtifactId() + ".")) {
+            return entry.getArtifactId().length() + 1;
+        }
+        return 0;
+    }
+
+    /**
+     * @return the indexed archives
+     */
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    /**
+     * Writes the index.
+     * @param outputStream the stream to write to (not closed)
+     * @throws IOException if the index can't be written
+     */
+    public void write(OutputStream outputStream) throws IOException {
+        Writer writer = new OutputStreamWriter(outputStream, UTF_8);
+        writer.write(HEADER + SEPARATOR + VERSION + "\n");
+        for (Entry entry : entries.values()) {
+            writer.write("archive" + SEPARATOR + entry.getGroupId() + SEPARATOR + entry.getArtifactId() + SEPARATOR
+                    + entry.getSize() + SEPARATOR + entry.getLastModified() + SEPARATOR
+                    + (entry.hasPersistenceXML() ? "P" : NONE) + (entry.hasOrmXML() ? "O" : NONE) + "\n");
+        }
+        writer.flush();
+    }
+
+    /**
+     * Reads an index.
+     * @param inputStream the stream to read (not closed)
+     * @return the index
+     * @throws IOException if the index can't be read or has an unknown format
+     */
+    public static PersistenceIndex read(InputStream inputStream) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, UTF_8));
+        String header = reader.readLine();
+        if (header == null || !header.equals(HEADER + SEPARATOR + VERSION)) {
+            throw new IOException("Unsupported persistence index '" + header + "'");
+        }
+
+        PersistenceIndex index = new PersistenceIndex();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split(SEPARATOR, -1);
+            if (!"archive".equals(fields[0]) || fields.length != 6) {
+                throw new IOException("Invalid persistence index record '" + line + "'");
+            }
+            long size;
+            long lastModified;
+            try {
+                size = Long.parseLong(fields[3]);
+                lastModified = Long.parseLong(fields[4]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid persistence index record '" + line + "'", e);
+            }
+            index.add(new Entry(fields[1], fields[2], size, lastModified, fields[5].indexOf('P') != -1, fields[5].indexOf('O') != -1));
+        }
+        return index;
+    }
+
+
+    /**
+     * Indexed data of an archive.
+     */
+    public static final class Entry {
+
+        private final String groupId;
+        private final String artifactId;
+        private final long size;
+        private final long lastModified;
+        private final boolean persistenceXML;
+        private final boolean ormXML;
+
+        /**
+         * @param groupId the groupId of the library (empty for the web application)
+         * @param artifactId the artifactId of the library (empty for the web application)
+         * @param size the size of the library file or -1 if it can't be checked (directory, web application)
+         * @param lastModified the last modified time of the library file or -1 if it can't be checked
+         * @param persistenceXML true if the archive has a persistence.xml file
+         * @param ormXML true if the archive has an orm.xml file
+         */
+        public Entry(String groupId, String artifactId, long size, long lastModified, boolean persistenceXML, boolean ormXML) {
+            this.groupId = groupId;
+            this.artifactId = artifactId;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.persistenceXML = persistenceXML;
+            this.ormXML = ormXML;
+        }
+
+        public String getGroupId() {
+            return groupId;
+        }
+
+        public String getArtifactId() {
+            return artifactId;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public boolean hasPersistenceXML() {
+            return persistenceXML;
+        }
+
+        public boolean hasOrmXML() {
+            return ormXML;
+        }
+
+        /**
+         * @param fileSize the size of the deployed library
+         * @param fileLastModified the last modified time of the deployed library
+         * @return true if the deployed library is the indexed one (same size, same time at the zip precision)
+         */
+        public boolean isUpToDate(long fileSize, long fileLastModified) {
+            return size >= 0 && size == fileSize && Math.abs(lastModified - fileLastModified) < ZIP_TIME_PRECISION;
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.index;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test the format of the persistence index.
+ * @author Florent Benoit
+ */
+public class TestPersistenceIndex {
+
+    private static final long LAST_MODIFIED = 1380000000000L;
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        PersistenceIndex index = new PersistenceIndex();
+        index.add(new PersistenceIndex.Entry("", "", -1, -1, true, false));
+        index.add(new PersistenceIndex.Entry("com.example", "library", 42, LAST_MODIFIED, false, true));
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        index.write(outputStream);
+
+        PersistenceIndex readIndex = PersistenceIndex.read(new ByteArrayInputStream(outputStream.toByteArray()));
+        assertEquals(readIndex.getEntries().size(), 2);
+        PersistenceIndex.Entry webApplication = readIndex.getWebApplication();
+        assertTrue(webApplication.hasPersistenceXML());
+        assertFalse(webApplication.hasOrmXML());
+        assertEquals(webApplication.getSize(), -1L);
+        PersistenceIndex.Entry library = readIndex.get("com.example", "library");
+        assertFalse(library.hasPersistenceXML());
+        assertTrue(library.hasOrmXML());
+        assertEquals(library.getSize(), 42L);
+        assertEquals(library.getLastModified(), LAST_MODIFIED);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testPreviousVersionIsRejected() throws IOException {
+        PersistenceIndex.read(new ByteArrayInputStream("peergreen-persistence-index\t2\narchive\tlibrary.jar\t42\t-\tP-\n".getBytes("UTF-8")));
+    }
+
+    @Test
+    public void testFindLibraryByArtifactId() {
+        PersistenceIndex index = new PersistenceIndex();
+        PersistenceIndex.Entry model = new PersistenceIndex.Entry("com.example", "model", 42, LAST_MODIFIED, true, false);
+        PersistenceIndex.Entry modelApi = new PersistenceIndex.Entry("com.example", "model-api", 42, LAST_MODIFIED, false, false);
+        index.add(model);
+        index.add(modelApi);
+
+        // release, unique snapshot version, classifier and file name without version
+        assertSame(index.findLibrary("model-1.0.jar"), model);
+        assertSame(index.findLibrary("model-1.0-20130920.101010-3.jar"), model);
+        assertSame(index.findLibrary("model-api-1.0-SNAPSHOT-tests.jar"), modelApi);
+        assertSame(index.findLibrary("model.jar"), model);
+        // duplicated artifactIds are prefixed by the groupId
+        assertSame(index.findLibrary("com.example-model-1.0.jar"), model);
+        assertNull(index.findLibrary("other-1.0.jar"));
+        assertNull(index.getWebApplication());
+    }
+
+    @Test
+    public void testAmbiguousLibraryIsNotFound() {
+        PersistenceIndex index = new PersistenceIndex();
+        index.add(new PersistenceIndex.Entry("com.example", "model", 42, LAST_MODIFIED, true, false));
+        index.add(new PersistenceIndex.Entry("org.example", "model", 42, LAST_MODIFIED, false, false));
+
+        assertNull(index.findLibrary("model-1.0.jar"));
+        assertEquals(index.findLibrary("org.example-model-1.0.jar").getGroupId(), "org.example");
+    }
+
+    @Test
+    public void testUpToDate() {
+        PersistenceIndex.Entry entry = new PersistenceIndex.Entry("com.example", "model", 42, LAST_MODIFIED, true, false);
+        assertTrue(entry.isUpToDate(42, LAST_MODIFIED));
+        // time of a file extracted from a zip archive
+        assertTrue(entry.isUpToDate(42, LAST_MODIFIED - 1000L));
+        assertFalse(entry.isUpToDate(43, LAST_MODIFIED));
+        assertFalse(entry.isUpToDate(42, LAST_MODIFIED + 60000L));
+        assertFalse(new PersistenceIndex.Entry("com.example", "classes", -1, -1, true, false).isUpToDate(-1, -1));
+    }
+}
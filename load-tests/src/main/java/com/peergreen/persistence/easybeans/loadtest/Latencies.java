@@ -0,0 +1,85 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.loadtest;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Latencies of the operations of a worker, in nanoseconds. Not thread-safe: each worker records its own latencies and
+ * they are merged at the end of the run.
+ * @author Florent Benoit
+ */
+public class Latencies {
+
+    private long[] values;
+
+    private int size;
+
+    private boolean sorted;
+
+    public Latencies() {
+        this.values = new long[1024];
+    }
+
+    /**
+     * @param nanos the latency of an operation
+     */
+    public void record(long nanos) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = nanos;
+        sorted = false;
+    }
+
+    /**
+     * @param all the latencies of all the workers
+     * @return the merged latencies
+     */
+    public static Latencies merge(Collection<Latencies> all) {
+        Latencies merged = new Latencies();
+        for (Latencies latencies : all) {
+            if (merged.size + latencies.size > merged.values.length) {
+                merged.values = Arrays.copyOf(merged.values, merged.size + latencies.size);
+            }
+            System.arraycopy(latencies.values, 0, merged.values, merged.size, latencies.size);
+            merged.size += latencies.size;
+        }
+        return merged;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param percentile the percentile, between 0 and 100
+     * @return the latency of the given percentile, in nanoseconds (0 if there is no operation)
+     */
+    public long getPercentile(double percentile) {
+        if (size == 0) {
+            return 0;
+        }
+        if (!sorted) {
+            Arrays.sort(values, 0, size);
+            sorted = true;
+        }
+        int index = (int) Math.ceil(percentile / 100 * size) - 1;
+        return values[Math.min(size - 1, Math.max(0, index))];
+    }
+
+}
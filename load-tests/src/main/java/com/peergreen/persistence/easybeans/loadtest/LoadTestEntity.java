@@ -0,0 +1,53 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.loadtest;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * Entity read and written by the load test.
+ * @author Florent Benoit
+ */
+@Entity
+public class LoadTestEntity {
+
+    @Id
+    private long id;
+
+    private String label;
+
+    public LoadTestEntity() {
+    }
+
+    public LoadTestEntity(long id, String label) {
+        this.id = id;
+        this.label = label;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public void setLabel(String label) {
+        this.label = label;
+    }
+
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.loadtest;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.ow2.easybeans.persistence.EZBPersistenceUnitManager;
+
+import com.peergreen.persistence.easybeans.stub.Stub;
+
+/**
+ * Persistence unit manager of a single unit backed by the persistence provider found on the classpath, standing for the
+ * EasyBeans one during the load test.
+ * There is no transaction manager: {@link #begin()} and {@link #end(boolean)} play the role of the container by binding
+ * a resource-local entity manager to the current thread, which is used by the transaction-scoped entity manager.
+ * @author Florent Benoit
+ */
+public class LocalPersistenceUnitManager {
+
+    private final String unitName;
+
+    private final ClassLoader classLoader;
+
+    /**
+     * Entity manager of the transaction of the current thread.
+     */
+    private final ThreadLocal<EntityManager> currentEntityManager;
+
+    private volatile EntityManagerFactory entityManagerFactory;
+
+    /**
+     * @param unitNames the units of the analyzed persistence.xml file, only the first one is used
+     * @param classLoader the classloader of the web application
+     */
+    public LocalPersistenceUnitManager(List<String> unitNames, ClassLoader classLoader) {
+        this.unitName = unitNames.get(0);
+        this.classLoader = classLoader;
+        this.currentEntityManager = new ThreadLocal<EntityManager>();
+    }
+
+    /**
+     * @return the view of this manager given to the processors
+     */
+    public EZBPersistenceUnitManager asPersistenceUnitManager() {
+        final EntityManager transactionEntityManager = (EntityManager) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {EntityManager.class}, new TransactionEntityManagerHandler());
+        return new Stub()
+                .answers("getEntityManagerFactory", new Stub.Answer() {
+                    @Override
+                    public Object answer(Object[] args) {
+                        return getEntityManagerFactory();
+                    }
+                })
+                .returns("getTransactionEntityManager", transactionEntityManager)
+                .answers("getExtendedEntityManager", new Stub.Answer() {
+                    @Override
+                    public Object answer(Object[] args) {
+                        return getEntityManagerFactory().createEntityManager();
+                    }
+                }).as(EZBPersistenceUnitManager.class);
+    }
+
+    /**
+     * Creates the factory on the first call, with the classloader of the web application as context classloader.
+     * @return the entity manager factory of the unit
+     */
+    public EntityManagerFactory getEntityManagerFactory() {
+        if (entityManagerFactory == null) {
+            synchronized (this) {
+                if (entityManagerFactory == null) {
+                    Thread thread = Thread.currentThread();
+                    ClassLoader old = thread.getContextClassLoader();
+                    thread.setContextClassLoader(classLoader);
+                    try {
+                        entityManagerFactory = Persistence.createEntityManagerFactory(unitName);
+                    } finally {
+                        thread.setContextClassLoader(old);
+                    }
+                }
+            }
+        }
+        return entityManagerFactory;
+    }
+
+    /**
+     * Starts a transaction for the current thread.
+     */
+    public void begin() {
+        EntityManager entityManager = getEntityManagerFactory().createEntityManager();
+        entityManager.getTransaction().begin();
+        currentEntityManager.set(entityManager);
+    }
+
+    /**
+     * Ends the transaction of the current thread.
+     * @param commit true to commit, false to roll back
+     */
+    public void end(boolean commit) {
+        EntityManager entityManager = currentEntityManager.get();
+        currentEntityManager.remove();
+        try {
+            if (commit) {
+                entityManager.getTransaction().commit();
+            } else if (entityManager.getTransaction().isActive()) {
+                entityManager.getTransaction().rollback();
+            }
+        } finally {
+            entityManager.close();
+        }
+    }
+
+    public synchronized void close() {
+        if (entityManagerFactory != null) {
+            entityManagerFactory.close();
+            entityManagerFactory = null;
+        }
+    }
+
+
+    /**
+     * Sends the calls to the entity manager of the transaction of the current thread.
+     */
+    private final class TransactionEntityManagerHandler implements InvocationHandler {
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                if ("equals".equals(method.getName())) {
+                    return Boolean.valueOf(proxy == args[0]);
+                }
+                if ("hashCode".equals(method.getName())) {
+                    return Integer.valueOf(System.identityHashCode(proxy));
+                }
+                return "TransactionEntityManager[" + unitName + "]";
+            }
+            EntityManager entityManager = currentEntityManager.get();
+            if (entityManager == null) {
+                throw new IllegalStateException("No transaction for the current thread");
+            }
+            try {
+                return method.invoke(entityManager, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,486 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.loadtest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.persistence.EntityManager;
+
+import org.ow2.easybeans.persistence.EZBPersistenceUnitManager;
+import org.ow2.easybeans.persistence.EZBPersistenceXmlAnalyzer;
+import org.ow2.util.ee.metadata.common.api.struct.IJavaxPersistenceContext;
+import org.ow2.util.ee.metadata.common.api.struct.IJavaxPersistenceContextType;
+import org.ow2.util.ee.metadata.common.api.view.IJavaxPersistenceView;
+import org.ow2.util.scan.api.metadata.IFieldMetadata;
+
+import com.peergreen.deployment.Artifact;
+import com.peergreen.deployment.ProcessorContext;
+import com.peergreen.deployment.facet.archive.Archive;
+import com.peergreen.metadata.adapter.Binding;
+import com.peergreen.metadata.adapter.InjectionContext;
+import com.peergreen.persistence.easybeans.extension.webapplication.PersistenceDescriptorReader;
+import com.peergreen.persistence.easybeans.extension.webapplication.PersistenceUnitDescriptor;
+import com.peergreen.persistence.easybeans.extension.webapplication.WebApplicationPersistenceClassLoaderProcessor;
+import com.peergreen.persistence.easybeans.extension.webapplication.WebApplicationPersistenceProcessor;
+import com.peergreen.persistence.easybeans.injection.ExtendedContextLimits;
+import com.peergreen.persistence.easybeans.injection.PersistenceContextInjectionProcessor;
+import com.peergreen.persistence.easybeans.metrics.DefaultPersistenceMetrics;
+import com.peergreen.persistence.easybeans.registry.DefaultPersistenceUnitRegistry;
+import com.peergreen.persistence.easybeans.stub.Stub;
+import com.peergreen.webcontainer.WebApplication;
+
+/**
+ * Throughput and latency of the entity managers injected by {@link PersistenceContextInjectionProcessor} under
+ * concurrent load.
+ * A web application with one persistence unit is deployed through the class loader and persistence processors, with an
+ * in-memory H2 database behind the unit. Workers then read and write entities through a transaction-scoped entity
+ * manager (shared by all the workers) and through extended entity managers (one for each worker).
+ * <p>
+ * The EasyBeans persistence unit manager is replaced by {@link LocalPersistenceUnitManager}, which binds a
+ * resource-local entity manager to each thread instead of enlisting it in a JTA transaction. The results measure the
+ * injection processor and the persistence provider, not the EasyBeans manager nor a transaction manager, and are
+ * labelled as such.
+ * <p>
+ * Options:
+ * <ul>
+ * <li>-threads N: number of workers (default 16)</li>
+ * <li>-duration S: measured seconds for each scope (default 10), after -warmup S seconds (default 3)</li>
+ * <li>-scope transaction|extended|all: scopes to measure (default all)</li>
+ * <li>-virtual: run the workers on virtual threads if the JVM provides them</li>
+ * <li>-reads R: ratio of reads between 0 and 1 (default 0.8)</li>
+ * <li>-rows N: rows inserted before the run (default 10000)</li>
+ * </ul>
+ * Extended contexts are cleared above 1000 entities unless the limits of the unit are already set (see
+ * {@link ExtendedContextLimits}).
+ * @author Florent Benoit
+ */
+public class PersistenceLoadTest {
+
+    public static final String UNIT_NAME = "loadtest";
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 100};
+
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p99.9", "max"};
+
+    /**
+     * Label of the results: the EasyBeans persistence unit manager is a local stub.
+     */
+    private static final String LABEL = "[stub persistence unit manager]";
+
+    private final int threads;
+
+    private final long warmupNanos;
+
+    private final long durationNanos;
+
+    private final boolean virtualThreads;
+
+    private final double readRatio;
+
+    private final int rows;
+
+    private final DefaultPersistenceMetrics metrics;
+
+    private final AtomicLong ids;
+
+    private File directory;
+
+    private Artifact artifact;
+
+    private LocalPersistenceUnitManager localPersistenceUnitManager;
+
+    private PersistenceContextInjectionProcessor injectionProcessor;
+
+    public PersistenceLoadTest(int threads, long warmupSeconds, long durationSeconds, boolean virtualThreads, double readRatio, int rows) {
+        this.threads = threads;
+        this.warmupNanos = TimeUnit.SECONDS.toNanos(warmupSeconds);
+        this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+        this.virtualThreads = virtualThreads;
+        this.readRatio = readRatio;
+        this.rows = rows;
+        this.metrics = new DefaultPersistenceMetrics();
+        this.ids = new AtomicLong();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = 16;
+        long warmup = 3;
+        long duration = 10;
+        String scope = "all";
+        boolean virtualThreads = false;
+        double readRatio = 0.8;
+        int rows = 10000;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("-virtual".equals(arg)) {
+                virtualThreads = true;
+            } else if (i + 1 < args.length) {
+                String value = args[++i];
+                if ("-threads".equals(arg)) {
+                    threads = Integer.parseInt(value);
+                } else if ("-warmup".equals(arg)) {
+                    warmup = Long.parseLong(value);
+                } else if ("-duration".equals(arg)) {
+                    duration = Long.parseLong(value);
+                } else if ("-scope".equals(arg)) {
+                    scope = value;
+                } else if ("-reads".equals(arg)) {
+                    readRatio = Double.parseDouble(value);
+                } else if ("-rows".equals(arg)) {
+                    rows = Integer.parseInt(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            } else {
+                throw new IllegalArgumentException("Missing value of " + arg);
+            }
+        }
+
+        String maxEntitiesProperty = ExtendedContextLimits.PROPERTY_PREFIX + ExtendedContextLimits.MAX_ENTITIES;
+        if (System.getProperty(maxEntitiesProperty) == null && System.getProperty(maxEntitiesProperty + "." + UNIT_NAME) == null) {
+            System.setProperty(maxEntitiesProperty + "." + UNIT_NAME, "1000");
+        }
+
+        System.out.println(LABEL + " EasyBeans and JTA are replaced by a resource-local entity manager for each thread");
+        PersistenceLoadTest loadTest = new PersistenceLoadTest(threads, warmup, duration, virtualThreads, readRatio, rows);
+        try {
+            loadTest.deploy();
+            loadTest.preload();
+            if ("all".equals(scope) || "transaction".equals(scope)) {
+                loadTest.run(IJavaxPersistenceContextType.TRANSACTION);
+            }
+            if ("all".equals(scope) || "extended".equals(scope)) {
+                loadTest.run(IJavaxPersistenceContextType.EXTENDED);
+            }
+            System.out.printf("Injection points resolved: %d, open extended contexts: %d, extended contexts over limit: %d%n",
+                    loadTest.metrics.getInjectionPointsResolved(), loadTest.metrics.getExtendedContexts(), loadTest.metrics.getExtendedContextsOverLimit());
+        } finally {
+            loadTest.undeploy();
+        }
+    }
+
+    /**
+     * Deploys a web application with a persistence.xml file through the persistence processors.
+     * @throws Exception if the deployment fails
+     */
+    public void deploy() throws Exception {
+        directory = File.createTempFile("loadtest", ".war");
+        directory.delete();
+        File classes = new File(directory, "WEB-INF/classes");
+        new File(classes, "META-INF").mkdirs();
+        writePersistenceXML(new File(classes, "META-INF/persistence.xml"));
+
+        final URI rootURI = directory.toURI();
+        Archive war = new Stub()
+                .returns("getURI", rootURI)
+                .answers("getResource", new Stub.Answer() {
+                    @Override
+                    public Object answer(Object[] args) {
+                        File file = new File(directory, (String) args[0]);
+                        return file.exists() ? file.toURI() : null;
+                    }
+                }).as(Archive.class);
+
+        final AtomicReference<ClassLoader> classLoader = new AtomicReference<ClassLoader>(
+                new URLClassLoader(new URL[] {classes.toURI().toURL()}, PersistenceLoadTest.class.getClassLoader()));
+        WebApplication webApplication = new Stub()
+                .answers("getClassLoader", new Stub.Answer() {
+                    @Override
+                    public Object answer(Object[] args) {
+                        return classLoader.get();
+                    }
+                })
+                .answers("setClassLoader", new Stub.Answer() {
+                    @Override
+                    public Object answer(Object[] args) {
+                        classLoader.set((ClassLoader) args[0]);
+                        return null;
+                    }
+                })
+                .returns("getLibraries", Collections.<Archive>emptyList())
+                .as(WebApplication.class);
+
+        final Stub artifactStub = new Stub().facet(Archive.class, war);
+        artifact = artifactStub.as(Artifact.class);
+        ProcessorContext processorContext = new Stub()
+                .returns("getArtifact", artifact)
+                .answers("addFacet", new Stub.Answer() {
+                    @Override
+                    public Object answer(Object[] args) {
+                        addFacet(artifactStub, (Class<?>) args[0], args[1]);
+                        return null;
+                    }
+                }).as(ProcessorContext.class);
+
+        EZBPersistenceXmlAnalyzer persistenceXmlAnalyzer = new Stub().answers("analyzePersistenceXmlFile", new Stub.Answer() {
+            @Override
+            public Object answer(Object[] args) throws Exception {
+                List<String> unitNames = new ArrayList<String>();
+                for (PersistenceUnitDescriptor unit : new PersistenceDescriptorReader().readPersistenceUnits((URI) args[1])) {
+                    unitNames.add(unit.getName());
+                }
+                localPersistenceUnitManager = new LocalPersistenceUnitManager(unitNames, (ClassLoader) args[3]);
+                return localPersistenceUnitManager.asPersistenceUnitManager();
+            }
+        }).as(EZBPersistenceXmlAnalyzer.class);
+
+        long start = System.nanoTime();
+        new WebApplicationPersistenceClassLoaderProcessor(metrics).handle(webApplication, processorContext);
+        new WebApplicationPersistenceProcessor(persistenceXmlAnalyzer, metrics, new DefaultPersistenceUnitRegistry()).handle(webApplication, processorContext);
+        if (artifact.as(EZBPersistenceUnitManager.class) == null) {
+            throw new IllegalStateException("No persistence unit manager has been added to the web application");
+        }
+        System.out.printf("Deployment (with the creation of the entity manager factory): %.1f ms%n", (System.nanoTime() - start) / 1e6);
+
+        injectionProcessor = new PersistenceContextInjectionProcessor(metrics);
+        // reads the limits of the extended contexts, as when the component is validated
+        injectionProcessor.start();
+    }
+
+    public void undeploy() {
+        if (injectionProcessor != null) {
+            injectionProcessor.stop();
+        }
+        if (localPersistenceUnitManager != null) {
+            localPersistenceUnitManager.close();
+        }
+        if (directory != null) {
+            delete(directory);
+        }
+    }
+
+    /**
+     * Inserts the rows read by the workers.
+     */
+    public void preload() {
+        EntityManager entityManager = inject(IJavaxPersistenceContextType.TRANSACTION);
+        localPersistenceUnitManager.begin();
+        boolean done = false;
+        try {
+            for (int i = 0; i < rows; i++) {
+                entityManager.persist(new LoadTestEntity(ids.incrementAndGet(), "row-" + i));
+            }
+            done = true;
+        } finally {
+            localPersistenceUnitManager.end(done);
+        }
+    }
+
+    /**
+     * Runs the workers with the given scope and prints the results.
+     * @param type the scope of the entity managers
+     * @throws Exception if the workers can't be run
+     */
+    public void run(final IJavaxPersistenceContextType type) throws Exception {
+        final EntityManager sharedEntityManager = type == IJavaxPersistenceContextType.TRANSACTION ? inject(type) : null;
+        final long measureStart = System.nanoTime() + warmupNanos;
+        final long end = measureStart + durationNanos;
+        final AtomicLong errors = new AtomicLong();
+
+        List<Future<Latencies>> futures = new ArrayList<Future<Latencies>>();
+        ExecutorService executorService = newExecutorService();
+        try {
+            for (int i = 0; i < threads; i++) {
+                final long seed = i;
+                futures.add(executorService.submit(new Callable<Latencies>() {
+                    @Override
+                    public Latencies call() {
+                        EntityManager entityManager = sharedEntityManager;
+                        if (entityManager == null) {
+                            entityManager = inject(type);
+                        }
+                        Random random = new Random(seed);
+                        Latencies latencies = new Latencies();
+                        try {
+                            long start;
+                            while ((start = System.nanoTime()) < end) {
+                                try {
+                                    execute(type, entityManager, random);
+                                } catch (RuntimeException e) {
+                                    errors.incrementAndGet();
+                                }
+                                if (start >= measureStart) {
+                                    latencies.record(System.nanoTime() - start);
+                                }
+                            }
+                        } finally {
+                            if (sharedEntityManager == null) {
+                                entityManager.close();
+                            }
+                        }
+                        return latencies;
+                    }
+                }));
+            }
+            List<Latencies> all = new ArrayList<Latencies>();
+            for (Future<Latencies> future : futures) {
+                all.add(future.get());
+            }
+            report(type, Latencies.merge(all), errors.get());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs one operation in its own transaction.
+     */
+    private void execute(IJavaxPersistenceContextType type, EntityManager entityManager, Random random) {
+        if (type == IJavaxPersistenceContextType.TRANSACTION) {
+            localPersistenceUnitManager.begin();
+            boolean done = false;
+            try {
+                work(entityManager, random);
+                done = true;
+            } finally {
+                localPersistenceUnitManager.end(done);
+            }
+        } else {
+            entityManager.getTransaction().begin();
+            try {
+                work(entityManager, random);
+                entityManager.getTransaction().commit();
+            } finally {
+                if (entityManager.getTransaction().isActive()) {
+                    entityManager.getTransaction().rollback();
+                }
+            }
+        }
+    }
+
+    private void work(EntityManager entityManager, Random random) {
+        if (random.nextDouble() < readRatio) {
+            long id = 1 + (long) (random.nextDouble() * ids.get());
+            entityManager.find(LoadTestEntity.class, Long.valueOf(id));
+        } else {
+            long id = ids.incrementAndGet();
+            entityManager.persist(new LoadTestEntity(id, "entity-" + id));
+        }
+    }
+
+    private void report(IJavaxPersistenceContextType type, Latencies latencies, long errors) {
+        double seconds = durationNanos / 1e9;
+        StringBuilder line = new StringBuilder(String.format("%s %-11s %-8s %4d workers: %10.0f ops/s", LABEL, type, virtualThreads ? "virtual" : "platform",
+                Integer.valueOf(threads), Double.valueOf(latencies.size() / seconds)));
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            line.append(String.format(", %s %.1f us", PERCENTILE_NAMES[i], Double.valueOf(latencies.getPercentile(PERCENTILES[i]) / 1e3)));
+        }
+        line.append(", errors ").append(errors);
+        System.out.println(line);
+    }
+
+    /**
+     * @return a new virtual thread for each worker if requested and available, else a pool of platform threads
+     */
+    private ExecutorService newExecutorService() {
+        if (virtualThreads) {
+            try {
+                Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) method.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads are not available, using platform threads");
+            }
+        }
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Resolves an injection point of the given type as the injection framework would do.
+     */
+    private EntityManager inject(IJavaxPersistenceContextType type) {
+        IJavaxPersistenceContext persistenceContext = new Stub()
+                .returns("getType", type)
+                .returns("getUnitName", UNIT_NAME)
+                .returns("getName", "persistence/" + UNIT_NAME)
+                .as(IJavaxPersistenceContext.class);
+        IJavaxPersistenceView persistenceView = new Stub().returns("getJavaxPersistenceContext", persistenceContext).as(IJavaxPersistenceView.class);
+        IFieldMetadata metadata = new Stub().facet(IJavaxPersistenceView.class, persistenceView).as(IFieldMetadata.class);
+
+        final AtomicReference<Object> value = new AtomicReference<Object>();
+        final Binding<?> binding = new Stub().as(Binding.class);
+        InjectionContext injectionContext = new Stub()
+                .returns("getArtifact", artifact)
+                .returns("getMetadata", metadata)
+                .answers("createBinding", new Stub.Answer() {
+                    @Override
+                    public Object answer(Object[] args) {
+                        value.set(args[1]);
+                        return binding;
+                    }
+                }).as(InjectionContext.class);
+        if (injectionProcessor.handle(injectionContext) == null) {
+            throw new IllegalStateException("No persistence unit manager for the injection point");
+        }
+        return (EntityManager) value.get();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void addFacet(Stub stub, Class<T> type, Object facet) {
+        stub.facet(type, (T) facet);
+    }
+
+    private void writePersistenceXML(File file) throws IOException {
+        String persistenceXML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<persistence xmlns=\"http://java.sun.com/xml/ns/persistence\" version=\"2.0\">\n"
+                + "  <persistence-unit name=\"" + UNIT_NAME + "\" transaction-type=\"RESOURCE_LOCAL\">\n"
+                + "    <provider>org.hibernate.ejb.HibernatePersistence</provider>\n"
+                + "    <class>" + LoadTestEntity.class.getName() + "</class>\n"
+                + "    <exclude-unlisted-classes>true</exclude-unlisted-classes>\n"
+                + "    <properties>\n"
+                + "      <property name=\"javax.persistence.jdbc.driver\" value=\"org.h2.Driver\"/>\n"
+                + "      <property name=\"javax.persistence.jdbc.url\" value=\"jdbc:h2:mem:" + UNIT_NAME + ";DB_CLOSE_DELAY=-1;MVCC=TRUE\"/>\n"
+                + "      <property name=\"javax.persistence.jdbc.user\" value=\"sa\"/>\n"
+                + "      <property name=\"javax.persistence.jdbc.password\" value=\"\"/>\n"
+                + "      <property name=\"hibernate.dialect\" value=\"org.hibernate.dialect.H2Dialect\"/>\n"
+                + "      <property name=\"hibernate.hbm2ddl.auto\" value=\"create-drop\"/>\n"
+                + "      <property name=\"hibernate.connection.pool_size\" value=\"" + threads + "\"/>\n"
+                + "    </properties>\n"
+                + "  </persistence-unit>\n"
+                + "</persistence>\n";
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(persistenceXML.getBytes("UTF-8"));
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.maven;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.ZipFile;
+
+import com.peergreen.persistence.easybeans.index.PersistenceIndex;
+
+/**
+ * Builds the {@link PersistenceIndex} of a web application from its classes directory and its libraries.
+ * @author Florent Benoit
+ */
+public class PersistenceIndexBuilder {
+
+    private final PersistenceIndex persistenceIndex;
+
+    public PersistenceIndexBuilder() {
+        this.persistenceIndex = new PersistenceIndex();
+    }
+
+    /**
+     * Indexes the classes directory of the web application (content of WEB-INF/classes).
+     * @param classesDirectory the directory
+     */
+    public void addClassesDirectory(File classesDirectory) {
+        File persistenceXML = new File(classesDirectory, PersistenceIndex.PERSISTENCE_XML_PATH);
+        File ormXML = new File(classesDirectory, PersistenceIndex.ORM_XML_PATH);
+        persistenceIndex.add(new PersistenceIndex.Entry("", "", -1, -1, persistenceXML.isFile(), ormXML.isFile()));
+    }
+
+    /**
+     * Indexes a library of the web application (content of WEB-INF/lib).
+     * @param groupId the groupId of the library
+     * @param artifactId the artifactId of the library
+     * @param library the jar file of the library or its classes directory (module of the reactor not packaged yet)
+     * @throws IOException if the library can't be read
+     */
+    public void addLibrary(String groupId, String artifactId, File library) throws IOException {
+        if (library.isDirectory()) {
+            // the jar packaged in the web application can't be checked against a directory: it is probed at deployment
+            File persistenceXML = new File(library, PersistenceIndex.PERSISTENCE_XML_PATH);
+            File ormXML = new File(library, PersistenceIndex.ORM_XML_PATH);
+            persistenceIndex.add(new PersistenceIndex.Entry(groupId, artifactId, -1, -1, persistenceXML.isFile(), ormXML.isFile()));
+            return;
+        }
+
+        boolean persistenceXML;
+        boolean ormXML;
+        try (ZipFile zipFile = new ZipFile(library)) {
+            persistenceXML = zipFile.getEntry(PersistenceIndex.PERSISTENCE_XML_PATH) != null;
+            ormXML = zipFile.getEntry(PersistenceIndex.ORM_XML_PATH) != null;
+        }
+        persistenceIndex.add(new PersistenceIndex.Entry(groupId, artifactId, library.length(), library.lastModified(), persistenceXML, ormXML));
+    }
+
+    /**
+     * @return the index
+     */
+    public PersistenceIndex build() {
+        return persistenceIndex;
+    }
+
+    /**
+     * Writes the index in the classes directory of the web application.
+     * @param classesDirectory the directory
+     * @return the index file
+     * @throws IOException if the index can't be written
+     */
+    public File write(File classesDirectory) throws IOException {
+        File indexFile = new File(classesDirectory, PersistenceIndex.PATH_IN_CLASSES);
+        File parent = indexFile.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create the directory " + parent);
+        }
+        try (OutputStream outputStream = new FileOutputStream(indexFile)) {
+            persistenceIndex.write(outputStream);
+        }
+        return indexFile;
+    }
+
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.maven;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+import org.apache.maven.project.MavenProject;
+
+/**
+ * Writes the persistence index of a web application in its classes directory so that it is packaged in
+ * WEB-INF/classes/META-INF. The index lists the libraries of the web application (the runtime dependencies of the
+ * project) with their Maven coordinates, their size, their last modified time and their persistence descriptors.
+ * @author Florent Benoit
+ */
+@Mojo(name = "index", defaultPhase = LifecyclePhase.PROCESS_CLASSES, requiresDependencyResolution = ResolutionScope.RUNTIME, threadSafe = true)
+public class PersistenceIndexMojo extends AbstractMojo {
+
+    @Parameter(defaultValue = "${project}", readonly = true, required = true)
+    private MavenProject project;
+
+    /**
+     * Classes directory of the web application.
+     */
+    @Parameter(defaultValue = "${project.build.outputDirectory}", required = true)
+    private File outputDirectory;
+
+    /**
+     * Skips the generation of the index.
+     */
+    @Parameter(property = "peergreen.persistence.index.skip", defaultValue = "false")
+    private boolean skip;
+
+    @Override
+    public void execute() throws MojoExecutionException {
+        if (skip) {
+            getLog().info("Persistence index is skipped");
+            return;
+        }
+
+        PersistenceIndexBuilder persistenceIndexBuilder = new PersistenceIndexBuilder();
+        try {
+            persistenceIndexBuilder.addClassesDirectory(outputDirectory);
+            for (Artifact artifact : project.getArtifacts()) {
+                // libraries packaged in WEB-INF/lib
+                if (!"jar".equals(artifact.getType()) || !isPackaged(artifact.getScope()) || artifact.getFile() == null) {
+                    continue;
+                }
+                persistenceIndexBuilder.addLibrary(artifact.getGroupId(), artifact.getArtifactId(), artifact.getFile());
+            }
+            File indexFile = persistenceIndexBuilder.write(outputDirectory);
+            getLog().info("Persistence index of " + persistenceIndexBuilder.build().getEntries().size() + " archives written to " + indexFile);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to build the persistence index", e);
+        }
+    }
+
+    /**
+     * @param scope the scope of a dependency
+     * @return true if the dependency is packaged in the web application
+     */
+    private static boolean isPackaged(String scope) {
+        return Artifact.SCOPE_COMPILE.equals(scope) || Artifact.SCOPE_RUNTIME.equals(scope);
+    }
+
+}
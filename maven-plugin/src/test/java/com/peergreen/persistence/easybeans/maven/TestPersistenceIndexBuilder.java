@@ -0,0 +1,133 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.maven;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.testng.annotations.Test;
+
+import com.peergreen.persistence.easybeans.index.PersistenceIndex;
+
+/**
+ * Test the building of the persistence index.
+ * @author Florent Benoit
+ */
+public class TestPersistenceIndexBuilder {
+
+    private static final byte[] PERSISTENCE_XML = "<persistence xmlns=\"http://java.sun.com/xml/ns/persistence\" version=\"2.0\"/>".getBytes();
+
+    @Test
+    public void testLibraries() throws IOException {
+        File persistenceLibrary = jar("persistence",
+                "META-INF/persistence.xml", PERSISTENCE_XML,
+                "com/example/Annotated.class", "class".getBytes());
+        File otherLibrary = jar("other", "com/example/Annotated.class", "class".getBytes());
+
+        PersistenceIndexBuilder builder = new PersistenceIndexBuilder();
+        builder.addLibrary("com.example", "persistence", persistenceLibrary);
+        builder.addLibrary("com.example", "other", otherLibrary);
+        PersistenceIndex index = builder.build();
+
+        PersistenceIndex.Entry entry = index.get("com.example", "persistence");
+        assertTrue(entry.hasPersistenceXML());
+        assertFalse(entry.hasOrmXML());
+        assertEquals(entry.getSize(), persistenceLibrary.length());
+        assertEquals(entry.getLastModified(), persistenceLibrary.lastModified());
+
+        PersistenceIndex.Entry otherEntry = index.get("com.example", "other");
+        assertFalse(otherEntry.hasPersistenceXML());
+        assertFalse(otherEntry.hasOrmXML());
+    }
+
+    @Test
+    public void testClassesDirectoryOfAModule() throws IOException {
+        File moduleClasses = directory("module");
+        write(new File(moduleClasses, "META-INF/persistence.xml"), PERSISTENCE_XML);
+
+        PersistenceIndexBuilder builder = new PersistenceIndexBuilder();
+        builder.addLibrary("com.example", "module", moduleClasses);
+
+        // the packaged jar can't be checked against the directory
+        PersistenceIndex.Entry entry = builder.build().get("com.example", "module");
+        assertTrue(entry.hasPersistenceXML());
+        assertFalse(entry.hasOrmXML());
+        assertEquals(entry.getSize(), -1L);
+    }
+
+    @Test
+    public void testClassesDirectoryAndWrite() throws IOException {
+        File classesDirectory = directory("classes");
+        write(new File(classesDirectory, "META-INF/persistence.xml"), PERSISTENCE_XML);
+        File library = jar("library", "META-INF/orm.xml", "<entity-mappings/>".getBytes());
+
+        PersistenceIndexBuilder builder = new PersistenceIndexBuilder();
+        builder.addClassesDirectory(classesDirectory);
+        builder.addLibrary("com.example", "library", library);
+        File indexFile = builder.write(classesDirectory);
+
+        assertEquals(indexFile, new File(classesDirectory, PersistenceIndex.PATH_IN_CLASSES));
+        PersistenceIndex index;
+        try (InputStream inputStream = new FileInputStream(indexFile)) {
+            index = PersistenceIndex.read(inputStream);
+        }
+        PersistenceIndex.Entry entry = index.getWebApplication();
+        assertTrue(entry.hasPersistenceXML());
+        assertEquals(entry.getSize(), -1L);
+
+        PersistenceIndex.Entry libraryEntry = index.findLibrary("library-1.0.jar");
+        assertFalse(libraryEntry.hasPersistenceXML());
+        assertTrue(libraryEntry.hasOrmXML());
+        assertEquals(libraryEntry.getSize(), library.length());
+        assertTrue(libraryEntry.isUpToDate(library.length(), library.lastModified()));
+    }
+
+    private static File jar(String name, Object... entries) throws IOException {
+        File jar = File.createTempFile(name, ".jar");
+        jar.deleteOnExit();
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(new FileOutputStream(jar))) {
+            for (int i = 0; i < entries.length; i += 2) {
+                zipOutputStream.putNextEntry(new ZipEntry((String) entries[i]));
+                zipOutputStream.write((byte[]) entries[i + 1]);
+                zipOutputStream.closeEntry();
+            }
+        }
+        return jar;
+    }
+
+    private static File directory(String name) throws IOException {
+        File directory = File.createTempFile(name, "");
+        assertTrue(directory.delete() && directory.mkdirs());
+        return directory;
+    }
+
+    private static void write(File file, byte[] content) throws IOException {
+        file.getParentFile().mkdirs();
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(content);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2013 Peergreen S.A.S.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.peergreen.persistence.easybeans.stub;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Local stub implementation of the deployment, metadata and persistence APIs, based on dynamic proxies.
+ * Methods are answered by name, {@code as(Class)} methods are answered with the registered facets and other methods
+ * return null (or the default value of a primitive type).
+ * @author Florent Benoit
+ */
+public class Stub implements InvocationHandler {
+
+    /**
+     * Computes the value returned by a method.
+     */
+    public interface Answer {
+        Object answer(Object[] args) throws Exception;
+    }
+
+    private final Map<String, Answer> answers = new HashMap<String, Answer>();
+
+    private final Map<Class<?>, Object> facets = new HashMap<Class<?>, Object>();
+
+    /**
+     * Returns the given value for the given method name.
+     * @param methodName the name of the method
+     * @param value the value to return
+     * @return this stub
+     */
+    public Stub returns(String methodName, final Object value) {
+        return answers(methodName, new Answer() {
+            @Override
+            public Object answer(Object[] args) {
+                return value;
+            }
+        });
+    }
+
+    /**
+     * Computes the value of the given method name.
+     * @param methodName the name of the method
+     * @param answer the answer to call
+     * @return this stub
+     */
+    public Stub answers(String methodName, Answer answer) {
+        answers.put(methodName, answer);
+        return this;
+    }
+
+    /**
+     * Returns the given value when {@code as(type)} is called.
+     * @param type the facet type
+     * @param facet the facet
+     * @return this stub
+     */
+    public <T> Stub facet(Class<T> type, T facet) {
+        facets.put(type, facet);
+        return this;
+    }
+
+    /**
+     * Builds the proxy.
+     * @param type the main interface
+     * @param otherTypes other implemented interfaces
+     * @return the proxy
+     */
+    public <T> T as(Class<T> type, Class<?>... otherTypes) {
+        Class<?>[] interfaces = new Class<?>[otherTypes.length + 1];
+        interfaces[0] = type;
+        System.arraycopy(otherTypes, 0, interfaces, 1, otherTypes.length);
+        return type.cast(Proxy.newProxyInstance(Stub.class.getClassLoader(), interfaces, this));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if (method.getDeclaringClass() == Object.class) {
+            if ("equals".equals(name)) {
+                return Boolean.valueOf(proxy == args[0]);
+            }
+            if ("hashCode".equals(name)) {
+                return Integer.valueOf(System.identityHashCode(proxy));
+            }
+            return "Stub@" + Integer.toHexString(System.identityHashCode(proxy));
+        }
+        Answer answer = answers.get(name);
+        if (answer != null) {
+            return answer.answer(args);
+        }
+        if ("as".equals(name) && args != null && args.length == 1 && args[0] instanceof Class) {
+            return facets.get(args[0]);
+        }
+        return defaultValue(method.getReturnType());
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        }
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        }
+        if (type == char.class) {
+            return Character.valueOf((char) 0);
+        }
+        if (type == byte.class) {
+            return Byte.valueOf((byte) 0);
+        }
+        if (type == short.class) {
+            return Short.valueOf((short) 0);
+        }
+        if (type == int.class) {
+            return Integer.valueOf(0);
+        }
+        if (type == long.class) {
+            return Long.valueOf(0L);
+        }
+        if (type == float.class) {
+            return Float.valueOf(0f);
+        }
+        return Double.valueOf(0d);
+    }
+}